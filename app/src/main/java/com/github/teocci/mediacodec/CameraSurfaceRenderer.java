@@ -13,6 +13,7 @@ import com.github.teocci.libmediacodec.encoder.SessionConfig;
 import com.github.teocci.libmediacodec.gles.FullFrameRect;
 import com.github.teocci.libmediacodec.gles.Texture2dProgram;
 import com.github.teocci.libmediacodec.encoder.TextureMovieEncoder;
+import com.github.teocci.libmediacodec.encoder.VideoEncoderCore;
 import com.github.teocci.mediacodec.ui.CameraCaptureActivity;
 
 /**
@@ -113,6 +114,20 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer
         this.isRecording = isRecording;
     }
 
+    /**
+     * Notifies the renderer that we want to pause or resume the current recording.
+     * The video encoder keeps running, so resuming doesn't restart it.
+     */
+    public void changePauseState(boolean isPaused)
+    {
+        Log.d(TAG, "changePauseState: " + isPaused);
+        if (isPaused) {
+            videoEncoder.pauseRecording();
+        } else {
+            videoEncoder.resumeRecording();
+        }
+    }
+
     /**
      * Changes the filter that we're applying to the camera preview.
      */
@@ -261,7 +276,8 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer
                     // start recording
                     videoEncoder.startRecording(new TextureMovieEncoder.EncoderConfig(sessionConfig.getVideoWidth(),
                             sessionConfig.getVideoHeight(), sessionConfig.getVideoBitrate(),
-                            EGL14.eglGetCurrentContext(), sessionConfig.getMuxer()));
+                            EGL14.eglGetCurrentContext(), sessionConfig.getMuxer(),
+                            VideoEncoderCore.DEFAULT_MAX_FRAMES_IN_FLIGHT, sessionConfig.isAdaptiveBitrate()));
                     recordingStatus = RECORDING_ON;
                     break;
                 case RECORDING_RESUMED:
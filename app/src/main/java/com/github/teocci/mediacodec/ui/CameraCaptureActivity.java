@@ -47,6 +47,7 @@ import android.widget.LinearLayout;
 import android.widget.RelativeLayout;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import java.io.File;
 import java.io.IOException;
@@ -190,7 +191,11 @@ public class CameraCaptureActivity extends ImmersiveActivity
         setContentView(R.layout.activity_camera_capture);
 
         CameraUtils.clearSessionConfig();
-        CameraUtils.clearSessionFolders(this, true, true);
+        // Chunks left behind by a session that was killed are saved before they're cleared
+        boolean recoverSession = CameraUtils.hasInterruptedSession(this);
+        if (!recoverSession) {
+            CameraUtils.clearSessionFolders(this, true, true);
+        }
 
         Spinner spinner = (Spinner) findViewById(R.id.filterSpinner);
         ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(this,
@@ -211,10 +216,12 @@ public class CameraCaptureActivity extends ImmersiveActivity
         isRecording = videoEncoder.isRecording();
 
 
-        try {
-            micEncoder = new MicrophoneEncoder(sessionConfig);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (sessionConfig.hasAudio()) {
+            try {
+                micEncoder = new MicrophoneEncoder(sessionConfig);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
 
         // Configure the GLSurfaceView.  This will start the Renderer thread, with an
@@ -226,6 +233,10 @@ public class CameraCaptureActivity extends ImmersiveActivity
         glSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
         cameraManager = new AppCameraManager(this, sessionConfig);
         setUpUi();
+        if (recoverSession) {
+            blockerSpinner.setVisibility(View.VISIBLE);
+            new AsyncRecoveryTask(this, sessionConfig.getOutputPath()).execute();
+        }
         Log.d(TAG, "onCreate complete: " + this);
     }
 
@@ -357,13 +368,17 @@ public class CameraCaptureActivity extends ImmersiveActivity
                     case (MotionEvent.ACTION_DOWN):
                         Log.d(TAG, "Action was DOWN");
                         lastRecordingRequestedTime = System.currentTimeMillis();
-                        startRecording();
+                        if (cameraManager.isPaused()) {
+                            resumeRecording();
+                        } else {
+                            startRecording();
+                        }
                         retVal = true;
                         break;
                     case (MotionEvent.ACTION_UP):
                         Log.d(TAG, "Action was UP");
                         if (System.currentTimeMillis() - lastRecordingRequestedTime > cancelMsgDelay) {
-                            stopRecording();
+                            pauseRecording();
                         }
                         retVal = true;
                         break;
@@ -378,7 +393,7 @@ public class CameraCaptureActivity extends ImmersiveActivity
     public void startRecording()
     {
         Log.d(TAG, "Action was DOWN");
-        micEncoder.startRecording();
+        if (micEncoder != null) micEncoder.startRecording();
         recordButton.setBackgroundResource(R.drawable.red_dot_stop);
         isRecording = true;
         cameraManager.changeRecordingState(isRecording);
@@ -397,11 +412,11 @@ public class CameraCaptureActivity extends ImmersiveActivity
     public void stopRecording()
     {
         isRecording = false;
-        micEncoder.stopRecording();
+        if (micEncoder != null) micEncoder.stopRecording();
         handleStopRecording();
         resetConfig();
         try {
-            micEncoder.reset(sessionConfig);
+            if (micEncoder != null) micEncoder.reset(sessionConfig);
             surfaceRenderer.resetSessionConfig(sessionConfig);
         } catch (IOException e) {
             e.printStackTrace();
@@ -419,6 +434,51 @@ public class CameraCaptureActivity extends ImmersiveActivity
         });
     }
 
+    /**
+     * Pauses the session without stopping the encoders, so the whole session ends up
+     * in a single file and resuming takes a single frame.
+     */
+    public void pauseRecording()
+    {
+        if (!cameraManager.isRecording()) return;
+        isRecording = false;
+        cameraManager.pauseRecording();
+        if (micEncoder != null) micEncoder.pauseRecording();
+        glSurfaceView.queueEvent(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                surfaceRenderer.changePauseState(true);
+            }
+        });
+        handleStopRecording();
+    }
+
+    public void resumeRecording()
+    {
+        isRecording = true;
+        cameraManager.resumeRecording();
+        if (micEncoder != null) micEncoder.resumeRecording();
+        glSurfaceView.queueEvent(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                surfaceRenderer.changePauseState(false);
+            }
+        });
+        recordButton.setBackgroundResource(R.drawable.red_dot_stop);
+    }
+
+    /**
+     * @return true if a recording is in progress, including when it is paused
+     */
+    private boolean isSessionActive()
+    {
+        return cameraManager != null && (cameraManager.isRecording() || cameraManager.isPaused());
+    }
+
     public void handleStopRecording()
     {
         recordButton.setBackgroundResource(R.drawable.red_dot);
@@ -502,14 +562,15 @@ public class CameraCaptureActivity extends ImmersiveActivity
             @Override
             public void onClick(View v)
             {
+                // Finalize the session file; the stitcher waits for it before completing
+                if (isSessionActive()) {
+                    stopRecording();
+                }
+
                 AsyncStitcherTask stitcherTask = new AsyncStitcherTask(CameraCaptureActivity.this);
                 stitcherTask.execute("AsyncStitcherTask Task");
                 doneButton.setVisibility(View.GONE);
 
-                if (cameraManager != null && cameraManager.isRecording()) {
-                    handleStopRecording();
-                }
-
                 blockerSpinner.setVisibility(View.VISIBLE);
                 donutProgress.setProgress(0);
                 donutProgress.setText(CameraUtils.millisecondToTimeString(0));
@@ -540,14 +601,11 @@ public class CameraCaptureActivity extends ImmersiveActivity
         @Override
         protected Boolean doInBackground(String... params)
         {
-            final File inputDir = new File(mContext.getExternalFilesDir(null),
-                    SessionConfig.sessionFolder);
             final File outDir = Environment.getExternalStoragePublicDirectory(
                     Environment.DIRECTORY_DCIM);
 
-            CameraUtils.stichVideos(
-                    mContext, inputDir.getPath(), outDir.getPath());
-            return true;
+            // Chunks were stitched as they were recorded; only the last one is left to append
+            return cameraManager.finishSession(outDir.getPath()) != null;
         }
 
         @Override
@@ -561,6 +619,46 @@ public class CameraCaptureActivity extends ImmersiveActivity
         }
     }
 
+    private class AsyncRecoveryTask extends AsyncTask<Void, Integer, Boolean>
+    {
+        WeakReference<CameraCaptureActivity> weakActivity;
+        Context mContext;
+        // Already built in the folder the sweep goes through, with its journal
+        String activeOutputPath;
+
+        AsyncRecoveryTask(CameraCaptureActivity activity, String activeOutputPath)
+        {
+            weakActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+            this.activeOutputPath = activeOutputPath;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params)
+        {
+            final File outDir = Environment.getExternalStoragePublicDirectory(
+                    Environment.DIRECTORY_DCIM);
+
+            boolean recovered = CameraUtils.recoverInterruptedSession(mContext, outDir.getPath(),
+                    activeOutputPath) != null;
+            CameraUtils.clearSessionFolders(mContext, true, true);
+            return recovered;
+        }
+
+        @Override
+        protected void onPostExecute(Boolean recovered)
+        {
+            super.onPostExecute(recovered);
+            CameraCaptureActivity activity = weakActivity.get();
+            if (activity != null) {
+                blockerSpinner.setVisibility(View.GONE);
+                if (recovered) {
+                    Toast.makeText(activity, "Recovered the interrupted recording", Toast.LENGTH_LONG).show();
+                }
+            }
+        }
+    }
+
     private void showCancleAlert()
     {
         new AlertDialog.Builder(this)
@@ -573,15 +671,17 @@ public class CameraCaptureActivity extends ImmersiveActivity
                         // continue with delete
                         donutProgress.setProgress(0);
                         donutProgress.setText(CameraUtils.millisecondToTimeString(0));
+                        if (isSessionActive()) {
+                            stopRecording();
+                        }
                         if (cameraManager != null) {
-                            if (cameraManager.isRecording()) {
-                                cameraManager.stopRecording();
-                            }
                             cameraManager.resetRecordingTime();
                         }
                         cancelButton.setVisibility(View.INVISIBLE);
                         doneButton.setVisibility(View.GONE);
-                        CameraUtils.clearSessionFolders(donutProgress.getContext(), true, false);
+                        if (cameraManager != null) {
+                            cameraManager.cancelSession();
+                        }
                         dialog.dismiss();
                     }
                 })
@@ -678,6 +778,7 @@ public class CameraCaptureActivity extends ImmersiveActivity
         Log.d(TAG, "onDestroy");
         super.onDestroy();
         cameraHandler.invalidateHandler();     // paranoia
+        cameraManager.release();
         CameraUtils.clearSessionFolders(this, true, true);
     }
 
@@ -4,15 +4,30 @@ import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.os.Build;
-import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-
-import static com.github.teocci.libmediacodec.utils.CameraUtils.isKitKat;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Base of the MediaCodec encoders, handing their output to a {@link MediaMuxer}.
+ * <p>
+ * On API 21+ encoders created with {@link #createEncoder(String, String, int)} run in
+ * asynchronous mode: MediaCodec hands every encoded buffer to a callback on a
+ * dedicated thread, which writes it to the muxer right away, and
+ * {@link #drainEncoder(boolean)} only has to wait for the end of stream. Older
+ * versions poll the encoder from {@link #drainEncoder(boolean)}.
+ * <p>
+ * The codec is used through {@link EncoderCodec}, so an encoder can also run on a
+ * {@link FakeEncoderCodec}, which is always polled.
+ *
  * @hide
  */
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
@@ -22,28 +37,156 @@ public abstract class AndroidEncoder
     private final static boolean VERBOSE = false;
 
     protected MediaMuxer mediaMuxer;
-    protected MediaCodec mediaEncoder;
+    protected EncoderCodec mediaEncoder;
     protected MediaCodec.BufferInfo bufferInfo;
     protected int trackIndex;
     protected volatile boolean forceEOS = false;
 
-    protected int eosSpinCount = 0;
-    protected final int MAX_EOS_SPINS = 10;
+    private static final int TIMEOUT_USEC = 1000;
+
+    // Stop protocol: the final drain ends the input and waits for EOS until a deadline
+    public static final long DEFAULT_STOP_TIMEOUT_MS = 1000;
+    private long stopTimeoutMs = DEFAULT_STOP_TIMEOUT_MS;
+    private volatile boolean isEndOfInputQueued;
+    private volatile long lastInputPtsUs;
+    private long flushDeadlineNanos;
+    private long flushTimeNanos = -1;
+    private boolean isFlushTimedOut;
+    private volatile long encodedBytes;
+
+    // Asynchronous mode, API 21+
+    private static final int MAX_INPUT_BUFFERS = 64;
+    private HandlerThread callbackThread;
+    private Handler callbackHandler;
+    private ArrayBlockingQueue<Integer> freeInputBuffers;
+    private final Object outputLock = new Object();
+    private boolean isOutputEnded;
+
+    /**
+     * Creates the encoder, in asynchronous mode on API 21+. Callbacks run on a new
+     * thread, where the codec is created too: before API 23 MediaCodec delivers them
+     * on the looper of the thread that created it.
+     *
+     * @param threadPriority of the callback thread, e.g. Process.THREAD_PRIORITY_AUDIO
+     */
+    protected MediaCodecAdapter createEncoder(final String mimeType, String name, int threadPriority) throws IOException
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return new MediaCodecAdapter(MediaCodec.createEncoderByType(mimeType));
+        }
+        callbackThread = new HandlerThread(name, threadPriority);
+        callbackThread.start();
+        callbackHandler = new Handler(callbackThread.getLooper());
+        freeInputBuffers = new ArrayBlockingQueue<>(MAX_INPUT_BUFFERS);
+        FutureTask<MediaCodec> create = new FutureTask<>(new Callable<MediaCodec>()
+        {
+            @Override
+            public MediaCodec call() throws IOException
+            {
+                MediaCodec codec = MediaCodec.createEncoderByType(mimeType);
+                setCallback(codec);
+                return codec;
+            }
+        });
+        callbackHandler.post(create);
+        try {
+            return new MediaCodecAdapter(create.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted creating " + mimeType + " encoder", e);
+        } catch (ExecutionException e) {
+            callbackThread.quit();
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new RuntimeException("Failed creating " + mimeType + " encoder", e.getCause());
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setCallback(MediaCodec codec)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            codec.setCallback(new EncoderCallback(), callbackHandler);
+        } else {
+            codec.setCallback(new EncoderCallback());
+        }
+    }
+
+    protected boolean isAsync()
+    {
+        return callbackThread != null;
+    }
 
     /**
-     * This method should be called before the last input packet is queued
-     * Some devices don't honor MediaCodec#signalEndOfInputStream
-     * e.g: Google Glass
+     * Marks the next encoded buffer as the last one, whatever the encoder still holds.
+     * Only needed for devices that ignore the end of input, e.g. Google Glass, which
+     * {@link #drainEncoder(boolean) drainEncoder(true)} signals by itself.
      */
     public void signalEndOfStream()
     {
         forceEOS = true;
     }
 
+    /**
+     * Sets how long {@link #drainEncoder(boolean) drainEncoder(true)} waits for the
+     * encoder to flush. Once it expires the muxer is stopped with what was written.
+     */
+    public void setStopTimeoutMs(long stopTimeoutMs)
+    {
+        this.stopTimeoutMs = stopTimeoutMs;
+    }
+
+    /**
+     * @return how long the final drain took, or -1 before it ran
+     */
+    public long getFlushTimeNanos()
+    {
+        return flushTimeNanos;
+    }
+
+    /**
+     * @return true if the final drain gave up at the stop deadline instead of reaching EOS
+     */
+    public boolean isFlushTimedOut()
+    {
+        return isFlushTimedOut;
+    }
+
+    /**
+     * @return bytes of encoded output handed to the muxer so far
+     */
+    public long getEncodedBytes()
+    {
+        return encodedBytes;
+    }
+
     public void release()
     {
         if (mediaMuxer != null)
             mediaMuxer.onEncoderReleased(trackIndex);
+        if (callbackThread != null) {
+            // Stopped on the callback thread, so no callback is left writing to the muxer
+            callbackHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    releaseEncoder();
+                }
+            });
+            callbackThread.quitSafely();
+            try {
+                callbackThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            callbackThread = null;
+        } else {
+            releaseEncoder();
+        }
+    }
+
+    private void releaseEncoder()
+    {
         if (mediaEncoder != null) {
             mediaEncoder.stop();
             mediaEncoder.release();
@@ -52,115 +195,338 @@ public abstract class AndroidEncoder
         }
     }
 
-    @TargetApi(Build.VERSION_CODES.KITKAT)
+    /**
+     * @param timeoutUs how long to wait, or -1 to wait until an input buffer is free
+     * @return the index of a free input buffer, or -1 if none became free in time
+     */
+    public int dequeueInputBuffer(long timeoutUs)
+    {
+        if (!isAsync()) {
+            return mediaEncoder.dequeueInputBuffer(timeoutUs);
+        }
+        try {
+            Integer index = timeoutUs < 0 ? freeInputBuffers.take()
+                    : freeInputBuffers.poll(timeoutUs, TimeUnit.MICROSECONDS);
+            return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    public ByteBuffer getInputBuffer(int index)
+    {
+        return mediaEncoder.getInputBuffer(index);
+    }
+
+    /**
+     * Queues input for buffer-input encoders. Flag the last buffer with
+     * BUFFER_FLAG_END_OF_STREAM; otherwise the final drain queues an empty one.
+     */
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags)
+    {
+        mediaEncoder.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        lastInputPtsUs = presentationTimeUs;
+        if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            isEndOfInputQueued = true;
+        }
+    }
+
     public void adjustBitrate(int targetBitrate)
     {
-        if (isKitKat() && mediaEncoder != null) {
-            Bundle bitrate = new Bundle();
-            bitrate.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, targetBitrate);
-            mediaEncoder.setParameters(bitrate);
-        } else if (!isKitKat()) {
-            Log.w(TAG, "Ignoring adjustVideoBitrate call. This functionality is only available on Android API 19+");
+        if (mediaEncoder != null) {
+            mediaEncoder.setVideoBitrate(targetBitrate);
+        }
+    }
+
+    /**
+     * Asks the encoder to emit a sync frame as soon as possible, e.g. when a
+     * paused recording resumes.
+     */
+    public void requestSyncFrame()
+    {
+        if (mediaEncoder != null) {
+            mediaEncoder.requestSyncFrame();
         }
     }
 
     public void drainEncoder(boolean endOfStream)
     {
-        if (endOfStream && VERBOSE) {
-            if (isSurfaceInputEncoder()) {
-                Log.i(TAG, "final video drain");
+        drainEncoder(endOfStream, TIMEOUT_USEC);
+    }
+
+    /**
+     * With {@code endOfStream} the input is ended and the output drained until the
+     * encoder's end of stream, or until the stop deadline expires; see
+     * {@link #setStopTimeoutMs(long)}.
+     *
+     * @param timeoutUs how long to wait for output when none is ready, in polling mode
+     */
+    protected void drainEncoder(boolean endOfStream, long timeoutUs)
+    {
+        long flushStartNanos = 0;
+        if (endOfStream) {
+            if (VERBOSE) Log.i(TAG, "final " + (isSurfaceInputEncoder() ? "video" : "audio") + " drain");
+            flushStartNanos = System.nanoTime();
+            flushDeadlineNanos = flushStartNanos + stopTimeoutMs * 1000000;
+            signalEndOfInput();
+        }
+        if (isAsync()) {
+            // Output is written by the callbacks as it comes
+            if (endOfStream) {
+                awaitEndOfStream();
+            }
+        } else {
+            // The muxer is only locked to write, not while waiting on dequeueOutputBuffer
+            drainOutput(endOfStream, timeoutUs);
+        }
+        if (endOfStream) {
+            flushTimeNanos = System.nanoTime() - flushStartNanos;
+            Log.i(TAG, (isSurfaceInputEncoder() ? "Video" : "Audio") + " track " + trackIndex + " flushed in "
+                    + flushTimeNanos / 1000000 + " ms" + (isFlushTimedOut ? ", stop deadline expired" : ""));
+        }
+    }
+
+    /**
+     * Ends the input, so the encoder outputs every frame it holds followed by a buffer
+     * flagged BUFFER_FLAG_END_OF_STREAM.
+     */
+    private void signalEndOfInput()
+    {
+        if (isSurfaceInputEncoder()) {
+            if (VERBOSE) Log.d(TAG, "signalEndOfInputStream for track " + trackIndex);
+            try {
+                mediaEncoder.signalEndOfInputStream();
+                return;
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "signalEndOfInputStream failed, ending with the next output", e);
+            }
+            forceEOS = true;
+        } else if (!isEndOfInputQueued) {
+            // The last input wasn't flagged, e.g. its read failed
+            long remainingUs = Math.max(0, (flushDeadlineNanos - System.nanoTime()) / 1000);
+            int index = dequeueInputBuffer(remainingUs);
+            if (index >= 0) {
+                queueInputBuffer(index, 0, 0, lastInputPtsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
             } else {
-                Log.i(TAG, "final audio drain");
+                Log.w(TAG, "No input buffer to queue EOS, ending with the next output");
+                forceEOS = true;
             }
         }
-        synchronized (mediaMuxer) {
-            final int TIMEOUT_USEC = 1000;
-            if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ") track: " + trackIndex);
+    }
 
+    private void onStopDeadlineExpired()
+    {
+        isFlushTimedOut = true;
+        Log.w(TAG, "No end of stream for track " + trackIndex + " within " + stopTimeoutMs
+                + " ms, force stopping the muxer");
+        forceStopMuxer();
+    }
+
+    private void drainOutput(boolean endOfStream, long timeoutUs)
+    {
+        if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ") track: " + trackIndex);
+
+        while (true) {
+            // Checked per buffer: a request made while output keeps coming can't wait for the drain to end
+            if (isSurfaceInputEncoder() && mediaMuxer.takeSyncFrameRequest()) {
+                requestSyncFrame();
+            }
             if (endOfStream) {
-                if (VERBOSE) Log.d(TAG, "sending EOS to encoder for track " + trackIndex);
-//                When all target devices honor MediaCodec#signalEndOfInputStream, return to this method
-//                if(isSurfaceInputEncoder()){
-//                    if (VERBOSE) Log.i(TAG, "signalEndOfInputStream for track " + trackIndex);
-//                    mediaEncoder.signalEndOfInputStream();
-//                    // Note: This method isn't honored on certain devices including Google Glass
-//                }
-            }
-
-            ByteBuffer[] encoderOutputBuffers = mediaEncoder.getOutputBuffers();
-            while (true) {
-                int encoderStatus = mediaEncoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_USEC);
-                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // no output available yet
+                // Wait for EOS as long as the stop deadline allows
+                timeoutUs = Math.max(0, (flushDeadlineNanos - System.nanoTime()) / 1000);
+            }
+            int encoderStatus = mediaEncoder.dequeueOutputBuffer(bufferInfo, timeoutUs);
+            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                // no output available yet
+                if (!endOfStream) {
+                    break;      // out of while
+                } else if (System.nanoTime() >= flushDeadlineNanos) {
+                    onStopDeadlineExpired();
+                    break;
+                }
+            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                // not expected for an encoder, and handled by the codec
+            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // should happen before receiving buffers, and should only happen once
+                MediaFormat newFormat = mediaEncoder.getOutputFormat();
+                if (VERBOSE) Log.d(TAG, "encoder output mediaFormat changed: " + newFormat);
+
+                // now that we have the Magic Goodies, start the mediaMuxer
+                addTrack(newFormat);
+                // MediaMuxer is responsible for starting/stopping itself
+                // based on knowledge of expected # tracks
+            } else if (encoderStatus < 0) {
+                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
+                        encoderStatus);
+                // let's ignore it
+            } else {
+                ByteBuffer encodedData = mediaEncoder.getOutputBuffer(encoderStatus);
+                if (encodedData == null) {
+                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
+                            " was null");
+                }
+
+                writeOutput(encoderStatus, encodedData, bufferInfo);
+
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     if (!endOfStream) {
-                        break;      // out of while
+                        Log.w(TAG, "reached end of stream unexpectedly");
                     } else {
-                        eosSpinCount++;
-                        if (eosSpinCount > MAX_EOS_SPINS) {
-                            if (VERBOSE) Log.i(TAG, "Force shutting down MediaMuxer");
-                            mediaMuxer.forceStop();
-                            break;
-                        }
-                        if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
-                    }
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    // not expected for an encoder
-                    encoderOutputBuffers = mediaEncoder.getOutputBuffers();
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // should happen before receiving buffers, and should only happen once
-                    MediaFormat newFormat = mediaEncoder.getOutputFormat();
-                    if (VERBOSE) Log.d(TAG, "encoder output mediaFormat changed: " + newFormat);
-
-                    // now that we have the Magic Goodies, start the mediaMuxer
-                    trackIndex = mediaMuxer.addTrack(newFormat);
-                    // MediaMuxer is responsible for starting/stopping itself
-                    // based on knowledge of expected # tracks
-                } else if (encoderStatus < 0) {
-                    Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
-                            encoderStatus);
-                    // let's ignore it
-                } else {
-                    ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                    if (encodedData == null) {
-                        throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                                " was null");
-                    }
-
-                    if (bufferInfo.size >= 0) {    // Allow zero length buffer for purpose of sending 0 size video EOS Flag
-                        // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                        encodedData.position(bufferInfo.offset);
-                        encodedData.limit(bufferInfo.offset + bufferInfo.size);
-                        if (forceEOS) {
-                            bufferInfo.flags = bufferInfo.flags | MediaCodec.BUFFER_FLAG_END_OF_STREAM;
-                            Log.i(TAG, "Forcing EOS");
-                        }
-                        // It is the mediaMuxer's responsibility to release encodedData
-                        mediaMuxer.writeSampleData(mediaEncoder, trackIndex, encoderStatus, encodedData, bufferInfo);
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + bufferInfo.size + " bytes to mediaMuxer, \t ts=" +
-                                    bufferInfo.presentationTimeUs + "track " + trackIndex);
-                        }
+                        if (VERBOSE) Log.d(TAG, "end of stream reached for track " + trackIndex);
                     }
+                    break;      // out of while
+                }
+            }
+        }
+    }
 
-                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        if (!endOfStream) {
-                            Log.w(TAG, "reached end of stream unexpectedly");
-                        } else {
-                            if (VERBOSE) Log.d(TAG, "end of stream reached for track " + trackIndex);
-                        }
-                        break;      // out of while
-                    }
+    private void writeOutput(int index, ByteBuffer encodedData, MediaCodec.BufferInfo info)
+    {
+        if (info.size >= 0) {    // Allow zero length buffer for purpose of sending 0 size video EOS Flag
+            // adjust the ByteBuffer values to match BufferInfo (not needed?)
+            encodedData.position(info.offset);
+            encodedData.limit(info.offset + info.size);
+            if (forceEOS) {
+                info.flags = info.flags | MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                Log.i(TAG, "Forcing EOS");
+            }
+            // Muxers may rewrite the timestamp
+            long ptsUs = info.presentationTimeUs;
+            int size = info.size;
+            int flags = info.flags;
+            // It is the mediaMuxer's responsibility to release encodedData
+            if (mediaMuxer.supportsConcurrentWriters()) {
+                mediaMuxer.writeSampleData(mediaEncoder, trackIndex, index, encodedData, info);
+            } else {
+                synchronized (mediaMuxer) {
+                    mediaMuxer.writeSampleData(mediaEncoder, trackIndex, index, encodedData, info);
                 }
             }
-            if (endOfStream && VERBOSE) {
-                if (isSurfaceInputEncoder()) {
-                    Log.i(TAG, "final video drain complete");
-                } else {
-                    Log.i(TAG, "final audio drain complete");
+            if (VERBOSE) {
+                Log.d(TAG, "sent " + size + " bytes to mediaMuxer, \t ts=" +
+                        ptsUs + "track " + trackIndex);
+            }
+            encodedBytes += size;
+            onOutputWritten(ptsUs, size, flags);
+        }
+    }
+
+    /**
+     * Called after every encoded buffer was handed to the muxer, on the thread draining
+     * the encoder.
+     *
+     * @param ptsUs presentation time the encoder gave the buffer
+     */
+    protected void onOutputWritten(long ptsUs, int size, int flags)
+    {
+    }
+
+    private void addTrack(MediaFormat format)
+    {
+        if (mediaMuxer.supportsConcurrentWriters()) {
+            trackIndex = mediaMuxer.addTrack(format);
+        } else {
+            synchronized (mediaMuxer) {
+                trackIndex = mediaMuxer.addTrack(format);
+            }
+        }
+    }
+
+    /**
+     * Waits for the callbacks to write the end of stream, until the stop deadline.
+     */
+    private void awaitEndOfStream()
+    {
+        boolean isExpired = false;
+        synchronized (outputLock) {
+            while (!isOutputEnded) {
+                long remainingMs = (flushDeadlineNanos - System.nanoTime()) / 1000000;
+                if (remainingMs <= 0) {
+                    isExpired = true;
+                    break;
+                }
+                try {
+                    outputLock.wait(remainingMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
+            // Anything encoded from now on is dropped
+            isOutputEnded = true;
+        }
+        if (isExpired) {
+            onStopDeadlineExpired();
+        }
+    }
+
+    private void forceStopMuxer()
+    {
+        if (mediaMuxer.supportsConcurrentWriters()) {
+            mediaMuxer.forceStop();
+        } else {
+            synchronized (mediaMuxer) {
+                mediaMuxer.forceStop();
+            }
         }
     }
 
     protected abstract boolean isSurfaceInputEncoder();
+
+    /**
+     * Writes encoded buffers as MediaCodec hands them over, on the callback thread.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class EncoderCallback extends MediaCodec.Callback
+    {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index)
+        {
+            if (!freeInputBuffers.offer(index)) {
+                Log.w(TAG, "Dropping input buffer " + index + ", too many pending");
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info)
+        {
+            synchronized (outputLock) {
+                if (isOutputEnded) {
+                    codec.releaseOutputBuffer(index, false);
+                    return;
+                }
+            }
+            if (isSurfaceInputEncoder() && mediaMuxer.takeSyncFrameRequest()) {
+                requestSyncFrame();
+            }
+            writeOutput(index, codec.getOutputBuffer(index), info);
+            synchronized (outputLock) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    if (VERBOSE) Log.d(TAG, "end of stream reached for track " + trackIndex);
+                    isOutputEnded = true;
+                }
+                outputLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format)
+        {
+            if (VERBOSE) Log.d(TAG, "encoder output mediaFormat changed: " + format);
+            addTrack(format);
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e)
+        {
+            Log.e(TAG, "Encoder error for track " + trackIndex, e);
+            synchronized (outputLock) {
+                isOutputEnded = true;
+                outputLock.notifyAll();
+            }
+            // Keep what was recorded playable
+            forceStopMuxer();
+        }
+    }
 }
@@ -65,13 +65,24 @@ public class AndroidMuxer extends MediaMuxer
         Log.d(TAG, "Android mediaMuxer start");
     }
 
+    /**
+     * Finalizes the file and releases the muxer. Every encoder that misses its stop
+     * deadline forces a stop, so this runs more than once, possibly before the muxer
+     * started at all.
+     */
     protected void stop()
     {
-        muxer.stop();
-        isStarted = false;
-        Log.d(TAG, "Android mediaMuxer stop");
+        if (muxer == null) {
+            Log.d(TAG, "Android mediaMuxer stop called twice");
+            return;
+        }
+        if (isStarted) {
+            muxer.stop();
+            isStarted = false;
+            Log.d(TAG, "Android mediaMuxer stop");
+        }
+        discardJournal();
         release();
-        ;
     }
 
     @Override
@@ -88,6 +99,12 @@ public class AndroidMuxer extends MediaMuxer
 
     }
 
+    @Override
+    public boolean supportsSampleJournal()
+    {
+        return true;
+    }
+
     @Override
     public boolean isStarted()
     {
@@ -95,33 +112,38 @@ public class AndroidMuxer extends MediaMuxer
     }
 
     @Override
-    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
+    public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
     {
         super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
         if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
             // MediaMuxer gets the codec config info via the addTrack command
             if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-            encoder.releaseOutputBuffer(bufferIndex, false);
+            releaseOutputBuffer(encoder, bufferIndex);
             return;
         }
 
         if (bufferInfo.size == 0) {
             if (VERBOSE) Log.d(TAG, "ignoring zero size buffer");
-            encoder.releaseOutputBuffer(bufferIndex, false);
+            releaseOutputBuffer(encoder, bufferIndex);
+            // Encoders end their tracks with an empty EOS buffer
+            if (isStarted && allTracksFinished()) {
+                stop();
+            }
             return;
         }
 
         if (!isStarted) {
             Log.e(TAG, "writeSampleData called before mediaMuxer isStarted. Ignoring packet. Track index: " + trackIndex + " tracks added: " + numTracks);
-            encoder.releaseOutputBuffer(bufferIndex, false);
+            releaseOutputBuffer(encoder, bufferIndex);
             return;
         }
 
         bufferInfo.presentationTimeUs = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
 
         muxer.writeSampleData(trackIndex, encodedData, bufferInfo);
+        journalSample(trackIndex, bufferInfo);
 
-        encoder.releaseOutputBuffer(bufferIndex, false);
+        releaseOutputBuffer(encoder, bufferIndex);
 
         if (allTracksFinished()) {
             stop();
@@ -6,6 +6,7 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Process;
 
 import java.io.IOException;
 
@@ -42,6 +43,7 @@ public class AudioEncoderCore extends AndroidEncoder
         mSampleRate = sampleRate;
         this.mediaMuxer = muxer;
         bufferInfo = new MediaCodec.BufferInfo();
+        trackIndex = -1;
 
         MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, mSampleRate, mChannelConfig);
 
@@ -55,24 +57,32 @@ public class AudioEncoderCore extends AndroidEncoder
 
         // Create a MediaCodec encoder, and configure it with our mediaFormat.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mediaEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mediaEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        MediaCodecAdapter codec = createEncoder(MIME_TYPE, "AudioEncoderCallback", Process.THREAD_PRIORITY_AUDIO);
+        codec.getCodec().configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mediaEncoder = codec;
         mediaEncoder.start();
+    }
 
+    /**
+     * Encodes with {@code codec}, e.g. a {@link FakeEncoderCodec}, instead of a MediaCodec.
+     */
+    public AudioEncoderCore(EncoderCodec codec, MediaMuxer muxer)
+    {
+        this.mediaMuxer = muxer;
+        bufferInfo = new MediaCodec.BufferInfo();
         trackIndex = -1;
+        mediaEncoder = codec;
+        mediaEncoder.start();
     }
 
     /**
-     * Depending on this method ties AudioEncoderCore
-     * to a MediaCodec-based implementation.
-     * <p/>
-     * However, when reading AudioRecord samples directly
-     * to MediaCode's input ByteBuffer we can avoid a memory copy
+     * Reading AudioRecord samples directly into the
+     * codec's input ByteBuffer avoids a memory copy
      * TODO: Measure performance gain and remove if negligible
      *
      * @return
      */
-    public MediaCodec getMediaCodec()
+    public EncoderCodec getEncoderCodec()
     {
         return mediaEncoder;
     }
@@ -0,0 +1,222 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.util.Log;
+
+import com.github.teocci.libmediacodec.event.BitrateDecisionEvent;
+import com.github.teocci.libmediacodec.event.BitrateDecisionEvent.Action;
+import com.google.common.eventbus.EventBus;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Steps a video encoder's bitrate down when its output backs up, and back up once it
+ * keeps up again.
+ * <p>
+ * Every {@link #getIntervalMs()}, {@link #update(long)} samples how full the muxer's
+ * write queue and network send buffer are, and the bitrate the encoder produced since
+ * the previous sample. The fuller of the two decides:
+ * <ul>
+ * <li>from {@link #HIGH_WATER} up, the bitrate drops to 70% of the lower of the target
+ * and the produced bitrate. It holds for the next two samples, and after that as long as
+ * the backlog keeps draining</li>
+ * <li>after three seconds of samples at or below {@link #LOW_WATER}, it rises by 10%, as
+ * long as the encoder used at least half of its budget: a static scene says nothing
+ * about what the output could take</li>
+ * <li>in between it holds, and the three seconds start over</li>
+ * </ul>
+ * The bitrate stays between a floor and a ceiling given in bits per pixel, by default a
+ * quarter and twice {@link SessionConfig#BPP}.
+ * <p>
+ * Each decision is logged and posted to the muxer's EventBus as a
+ * {@link BitrateDecisionEvent}, holds included, so a session can be replayed offline.
+ * Calls must come from a single thread.
+ *
+ * @hide
+ */
+public class BitrateController
+{
+    private static final String TAG = BitrateController.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    public static final long DEFAULT_INTERVAL_MS = 500;
+    public static final float DEFAULT_MIN_BPP = SessionConfig.BPP / 4;
+    public static final float DEFAULT_MAX_BPP = SessionConfig.BPP * 2;
+
+    // Below the point where RtmpMuxer starts dropping frames
+    public static final float HIGH_WATER = 0.25f;
+    public static final float LOW_WATER = 0.05f;
+
+    private static final float DECREASE_FACTOR = 0.7f;
+    private static final float INCREASE_FACTOR = 1.1f;
+    private static final float MIN_BUDGET_USED = 0.5f;
+    private static final int DECREASE_HOLD_SAMPLES = 2;
+    private static final long INCREASE_HOLD_MS = 3000;
+
+    private final AndroidEncoder encoder;
+    private final MediaMuxer muxer;
+    private final long pixelsPerSecond;
+    private final long intervalMs;
+    private final int increaseHoldSamples;
+    private int floor;
+    private int ceiling;
+    private int bitrate;
+
+    private long lastNanos = -1;
+    private long lastEncodedBytes;
+    private float lastFill;
+    private int calmSamples;
+    private int samplesSinceDecrease = DECREASE_HOLD_SAMPLES;
+    private long decreases;
+    private long increases;
+
+    public BitrateController(AndroidEncoder encoder, MediaMuxer muxer, int width, int height, int frameRate,
+                             int initialBitrate)
+    {
+        this(encoder, muxer, width, height, frameRate, initialBitrate, DEFAULT_INTERVAL_MS);
+    }
+
+    /**
+     * @param initialBitrate what the encoder was configured with
+     * @param intervalMs     how often {@link #update(long)} is called
+     */
+    public BitrateController(AndroidEncoder encoder, MediaMuxer muxer, int width, int height, int frameRate,
+                             int initialBitrate, long intervalMs)
+    {
+        checkArgument(width > 0 && height > 0 && frameRate > 0, "Invalid video size or frame rate");
+        checkArgument(intervalMs > 0, "Interval must be positive");
+        this.encoder = checkNotNull(encoder);
+        this.muxer = checkNotNull(muxer);
+        this.intervalMs = intervalMs;
+        pixelsPerSecond = (long) width * height * frameRate;
+        increaseHoldSamples = (int) Math.max(1, INCREASE_HOLD_MS / intervalMs);
+        bitrate = initialBitrate;
+        setBitsPerPixelRange(DEFAULT_MIN_BPP, DEFAULT_MAX_BPP);
+    }
+
+    /**
+     * Sets the floor and ceiling of the bitrate, in bits per pixel. A bitrate outside
+     * the new range is corrected right away.
+     */
+    public void setBitsPerPixelRange(float minBpp, float maxBpp)
+    {
+        checkArgument(minBpp > 0 && minBpp <= maxBpp, "Invalid bits per pixel range " + minBpp + " - " + maxBpp);
+        floor = (int) Math.min(Integer.MAX_VALUE, (long) (minBpp * pixelsPerSecond));
+        ceiling = (int) Math.min(Integer.MAX_VALUE, (long) (maxBpp * pixelsPerSecond));
+        int clamped = Math.max(floor, Math.min(ceiling, bitrate));
+        if (clamped != bitrate) {
+            Log.i(TAG, "Bitrate " + bitrate + " bps out of [" + floor + ", " + ceiling + "], using " + clamped);
+            bitrate = clamped;
+            encoder.adjustBitrate(bitrate);
+        }
+    }
+
+    public long getIntervalMs()
+    {
+        return intervalMs;
+    }
+
+    public int getBitrate()
+    {
+        return bitrate;
+    }
+
+    public int getFloor()
+    {
+        return floor;
+    }
+
+    public int getCeiling()
+    {
+        return ceiling;
+    }
+
+    public long getDecreases()
+    {
+        return decreases;
+    }
+
+    public long getIncreases()
+    {
+        return increases;
+    }
+
+    /**
+     * Takes a sample and adjusts the encoder's bitrate if needed. The first call only
+     * starts the measurement of the encoded bitrate.
+     *
+     * @param nowNanos the time on the System.nanoTime() clock, or a simulated one
+     * @return the decision, or null for the first call
+     */
+    public BitrateDecisionEvent update(long nowNanos)
+    {
+        long encodedBytes = encoder.getEncodedBytes();
+        if (lastNanos < 0 || nowNanos <= lastNanos) {
+            lastNanos = nowNanos;
+            lastEncodedBytes = encodedBytes;
+            return null;
+        }
+        int encodedBitrate = (int) Math.min(Integer.MAX_VALUE,
+                (encodedBytes - lastEncodedBytes) * 8 * 1000000000L / (nowNanos - lastNanos));
+        lastNanos = nowNanos;
+        lastEncodedBytes = encodedBytes;
+
+        float writeQueueFill = muxer.getWriteQueueFill();
+        float sendBufferFill = muxer.getSendBufferFill();
+        float fill = Math.max(writeQueueFill, sendBufferFill);
+        int previous = bitrate;
+        Action action = Action.HOLD;
+        samplesSinceDecrease++;
+
+        if (fill >= HIGH_WATER) {
+            calmSamples = 0;
+            boolean isHolding = samplesSinceDecrease <= DECREASE_HOLD_SAMPLES || fill < lastFill;
+            if (!isHolding && bitrate > floor) {
+                int base = encodedBitrate > 0 ? Math.min(bitrate, encodedBitrate) : bitrate;
+                bitrate = Math.max(floor, (int) (base * DECREASE_FACTOR));
+                samplesSinceDecrease = 0;
+            }
+        } else if (fill <= LOW_WATER) {
+            calmSamples++;
+            if (calmSamples >= increaseHoldSamples && bitrate < ceiling
+                    && encodedBitrate >= bitrate * MIN_BUDGET_USED) {
+                bitrate = (int) Math.min(ceiling, (long) (bitrate * INCREASE_FACTOR));
+                calmSamples = 0;
+            }
+        } else {
+            calmSamples = 0;
+        }
+        lastFill = fill;
+
+        if (bitrate < previous) {
+            action = Action.DECREASE;
+            decreases++;
+        } else if (bitrate > previous) {
+            action = Action.INCREASE;
+            increases++;
+        }
+        if (action != Action.HOLD) {
+            encoder.adjustBitrate(bitrate);
+        }
+
+        BitrateDecisionEvent decision = new BitrateDecisionEvent(nowNanos, writeQueueFill, sendBufferFill,
+                encodedBitrate, previous, bitrate, action);
+        if (action != Action.HOLD) {
+            Log.i(TAG, decision.toString());
+        } else if (VERBOSE) {
+            Log.d(TAG, decision.toString());
+        }
+        EventBus eventBus = muxer.getEventBus();
+        if (eventBus != null) {
+            eventBus.post(decision);
+        }
+        return decision;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Bitrate " + bitrate + " bps in [" + floor + ", " + ceiling + "], " + decreases + " decreases, "
+                + increases + " increases";
+    }
+}
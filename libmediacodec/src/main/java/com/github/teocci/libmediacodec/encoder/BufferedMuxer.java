@@ -0,0 +1,479 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.github.teocci.libmediacodec.format.SampleJournal;
+import com.google.common.eventbus.EventBus;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * MediaMuxer decorator that moves container writes off the encoder threads.
+ * <p>
+ * Each track publishes its samples into its own {@link SampleRing}: the sample is copied
+ * into a pooled direct ByteBuffer and its output buffer is returned to the codec
+ * immediately. A dedicated writer thread merges the rings in timestamp order and hands
+ * the copies to the wrapped MediaMuxer, so a slow flash write no longer stalls the video
+ * encoder or the microphone thread, and the encoders never wait on each other.
+ * Encoders only block when their own ring is full.
+ * <p>
+ * The merge holds samples back for at most {@link #getMaxInterleaveDurationUs()}, so
+ * tracks end up closely interleaved in the output even when one encoder delivers its
+ * samples in bursts.
+ *
+ * @hide
+ */
+public class BufferedMuxer extends MediaMuxer
+{
+    private static final String TAG = BufferedMuxer.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    // About four seconds of 30 fps video, or three seconds of 44.1 kHz AAC, per track
+    private static final int RING_CAPACITY = 128;
+
+    private static final long IDLE_PARK_NANOS = 5 * 1000 * 1000;
+    private static final long STALL_PARK_NANOS = 100 * 1000;
+
+    private static final int COMMAND_STOP = 1;
+    private static final int COMMAND_RELEASE = 2;
+
+    private final MediaMuxer target;
+    private final Object targetLock = new Object();     // serializes access to target
+    private final Object trackLock = new Object();      // guards track setup and commands, never samples
+    private final List<SampleRing> rings = new CopyOnWriteArrayList<>();
+
+    private Thread writerThread;
+    private volatile boolean writerParked;
+    private volatile boolean writerExited;
+    private volatile int pendingCommands;
+    private boolean isReleased;
+
+    // Writer thread metrics
+    private volatile int maxQueueDepth;
+    private long writeNanos;
+    private long interleaveOverruns;
+
+    private BufferedMuxer(MediaMuxer target)
+    {
+        super(target.getOutputPath(), target.mediaFormat);
+        this.target = target;
+    }
+
+    /**
+     * Wraps {@code target}, which from then on must only be used through the returned muxer.
+     */
+    public static BufferedMuxer wrap(MediaMuxer target)
+    {
+        checkNotNull(target);
+        if (target instanceof BufferedMuxer)
+            throw new IllegalArgumentException("Muxer is already buffered");
+        return new BufferedMuxer(target);
+    }
+
+    public MediaMuxer getTarget()
+    {
+        return target;
+    }
+
+    @Override
+    public void setEventBus(EventBus eventBus)
+    {
+        target.setEventBus(eventBus);
+    }
+
+    @Override
+    public EventBus getEventBus()
+    {
+        return target.getEventBus();
+    }
+
+    @Override
+    public void setExpectedNumTracks(int expectedNumTracks)
+    {
+        super.setExpectedNumTracks(expectedNumTracks);
+        target.setExpectedNumTracks(expectedNumTracks);
+    }
+
+    @Override
+    public void setSampleJournal(SampleJournal journal)
+    {
+        target.setSampleJournal(journal);
+    }
+
+    @Override
+    public SampleJournal getSampleJournal()
+    {
+        return target.getSampleJournal();
+    }
+
+    @Override
+    public boolean supportsSampleJournal()
+    {
+        return target.supportsSampleJournal();
+    }
+
+    @Override
+    public int addTrack(android.media.MediaFormat trackFormat)
+    {
+        synchronized (trackLock) {
+            super.addTrack(trackFormat);
+            int trackIndex;
+            synchronized (targetLock) {
+                trackIndex = target.addTrack(trackFormat);
+            }
+            while (rings.size() <= trackIndex) {
+                rings.add(new SampleRing(RING_CAPACITY));
+            }
+            if (writerThread == null) {
+                writerThread = new Thread(new Writer(), "BufferedMuxer");
+                writerThread.start();
+            }
+            return trackIndex;
+        }
+    }
+
+    @Override
+    public boolean isStarted()
+    {
+        return target.isStarted();
+    }
+
+    /**
+     * Each encoder only touches its own ring, so drainEncoder doesn't need to hold the muxer lock.
+     */
+    @Override
+    public boolean supportsConcurrentWriters()
+    {
+        return true;
+    }
+
+    @Override
+    public void pause()
+    {
+        target.pause();
+    }
+
+    @Override
+    public void resume()
+    {
+        target.resume();
+    }
+
+    @Override
+    public boolean isPaused()
+    {
+        return target.isPaused();
+    }
+
+    @Override
+    public void requestSyncFrame()
+    {
+        target.requestSyncFrame();
+    }
+
+    @Override
+    public boolean takeSyncFrameRequest()
+    {
+        return target.takeSyncFrameRequest();
+    }
+
+    @Override
+    public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
+    {
+        SampleRing ring = rings.get(trackIndex);
+        SampleRing.Slot slot = ring.claim();
+        if (slot == null) {
+            ring.stalls++;
+            if (VERBOSE) Log.w(TAG, "Ring full for track " + trackIndex + ", blocking encoder");
+            while ((slot = ring.claim()) == null) {
+                if (writerExited) {
+                    Log.e(TAG, "Writer has exited, dropping sample for track " + trackIndex);
+                    releaseOutputBuffer(encoder, bufferIndex);
+                    return;
+                }
+                LockSupport.unpark(writerThread);
+                LockSupport.parkNanos(this, STALL_PARK_NANOS);
+            }
+        }
+
+        long start = System.nanoTime();
+        if (slot.ensureCapacity(bufferInfo.size)) {
+            ring.allocations++;
+        }
+        slot.buffer.clear();
+        slot.buffer.put(encodedData);
+        slot.buffer.flip();
+        slot.info.set(0, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        releaseOutputBuffer(encoder, bufferIndex);
+        ring.newestPtsUs = bufferInfo.presentationTimeUs;
+        ring.publish();
+        ring.copyNanos += System.nanoTime() - start;
+        ring.samples++;
+        ring.bytes += bufferInfo.size;
+
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    @Override
+    public void forceStop()
+    {
+        Log.d(TAG, "forceStop");
+        if (!sendCommand(COMMAND_STOP)) {
+            synchronized (targetLock) {
+                target.forceStop();
+            }
+        }
+    }
+
+    /**
+     * Releases the wrapped muxer once every queued sample has been written.
+     */
+    @Override
+    public void release()
+    {
+        synchronized (trackLock) {
+            if (isReleased) return;
+            isReleased = true;
+        }
+        if (!sendCommand(COMMAND_RELEASE)) {
+            synchronized (targetLock) {
+                target.release();
+            }
+        }
+    }
+
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for (SampleRing ring : rings) {
+            depth += ring.size();
+        }
+        return depth;
+    }
+
+    public int getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+
+    @Override
+    public float getWriteQueueFill()
+    {
+        float fill = rings.isEmpty() ? 0 : (float) getQueueDepth() / (rings.size() * RING_CAPACITY);
+        return Math.max(fill, target.getWriteQueueFill());
+    }
+
+    @Override
+    public float getSendBufferFill()
+    {
+        return target.getSendBufferFill();
+    }
+
+    /**
+     * @return how often an encoder had to wait for room in its ring
+     */
+    public long getStallCount()
+    {
+        long stalls = 0;
+        for (SampleRing ring : rings) {
+            stalls += ring.stalls;
+        }
+        return stalls;
+    }
+
+    /**
+     * @return how many samples the encoders handed over
+     */
+    public long getSampleCount()
+    {
+        long samples = 0;
+        for (SampleRing ring : rings) {
+            samples += ring.samples;
+        }
+        return samples;
+    }
+
+    /**
+     * @return total time the encoder threads spent copying samples, in nanoseconds
+     */
+    public long getCopyNanos()
+    {
+        long nanos = 0;
+        for (SampleRing ring : rings) {
+            nanos += ring.copyNanos;
+        }
+        return nanos;
+    }
+
+    /**
+     * @return mean time an encoder thread spent copying a sample, in nanoseconds
+     */
+    public long getAverageCopyNanos()
+    {
+        long samples = getSampleCount();
+        return samples == 0 ? 0 : getCopyNanos() / samples;
+    }
+
+    /**
+     * @return false if there is no writer thread to receive the command
+     */
+    private boolean sendCommand(int command)
+    {
+        synchronized (trackLock) {
+            if (writerThread == null || writerExited) return false;
+            pendingCommands |= command;
+        }
+        LockSupport.unpark(writerThread);
+        return true;
+    }
+
+    private void logMetrics()
+    {
+        long samples = getSampleCount();
+        long bytes = 0;
+        long allocations = 0;
+        for (SampleRing ring : rings) {
+            bytes += ring.bytes;
+            allocations += ring.allocations;
+        }
+        Log.i(TAG, "Wrote " + samples + " samples, " + bytes + " bytes"
+                + ", max queue depth " + maxQueueDepth + "/" + rings.size() * RING_CAPACITY
+                + ", stalls " + getStallCount()
+                + ", buffer allocations " + allocations
+                + ", avg copy " + getAverageCopyNanos() / 1000 + " us"
+                + ", avg write " + (samples == 0 ? 0 : writeNanos / samples / 1000) + " us"
+                + ", interleave overruns " + interleaveOverruns);
+    }
+
+    private class Writer implements Runnable
+    {
+        private int tracksFinished;
+        private boolean isOverrun;                      // set by nextTrack() for write()
+
+        @Override
+        public void run()
+        {
+            while (true) {
+                // Read the commands before the rings, so everything queued ahead of them is written
+                int commands = pendingCommands;
+                int trackIndex = nextTrack(commands != 0);
+                if (trackIndex >= 0) {
+                    write(trackIndex);
+                    // The target stops itself once every track has ended
+                    if (tracksFinished >= rings.size() && !target.isStarted()) {
+                        break;
+                    }
+                } else if (commands != 0) {
+                    runCommands(commands);
+                    break;
+                } else {
+                    writerParked = true;
+                    if (nextTrack(false) < 0 && pendingCommands == 0) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    writerParked = false;
+                }
+            }
+
+            int commands;
+            synchronized (trackLock) {
+                writerExited = true;
+                commands = pendingCommands;
+                pendingCommands = 0;
+            }
+            // A command can still arrive while the last track is being finished
+            if (!target.isStarted()) {
+                commands &= ~COMMAND_STOP;
+            }
+            runCommands(commands);
+            logMetrics();
+        }
+
+        /**
+         * Picks the track whose oldest queued sample has the lowest timestamp. While an
+         * unfinished track has nothing queued its next sample could be older than anything
+         * available, so this waits for it until the queued samples span more than the
+         * maximum interleave duration, another ring is filling up or {@code flush} is set.
+         *
+         * @return the track index, or -1 if nothing should be written yet
+         */
+        private int nextTrack(boolean flush)
+        {
+            int next = -1;
+            long nextPts = Long.MAX_VALUE;
+            long newestPts = Long.MIN_VALUE;
+            boolean mustWait = false;
+            boolean isFilling = false;
+            for (int i = 0; i < rings.size(); i++) {
+                SampleRing ring = rings.get(i);
+                SampleRing.Slot slot = ring.peek();
+                if (slot == null) {
+                    mustWait |= !ring.endOfStream;
+                    continue;
+                }
+                isFilling |= ring.size() >= ring.capacity() / 2;
+                newestPts = Math.max(newestPts, ring.newestPtsUs);
+                if (slot.info.presentationTimeUs < nextPts) {
+                    nextPts = slot.info.presentationTimeUs;
+                    next = i;
+                }
+            }
+            isOverrun = false;
+            if (next < 0 || !mustWait || flush) return next;
+            if (newestPts - nextPts >= getMaxInterleaveDurationUs() || isFilling) {
+                // Stop waiting for the lagging track, its samples will come out late
+                isOverrun = true;
+                return next;
+            }
+            return -1;
+        }
+
+        private void write(int trackIndex)
+        {
+            SampleRing ring = rings.get(trackIndex);
+            int depth = getQueueDepth();
+            if (depth > maxQueueDepth) {
+                maxQueueDepth = depth;
+            }
+
+            SampleRing.Slot slot = ring.peek();
+            if (isOverrun) {
+                interleaveOverruns++;
+                if (VERBOSE) Log.d(TAG, "Interleave window exceeded, writing track " + trackIndex + " ahead");
+            }
+            long start = System.nanoTime();
+            synchronized (targetLock) {
+                target.writeSampleData(null, trackIndex, -1, slot.buffer, slot.info);
+            }
+            writeNanos += System.nanoTime() - start;
+
+            if ((slot.info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && !ring.endOfStream) {
+                ring.endOfStream = true;
+                tracksFinished++;
+            }
+            ring.remove();
+        }
+
+        private void runCommands(int commands)
+        {
+            if ((commands & COMMAND_STOP) != 0) {
+                synchronized (targetLock) {
+                    target.forceStop();
+                }
+            }
+            if ((commands & COMMAND_RELEASE) != 0) {
+                synchronized (targetLock) {
+                    target.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import com.github.teocci.libmediacodec.format.DashManifest;
+
+/**
+ * Live MPEG-DASH output: a {@link FragmentedMp4Muxer} that cuts its output into
+ * numbered media segments and maintains a dynamic manifest next to them.
+ * <p>
+ * Given an output path like /sdcard/<UUID>/test.mpd the init segment is written to
+ * /sdcard/<UUID>/test-init.mp4 and media segments to test-1.m4s, test-2.m4s ...
+ * Segment n covers the media time from (n - 1) to n segment durations, ending on the
+ * first video keyframe at its nominal end; a keyframe is requested from the encoder
+ * there, so segments keep their nominal duration whatever the keyframe interval.
+ * <p>
+ * With a sliding window, segments that left the time shift buffer are deleted once
+ * {@link #EXPIRED_SEGMENT_GRACE} more segments have been published.
+ *
+ * @hide
+ */
+public class DashSegmenter extends FragmentedMp4Muxer
+{
+    private static final String TAG = DashSegmenter.class.getSimpleName();
+
+    // The keyframe interval of VideoEncoderCore
+    public static final long DEFAULT_SEGMENT_DURATION_US = 5000000;
+    private static final int EXPIRED_SEGMENT_GRACE = 2;
+    // Keyframes this early still end the segment, rather than waiting for a requested one
+    private static final long BOUNDARY_TOLERANCE_US = 100000;
+
+    private final File manifestFile;
+    private final File segmentDirectory;
+    private final String segmentBaseName;
+    private final long segmentDurationUs;
+    private final int windowSize;
+    private final DashManifest manifest;
+    private final ArrayDeque<File> publishedSegments = new ArrayDeque<>();
+
+    private int segmentNumber;
+    private long segmentStartPtsUs;
+    private long nextSegmentStartPtsUs;
+    private boolean isSegmentComplete;
+    private boolean isSyncFrameRequested;
+    private boolean isManifestPublished;
+    private long availabilityStartTimeMs = -1;
+
+    protected DashSegmenter(String manifestPath, MediaFormat format, long segmentDurationUs, int windowSize)
+    {
+        super(manifestPath, format, segmentDurationUs);
+        this.segmentDurationUs = segmentDurationUs;
+        this.windowSize = windowSize;
+        manifestFile = new File(manifestPath);
+        segmentDirectory = manifestFile.getParentFile();
+        String name = manifestFile.getName();
+        int extension = name.lastIndexOf('.');
+        segmentBaseName = extension > 0 ? name.substring(0, extension) : name;
+        manifest = new DashManifest(getInitSegmentName(), segmentBaseName + "-$Number$.m4s",
+                segmentDurationUs, windowSize);
+        segmentNumber = 0;
+    }
+
+    public static DashSegmenter create(String manifestPath, MediaFormat format)
+    {
+        return create(manifestPath, format, DEFAULT_SEGMENT_DURATION_US, 0);
+    }
+
+    /**
+     * @param segmentDurationUs nominal segment duration, best a multiple of the keyframe interval
+     * @param windowSize        number of segments kept in the time shift buffer and on disk, or 0 to keep all
+     */
+    public static DashSegmenter create(String manifestPath, MediaFormat format, long segmentDurationUs, int windowSize)
+    {
+        if (format != MediaFormat.DASH)
+            throw new IllegalArgumentException("Unrecognized mediaFormat!");
+        if (segmentDurationUs < 1000)
+            throw new IllegalArgumentException("Invalid segment duration: " + segmentDurationUs);
+        DashSegmenter segmenter = new DashSegmenter(manifestPath, format, segmentDurationUs, windowSize);
+        try {
+            segmenter.openOutput(new File(segmenter.segmentDirectory, segmenter.getInitSegmentName()).getAbsolutePath());
+        } catch (IOException e) {
+            throw new RuntimeException("MediaMuxer creation failed", e);
+        }
+        return segmenter;
+    }
+
+    public DashManifest getManifest()
+    {
+        return manifest;
+    }
+
+    @Override
+    protected void start()
+    {
+        // Writes the init segment, which then is complete
+        super.start();
+        manifest.setTracks(tracks, numTracks);
+        try {
+            openSegment(1);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed opening first segment", e);
+        }
+    }
+
+    @Override
+    protected boolean shouldCutFragment(int trackIndex, long pts, boolean isSync)
+    {
+        if (availabilityStartTimeMs < 0) {
+            availabilityStartTimeMs = System.currentTimeMillis() - pts / 1000;
+        }
+        if (pts >= segmentNumber * segmentDurationUs - BOUNDARY_TOLERANCE_US) {
+            boolean isRandomAccessPoint = videoTrack < 0 || (trackIndex == videoTrack && isSync);
+            if (isRandomAccessPoint) {
+                isSegmentComplete = true;
+                nextSegmentStartPtsUs = pts;
+                return true;
+            }
+            if (trackIndex == videoTrack && !isSyncFrameRequested) {
+                requestSyncFrame();
+                isSyncFrameRequested = true;
+            }
+        }
+        return super.shouldCutFragment(trackIndex, pts, isSync);
+    }
+
+    @Override
+    protected void flushFragment() throws IOException
+    {
+        super.flushFragment();
+        if (isSegmentComplete) {
+            isSegmentComplete = false;
+            finishSegment(nextSegmentStartPtsUs - segmentStartPtsUs);
+            segmentStartPtsUs = nextSegmentStartPtsUs;
+            int number = (int) ((nextSegmentStartPtsUs + BOUNDARY_TOLERANCE_US) / segmentDurationUs) + 1;
+            if (number > segmentNumber + 1) {
+                // A keyframe came later than a whole segment duration, keep numbers in time
+                Log.w(TAG, "Keyframe at " + nextSegmentStartPtsUs + " us, skipping to segment " + number);
+            }
+            openSegment(Math.max(number, segmentNumber + 1));
+        }
+    }
+
+    @Override
+    protected void stop()
+    {
+        if (isStarted()) {
+            try {
+                flushFragment();
+                // The final sample's own duration is unknown, so the presentation ends at its pts
+                manifest.end(lastSamplePtsUs);
+                finishSegment(Math.max(0, lastSamplePtsUs - segmentStartPtsUs));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed finishing last segment", e);
+            }
+        }
+        super.stop();
+    }
+
+    private String getInitSegmentName()
+    {
+        return segmentBaseName + "-init.mp4";
+    }
+
+    private void openSegment(int number) throws IOException
+    {
+        segmentNumber = number;
+        isSyncFrameRequested = false;
+        openOutput(getSegmentFile(number).getAbsolutePath());
+    }
+
+    private File getSegmentFile(int number)
+    {
+        return new File(segmentDirectory, segmentBaseName + "-" + number + ".m4s");
+    }
+
+    private void finishSegment(long durationUs) throws IOException
+    {
+        closeOutput();
+        File segment = getSegmentFile(segmentNumber);
+        Log.d(TAG, "Finished segment " + segment.getName() + " duration " + durationUs + " us");
+
+        // Players find new segments by the clock, the manifest only changes at the ends
+        if (availabilityStartTimeMs >= 0 && (!isManifestPublished || manifest.isEnded())) {
+            if (!isManifestPublished && durationUs > 0) {
+                manifest.setBandwidth(segment.length() * 8 * 1000000 / durationUs);
+            }
+            manifest.setAvailabilityStartTime(availabilityStartTimeMs);
+            manifest.writeTo(manifestFile);
+            isManifestPublished = true;
+        }
+
+        if (windowSize > 0) {
+            publishedSegments.addLast(segment);
+            while (publishedSegments.size() > windowSize + EXPIRED_SEGMENT_GRACE) {
+                File expired = publishedSegments.removeFirst();
+                if (!expired.delete()) {
+                    Log.w(TAG, "Failed deleting expired segment " + expired);
+                }
+            }
+        }
+    }
+}
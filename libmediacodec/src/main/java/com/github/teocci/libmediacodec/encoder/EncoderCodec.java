@@ -0,0 +1,55 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The encoder operations {@link AndroidEncoder} and the MediaMuxers rely on.
+ * <p>
+ * {@link MediaCodecAdapter} implements them with a platform MediaCodec. {@link FakeEncoderCodec}
+ * implements them in plain Java, so the drain, muxing and timestamp paths can be load
+ * tested and benchmarked without a device.
+ * <p>
+ * Buffer indices, BufferInfo, flags and status codes mean the same as for {@link MediaCodec}.
+ *
+ * @hide
+ */
+public interface EncoderCodec
+{
+    void start();
+
+    /**
+     * @return the index of a free input buffer, or MediaCodec.INFO_TRY_AGAIN_LATER
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * Ends the input of a surface input encoder.
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * @return the index of an output buffer, or one of the MediaCodec.INFO_* status codes
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index);
+
+    void setVideoBitrate(int bitsPerSecond);
+
+    void requestSyncFrame();
+
+    void stop();
+
+    void release();
+}
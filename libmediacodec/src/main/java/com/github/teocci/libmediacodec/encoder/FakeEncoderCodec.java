@@ -0,0 +1,426 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.github.teocci.libmediacodec.format.AacUtils;
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Software stand-in for a MediaCodec encoder, emitting synthetic H.264 or AAC access units
+ * as fast as they are drained, for load tests and benchmarks of the drain and muxing paths.
+ * <p>
+ * A video fake encodes one frame per {@link #queueFrame(long)}, which stands in for
+ * rendering to the input surface; an audio fake one access unit per queued input buffer.
+ * Output starts with a codec config buffer, as MediaCodec's does. Frames are sized so the
+ * stream has the configured bitrate, with keyframes {@link #KEYFRAME_SIZE_RATIO} times
+ * the size of other frames, and carry real NAL headers around filler payloads: muxers and
+ * packetizers see well-formed access units, but nothing decodes them. Output depends only
+ * on the calls made, so runs are repeatable.
+ * <p>
+ * Nothing here needs native code. MediaFormat and MediaCodec.BufferInfo are framework
+ * classes though, so off-device the fake needs an implementation of them on the
+ * classpath, e.g. the android-all jar Robolectric runs on, rather than android.jar stubs.
+ *
+ * @hide
+ */
+public class FakeEncoderCodec implements EncoderCodec
+{
+    public static final int KEYFRAME_SIZE_RATIO = 4;
+
+    private static final int NUM_BUFFERS = 8;
+    private static final int INPUT_BUFFER_SIZE = 16384;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    // Baseline profile, level 3.1; the rest of the SPS is never parsed
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte NAL_IDR = 0x65;
+    private static final byte NAL_SLICE = 0x41;
+
+    private static final int ITEM_FRAME = 0;
+    private static final int ITEM_END_OF_STREAM = 1;
+
+    private final boolean isVideo;
+    private final MediaFormat outputFormat;
+    private final byte[] codecConfig;
+    private final int frameRate;
+    private final int keyframeInterval;
+    private final int sampleRate;
+    private int bitRate;
+    private int frameSize;
+    private int keyframeSize;
+    private byte[] filler = new byte[0];
+
+    private final ByteBuffer[] inputBuffers = new ByteBuffer[NUM_BUFFERS];
+    private final boolean[] isInputFree = new boolean[NUM_BUFFERS];
+    private final ByteBuffer[] outputBuffers = new ByteBuffer[NUM_BUFFERS];
+    private final boolean[] isOutputFree = new boolean[NUM_BUFFERS];
+
+    // Queued frames, oldest first
+    private long[] pendingPtsUs = new long[NUM_BUFFERS];
+    private int[] pendingItems = new int[NUM_BUFFERS];
+    private int[] pendingInputs = new int[NUM_BUFFERS];
+    private int pendingHead;
+    private int pendingCount;
+
+    private boolean isStarted;
+    private boolean isFormatReported;
+    private boolean isConfigEmitted;
+    private boolean isSyncFrameRequested;
+    private long framesEncoded;
+    private long bytesEncoded;
+
+    private FakeEncoderCodec(boolean isVideo, MediaFormat outputFormat, byte[] codecConfig,
+                             int frameRate, int keyframeInterval, int sampleRate, int bitRate)
+    {
+        this.isVideo = isVideo;
+        this.outputFormat = outputFormat;
+        this.codecConfig = codecConfig;
+        this.frameRate = frameRate;
+        this.keyframeInterval = keyframeInterval;
+        this.sampleRate = sampleRate;
+        for (int i = 0; i < NUM_BUFFERS; i++) {
+            isOutputFree[i] = true;
+            if (!isVideo) {
+                inputBuffers[i] = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+                isInputFree[i] = true;
+            }
+        }
+        setBitrate(bitRate);
+    }
+
+    /**
+     * @param frameRate        frames per second {@link #queueFrame(long)} is expected to be
+     *                         called at; only used to size the frames
+     * @param keyframeInterval frames from one keyframe to the next
+     */
+    public static FakeEncoderCodec createVideo(int width, int height, int frameRate, int bitRate, int keyframeInterval)
+    {
+        checkArgument(frameRate > 0 && keyframeInterval > 0 && bitRate > 0);
+        MediaFormat format = MediaFormat.createVideoFormat(TrackInfo.MIME_AVC, width, height);
+        byte[] sps = concat(START_CODE, SPS);
+        byte[] pps = concat(START_CODE, PPS);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(sps));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(pps));
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        return new FakeEncoderCodec(true, format, concat(sps, pps), frameRate, keyframeInterval, 0, bitRate);
+    }
+
+    public static FakeEncoderCodec createAudio(int sampleRate, int channelCount, int bitRate)
+    {
+        checkArgument(bitRate > 0);
+        MediaFormat format = MediaFormat.createAudioFormat(TrackInfo.MIME_AAC, sampleRate, channelCount);
+        byte[] asc = AacUtils.buildAudioSpecificConfig(AacUtils.PROFILE_AAC_LC, sampleRate, channelCount);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(asc));
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        return new FakeEncoderCodec(false, format, asc, 0, 0, sampleRate, bitRate);
+    }
+
+    /**
+     * Encodes a frame, as rendering one to an encoder's input surface would. Blocks while
+     * the codec holds as many frames as it has output buffers, like eglSwapBuffers does.
+     *
+     * @param presentationTimeUs not 0, which {@link MediaMuxer} takes for "unset"
+     */
+    public synchronized void queueFrame(long presentationTimeUs)
+    {
+        checkState(isVideo, "Audio codecs take input buffers");
+        while (isStarted && pendingCount == NUM_BUFFERS) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (isStarted) {
+            addPending(ITEM_FRAME, presentationTimeUs, -1);
+        }
+    }
+
+    /**
+     * @return frames or access units output so far, excluding codec config
+     */
+    public synchronized long getFramesEncoded()
+    {
+        return framesEncoded;
+    }
+
+    public synchronized long getBytesEncoded()
+    {
+        return bytesEncoded;
+    }
+
+    @Override
+    public synchronized void start()
+    {
+        isStarted = true;
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs)
+    {
+        checkState(!isVideo, "Video codecs take frames from queueFrame");
+        long deadline = System.nanoTime() + timeoutUs * 1000;
+        while (true) {
+            for (int i = 0; i < NUM_BUFFERS; i++) {
+                if (isInputFree[i]) {
+                    isInputFree[i] = false;
+                    inputBuffers[i].clear();
+                    return i;
+                }
+            }
+            if (!awaitUntil(timeoutUs, deadline)) return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index)
+    {
+        return inputBuffers[index];
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags)
+    {
+        checkState(!isInputFree[index], "Input buffer " + index + " wasn't dequeued");
+        if (size > 0) {
+            addPending(ITEM_FRAME, presentationTimeUs, index);
+        } else {
+            isInputFree[index] = true;
+        }
+        if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            addPending(ITEM_END_OF_STREAM, presentationTimeUs, -1);
+        }
+    }
+
+    @Override
+    public synchronized void signalEndOfInputStream()
+    {
+        checkState(isVideo, "Audio codecs end with a flagged input buffer");
+        addPending(ITEM_END_OF_STREAM, 0, -1);
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs)
+    {
+        if (!isFormatReported) {
+            isFormatReported = true;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        long deadline = System.nanoTime() + timeoutUs * 1000;
+        while (true) {
+            int index = findFreeOutput();
+            if (index >= 0 && (pendingCount > 0 || !isConfigEmitted)) {
+                isOutputFree[index] = false;
+                encode(index, info);
+                return index;
+            }
+            if (!awaitUntil(timeoutUs, deadline)) return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index)
+    {
+        return outputBuffers[index];
+    }
+
+    @Override
+    public MediaFormat getOutputFormat()
+    {
+        return outputFormat;
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index)
+    {
+        checkState(!isOutputFree[index], "Output buffer " + index + " released twice");
+        isOutputFree[index] = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void setVideoBitrate(int bitsPerSecond)
+    {
+        if (isVideo) {
+            setBitrate(bitsPerSecond);
+        }
+    }
+
+    @Override
+    public synchronized void requestSyncFrame()
+    {
+        isSyncFrameRequested = true;
+    }
+
+    @Override
+    public synchronized void stop()
+    {
+        isStarted = false;
+        pendingCount = 0;
+        notifyAll();
+    }
+
+    @Override
+    public void release()
+    {
+    }
+
+    private void setBitrate(int bitsPerSecond)
+    {
+        bitRate = bitsPerSecond;
+        if (isVideo) {
+            // Sized so a keyframe interval averages out at the bitrate
+            long gopBytes = (long) bitRate / 8 * keyframeInterval / frameRate;
+            frameSize = (int) Math.max(2, gopBytes / (keyframeInterval - 1 + KEYFRAME_SIZE_RATIO));
+            keyframeSize = KEYFRAME_SIZE_RATIO * frameSize;
+        } else {
+            frameSize = (int) Math.max(1, (long) bitRate / 8 * AacUtils.SAMPLES_PER_FRAME / sampleRate);
+            keyframeSize = frameSize;
+        }
+        if (filler.length < keyframeSize) {
+            // Bytes 0x80 and up never form a start code
+            filler = new byte[keyframeSize];
+            for (int i = 0; i < filler.length; i++) {
+                filler[i] = (byte) (0x80 | (i * 31 & 0x7f));
+            }
+        }
+    }
+
+    private void addPending(int item, long presentationTimeUs, int inputIndex)
+    {
+        if (pendingCount == pendingPtsUs.length) {
+            // Only audio input can queue more than the output buffers hold
+            int capacity = pendingCount * 2;
+            long[] pts = new long[capacity];
+            int[] items = new int[capacity];
+            int[] inputs = new int[capacity];
+            for (int i = 0; i < pendingCount; i++) {
+                int from = (pendingHead + i) % pendingCount;
+                pts[i] = pendingPtsUs[from];
+                items[i] = pendingItems[from];
+                inputs[i] = pendingInputs[from];
+            }
+            pendingPtsUs = pts;
+            pendingItems = items;
+            pendingInputs = inputs;
+            pendingHead = 0;
+        }
+        int tail = (pendingHead + pendingCount) % pendingPtsUs.length;
+        pendingPtsUs[tail] = presentationTimeUs;
+        pendingItems[tail] = item;
+        pendingInputs[tail] = inputIndex;
+        pendingCount++;
+        notifyAll();
+    }
+
+    /**
+     * Fills output buffer {@code index} with the codec config or the oldest queued frame.
+     */
+    private void encode(int index, MediaCodec.BufferInfo info)
+    {
+        if (!isConfigEmitted) {
+            isConfigEmitted = true;
+            ByteBuffer out = obtainOutput(index, codecConfig.length);
+            out.put(codecConfig);
+            info.set(0, codecConfig.length, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            return;
+        }
+
+        long ptsUs = pendingPtsUs[pendingHead];
+        int item = pendingItems[pendingHead];
+        int input = pendingInputs[pendingHead];
+        pendingHead = (pendingHead + 1) % pendingPtsUs.length;
+        pendingCount--;
+        if (input >= 0) {
+            isInputFree[input] = true;
+        }
+        notifyAll();
+
+        if (item == ITEM_END_OF_STREAM) {
+            obtainOutput(index, 0);
+            info.set(0, 0, ptsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return;
+        }
+        int flags = 0;
+        int size;
+        if (isVideo) {
+            boolean isKeyframe = framesEncoded % keyframeInterval == 0 || isSyncFrameRequested;
+            isSyncFrameRequested = false;
+            size = isKeyframe ? keyframeSize : frameSize;
+            ByteBuffer out = obtainOutput(index, size);
+            out.put(START_CODE);
+            out.put(isKeyframe ? NAL_IDR : NAL_SLICE);
+            out.put(filler, 0, size - START_CODE.length - 1);
+            if (isKeyframe) {
+                flags = MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+            }
+        } else {
+            size = frameSize;
+            obtainOutput(index, size).put(filler, 0, size);
+        }
+        info.set(0, size, ptsUs, flags);
+        framesEncoded++;
+        bytesEncoded += size;
+    }
+
+    /**
+     * @return output buffer {@code index}, cleared and holding at least {@code size} bytes
+     */
+    private ByteBuffer obtainOutput(int index, int size)
+    {
+        ByteBuffer out = outputBuffers[index];
+        if (out == null || out.capacity() < Math.max(size, START_CODE.length + 1)) {
+            out = ByteBuffer.allocateDirect(Math.max(Math.max(size, keyframeSize), START_CODE.length + 1));
+            outputBuffers[index] = out;
+        }
+        out.clear();
+        return out;
+    }
+
+    private int findFreeOutput()
+    {
+        for (int i = 0; i < NUM_BUFFERS; i++) {
+            if (isOutputFree[i]) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Waits on this codec like MediaCodec's timeouts: 0 returns at once, negative waits for good.
+     *
+     * @return false if the timeout elapsed or the codec was stopped
+     */
+    private boolean awaitUntil(long timeoutUs, long deadlineNanos)
+    {
+        if (!isStarted || timeoutUs == 0) return false;
+        try {
+            if (timeoutUs < 0) {
+                wait();
+            } else {
+                long remainingNanos = deadlineNanos - System.nanoTime();
+                if (remainingNanos <= 0) return false;
+                wait(remainingNanos / 1000000, (int) (remainingNanos % 1000000));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return isStarted;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b)
+    {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+}
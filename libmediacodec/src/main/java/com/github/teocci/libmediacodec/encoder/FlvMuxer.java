@@ -0,0 +1,361 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.github.teocci.libmediacodec.format.Amf0;
+import com.github.teocci.libmediacodec.format.AvcUtils;
+import com.github.teocci.libmediacodec.format.SequentialFileWriter;
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+/**
+ * Pure-Java FLV muxer for H.264 + AAC (Adobe Flash Video File Format Specification 10.1).
+ * <p>
+ * Once all tracks are added an onMetaData script tag and the sequence headers, the
+ * AVCDecoderConfigurationRecord and the AudioSpecificConfig, are written. Every encoded
+ * sample then becomes one tag: video access units are converted from Annex-B to 4 byte
+ * length prefixes, AAC frames are written raw. Tag bodies are assembled in a reused
+ * buffer, so the per-sample path does not allocate.
+ * <p>
+ * Subclasses can send the tags elsewhere by overriding {@link #writeHeader()},
+ * {@link #writeTag(int, long, ByteBuffer, boolean)} and {@link #closeOutput()}, as
+ * {@link RtmpMuxer} does.
+ *
+ * @hide
+ */
+public class FlvMuxer extends MediaMuxer
+{
+    private static final String TAG = FlvMuxer.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    public static final int TAG_TYPE_AUDIO = 8;
+    public static final int TAG_TYPE_VIDEO = 9;
+    public static final int TAG_TYPE_SCRIPT = 18;
+
+    private static final int TAG_HEADER_SIZE = 11;
+    private static final int VIDEO_CODEC_AVC = 7;
+    private static final int VIDEO_FRAME_KEY = 1;
+    private static final int VIDEO_FRAME_INTER = 2;
+    private static final int AVC_SEQUENCE_HEADER = 0;
+    private static final int AVC_NALU = 1;
+    private static final int AUDIO_CODEC_AAC = 10;
+    private static final int AAC_SEQUENCE_HEADER = 0;
+    private static final int AAC_RAW = 1;
+
+    private SequentialFileWriter output;
+    private final SequentialFileWriter.Stats outputStats = new SequentialFileWriter.Stats();
+    private final ByteBuffer tagHeader = ByteBuffer.allocate(TAG_HEADER_SIZE);
+    private final ByteBuffer previousTagSize = ByteBuffer.allocate(4);
+    private boolean isStarted;
+    private boolean isReleased;
+
+    protected TrackInfo[] tracks;
+    protected int videoTrack = -1;
+    protected int audioTrack = -1;
+
+    private ByteBuffer tagBuffer = ByteBuffer.allocateDirect(256 * 1024);
+
+    protected FlvMuxer(String outputFile, MediaFormat format)
+    {
+        super(outputFile, format);
+        tracks = new TrackInfo[0];
+        isStarted = false;
+        isReleased = false;
+    }
+
+    public static FlvMuxer create(String outputFile, MediaFormat format)
+    {
+        if (format != MediaFormat.FLV)
+            throw new IllegalArgumentException("Unrecognized mediaFormat!");
+        FlvMuxer muxer = new FlvMuxer(outputFile, format);
+        try {
+            muxer.output = SequentialFileWriter.open(new File(outputFile), muxer.outputStats);
+        } catch (IOException e) {
+            throw new RuntimeException("MediaMuxer creation failed", e);
+        }
+        return muxer;
+    }
+
+    @Override
+    public int addTrack(android.media.MediaFormat trackFormat)
+    {
+        int track = super.addTrack(trackFormat);
+        if (isStarted)
+            throw new RuntimeException("mediaFormat changed twice");
+
+        tracks = Arrays.copyOf(tracks, numTracks);
+        tracks[track] = TrackInfo.fromMediaFormat(track + 1, trackFormat);
+        // FLV carries one video and one audio stream
+        if (tracks[track].isVideo() && videoTrack < 0) {
+            videoTrack = track;
+        } else if (tracks[track].isAudio() && audioTrack < 0) {
+            audioTrack = track;
+        } else {
+            Log.w(TAG, "FLV has no room for track " + tracks[track] + ", its samples are dropped");
+        }
+        Log.d(TAG, "addTrack " + tracks[track]);
+
+        if (allTracksAdded()) {
+            start();
+        }
+        return track;
+    }
+
+    protected void start()
+    {
+        try {
+            writeHeader();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed writing FLV header", e);
+        }
+        isStarted = true;
+        Log.d(TAG, "FLV mediaMuxer start");
+    }
+
+    protected void stop()
+    {
+        if (isStarted) {
+            try {
+                closeOutput();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed closing output", e);
+            }
+            isStarted = false;
+            Log.d(TAG, "FLV mediaMuxer stop");
+        }
+        release();
+    }
+
+    @Override
+    public void release()
+    {
+        if (!isReleased) {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing output", e);
+                }
+                output = null;
+                Log.i(TAG, "Output " + outputStats);
+            }
+            // Listeners of MuxerFinishedEvent may read the output
+            super.release();
+            isReleased = true;
+            Log.d(TAG, "FLV mediaMuxer Release");
+        } else {
+            Log.d(TAG, "FLV mediaMuxer Release called twice");
+        }
+    }
+
+    @Override
+    public boolean isStarted()
+    {
+        return isStarted;
+    }
+
+    @Override
+    public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
+    {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The sequence headers are built from the track format
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            releaseOutputBuffer(encoder, bufferIndex);
+            return;
+        }
+
+        if (bufferInfo.size == 0 || !isStarted) {
+            if (!isStarted) {
+                Log.e(TAG, "writeSampleData called before mediaMuxer isStarted. Ignoring packet. Track index: " + trackIndex + " tracks added: " + numTracks);
+            }
+            releaseOutputBuffer(encoder, bufferIndex);
+            if (isStarted && allTracksFinished()) {
+                stop();
+            }
+            return;
+        }
+
+        long pts = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        if (trackIndex == videoTrack || trackIndex == audioTrack) {
+            encodedData.position(bufferInfo.offset);
+            encodedData.limit(bufferInfo.offset + bufferInfo.size);
+            boolean isKeyframe = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            try {
+                writeSample(trackIndex, encodedData, pts / 1000, isKeyframe);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed writing FLV tag", e);
+            }
+        }
+
+        releaseOutputBuffer(encoder, bufferIndex);
+
+        if (allTracksFinished()) {
+            stop();
+        }
+    }
+
+    @Override
+    public void forceStop()
+    {
+        stop();
+        Log.d(TAG, "forceStop");
+    }
+
+    /**
+     * @return write, sync and preallocation latencies of the output file
+     */
+    public SequentialFileWriter.Stats getOutputStats()
+    {
+        return outputStats;
+    }
+
+    /**
+     * Writes what precedes the first tag; for a file, the FLV header. Called once all
+     * tracks are added.
+     */
+    protected void writeHeader() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.put((byte) 'F').put((byte) 'L').put((byte) 'V');
+        header.put((byte) 1);                       // version
+        header.put((byte) ((audioTrack >= 0 ? 0x04 : 0) | (videoTrack >= 0 ? 0x01 : 0)));
+        header.putInt(9);                           // header size
+        header.putInt(0);                           // PreviousTagSize0
+        header.flip();
+        output.write(header);
+        writeSequenceHeaders();
+    }
+
+    /**
+     * Writes onMetaData and the AVC and AAC sequence headers, which must precede the
+     * first sample of a stream.
+     */
+    protected void writeSequenceHeaders() throws IOException
+    {
+        ByteBuffer body = ByteBuffer.allocate(1024);
+        Amf0.putString(body, "onMetaData");
+        Amf0.putEcmaArray(body, getMetadata());
+        body.flip();
+        writeTag(TAG_TYPE_SCRIPT, 0, body, true);
+
+        if (videoTrack >= 0) {
+            TrackInfo track = tracks[videoTrack];
+            byte[] record = AvcUtils.buildDecoderConfigurationRecord(track.getSps(), track.getPps());
+            body = ByteBuffer.allocate(5 + record.length);
+            body.put((byte) ((VIDEO_FRAME_KEY << 4) | VIDEO_CODEC_AVC));
+            body.put((byte) AVC_SEQUENCE_HEADER);
+            body.put((byte) 0).put((byte) 0).put((byte) 0);
+            body.put(record);
+            body.flip();
+            writeTag(TAG_TYPE_VIDEO, 0, body, true);
+        }
+        if (audioTrack >= 0) {
+            TrackInfo track = tracks[audioTrack];
+            byte[] config = track.getAudioSpecificConfig();
+            body = ByteBuffer.allocate(2 + config.length);
+            body.put(getAudioTagHeader(track));
+            body.put((byte) AAC_SEQUENCE_HEADER);
+            body.put(config);
+            body.flip();
+            writeTag(TAG_TYPE_AUDIO, 0, body, true);
+        }
+    }
+
+    protected Map<String, Object> getMetadata()
+    {
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("duration", 0);
+        if (videoTrack >= 0) {
+            metadata.put("width", tracks[videoTrack].getWidth());
+            metadata.put("height", tracks[videoTrack].getHeight());
+            metadata.put("videocodecid", VIDEO_CODEC_AVC);
+        }
+        if (audioTrack >= 0) {
+            metadata.put("audiocodecid", AUDIO_CODEC_AAC);
+            metadata.put("audiosamplerate", tracks[audioTrack].getSampleRate());
+            metadata.put("audiosamplesize", 16);
+            metadata.put("stereo", tracks[audioTrack].getChannelCount() > 1);
+        }
+        metadata.put("encoder", "libmediacodec");
+        return metadata;
+    }
+
+    /**
+     * Writes one tag.
+     *
+     * @param tagType     {@link #TAG_TYPE_AUDIO}, {@link #TAG_TYPE_VIDEO} or {@link #TAG_TYPE_SCRIPT}
+     * @param timestampMs relative to the start of the stream
+     * @param body        the tag body, from its position to its limit
+     * @param isKeyframe  true for video keyframes, every audio frame and the sequence headers
+     */
+    protected void writeTag(int tagType, long timestampMs, ByteBuffer body, boolean isKeyframe) throws IOException
+    {
+        int dataSize = body.remaining();
+        tagHeader.clear();
+        tagHeader.put((byte) tagType);
+        putInt24(tagHeader, dataSize);
+        putInt24(tagHeader, (int) timestampMs);
+        tagHeader.put((byte) (timestampMs >> 24));  // TimestampExtended
+        putInt24(tagHeader, 0);                     // StreamID
+        tagHeader.flip();
+        output.write(tagHeader);
+        output.write(body);
+        previousTagSize.clear();
+        previousTagSize.putInt(TAG_HEADER_SIZE + dataSize);
+        previousTagSize.flip();
+        output.write(previousTagSize);
+    }
+
+    protected void closeOutput() throws IOException
+    {
+        if (output != null) {
+            output.flush();
+        }
+    }
+
+    private void writeSample(int trackIndex, ByteBuffer encodedData, long timestampMs, boolean isKeyframe) throws IOException
+    {
+        int payloadSize = encodedData.remaining();
+        // A 3 byte start code before a 1 byte NAL grows by a quarter in AVCC form
+        int maxBodySize = 5 + payloadSize + payloadSize / 4 + 4;
+        if (tagBuffer.capacity() < maxBodySize) {
+            tagBuffer = ByteBuffer.allocateDirect(maxBodySize * 2);
+        }
+        tagBuffer.clear();
+        if (trackIndex == videoTrack) {
+            tagBuffer.put((byte) (((isKeyframe ? VIDEO_FRAME_KEY : VIDEO_FRAME_INTER) << 4) | VIDEO_CODEC_AVC));
+            tagBuffer.put((byte) AVC_NALU);
+            tagBuffer.put((byte) 0).put((byte) 0).put((byte) 0);   // composition time
+            AvcUtils.annexBToAvcc(encodedData, tagBuffer);
+            tagBuffer.flip();
+            writeTag(TAG_TYPE_VIDEO, timestampMs, tagBuffer, isKeyframe);
+        } else {
+            tagBuffer.put(getAudioTagHeader(tracks[trackIndex]));
+            tagBuffer.put((byte) AAC_RAW);
+            tagBuffer.put(encodedData);
+            tagBuffer.flip();
+            writeTag(TAG_TYPE_AUDIO, timestampMs, tagBuffer, true);
+        }
+    }
+
+    private static byte getAudioTagHeader(TrackInfo track)
+    {
+        // AAC is always flagged 44 kHz 16 bit, the AudioSpecificConfig holds the real values
+        return (byte) ((AUDIO_CODEC_AAC << 4) | (3 << 2) | (1 << 1) | (track.getChannelCount() > 1 ? 1 : 0));
+    }
+
+    private static void putInt24(ByteBuffer dst, int value)
+    {
+        dst.put((byte) (value >> 16));
+        dst.put((byte) (value >> 8));
+        dst.put((byte) value);
+    }
+}
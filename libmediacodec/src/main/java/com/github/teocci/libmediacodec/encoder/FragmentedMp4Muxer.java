@@ -0,0 +1,432 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.github.teocci.libmediacodec.format.AvcUtils;
+import com.github.teocci.libmediacodec.format.BoxWriter;
+import com.github.teocci.libmediacodec.format.Mp4Boxes;
+import com.github.teocci.libmediacodec.format.SequentialFileWriter;
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+/**
+ * Pure-Java fragmented MP4 muxer.
+ * <p>
+ * The ftyp and moov boxes are written as soon as all tracks are added, and every
+ * fragment is appended as a moof + mdat pair once it is complete. Only the current
+ * fragment is held in memory, so memory use is bounded by the fragment duration
+ * rather than the session length, and a file cut short by a crash is still playable
+ * up to its last complete fragment.
+ * <p>
+ * Fragments are cut on video keyframes once {@link #DEFAULT_FRAGMENT_DURATION_US}
+ * has elapsed, or whenever {@link #MAX_FRAGMENT_BYTES} of sample data is pending.
+ *
+ * @hide
+ */
+public class FragmentedMp4Muxer extends MediaMuxer
+{
+    private static final String TAG = FragmentedMp4Muxer.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000;
+    private static final int MAX_FRAGMENT_BYTES = 4 * 1024 * 1024;
+
+    // trun sample_flags, see ISO/IEC 14496-12 8.8.3.1
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final long fragmentDurationUs;
+
+    private SequentialFileWriter output;
+    private final SequentialFileWriter.Stats outputStats = new SequentialFileWriter.Stats();
+    private boolean isStarted;
+    private boolean isReleased;
+
+    protected TrackInfo[] tracks;
+    private Fragment[] fragments;
+    protected int videoTrack = -1;
+    // Highest relative pts written, the end of the recording
+    protected long lastSamplePtsUs;
+
+    private final BoxWriter boxWriter = new BoxWriter(16 * 1024);
+    private final ByteBuffer mdatHeader = ByteBuffer.allocate(8);
+    private ByteBuffer[] gatherBuffers;
+    private int[] dataOffsetPositions;
+    private int sequenceNumber;
+
+    protected FragmentedMp4Muxer(String outputFile, MediaFormat format, long fragmentDurationUs)
+    {
+        super(outputFile, format);
+        this.fragmentDurationUs = fragmentDurationUs;
+        tracks = new TrackInfo[0];
+        fragments = new Fragment[0];
+        sequenceNumber = 0;
+        isStarted = false;
+        isReleased = false;
+    }
+
+    public static FragmentedMp4Muxer create(String outputFile, MediaFormat format)
+    {
+        return create(outputFile, format, DEFAULT_FRAGMENT_DURATION_US);
+    }
+
+    public static FragmentedMp4Muxer create(String outputFile, MediaFormat format, long fragmentDurationUs)
+    {
+        if (format != MediaFormat.FRAGMENTED_MPEG4)
+            throw new IllegalArgumentException("Unrecognized mediaFormat!");
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(outputFile, format, fragmentDurationUs);
+        try {
+            muxer.openOutput(outputFile);
+        } catch (IOException e) {
+            throw new RuntimeException("MediaMuxer creation failed", e);
+        }
+        return muxer;
+    }
+
+    @Override
+    public int addTrack(android.media.MediaFormat trackFormat)
+    {
+        int track = super.addTrack(trackFormat);
+        if (isStarted)
+            throw new RuntimeException("mediaFormat changed twice");
+
+        tracks = Arrays.copyOf(tracks, numTracks);
+        fragments = Arrays.copyOf(fragments, numTracks);
+        tracks[track] = TrackInfo.fromMediaFormat(track + 1, trackFormat);
+        fragments[track] = new Fragment();
+        if (tracks[track].isVideo() && videoTrack < 0) {
+            videoTrack = track;
+        }
+        Log.d(TAG, "addTrack " + tracks[track]);
+
+        if (allTracksAdded()) {
+            start();
+        }
+        return track;
+    }
+
+    protected void start()
+    {
+        gatherBuffers = new ByteBuffer[numTracks + 2];
+        dataOffsetPositions = new int[numTracks];
+        try {
+            writeInitSegment();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed writing fMP4 header", e);
+        }
+        isStarted = true;
+        Log.d(TAG, "fMP4 mediaMuxer start");
+    }
+
+    protected void stop()
+    {
+        if (isStarted) {
+            try {
+                flushFragment();
+                if (output != null) {
+                    output.sync();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed writing final fragment", e);
+            }
+            isStarted = false;
+            Log.d(TAG, "fMP4 mediaMuxer stop");
+        }
+        release();
+    }
+
+    @Override
+    public void release()
+    {
+        if (!isReleased) {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing output", e);
+                }
+                output = null;
+            }
+            Log.i(TAG, "Output " + outputStats);
+            // Listeners of MuxerFinishedEvent may read the output
+            super.release();
+            isReleased = true;
+            Log.d(TAG, "fMP4 mediaMuxer Release");
+        } else {
+            Log.d(TAG, "fMP4 mediaMuxer Release called twice");
+        }
+    }
+
+    @Override
+    public boolean isStarted()
+    {
+        return isStarted;
+    }
+
+    /**
+     * @return write, sync and preallocation latencies of the output file
+     */
+    public SequentialFileWriter.Stats getOutputStats()
+    {
+        return outputStats;
+    }
+
+    @Override
+    public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
+    {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // Codec config is carried in the moov via addTrack
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            releaseOutputBuffer(encoder, bufferIndex);
+            return;
+        }
+
+        if (bufferInfo.size == 0 || !isStarted) {
+            if (!isStarted) {
+                Log.e(TAG, "writeSampleData called before mediaMuxer isStarted. Ignoring packet. Track index: " + trackIndex + " tracks added: " + numTracks);
+            }
+            releaseOutputBuffer(encoder, bufferIndex);
+            if (isStarted && allTracksFinished()) {
+                stop();
+            }
+            return;
+        }
+
+        long pts = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        boolean isSync = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+
+        try {
+            if (shouldCutFragment(trackIndex, pts, isSync)) {
+                // This sample ends the fragment's last one, so its duration is exact
+                fragments[trackIndex].nextPts = pts;
+                flushFragment();
+            }
+            fragments[trackIndex].add(tracks[trackIndex], encodedData, pts, isSync);
+            lastSamplePtsUs = Math.max(lastSamplePtsUs, pts);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed writing fragment", e);
+        }
+
+        releaseOutputBuffer(encoder, bufferIndex);
+
+        if (allTracksFinished()) {
+            stop();
+        }
+    }
+
+    @Override
+    public void forceStop()
+    {
+        stop();
+        Log.d(TAG, "forceStop");
+    }
+
+    /**
+     * Called before every sample is added to the pending fragment.
+     *
+     * @param pts relative presentation time of the sample
+     * @return true to write the pending fragment first, so the sample starts a new one
+     */
+    protected boolean shouldCutFragment(int trackIndex, long pts, boolean isSync)
+    {
+        long pendingBytes = 0;
+        for (int i = 0; i < numTracks; i++) {
+            pendingBytes += fragments[i].data.position();
+        }
+        if (pendingBytes >= MAX_FRAGMENT_BYTES) return true;
+
+        Fragment fragment = fragments[trackIndex];
+        if (fragment.sampleCount == 0) return false;
+        if (videoTrack >= 0) {
+            return trackIndex == videoTrack && isSync && pts - fragment.firstPts >= fragmentDurationUs;
+        }
+        return pts - fragment.firstPts >= fragmentDurationUs;
+    }
+
+    /**
+     * Flushes and closes the current output, if any, and starts writing to {@code path}.
+     */
+    protected void openOutput(String path) throws IOException
+    {
+        closeOutput();
+        output = SequentialFileWriter.open(new File(path), outputStats);
+    }
+
+    protected void closeOutput() throws IOException
+    {
+        if (output == null) return;
+        output.close();
+        output = null;
+    }
+
+    private void writeInitSegment() throws IOException
+    {
+        boxWriter.reset();
+        Mp4Boxes.writeFtyp(boxWriter, "iso5", 0x200, "iso5", "iso6", "mp41");
+        boxWriter.startBox("moov");
+        Mp4Boxes.writeMvhd(boxWriter, 0, numTracks + 1);
+        for (int i = 0; i < numTracks; i++) {
+            Mp4Boxes.writeTrak(boxWriter, tracks[i], null, 0, 0);
+        }
+        Mp4Boxes.writeMvex(boxWriter, tracks, numTracks);
+        boxWriter.endBox();
+        boxWriter.writeTo(output);
+    }
+
+    /**
+     * Writes the pending samples of every track as one moof + mdat pair.
+     */
+    protected void flushFragment() throws IOException
+    {
+        int mdatPayload = 0;
+        for (int i = 0; i < numTracks; i++) {
+            mdatPayload += fragments[i].data.position();
+        }
+        if (mdatPayload == 0) return;
+
+        sequenceNumber++;
+        boxWriter.reset();
+        boxWriter.startBox("moof");
+        boxWriter.startFullBox("mfhd", 0, 0).put32(sequenceNumber).endBox();
+        for (int i = 0; i < numTracks; i++) {
+            dataOffsetPositions[i] = fragments[i].sampleCount > 0 ? writeTraf(tracks[i], fragments[i]) : -1;
+        }
+        boxWriter.endBox();
+
+        int moofSize = boxWriter.position();
+        int dataOffset = moofSize + 8;
+        for (int i = 0; i < numTracks; i++) {
+            if (dataOffsetPositions[i] < 0) continue;
+            boxWriter.patch32(dataOffsetPositions[i], dataOffset);
+            dataOffset += fragments[i].data.position();
+        }
+
+        mdatHeader.clear();
+        mdatHeader.putInt(8 + mdatPayload);
+        mdatHeader.put((byte) 'm').put((byte) 'd').put((byte) 'a').put((byte) 't');
+        mdatHeader.flip();
+
+        gatherBuffers[0] = boxWriter.asByteBuffer();
+        gatherBuffers[1] = mdatHeader;
+        for (int i = 0; i < numTracks; i++) {
+            ByteBuffer data = fragments[i].data;
+            data.flip();
+            gatherBuffers[i + 2] = data;
+        }
+        output.write(gatherBuffers);
+        // Written through, so a crash only loses the fragment being collected
+        output.flush();
+        if (VERBOSE) Log.d(TAG, "wrote fragment " + sequenceNumber + " " + (moofSize + 8 + mdatPayload) + " bytes");
+
+        for (int i = 0; i < numTracks; i++) {
+            fragments[i].clear();
+            gatherBuffers[i + 2] = null;
+        }
+    }
+
+    /**
+     * @return position of the trun data_offset field, patched once the moof size is known
+     */
+    private int writeTraf(TrackInfo track, Fragment fragment)
+    {
+        boxWriter.startBox("traf");
+        boxWriter.startFullBox("tfhd", 0, 0x020000);        // default-base-is-moof
+        boxWriter.put32(track.getTrackId());
+        boxWriter.endBox();
+        boxWriter.startFullBox("tfdt", 1, 0);
+        boxWriter.put64(track.usToTicks(fragment.firstPts));
+        boxWriter.endBox();
+        // data-offset, sample-duration, sample-size and sample-flags present
+        boxWriter.startFullBox("trun", 0, 0x000701);
+        boxWriter.put32(fragment.sampleCount);
+        int dataOffsetPosition = boxWriter.position();
+        boxWriter.put32(0);
+        long lastDuration = fragment.lastDuration;
+        if (lastDuration == 0) {
+            // Nothing to extrapolate from yet: assume 30fps video or 1024 sample AAC frames
+            lastDuration = track.isVideo() ? track.usToTicks(1000000 / 30) : 1024;
+        }
+        for (int i = 0; i < fragment.sampleCount; i++) {
+            long duration;
+            if (i + 1 < fragment.sampleCount) {
+                duration = track.usToTicks(fragment.pts[i + 1]) - track.usToTicks(fragment.pts[i]);
+                lastDuration = duration;
+            } else if (fragment.nextPts >= 0) {
+                // Up to the next fragment's tfdt, so the timeline has no gap
+                duration = track.usToTicks(fragment.nextPts) - track.usToTicks(fragment.pts[i]);
+            } else {
+                // The next sample is not known yet, assume the cadence continues
+                duration = lastDuration;
+            }
+            boxWriter.put32(duration);
+            boxWriter.put32(fragment.sizes[i]);
+            boxWriter.put32(fragment.sync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        fragment.lastDuration = lastDuration;
+        boxWriter.endBox();
+        boxWriter.endBox();
+        return dataOffsetPosition;
+    }
+
+    /**
+     * Pending samples of one track. Buffers are reused between fragments and
+     * only grow, so steady state recording does not allocate.
+     */
+    private static class Fragment
+    {
+        ByteBuffer data = ByteBuffer.allocateDirect(256 * 1024);
+        long[] pts = new long[64];
+        int[] sizes = new int[64];
+        boolean[] sync = new boolean[64];
+        int sampleCount;
+        long firstPts;
+        long lastDuration;
+        long nextPts = -1;                              // first pts after the fragment, if known
+
+        void add(TrackInfo track, ByteBuffer encodedData, long ptsUs, boolean isSync)
+        {
+            // Annex-B conversion can grow a sample by one byte per 3 byte start code
+            ensureCapacity(encodedData.remaining() + encodedData.remaining() / 3 + 4);
+            if (sampleCount == pts.length) {
+                int capacity = sampleCount * 2;
+                pts = Arrays.copyOf(pts, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                sync = Arrays.copyOf(sync, capacity);
+            }
+            int size;
+            if (track.isVideo()) {
+                size = AvcUtils.annexBToAvcc(encodedData, data);
+            } else {
+                size = encodedData.remaining();
+                data.put(encodedData);
+            }
+            if (sampleCount == 0) firstPts = ptsUs;
+            pts[sampleCount] = ptsUs;
+            sizes[sampleCount] = size;
+            sync[sampleCount] = isSync || !track.isVideo();
+            sampleCount++;
+        }
+
+        void clear()
+        {
+            data.clear();
+            sampleCount = 0;
+            nextPts = -1;
+        }
+
+        private void ensureCapacity(int extra)
+        {
+            if (data.remaining() >= extra) return;
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(data.capacity() * 2, data.position() + extra));
+            data.flip();
+            grown.put(data);
+            data = grown;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import com.github.teocci.libmediacodec.format.HlsPlaylist;
+
+/**
+ * Live HLS output: a {@link TsMuxer} that cuts its output into keyframe aligned
+ * segments and maintains a media playlist next to them.
+ * <p>
+ * Given an output path like /sdcard/<UUID>/test.m3u8 segments are written to
+ * /sdcard/<UUID>/test0.ts, test1.ts ... and the playlist is atomically replaced
+ * after every completed segment. Once a segment reaches the target duration a
+ * keyframe is requested from the video encoder, so segments end right after the
+ * target instead of on the encoder's next periodic keyframe, and fit the
+ * EXT-X-TARGETDURATION the playlist declared up front. With a sliding window,
+ * segments that left the playlist are deleted once {@link #EXPIRED_SEGMENT_GRACE}
+ * more segments have been published, so clients still fetching them are not cut off.
+ * <p>
+ * With a part target the playlist is a Low-Latency HLS playlist. The segment being
+ * written is published in parts of at most the part target, each cut between two
+ * samples and announced as a byte range of the growing segment file, so no data is
+ * written twice. Serving the parts as they are announced, and holding blocking
+ * playlist reloads, is left to the origin server; see {@link HlsPlaylist#awaitPart}.
+ *
+ * @hide
+ */
+public class HlsSegmenter extends TsMuxer
+{
+    private static final String TAG = HlsSegmenter.class.getSimpleName();
+
+    public static final long DEFAULT_TARGET_DURATION_US = 6000000;
+    private static final int EXPIRED_SEGMENT_GRACE = 2;
+
+    private final File playlistFile;
+    private final File segmentDirectory;
+    private final String segmentBaseName;
+    private final long targetDurationUs;
+    private final long partTargetUs;
+    private final HlsPlaylist playlist;
+    private final ArrayDeque<String> expiredSegments = new ArrayDeque<>();
+
+    private int segmentIndex;
+    private String segmentName;
+    private long segmentStartPtsUs;
+
+    private long partStartPtsUs;
+    private long partStartOffset;
+    private boolean isPartIndependent;
+    private long lastBoundaryPtsUs = -1;
+    private boolean isSyncFrameRequested;
+
+    protected HlsSegmenter(String playlistPath, MediaFormat format, long targetDurationUs, int windowSize,
+                           long partTargetUs)
+    {
+        super(playlistPath, format);
+        this.targetDurationUs = targetDurationUs;
+        this.partTargetUs = partTargetUs;
+        playlistFile = new File(playlistPath);
+        segmentDirectory = playlistFile.getParentFile();
+        String name = playlistFile.getName();
+        int extension = name.lastIndexOf('.');
+        segmentBaseName = extension > 0 ? name.substring(0, extension) : name;
+        playlist = new HlsPlaylist(targetDurationUs, windowSize, partTargetUs);
+        segmentIndex = 0;
+        segmentStartPtsUs = 0;
+    }
+
+    public static HlsSegmenter create(String playlistPath, MediaFormat format)
+    {
+        return create(playlistPath, format, DEFAULT_TARGET_DURATION_US, 0);
+    }
+
+    /**
+     * @param targetDurationUs segment duration; segments end on the first keyframe after it
+     * @param windowSize       number of segments kept in the playlist and on disk, or 0 to keep all
+     */
+    public static HlsSegmenter create(String playlistPath, MediaFormat format, long targetDurationUs, int windowSize)
+    {
+        return create(playlistPath, format, targetDurationUs, windowSize, 0);
+    }
+
+    /**
+     * @param partTargetUs longest partial segment of a Low-Latency HLS playlist, e.g. 200 to
+     *                     500 ms, or 0 for whole segments only
+     */
+    public static HlsSegmenter create(String playlistPath, MediaFormat format, long targetDurationUs, int windowSize,
+                                      long partTargetUs)
+    {
+        if (format != MediaFormat.HLS)
+            throw new IllegalArgumentException("Unrecognized mediaFormat!");
+        HlsSegmenter segmenter = new HlsSegmenter(playlistPath, format, targetDurationUs, windowSize, partTargetUs);
+        try {
+            segmenter.openSegment();
+        } catch (IOException e) {
+            throw new RuntimeException("MediaMuxer creation failed", e);
+        }
+        return segmenter;
+    }
+
+    public HlsPlaylist getPlaylist()
+    {
+        return playlist;
+    }
+
+    @Override
+    protected void onSampleBoundary(int trackIndex, long ptsUs, boolean isKeyframe) throws IOException
+    {
+        if (trackIndex == videoTrack && !isKeyframe && !isSyncFrameRequested && isSegmentComplete(ptsUs)) {
+            requestSyncFrame();
+            isSyncFrameRequested = true;
+        }
+        // Parts are timed by the video track, or the audio track of a stream without video
+        if (partTargetUs == 0 || trackIndex != Math.max(videoTrack, 0)) return;
+        long intervalUs = lastBoundaryPtsUs >= 0 ? ptsUs - lastBoundaryPtsUs : 0;
+        lastBoundaryPtsUs = ptsUs;
+        if ((isKeyframe || videoTrack < 0) && isSegmentComplete(ptsUs)) {
+            // finishSegment publishes the last part
+            return;
+        }
+        // Cut before the sample that would make the part longer than its target
+        if (getBytesWritten() > partStartOffset && ptsUs + intervalUs - partStartPtsUs > partTargetUs) {
+            publishPart(ptsUs);
+            isPartIndependent = isKeyframe || videoTrack < 0;
+            playlist.setPreloadHint(segmentName, partStartOffset);
+            playlist.writeTo(playlistFile);
+        }
+    }
+
+    @Override
+    protected boolean onRandomAccessPoint(long ptsUs) throws IOException
+    {
+        if (!isSegmentComplete(ptsUs)) {
+            return false;
+        }
+        finishSegment(ptsUs - segmentStartPtsUs);
+        segmentStartPtsUs = ptsUs;
+        openSegment();
+        return true;
+    }
+
+    @Override
+    protected void stop()
+    {
+        if (isStarted()) {
+            try {
+                playlist.end();
+                // The final sample's own duration is unknown, so the last segment ends at its pts
+                finishSegment(Math.max(0, lastSamplePtsUs - segmentStartPtsUs));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed finishing last segment", e);
+            }
+        }
+        super.stop();
+    }
+
+    private boolean isSegmentComplete(long ptsUs)
+    {
+        return getBytesWritten() > 0 && ptsUs - segmentStartPtsUs >= targetDurationUs;
+    }
+
+    private String getSegmentName(int index)
+    {
+        return segmentBaseName + index + ".ts";
+    }
+
+    private void openSegment() throws IOException
+    {
+        segmentName = getSegmentName(segmentIndex);
+        segmentIndex++;
+        openOutput(new File(segmentDirectory, segmentName).getAbsolutePath());
+        isSyncFrameRequested = false;
+        partStartPtsUs = segmentStartPtsUs;
+        partStartOffset = 0;
+        isPartIndependent = true;
+    }
+
+    private void publishPart(long endPtsUs) throws IOException
+    {
+        publishOutput();
+        long offset = getBytesWritten();
+        playlist.addPart(segmentName, partStartOffset, offset - partStartOffset,
+                endPtsUs - partStartPtsUs, isPartIndependent);
+        partStartPtsUs = endPtsUs;
+        partStartOffset = offset;
+    }
+
+    private void finishSegment(long durationUs) throws IOException
+    {
+        if (partTargetUs > 0 && getBytesWritten() > partStartOffset) {
+            publishPart(segmentStartPtsUs + durationUs);
+        }
+        closeOutput();
+        String expired = playlist.addSegment(segmentName, durationUs);
+        if (partTargetUs > 0 && !playlist.isEnded()) {
+            // The next segment is opened right after, its first part starts the file
+            playlist.setPreloadHint(getSegmentName(segmentIndex), 0);
+        }
+        playlist.writeTo(playlistFile);
+        Log.d(TAG, "Finished segment " + segmentName + " duration " + durationUs + " us");
+        if (!playlist.fitsTargetDuration(durationUs)) {
+            Log.w(TAG, "Segment " + segmentName + " of " + durationUs + " us exceeds the target duration of "
+                    + playlist.getTargetDuration() + " s, no keyframe in time");
+        }
+
+        if (expired != null) {
+            expiredSegments.addLast(expired);
+        }
+        while (expiredSegments.size() > EXPIRED_SEGMENT_GRACE) {
+            File segment = new File(segmentDirectory, expiredSegments.removeFirst());
+            if (!segment.delete()) {
+                Log.w(TAG, "Failed deleting expired segment " + segment);
+            }
+        }
+    }
+}
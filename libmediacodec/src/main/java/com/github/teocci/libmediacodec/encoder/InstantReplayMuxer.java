@@ -0,0 +1,438 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.github.teocci.libmediacodec.event.ReplaySavedEvent;
+import com.google.common.eventbus.EventBus;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps the last few seconds of encoded output in memory, to be saved as an MP4 on demand
+ * ("save the last 30 seconds").
+ * <p>
+ * The encoders run continuously into this muxer. Every sample is copied into one direct
+ * ByteBuffer used as a circular arena, and its output buffer goes straight back to the
+ * codec. When the retained samples exceed the byte budget, or span more than the
+ * duration limit, the oldest GOP is evicted as a whole: the ring always starts on a
+ * video keyframe, so whatever is retained can be decoded. The arena and the sample index
+ * are reused, so once the index has grown to the steady state sample count, recording
+ * allocates nothing.
+ * <p>
+ * {@link #save(String)} writes the samples retained at that moment to a new file through
+ * an {@link AndroidMuxer}, on a background thread, while recording continues. It copies
+ * one sample at a time out of the arena under the lock and writes it outside, so the
+ * encoders never wait for file I/O. A {@link ReplaySavedEvent} is posted when it is done.
+ *
+ * @hide
+ */
+public class InstantReplayMuxer extends MediaMuxer
+{
+    private static final String TAG = InstantReplayMuxer.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    public static final long DEFAULT_MAX_DURATION_US = 30 * 1000000L;
+    public static final int DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+    private static final int INITIAL_SCRATCH_SIZE = 256 * 1024;
+
+    private final long maxDurationUs;
+    private final ByteBuffer arena;
+    private final ByteBuffer arenaWriter;           // the encoders' view of the arena
+    private final ExecutorService saver;
+    private final List<android.media.MediaFormat> trackFormats = new ArrayList<>();
+
+    private EventBus eventBus;
+    private int videoTrack = -1;
+    private boolean isReleased;
+
+    // Sample index, a circular array in arrival order. Guarded by this
+    private long[] ptsUs = new long[INITIAL_INDEX_CAPACITY];
+    private int[] offsets = new int[INITIAL_INDEX_CAPACITY];
+    private int[] sizes = new int[INITIAL_INDEX_CAPACITY];
+    private int[] flags = new int[INITIAL_INDEX_CAPACITY];
+    private byte[] tracks = new byte[INITIAL_INDEX_CAPACITY];
+    private int head;                               // index slot of the oldest sample
+    private int count;
+    private long headSequence;                      // sequence number of the oldest sample
+    private int arenaTail;                          // where the next sample's bytes go
+    private boolean needsKeyframe = true;           // the ring must start on a keyframe
+
+    // Metrics
+    private long evictedGops;
+    private long droppedSamples;
+    private long indexGrowths;
+
+    protected InstantReplayMuxer(String outputPath, MediaFormat format, long maxDurationUs, int maxBytes)
+    {
+        super(outputPath, format);
+        this.maxDurationUs = maxDurationUs;
+        arena = ByteBuffer.allocateDirect(maxBytes);
+        arenaWriter = arena.duplicate();
+        saver = Executors.newSingleThreadExecutor();
+    }
+
+    public static InstantReplayMuxer create(String outputPath, MediaFormat format)
+    {
+        return create(outputPath, format, DEFAULT_MAX_DURATION_US, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxDurationUs how much to keep; whole GOPs are kept, so slightly more is retained
+     * @param maxBytes      memory for encoded samples, allocated up front. Caps the
+     *                      retained duration if the bitrate is higher than expected
+     */
+    public static InstantReplayMuxer create(String outputPath, MediaFormat format, long maxDurationUs, int maxBytes)
+    {
+        if (format != MediaFormat.MPEG4)
+            throw new IllegalArgumentException("Unrecognized mediaFormat!");
+        checkArgument(maxDurationUs > 0 && maxBytes > 0);
+        return new InstantReplayMuxer(outputPath, format, maxDurationUs, maxBytes);
+    }
+
+    @Override
+    public void setEventBus(EventBus eventBus)
+    {
+        super.setEventBus(eventBus);
+        this.eventBus = eventBus;
+    }
+
+    @Override
+    public synchronized int addTrack(android.media.MediaFormat trackFormat)
+    {
+        // Saved files normalize their own timestamps, so the base class only counts tracks
+        numTracks++;
+        trackFormats.add(trackFormat);
+        String mime = trackFormat.getString(android.media.MediaFormat.KEY_MIME);
+        if (videoTrack < 0 && mime != null && mime.startsWith("video/")) {
+            videoTrack = numTracks - 1;
+        }
+        return numTracks - 1;
+    }
+
+    @Override
+    public synchronized boolean isStarted()
+    {
+        return allTracksAdded() && !isReleased;
+    }
+
+    @Override
+    public synchronized void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
+    {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0 && isStarted()) {
+            append(trackIndex, encodedData, bufferInfo);
+        }
+        releaseOutputBuffer(encoder, bufferIndex);
+    }
+
+    @Override
+    public void forceStop()
+    {
+        Log.d(TAG, "forceStop");
+        release();
+    }
+
+    /**
+     * Waits for pending saves in the background and drops the retained samples.
+     */
+    @Override
+    public void release()
+    {
+        synchronized (this) {
+            if (isReleased) return;
+            isReleased = true;
+            Log.i(TAG, "Released with " + count + " samples retained, " + getRetainedDurationUs() + " us"
+                    + ", evicted GOPs " + evictedGops + ", dropped samples " + droppedSamples
+                    + ", index growths " + indexGrowths);
+        }
+        saver.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                InstantReplayMuxer.super.release();
+            }
+        });
+        saver.shutdown();
+    }
+
+    /**
+     * @return presentation time spanned by the retained samples
+     */
+    public synchronized long getRetainedDurationUs()
+    {
+        if (count == 0) return 0;
+        return ptsUs[slot(count - 1)] - ptsUs[head];
+    }
+
+    public synchronized int getRetainedBytes()
+    {
+        if (count == 0) return 0;
+        int start = offsets[head];
+        return arenaTail > start ? arenaTail - start : arena.capacity() - start + arenaTail;
+    }
+
+    public synchronized int getRetainedSampleCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return how many whole GOPs were evicted to stay within the limits
+     */
+    public synchronized long getEvictedGopCount()
+    {
+        return evictedGops;
+    }
+
+    /**
+     * Writes the samples retained now to a new MP4 in the background. Recording goes on
+     * meanwhile; samples that arrive later are not part of the file.
+     *
+     * @return false if there is nothing to save yet
+     */
+    public boolean save(final String outputPath)
+    {
+        final long startSequence;
+        final long endSequence;
+        synchronized (this) {
+            if (count == 0 || isReleased) return false;
+            startSequence = headSequence;
+            endSequence = headSequence + count;
+        }
+        saver.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeReplay(outputPath, startSequence, endSequence);
+            }
+        });
+        return true;
+    }
+
+    private void writeReplay(String outputPath, long startSequence, long endSequence)
+    {
+        long start = System.nanoTime();
+        AndroidMuxer muxer = null;
+        long firstPtsUs = -1;
+        long lastPtsUs = -1;
+        int written = 0;
+        boolean isSuccess = false;
+        try {
+            muxer = AndroidMuxer.create(outputPath, MediaFormat.MPEG4);
+            muxer.setExpectedNumTracks(trackFormats.size());
+            for (android.media.MediaFormat format : trackFormats) {
+                muxer.addTrack(format);
+            }
+
+            ByteBuffer view = arena.duplicate();
+            ByteBuffer scratch = ByteBuffer.allocateDirect(INITIAL_SCRATCH_SIZE);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long sequence = startSequence;
+            while (true) {
+                int trackIndex;
+                // Only copy one sample under the lock, so encoders never wait for the muxer
+                synchronized (this) {
+                    if (sequence < headSequence) {
+                        // Evicted before it was copied. Eviction is GOP aligned, so
+                        // continuing at the new head keeps the file decodable
+                        Log.w(TAG, "Replay fell behind eviction, skipping " + (headSequence - sequence) + " samples");
+                        sequence = headSequence;
+                    }
+                    if (sequence >= endSequence) break;
+                    int slot = slot((int) (sequence - headSequence));
+                    sequence++;
+                    if (firstPtsUs < 0) {
+                        firstPtsUs = ptsUs[slot];
+                    }
+                    // Audio captured just before the first keyframe would start the file early
+                    if (ptsUs[slot] < firstPtsUs) continue;
+
+                    int size = sizes[slot];
+                    if (scratch.capacity() < size) {
+                        scratch = ByteBuffer.allocateDirect(Math.max(size, scratch.capacity() * 2));
+                    }
+                    view.clear();
+                    view.position(offsets[slot]);
+                    view.limit(offsets[slot] + size);
+                    scratch.clear();
+                    scratch.put(view);
+                    scratch.flip();
+                    info.set(0, size, ptsUs[slot], flags[slot] & ~MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    trackIndex = tracks[slot];
+                }
+                muxer.writeSampleData(null, trackIndex, -1, scratch, info);
+                lastPtsUs = Math.max(lastPtsUs, info.presentationTimeUs);
+                written++;
+            }
+            muxer.forceStop();
+            isSuccess = written > 0;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed saving replay to " + outputPath, e);
+            if (muxer != null) muxer.release();
+        }
+
+        long durationUs = Math.max(0, lastPtsUs - firstPtsUs);
+        Log.i(TAG, "Saved " + written + " samples, " + durationUs + " us to " + outputPath
+                + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        if (eventBus != null) {
+            eventBus.post(new ReplaySavedEvent(new File(outputPath), durationUs, isSuccess));
+        }
+    }
+
+    private int slot(int index)
+    {
+        return (head + index) % ptsUs.length;
+    }
+
+    private boolean isKeyframe(int trackIndex, int sampleFlags)
+    {
+        // Without video any sample can start the ring
+        return videoTrack < 0 || (trackIndex == videoTrack && (sampleFlags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+    }
+
+    private void append(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
+    {
+        int size = bufferInfo.size;
+        boolean isKeyframe = isKeyframe(trackIndex, bufferInfo.flags);
+        if (needsKeyframe && !isKeyframe) {
+            droppedSamples++;
+            return;
+        }
+        if (size > arena.capacity()) {
+            Log.w(TAG, "Sample of " + size + " bytes exceeds the replay buffer, dropping it");
+            dropAll();
+            droppedSamples++;
+            return;
+        }
+        needsKeyframe = false;
+
+        // Keep at least maxDurationUs, in whole GOPs
+        while (count > 0) {
+            int nextGop = findNextGop();
+            if (nextGop < 0 || bufferInfo.presentationTimeUs - ptsUs[slot(nextGop)] < maxDurationUs) break;
+            evict(nextGop);
+        }
+        int offset;
+        while ((offset = allocate(size)) < 0) {
+            int nextGop = findNextGop();
+            if (nextGop < 0) {
+                // A single GOP outgrew the buffer. Start over with the next keyframe
+                Log.w(TAG, "GOP exceeds the replay buffer of " + arena.capacity() + " bytes");
+                dropAll();
+                if (!isKeyframe) {
+                    droppedSamples++;
+                    return;
+                }
+                needsKeyframe = false;
+            } else {
+                evict(nextGop);
+            }
+        }
+
+        if (count == ptsUs.length) {
+            growIndex();
+        }
+        int slot = slot(count);
+        arenaWriter.clear();
+        arenaWriter.position(offset);
+        encodedData.position(bufferInfo.offset);
+        encodedData.limit(bufferInfo.offset + size);
+        arenaWriter.put(encodedData);
+        ptsUs[slot] = bufferInfo.presentationTimeUs;
+        offsets[slot] = offset;
+        sizes[slot] = size;
+        flags[slot] = bufferInfo.flags;
+        tracks[slot] = (byte) trackIndex;
+        count++;
+        arenaTail = offset + size;
+    }
+
+    /**
+     * @return the arena offset for {@code size} bytes after the newest sample, or -1 if
+     * the oldest samples are in the way
+     */
+    private int allocate(int size)
+    {
+        if (count == 0) {
+            arenaTail = 0;
+            return 0;
+        }
+        int start = offsets[head];
+        if (arenaTail > start) {
+            // Free space is after the tail and before the head
+            if (arena.capacity() - arenaTail >= size) return arenaTail;
+            return start >= size ? 0 : -1;
+        }
+        return start - arenaTail >= size ? arenaTail : -1;
+    }
+
+    /**
+     * @return the index of the oldest keyframe after the head, or -1 if the ring holds one GOP
+     */
+    private int findNextGop()
+    {
+        for (int i = 1; i < count; i++) {
+            int slot = slot(i);
+            if (isKeyframe(tracks[slot], flags[slot])) return i;
+        }
+        return -1;
+    }
+
+    private void evict(int samples)
+    {
+        head = slot(samples);
+        count -= samples;
+        headSequence += samples;
+        evictedGops++;
+        if (VERBOSE) Log.d(TAG, "Evicted a GOP of " + samples + " samples");
+    }
+
+    private void dropAll()
+    {
+        droppedSamples += count;
+        headSequence += count;
+        head = 0;
+        count = 0;
+        needsKeyframe = true;
+    }
+
+    /**
+     * Doubles the index while the ring warms up; in steady state it no longer grows.
+     */
+    private void growIndex()
+    {
+        int capacity = ptsUs.length;
+        long[] grownPts = new long[capacity * 2];
+        int[] grownOffsets = new int[capacity * 2];
+        int[] grownSizes = new int[capacity * 2];
+        int[] grownFlags = new int[capacity * 2];
+        byte[] grownTracks = new byte[capacity * 2];
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % capacity;
+            grownPts[i] = ptsUs[slot];
+            grownOffsets[i] = offsets[slot];
+            grownSizes[i] = sizes[slot];
+            grownFlags[i] = flags[slot];
+            grownTracks[i] = tracks[slot];
+        }
+        ptsUs = grownPts;
+        offsets = grownOffsets;
+        sizes = grownSizes;
+        flags = grownFlags;
+        tracks = grownTracks;
+        head = 0;
+        indexGrowths++;
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+import static com.github.teocci.libmediacodec.utils.CameraUtils.isKitKat;
+
+/**
+ * {@link EncoderCodec} backed by a platform MediaCodec, hiding the API level differences
+ * in buffer access and runtime parameters.
+ *
+ * @hide
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MediaCodecAdapter implements EncoderCodec
+{
+    private static final String TAG = MediaCodecAdapter.class.getSimpleName();
+
+    private final MediaCodec codec;
+    // Before API 21 buffers are only reachable through these arrays
+    private ByteBuffer[] inputBuffers;
+    private ByteBuffer[] outputBuffers;
+
+    public MediaCodecAdapter(MediaCodec codec)
+    {
+        this.codec = codec;
+    }
+
+    /**
+     * @return the wrapped codec, to configure it or get its input surface
+     */
+    public MediaCodec getCodec()
+    {
+        return codec;
+    }
+
+    @Override
+    public void start()
+    {
+        codec.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs)
+    {
+        return codec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public ByteBuffer getInputBuffer(int index)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return codec.getInputBuffer(index);
+        }
+        if (inputBuffers == null) {
+            inputBuffers = codec.getInputBuffers();
+        }
+        return inputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags)
+    {
+        codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void signalEndOfInputStream()
+    {
+        codec.signalEndOfInputStream();
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs)
+    {
+        int status = codec.dequeueOutputBuffer(info, timeoutUs);
+        if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            // not expected for an encoder
+            outputBuffers = null;
+        }
+        return status;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public ByteBuffer getOutputBuffer(int index)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return codec.getOutputBuffer(index);
+        }
+        if (outputBuffers == null) {
+            outputBuffers = codec.getOutputBuffers();
+        }
+        return outputBuffers[index];
+    }
+
+    @Override
+    public MediaFormat getOutputFormat()
+    {
+        return codec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index)
+    {
+        codec.releaseOutputBuffer(index, false);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    @Override
+    public void setVideoBitrate(int bitsPerSecond)
+    {
+        if (isKitKat()) {
+            Bundle bitrate = new Bundle();
+            bitrate.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitsPerSecond);
+            codec.setParameters(bitrate);
+        } else {
+            Log.w(TAG, "Ignoring adjustVideoBitrate call. This functionality is only available on Android API 19+");
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    @Override
+    public void requestSyncFrame()
+    {
+        if (isKitKat()) {
+            Bundle syncFrame = new Bundle();
+            syncFrame.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            codec.setParameters(syncFrame);
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        codec.stop();
+    }
+
+    @Override
+    public void release()
+    {
+        codec.release();
+    }
+
+    @Override
+    public String toString()
+    {
+        return codec.toString();
+    }
+}
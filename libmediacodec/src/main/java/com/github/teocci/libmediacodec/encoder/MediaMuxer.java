@@ -9,8 +9,11 @@ import com.google.common.eventbus.EventBus;
 import java.nio.ByteBuffer;
 
 import com.github.teocci.libmediacodec.event.MuxerFinishedEvent;
+import com.github.teocci.libmediacodec.format.SampleJournal;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Base MediaMuxer class for interaction with MediaCodec based
@@ -24,17 +27,28 @@ public abstract class MediaMuxer
 
     public static enum MediaFormat
     {
-        MPEG4, HLS
+        MPEG4, FRAGMENTED_MPEG4, HLS, DASH, FLV, RTP
     }
 
-    private final int expectedNumTracks = 2;           // TODO: Make this configurable?
+    public static final int DEFAULT_NUM_TRACKS = 2;    // one video and one audio track
+
+    public static final long DEFAULT_MAX_INTERLEAVE_DURATION_US = 500 * 1000;
+
+    private int expectedNumTracks = DEFAULT_NUM_TRACKS;
+    private long maxInterleaveDurationUs = DEFAULT_MAX_INTERLEAVE_DURATION_US;
 
     protected MediaFormat mediaFormat;
     protected String outputPath;
     protected int numTracks;
     protected int numTracksFinished;
     protected long firstPts;
-    protected long lastPts[];
+    protected final PtsNormalizer ptsNormalizer = new PtsNormalizer();
+
+    // Replaced by pause() and resume(), read without locking for every sample
+    private volatile PauseState pauseState = PauseState.NONE;
+    private volatile boolean isSyncFrameRequested;
+
+    protected SampleJournal sampleJournal;
 
     private EventBus mEventBus;
 
@@ -46,10 +60,43 @@ public abstract class MediaMuxer
         numTracks = 0;
         numTracksFinished = 0;
         firstPts = 0;
-        lastPts = new long[expectedNumTracks];
-        for (int i = 0; i < lastPts.length; i++) {
-            lastPts[i] = 0;
-        }
+    }
+
+    /**
+     * Sets how many tracks must be added before the MediaMuxer starts, e.g. 1 for a
+     * video only recording or 3 for video, audio and a timed metadata track.
+     * Must be called before the first {@link #addTrack(android.media.MediaFormat)}.
+     */
+    public void setExpectedNumTracks(int expectedNumTracks)
+    {
+        checkArgument(expectedNumTracks > 0, "A MediaMuxer needs at least one track");
+        checkState(numTracks == 0, "Tracks were already added");
+        this.expectedNumTracks = expectedNumTracks;
+    }
+
+    public int getExpectedNumTracks()
+    {
+        return expectedNumTracks;
+    }
+
+    /**
+     * Sets how far, in presentation time, samples of one track may be written ahead
+     * of another track that has nothing queued. Smaller values interleave the output
+     * more tightly, larger values tolerate burstier encoders. 0 writes samples as soon
+     * as they arrive.
+     * <p>
+     * Only MediaMuxers that queue samples, i.e. {@link BufferedMuxer}, can hold samples
+     * back to interleave them.
+     */
+    public void setMaxInterleaveDurationUs(long maxInterleaveDurationUs)
+    {
+        checkArgument(maxInterleaveDurationUs >= 0);
+        this.maxInterleaveDurationUs = maxInterleaveDurationUs;
+    }
+
+    public long getMaxInterleaveDurationUs()
+    {
+        return maxInterleaveDurationUs;
     }
 
     public void setEventBus(EventBus eventBus)
@@ -57,6 +104,40 @@ public abstract class MediaMuxer
         mEventBus = eventBus;
     }
 
+    /**
+     * @return the EventBus set with {@link #setEventBus(EventBus)}, or null
+     */
+    public EventBus getEventBus()
+    {
+        return mEventBus;
+    }
+
+    /**
+     * Journals every track and sample written from now on, so a recording that is
+     * interrupted before the output is finalized can be recovered. Must be set before
+     * the first {@link #addTrack(android.media.MediaFormat)}, and only on a muxer that
+     * {@link #supportsSampleJournal() supports} it.
+     */
+    public void setSampleJournal(SampleJournal journal)
+    {
+        checkState(numTracks == 0, "Tracks were already added");
+        sampleJournal = journal;
+    }
+
+    public SampleJournal getSampleJournal()
+    {
+        return sampleJournal;
+    }
+
+    /**
+     * Does this muxer journal its samples and discard the journal once the output is
+     * finalized? Outputs that are playable while they are written have nothing to recover.
+     */
+    public boolean supportsSampleJournal()
+    {
+        return false;
+    }
+
     /**
      * Returns the absolute output path.
      * <p>
@@ -79,6 +160,13 @@ public abstract class MediaMuxer
     public int addTrack(android.media.MediaFormat trackFormat)
     {
         numTracks++;
+        if (numTracks > expectedNumTracks) {
+            Log.w(TAG, "Added track " + numTracks + " of " + expectedNumTracks + " expected");
+        }
+        ptsNormalizer.addTrack(trackFormat);
+        if (sampleJournal != null) {
+            sampleJournal.appendTrack(numTracks - 1, trackFormat);
+        }
         return numTracks - 1;
     }
 
@@ -93,6 +181,12 @@ public abstract class MediaMuxer
 
     public void release()
     {
+        if (ptsNormalizer.getNumTracks() > 0)
+            Log.i(TAG, ptsNormalizer.toString());
+        if (sampleJournal != null) {
+            // Still open means the output wasn't finalized, keep it for recovery
+            sampleJournal.close();
+        }
         if (mEventBus != null)
             mEventBus.post(new MuxerFinishedEvent());
     }
@@ -102,16 +196,70 @@ public abstract class MediaMuxer
         return false;
     }
 
+    /**
+     * Starts a pause. Encoders keep running but should stop feeding input;
+     * samples stamped after {@link #resume()} are moved back to close the gap,
+     * so the output stays one continuous recording.
+     * <p>
+     * Timestamps are taken from {@link System#nanoTime()}, the clock used by the
+     * camera SurfaceTexture and the microphone encoder.
+     */
+    public synchronized void pause()
+    {
+        if (isPaused()) return;
+        PauseState state = pauseState;
+        long startUs = System.nanoTime() / 1000;
+        pauseState = new PauseState(startUs, Long.MAX_VALUE, state.pausedAfterUs, state.pausedAfterUs);
+        Log.i(TAG, "Paused at " + startUs);
+    }
+
+    /**
+     * Ends the pause started by {@link #pause()}.
+     */
+    public synchronized void resume()
+    {
+        if (!isPaused()) return;
+        PauseState state = pauseState;
+        long endUs = System.nanoTime() / 1000;
+        pauseState = new PauseState(state.startUs, endUs, state.pausedBeforeUs,
+                state.pausedBeforeUs + endUs - state.startUs);
+        Log.i(TAG, "Resumed after " + (endUs - state.startUs) + " us");
+    }
+
+    public boolean isPaused()
+    {
+        return pauseState.endUs == Long.MAX_VALUE;
+    }
+
+    /**
+     * Asks the video encoder for a sync frame, e.g. after frames later ones depend on
+     * were dropped. Honored by the encoder's next drain, on API 19+.
+     */
+    public void requestSyncFrame()
+    {
+        isSyncFrameRequested = true;
+    }
+
+    /**
+     * @return true once for every {@link #requestSyncFrame()}
+     */
+    public boolean takeSyncFrameRequest()
+    {
+        if (!isSyncFrameRequested) return false;
+        isSyncFrameRequested = false;
+        return true;
+    }
+
     /**
      * Write the MediaCodec output buffer. This method <b>must</b>
      * be overridden by subclasses to release encodedData, transferring
-     * ownership back to encoder, by calling encoder.releaseOutputBuffer(bufferIndex, false);
+     * ownership back to encoder, by calling {@link #releaseOutputBuffer(EncoderCodec, int)}.
      *
      * @param trackIndex
      * @param encodedData
      * @param bufferInfo
      */
-    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
+    public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
     {
         if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
             signalEndOfTrack();
@@ -120,6 +268,64 @@ public abstract class MediaMuxer
 
     public abstract void forceStop();
 
+    /**
+     * Can encoders call {@link #writeSampleData(EncoderCodec, int, int, ByteBuffer, MediaCodec.BufferInfo)}
+     * for different tracks at the same time? If not, they serialize on this MediaMuxer's monitor.
+     */
+    public boolean supportsConcurrentWriters()
+    {
+        return false;
+    }
+
+    /**
+     * @return how full the queue of samples waiting to be written is, from 0 to 1
+     */
+    public float getWriteQueueFill()
+    {
+        return 0;
+    }
+
+    /**
+     * @return how full the buffer of bytes waiting for the network is, from 0 to 1, for
+     * muxers that stream
+     */
+    public float getSendBufferFill()
+    {
+        return 0;
+    }
+
+    /**
+     * Returns an output buffer to its encoder. {@code encoder} is null when the
+     * sample was already copied out of the codec, e.g. by {@link BufferedMuxer}.
+     */
+    protected static void releaseOutputBuffer(EncoderCodec encoder, int bufferIndex)
+    {
+        if (encoder != null) {
+            encoder.releaseOutputBuffer(bufferIndex);
+        }
+    }
+
+    /**
+     * Journals a sample once it was handed to the output, with the timestamp it was written with.
+     */
+    protected void journalSample(int trackIndex, MediaCodec.BufferInfo bufferInfo)
+    {
+        if (sampleJournal != null) {
+            sampleJournal.appendSample(trackIndex, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        }
+    }
+
+    /**
+     * Deletes the journal after the output was finalized and no longer needs recovery.
+     */
+    protected void discardJournal()
+    {
+        if (sampleJournal != null) {
+            sampleJournal.delete();
+            sampleJournal = null;
+        }
+    }
+
     protected boolean allTracksFinished()
     {
         return (numTracks == numTracksFinished);
@@ -179,30 +385,60 @@ public abstract class MediaMuxer
      * Return a relative pts given an absolute pts and trackIndex.
      * <p>
      * This method advances the state of the MediaMuxer, and must only
-     * be called once per call to {@link #writeSampleData(MediaCodec, int, int, ByteBuffer, MediaCodec.BufferInfo)}.
+     * be called once per call to {@link #writeSampleData(EncoderCodec, int, int, ByteBuffer, MediaCodec.BufferInfo)}.
      */
     protected long getNextRelativePts(long absPts, int trackIndex)
     {
+        absPts = removePausedTime(absPts);
         if (firstPts == 0) {
             firstPts = absPts;
-            return 0;
         }
-        return getSafePts(absPts - firstPts, trackIndex);
+        // A track can start slightly before the sample that set firstPts
+        return ptsNormalizer.normalize(trackIndex, Math.max(0, absPts - firstPts));
+    }
+
+    /**
+     * @return the timestamp repair state and drift counters of each track
+     */
+    public PtsNormalizer getPtsNormalizer()
+    {
+        return ptsNormalizer;
     }
 
     /**
-     * Sometimes packets with non-increasing pts are dequeued from the MediaCodec output buffer.
-     * This method ensures that a crash won't occur due to non monotonically increasing packet timestamp.
+     * Shifts an absolute pts back by the duration of every pause that ended before it.
+     * A pts inside a pause, e.g. a frame captured just before resume, maps to the
+     * point where the pause began. Samples are assumed to be no older than the latest
+     * pause, so only that one is tracked exactly.
      */
-    private long getSafePts(long pts, int trackIndex)
+    private long removePausedTime(long absPts)
     {
-        if (lastPts[trackIndex] >= pts) {
-            // Enforce a non-zero minimum spacing
-            // between pts
-            lastPts[trackIndex] += 9643;
-            return lastPts[trackIndex];
+        PauseState state = pauseState;
+        if (absPts >= state.endUs) return absPts - state.pausedAfterUs;
+        if (absPts >= state.startUs) return state.startUs - state.pausedBeforeUs;
+        return absPts - state.pausedBeforeUs;
+    }
+
+    /**
+     * The latest pause and the total paused time on either side of it, in absolute
+     * encoder time (us). Immutable, so a sample thread never sees it half updated.
+     */
+    private static final class PauseState
+    {
+        // An empty pause before any sample
+        static final PauseState NONE = new PauseState(Long.MIN_VALUE, Long.MIN_VALUE, 0, 0);
+
+        final long startUs;
+        final long endUs;       // Long.MAX_VALUE while paused
+        final long pausedBeforeUs;
+        final long pausedAfterUs;
+
+        PauseState(long startUs, long endUs, long pausedBeforeUs, long pausedAfterUs)
+        {
+            this.startUs = startUs;
+            this.endUs = endUs;
+            this.pausedBeforeUs = pausedBeforeUs;
+            this.pausedAfterUs = pausedAfterUs;
         }
-        lastPts[trackIndex] = pts;
-        return pts;
     }
 }
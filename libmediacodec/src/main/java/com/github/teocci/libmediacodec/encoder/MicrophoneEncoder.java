@@ -41,6 +41,8 @@ public class MicrophoneEncoder implements Runnable
     private AudioEncoderCore encoderCore;
 
     private boolean recordingRequested;
+    private volatile boolean isPaused;
+    private ByteBuffer discardBuffer;                  // Receives microphone input while paused
 
     public MicrophoneEncoder(SessionConfig config) throws IOException
     {
@@ -53,13 +55,12 @@ public class MicrophoneEncoder implements Runnable
                 config.getAudioBitrate(),
                 config.getAudioSamplerate(),
                 config.getMuxer());
-        mMediaCodec = null;
         threadReady = false;
         threadRunning = false;
         recordingRequested = false;
         startThread();
         if (VERBOSE) Log.i(TAG, "Finished init. encoder : " + encoderCore.mediaEncoder);
-        Assert.assertNotNull(encoderCore.getMediaCodec());
+        Assert.assertNotNull(encoderCore.getEncoderCodec());
     }
 
     private void setupAudioRecord()
@@ -82,6 +83,7 @@ public class MicrophoneEncoder implements Runnable
         synchronized (waitForRecordingFence) {
             totalSamplesNum = 0;
             startPTS = 0;
+            isPaused = false;
             recordingRequested = true;
             waitForRecordingFence.notify();
         }
@@ -95,6 +97,27 @@ public class MicrophoneEncoder implements Runnable
         }
     }
 
+    /**
+     * Stops queueing microphone input without releasing the encoder. The microphone
+     * keeps being read so no stale audio is delivered on {@link #resumeRecording()}.
+     */
+    public void pauseRecording()
+    {
+        if (VERBOSE) Log.i(TAG, "pauseRecording");
+        isPaused = true;
+    }
+
+    public void resumeRecording()
+    {
+        if (VERBOSE) Log.i(TAG, "resumeRecording");
+        isPaused = false;
+    }
+
+    public boolean isPaused()
+    {
+        return isPaused;
+    }
+
     public void reset(SessionConfig config) throws IOException
     {
         if (VERBOSE) Log.i(TAG, "reset");
@@ -154,7 +177,7 @@ public class MicrophoneEncoder implements Runnable
             }
         }
 
-        Assert.assertNotNull(encoderCore.getMediaCodec());
+        Assert.assertNotNull(encoderCore.getEncoderCodec());
         if (VERBOSE) Log.i(TAG, "Begin Audio transmission to encoder. encoder : " + encoderCore.mediaEncoder);
 
         synchronized (recordingFence) {
@@ -164,6 +187,11 @@ public class MicrophoneEncoder implements Runnable
                 encoderCore.drainEncoder(false);
                 if (TRACE) Trace.endSection();
 
+                if (isPaused) {
+                    discardAudio();
+                    continue;
+                }
+
                 if (TRACE) Trace.beginSection("sendAudio");
                 sendAudioToEncoder(false);
                 if (TRACE) Trace.endSection();
@@ -178,7 +206,6 @@ public class MicrophoneEncoder implements Runnable
             if (TRACE) Trace.endSection();
             audioRecord.stop();
             if (TRACE) Trace.beginSection("drainAudioFinal");
-            encoderCore.signalEndOfStream();
             encoderCore.drainEncoder(true);
             if (TRACE) Trace.endSection();
             encoderCore.release();
@@ -189,21 +216,18 @@ public class MicrophoneEncoder implements Runnable
     }
 
     // Variables recycled between calls to sendAudioToEncoder
-    MediaCodec mMediaCodec;
     int audioInputBufferIndex;
     int audioInputLength;
     long audioAbsolutePtsUs;
 
     private void sendAudioToEncoder(boolean endOfStream)
     {
-        if (mMediaCodec == null)
-            mMediaCodec = encoderCore.getMediaCodec();
         // send current frame data to encoder
         try {
-            ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
-            audioInputBufferIndex = mMediaCodec.dequeueInputBuffer(-1);
+            // Handed over by the encoder's callback in asynchronous mode
+            audioInputBufferIndex = encoderCore.dequeueInputBuffer(-1);
             if (audioInputBufferIndex >= 0) {
-                ByteBuffer inputBuffer = inputBuffers[audioInputBufferIndex];
+                ByteBuffer inputBuffer = encoderCore.getInputBuffer(audioInputBufferIndex);
                 inputBuffer.clear();
                 audioInputLength = audioRecord.read(inputBuffer, SAMPLES_PER_FRAME * 2);
                 audioAbsolutePtsUs = (System.nanoTime()) / 1000L;
@@ -219,9 +243,9 @@ public class MicrophoneEncoder implements Runnable
 //                    Log.i(TAG, "queueing " + audioInputLength + " audio bytes with pts " + audioAbsolutePtsUs);
                 if (endOfStream) {
                     if (VERBOSE) Log.i(TAG, "EOS received in sendAudioToEncoder");
-                    mMediaCodec.queueInputBuffer(audioInputBufferIndex, 0, audioInputLength, audioAbsolutePtsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    encoderCore.queueInputBuffer(audioInputBufferIndex, 0, audioInputLength, audioAbsolutePtsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                 } else {
-                    mMediaCodec.queueInputBuffer(audioInputBufferIndex, 0, audioInputLength, audioAbsolutePtsUs, 0);
+                    encoderCore.queueInputBuffer(audioInputBufferIndex, 0, audioInputLength, audioAbsolutePtsUs, 0);
                 }
             }
         } catch (Throwable t) {
@@ -230,6 +254,18 @@ public class MicrophoneEncoder implements Runnable
         }
     }
 
+    /**
+     * Reads and drops one frame of microphone input. The gap this leaves in the
+     * timestamps is detected by {@link #getJitterFreePTS(long, long)} and removed by the muxer.
+     */
+    private void discardAudio()
+    {
+        if (discardBuffer == null)
+            discardBuffer = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME * 2);
+        discardBuffer.clear();
+        audioRecord.read(discardBuffer, discardBuffer.capacity());
+    }
+
     long startPTS = 0;
     long totalSamplesNum = 0;
 
@@ -0,0 +1,261 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaFormat;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Turns the relative timestamps of each track into a sequence a container accepts.
+ * <p>
+ * Encoders occasionally emit a timestamp that doesn't advance, e.g. when a burst of
+ * audio is read at once. Such a sample is placed one nominal frame duration after the
+ * newest timestamp of its track, which puts the track ahead of real time. While it is
+ * ahead, repaired samples advance by less than the nominal duration, at most
+ * {@link #getMaxSlewPercent()} percent less, so the track converges back to the encoder
+ * clock instead of drifting away from the other tracks.
+ * <p>
+ * Tracks whose encoder may emit B-frames get a reorder window: a timestamp that is older
+ * than the newest one, but by no more than the window and not a duplicate, is passed
+ * through untouched.
+ *
+ * @hide
+ */
+public class PtsNormalizer
+{
+    // AAC encoders emit one access unit per 1024 samples
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+    // Not in MediaFormat before API 29
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";
+
+    private static final int DEFAULT_MAX_SLEW_PERCENT = 10;
+    private static final int RECENT_PTS_COUNT = 16;
+    private static final long MIN_STEP_US = 1;
+
+    private Track[] tracks = new Track[0];
+    private int maxSlewPercent = DEFAULT_MAX_SLEW_PERCENT;
+
+    /**
+     * Adds a track whose nominal sample duration and reorder window are derived from its
+     * encoder output format.
+     *
+     * @param format the encoder output format, or null if unknown
+     * @return the track index
+     */
+    public int addTrack(MediaFormat format)
+    {
+        long nominalDurationUs = getNominalDurationUs(format);
+        long reorderWindowUs = 0;
+        if (format != null && format.containsKey(KEY_MAX_B_FRAMES) && nominalDurationUs > 0) {
+            reorderWindowUs = (format.getInteger(KEY_MAX_B_FRAMES) + 1) * nominalDurationUs;
+        }
+        return addTrack(nominalDurationUs, reorderWindowUs);
+    }
+
+    /**
+     * @param nominalDurationUs duration of one frame or audio access unit, or 0 to estimate
+     *                          it from the timestamps
+     * @param reorderWindowUs   how far a timestamp may go back without being repaired,
+     *                          or 0 if the track must be strictly increasing
+     * @return the track index
+     */
+    public int addTrack(long nominalDurationUs, long reorderWindowUs)
+    {
+        checkArgument(nominalDurationUs >= 0 && reorderWindowUs >= 0);
+        tracks = Arrays.copyOf(tracks, tracks.length + 1);
+        tracks[tracks.length - 1] = new Track(nominalDurationUs, reorderWindowUs);
+        return tracks.length - 1;
+    }
+
+    public int getNumTracks()
+    {
+        return tracks.length;
+    }
+
+    /**
+     * @param percent how much shorter than nominal a repaired sample may be made to
+     *                pull a track back toward the encoder clock
+     */
+    public void setMaxSlewPercent(int percent)
+    {
+        checkArgument(percent >= 0 && percent < 100);
+        maxSlewPercent = percent;
+    }
+
+    public int getMaxSlewPercent()
+    {
+        return maxSlewPercent;
+    }
+
+    /**
+     * Returns the timestamp to write for a sample of {@code trackIndex}.
+     * Must be called once per sample, in the order the samples are written.
+     *
+     * @param ptsUs timestamp relative to the start of the recording
+     */
+    public long normalize(int trackIndex, long ptsUs)
+    {
+        Track track = tracks[trackIndex];
+        long outPts;
+        if (track.samples == 0 || ptsUs > track.newestPtsUs) {
+            track.updateEstimate(ptsUs);
+            outPts = ptsUs;
+        } else if (track.newestPtsUs - ptsUs <= track.reorderWindowUs && !track.isRecent(ptsUs)) {
+            track.reordered++;
+            outPts = ptsUs;
+        } else {
+            // Ahead of this sample, or still ahead of the encoder clock from earlier repairs.
+            // The latter keeps a track that is exactly one frame ahead converging
+            long aheadUs = Math.max(track.newestPtsUs - ptsUs, track.driftUs);
+            long nominalUs = track.getNominalDurationUs();
+            long slewUs = Math.min(aheadUs, nominalUs * maxSlewPercent / 100);
+            outPts = track.newestPtsUs + Math.max(MIN_STEP_US, nominalUs - slewUs);
+            track.repaired++;
+        }
+
+        track.driftUs = outPts - ptsUs;
+        if (track.driftUs > track.maxDriftUs) {
+            track.maxDriftUs = track.driftUs;
+        }
+        track.totalCorrectionUs += track.driftUs;
+        track.remember(outPts);
+        if (outPts > track.newestPtsUs || track.samples == 0) {
+            track.newestPtsUs = outPts;
+        }
+        track.samples++;
+        return outPts;
+    }
+
+    /**
+     * @return how many samples of the track had their timestamp moved
+     */
+    public long getRepairedCount(int trackIndex)
+    {
+        return tracks[trackIndex].repaired;
+    }
+
+    /**
+     * @return how many samples were accepted out of order within the reorder window
+     */
+    public long getReorderedCount(int trackIndex)
+    {
+        return tracks[trackIndex].reordered;
+    }
+
+    /**
+     * @return how far the last sample of the track was placed ahead of its encoder timestamp
+     */
+    public long getDriftUs(int trackIndex)
+    {
+        return tracks[trackIndex].driftUs;
+    }
+
+    public long getMaxDriftUs(int trackIndex)
+    {
+        return tracks[trackIndex].maxDriftUs;
+    }
+
+    /**
+     * @return mean distance between written and encoder timestamps over all samples of the track
+     */
+    public long getAverageDriftUs(int trackIndex)
+    {
+        Track track = tracks[trackIndex];
+        return track.samples == 0 ? 0 : track.totalCorrectionUs / track.samples;
+    }
+
+    public long getNominalDurationUs(int trackIndex)
+    {
+        return tracks[trackIndex].getNominalDurationUs();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("PtsNormalizer:");
+        for (int i = 0; i < tracks.length; i++) {
+            Track track = tracks[i];
+            sb.append(" [track ").append(i)
+                    .append(" samples ").append(track.samples)
+                    .append(" repaired ").append(track.repaired)
+                    .append(" reordered ").append(track.reordered)
+                    .append(" max drift ").append(track.maxDriftUs).append(" us")
+                    .append(" avg drift ").append(getAverageDriftUs(i)).append(" us]");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the duration of one video frame or AAC access unit, or 0 if unknown
+     */
+    static long getNominalDurationUs(MediaFormat format)
+    {
+        if (format == null) return 0;
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mime != null && mime.startsWith("audio/") && format.containsKey(MediaFormat.KEY_SAMPLE_RATE)) {
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            return sampleRate > 0 ? AAC_SAMPLES_PER_FRAME * 1000000L / sampleRate : 0;
+        }
+        if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            int frameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+            return frameRate > 0 ? 1000000L / frameRate : 0;
+        }
+        return 0;
+    }
+
+    private static class Track
+    {
+        // Stands in for an unknown nominal duration until the first delta is seen
+        private static final long FALLBACK_DURATION_US = 10000;
+
+        final long nominalDurationUs;
+        final long reorderWindowUs;
+        final long[] recentPts = new long[RECENT_PTS_COUNT];
+        long estimatedDurationUs;
+        long newestPtsUs;
+        long samples;
+
+        long repaired;
+        long reordered;
+        long driftUs;
+        long maxDriftUs;
+        long totalCorrectionUs;
+
+        Track(long nominalDurationUs, long reorderWindowUs)
+        {
+            this.nominalDurationUs = nominalDurationUs;
+            this.reorderWindowUs = reorderWindowUs;
+        }
+
+        long getNominalDurationUs()
+        {
+            if (nominalDurationUs > 0) return nominalDurationUs;
+            return estimatedDurationUs > 0 ? estimatedDurationUs : FALLBACK_DURATION_US;
+        }
+
+        /**
+         * Tracks the typical sample spacing with a moving average of in-order deltas.
+         */
+        void updateEstimate(long ptsUs)
+        {
+            if (nominalDurationUs > 0 || samples == 0 || driftUs != 0) return;
+            long delta = ptsUs - newestPtsUs;
+            estimatedDurationUs = estimatedDurationUs == 0 ? delta : (estimatedDurationUs * 7 + delta) / 8;
+        }
+
+        boolean isRecent(long ptsUs)
+        {
+            int count = (int) Math.min(samples, recentPts.length);
+            for (int i = 0; i < count; i++) {
+                if (recentPts[i] == ptsUs) return true;
+            }
+            return false;
+        }
+
+        void remember(long ptsUs)
+        {
+            recentPts[(int) (samples % recentPts.length)] = ptsUs;
+        }
+    }
+}
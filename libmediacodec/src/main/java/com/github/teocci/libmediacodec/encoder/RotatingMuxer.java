@@ -0,0 +1,403 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.github.teocci.libmediacodec.event.SegmentFinishedEvent;
+import com.github.teocci.libmediacodec.format.SampleJournal;
+import com.google.common.eventbus.EventBus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * MPEG-4 output split into consecutive, independently playable files without
+ * stopping the encoders, e.g. for round the clock capture.
+ * <p>
+ * Given an output path like /sdcard/<UUID>/test.mp4 segments are written to
+ * /sdcard/<UUID>/test0.mp4, test1.mp4 ... Once a segment reaches its maximum duration
+ * or size, the next video keyframe starts the next segment, which is set up with the
+ * track formats, and so the codec config, of the first. Samples of other tracks stamped
+ * before that keyframe still go to the previous segment, so every sample ends up in
+ * exactly one segment and there is no gap at the boundary.
+ * <p>
+ * Writing the moov box of a long segment takes a while, so segments are finalized on a
+ * background thread, which also opens the file of the following segment ahead of time.
+ * Each finalized segment is announced with a {@link SegmentFinishedEvent} before the
+ * final {@link com.github.teocci.libmediacodec.event.MuxerFinishedEvent}.
+ *
+ * @hide
+ */
+public class RotatingMuxer extends MediaMuxer
+{
+    private static final String TAG = RotatingMuxer.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    public static final long DEFAULT_MAX_SEGMENT_DURATION_US = 5 * 60 * 1000000L;
+
+    private final File segmentDirectory;
+    private final String segmentBaseName;
+    private final long maxSegmentDurationUs;
+    private final long maxSegmentBytes;
+    private final ExecutorService finalizer;
+    private final List<android.media.MediaFormat> trackFormats = new ArrayList<>();
+
+    private EventBus eventBus;
+    private boolean isJournaled;
+    private int keyTrackIndex = -1;                 // the track whose keyframes start segments
+    private int segmentIndex;                       // next segment to open, finalizer thread once started
+
+    private AndroidMuxer current;
+    private AndroidMuxer previous;                  // still receives samples stamped before the switch
+    private Future<AndroidMuxer> nextSegment;
+    private boolean[] switched;                     // tracks that moved on to the current segment
+    private long switchPtsUs;
+    private long segmentStartPtsUs = -1;
+    private long segmentBytes;
+    private boolean isFinished;
+
+    // Metrics
+    private int segments;
+    private long maxRotationNanos;
+    private volatile long maxFinalizeNanos;
+
+    protected RotatingMuxer(String outputPath, MediaFormat format, long maxSegmentDurationUs, long maxSegmentBytes)
+    {
+        super(outputPath, format);
+        this.maxSegmentDurationUs = maxSegmentDurationUs;
+        this.maxSegmentBytes = maxSegmentBytes;
+        File outputFile = new File(outputPath);
+        segmentDirectory = outputFile.getParentFile();
+        String name = outputFile.getName();
+        int extension = name.lastIndexOf('.');
+        segmentBaseName = extension > 0 ? name.substring(0, extension) : name;
+        finalizer = Executors.newSingleThreadExecutor();
+    }
+
+    public static RotatingMuxer create(String outputPath, MediaFormat format)
+    {
+        return create(outputPath, format, DEFAULT_MAX_SEGMENT_DURATION_US, 0);
+    }
+
+    /**
+     * @param maxSegmentDurationUs duration after which the next keyframe starts a new segment, or 0
+     * @param maxSegmentBytes      size after which the next keyframe starts a new segment, or 0
+     */
+    public static RotatingMuxer create(String outputPath, MediaFormat format, long maxSegmentDurationUs, long maxSegmentBytes)
+    {
+        if (format != MediaFormat.MPEG4)
+            throw new IllegalArgumentException("Unrecognized mediaFormat!");
+        checkArgument(maxSegmentDurationUs >= 0 && maxSegmentBytes >= 0);
+        checkArgument(maxSegmentDurationUs > 0 || maxSegmentBytes > 0, "Segments need a duration or size limit");
+        return new RotatingMuxer(outputPath, format, maxSegmentDurationUs, maxSegmentBytes);
+    }
+
+    /**
+     * Journals every segment next to its own file, as {@link #setSampleJournal(SampleJournal)}
+     * does for a single output.
+     * Must be called before the first {@link #addTrack(android.media.MediaFormat)}.
+     */
+    public void setJournaled(boolean journaled)
+    {
+        isJournaled = journaled;
+    }
+
+    @Override
+    public void setEventBus(EventBus eventBus)
+    {
+        super.setEventBus(eventBus);
+        this.eventBus = eventBus;
+    }
+
+    /**
+     * @return the path of the segment with the given index
+     */
+    public String getSegmentPath(int index)
+    {
+        return new File(segmentDirectory, segmentBaseName + index + ".mp4").getAbsolutePath();
+    }
+
+    @Override
+    public synchronized int addTrack(android.media.MediaFormat trackFormat)
+    {
+        // Each segment normalizes its own timestamps, so the base class only counts tracks
+        numTracks++;
+        // Segments start on video keyframes, or on any sample of the first track without video
+        if (keyTrackIndex < 0 || (isVideo(trackFormat) && !isVideo(trackFormats.get(keyTrackIndex)))) {
+            keyTrackIndex = numTracks - 1;
+        }
+        trackFormats.add(trackFormat);
+        if (current == null) {
+            current = openSegment();
+        }
+        int trackIndex = current.addTrack(trackFormat);
+        if (allTracksAdded()) {
+            switched = new boolean[numTracks];
+            prepareNextSegment();
+        }
+        return trackIndex;
+    }
+
+    @Override
+    public synchronized boolean isStarted()
+    {
+        return !isFinished && current != null && current.isStarted();
+    }
+
+    @Override
+    public synchronized void pause()
+    {
+        super.pause();
+        if (current != null) current.pause();
+    }
+
+    @Override
+    public synchronized void resume()
+    {
+        super.resume();
+        if (current != null) current.resume();
+    }
+
+    @Override
+    public synchronized void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
+    {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if (isFinished || current == null) {
+            Log.w(TAG, "writeSampleData called after the last segment was finished. Ignoring packet.");
+            releaseOutputBuffer(encoder, bufferIndex);
+            return;
+        }
+
+        boolean isSample = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0;
+        boolean isEndOfStream = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        long ptsUs = bufferInfo.presentationTimeUs;
+        if (isSample && trackIndex == keyTrackIndex && isRotationDue(ptsUs, bufferInfo.flags)) {
+            rotate(ptsUs);
+        }
+
+        AndroidMuxer segment = current;
+        if (isSample) {
+            if (previous != null && !switched[trackIndex]) {
+                if (ptsUs < switchPtsUs && !isEndOfStream) {
+                    segment = previous;
+                } else {
+                    switched[trackIndex] = true;
+                    if (allTracksSwitched()) {
+                        finishPrevious();
+                    }
+                }
+            }
+            if (segment == current) {
+                if (segmentStartPtsUs < 0) {
+                    segmentStartPtsUs = ptsUs;
+                }
+                segmentBytes += bufferInfo.size;
+            }
+        }
+        segment.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+
+        if (allTracksFinished()) {
+            finish();
+        }
+    }
+
+    @Override
+    public synchronized void forceStop()
+    {
+        Log.d(TAG, "forceStop");
+        finish();
+    }
+
+    /**
+     * Finalizes the open segments, if any, in the background. The
+     * {@link com.github.teocci.libmediacodec.event.MuxerFinishedEvent} follows once they are done.
+     */
+    @Override
+    public synchronized void release()
+    {
+        finish();
+    }
+
+    private static boolean isVideo(android.media.MediaFormat format)
+    {
+        String mime = format.getString(android.media.MediaFormat.KEY_MIME);
+        return mime != null && mime.startsWith("video/");
+    }
+
+    private boolean isRotationDue(long ptsUs, int flags)
+    {
+        boolean isSync = (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0 || !isVideo(trackFormats.get(keyTrackIndex));
+        if (!isSync || segmentStartPtsUs < 0) return false;
+        // Not while paused, the new segment wouldn't know about the pause. And one
+        // boundary at a time, the previous segment may still be waiting for a track
+        if (isPaused() || previous != null) return false;
+        return (maxSegmentDurationUs > 0 && ptsUs - segmentStartPtsUs >= maxSegmentDurationUs)
+                || (maxSegmentBytes > 0 && segmentBytes >= maxSegmentBytes);
+    }
+
+    private boolean allTracksSwitched()
+    {
+        for (boolean trackSwitched : switched) {
+            if (!trackSwitched) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts the next segment with the keyframe at {@code ptsUs}.
+     */
+    private void rotate(long ptsUs)
+    {
+        long start = System.nanoTime();
+        AndroidMuxer next = takeNextSegment();
+        for (android.media.MediaFormat format : trackFormats) {
+            next.addTrack(format);
+        }
+        previous = current;
+        current = next;
+        switchPtsUs = ptsUs;
+        Arrays.fill(switched, false);
+        segmentStartPtsUs = -1;
+        segmentBytes = 0;
+        prepareNextSegment();
+
+        long nanos = System.nanoTime() - start;
+        maxRotationNanos = Math.max(maxRotationNanos, nanos);
+        Log.i(TAG, "Rotated to " + current.getOutputPath() + " in " + nanos / 1000 + " us");
+    }
+
+    private AndroidMuxer openSegment()
+    {
+        String path = getSegmentPath(segmentIndex++);
+        AndroidMuxer segment = AndroidMuxer.create(path, MediaFormat.MPEG4);
+        segment.setExpectedNumTracks(getExpectedNumTracks());
+        if (isJournaled) {
+            try {
+                segment.setSampleJournal(SampleJournal.create(path, 0));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed creating sample journal, recording segment without one", e);
+            }
+        }
+        if (VERBOSE) Log.d(TAG, "Opened segment " + path);
+        return segment;
+    }
+
+    /**
+     * Opens the file of the next segment on the finalizer thread, so rotating only has
+     * to add the tracks.
+     */
+    private void prepareNextSegment()
+    {
+        nextSegment = finalizer.submit(new Callable<AndroidMuxer>()
+        {
+            @Override
+            public AndroidMuxer call() throws Exception
+            {
+                return openSegment();
+            }
+        });
+    }
+
+    private AndroidMuxer takeNextSegment()
+    {
+        try {
+            return nextSegment.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted opening the next segment", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed opening the next segment", e.getCause());
+        }
+    }
+
+    private void finishPrevious()
+    {
+        finalizeSegment(previous);
+        previous = null;
+    }
+
+    private void finalizeSegment(final AndroidMuxer segment)
+    {
+        segments++;
+        finalizer.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                long start = System.nanoTime();
+                try {
+                    // A segment that received every end of stream has stopped itself
+                    if (segment.isStarted()) {
+                        segment.forceStop();
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed finalizing segment " + segment.getOutputPath(), e);
+                    segment.release();
+                    return;
+                }
+                long nanos = System.nanoTime() - start;
+                maxFinalizeNanos = Math.max(maxFinalizeNanos, nanos);
+                Log.i(TAG, "Finalized " + segment.getOutputPath() + " in " + nanos / 1000000 + " ms");
+                if (eventBus != null) {
+                    eventBus.post(new SegmentFinishedEvent(new File(segment.getOutputPath())));
+                }
+            }
+        });
+    }
+
+    /**
+     * Finalizes the open segments and discards the one prepared in advance.
+     */
+    private void finish()
+    {
+        if (isFinished) return;
+        isFinished = true;
+        if (previous != null) {
+            finishPrevious();
+        }
+        if (current != null) {
+            finalizeSegment(current);
+        }
+        final Future<AndroidMuxer> unused = nextSegment;
+        finalizer.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (unused != null) {
+                    discardSegment(unused);
+                }
+                Log.i(TAG, "Wrote " + segments + " segments, max rotation " + maxRotationNanos / 1000
+                        + " us, max finalize " + maxFinalizeNanos / 1000000 + " ms");
+                RotatingMuxer.super.release();
+            }
+        });
+        finalizer.shutdown();
+    }
+
+    private static void discardSegment(Future<AndroidMuxer> prepared)
+    {
+        AndroidMuxer segment;
+        try {
+            segment = prepared.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return;
+        }
+        if (segment.getSampleJournal() != null) {
+            segment.getSampleJournal().delete();
+        }
+        segment.release();
+        new File(segment.getOutputPath()).delete();
+    }
+}
@@ -0,0 +1,302 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.github.teocci.libmediacodec.format.Amf0;
+import com.github.teocci.libmediacodec.net.RtmpConnection;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Publishes the FLV tags of {@link FlvMuxer} to an RTMP server instead of a file.
+ * <p>
+ * The connection is made on a background thread as soon as the muxer is created;
+ * samples written before it is publishing are dropped, and the stream starts with the
+ * sequence headers and the next video keyframe. After that no call blocks on the
+ * network. Messages wait in a send buffer of fixed size, and under congestion frames
+ * are dropped rather than delayed:
+ * <ul>
+ * <li>once more than {@link #getDropThreshold()} bytes are pending, video frames
+ * between keyframes are dropped, and a sync frame is requested from the encoder</li>
+ * <li>after a dropped video frame, video resumes with the next keyframe that fits</li>
+ * <li>audio is only dropped when it doesn't fit in the send buffer at all</li>
+ * </ul>
+ * If the connection is lost the remaining samples are dropped; the failure is logged
+ * and reported by {@link #getError()}.
+ *
+ * @hide
+ */
+public class RtmpMuxer extends FlvMuxer
+{
+    private static final String TAG = RtmpMuxer.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    public static final int DEFAULT_SEND_BUFFER_SIZE = 1024 * 1024;
+    public static final long CONNECT_TIMEOUT_MS = 10000;
+    public static final long CLOSE_TIMEOUT_MS = 2000;
+
+    private final RtmpConnection connection;
+    private final ExecutorService connector;
+    private final int dropThreshold;
+
+    private volatile boolean isConnected;
+    private volatile String error;
+    private boolean isHeaderPending;
+    private boolean isSendingHeaders;
+    private boolean needsKeyframe = true;
+    private boolean isClosed;
+
+    private long sentVideoFrames;
+    private long sentAudioFrames;
+    private long droppedVideoFrames;
+    private long droppedAudioFrames;
+    private int maxPendingBytes;
+
+    protected RtmpMuxer(String url, MediaFormat format, int sendBufferSize)
+    {
+        super(url, format);
+        connection = RtmpConnection.create(url, sendBufferSize);
+        dropThreshold = sendBufferSize / 2;
+        connector = Executors.newSingleThreadExecutor();
+        connector.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                connect();
+            }
+        });
+    }
+
+    public static RtmpMuxer create(String url, MediaFormat format)
+    {
+        return create(url, format, DEFAULT_SEND_BUFFER_SIZE);
+    }
+
+    /**
+     * @param url            rtmp://host[:port]/app/streamName
+     * @param sendBufferSize bytes that may wait for the network, about the latency
+     *                       the stream may build up times the bitrate
+     */
+    public static RtmpMuxer create(String url, MediaFormat format, int sendBufferSize)
+    {
+        if (format != MediaFormat.FLV)
+            throw new IllegalArgumentException("Unrecognized mediaFormat!");
+        checkArgument(url.startsWith("rtmp://"), "Expected an rtmp:// url, got " + url);
+        return new RtmpMuxer(url, format, sendBufferSize);
+    }
+
+    public boolean isConnected()
+    {
+        return isConnected;
+    }
+
+    /**
+     * @return why the stream failed, or null
+     */
+    public String getError()
+    {
+        return error;
+    }
+
+    /**
+     * @return pending bytes above which video frames between keyframes are dropped
+     */
+    public int getDropThreshold()
+    {
+        return dropThreshold;
+    }
+
+    public synchronized long getDroppedVideoFrames()
+    {
+        return droppedVideoFrames;
+    }
+
+    public synchronized long getDroppedAudioFrames()
+    {
+        return droppedAudioFrames;
+    }
+
+    /**
+     * @return the most bytes that were waiting for the network at once
+     */
+    public synchronized int getMaxPendingBytes()
+    {
+        return maxPendingBytes;
+    }
+
+    @Override
+    public synchronized float getSendBufferFill()
+    {
+        return (float) connection.getPendingBytes() / connection.getSendBufferSize();
+    }
+
+    private void connect()
+    {
+        try {
+            connection.connect(CONNECT_TIMEOUT_MS);
+            isConnected = true;
+        } catch (IOException e) {
+            error = e.toString();
+            Log.e(TAG, "Failed connecting to " + outputPath, e);
+            connection.close(0);
+        }
+    }
+
+    /**
+     * The sequence headers are sent once the connection is publishing.
+     */
+    @Override
+    protected synchronized void writeHeader() throws IOException
+    {
+        isHeaderPending = true;
+    }
+
+    @Override
+    protected synchronized void writeTag(int tagType, long timestampMs, ByteBuffer body, boolean isKeyframe) throws IOException
+    {
+        if (isClosed || error != null || !isConnected) {
+            countDropped(tagType);
+            return;
+        }
+        if (isHeaderPending) {
+            isHeaderPending = false;
+            // Sent through this method, and never dropped
+            isSendingHeaders = true;
+            try {
+                writeSequenceHeaders();
+            } finally {
+                isSendingHeaders = false;
+            }
+            // Rather than waiting for the next periodic keyframe
+            requestSyncFrame();
+        }
+
+        int chunkStream;
+        int messageType;
+        boolean isDroppable = !isSendingHeaders;
+        switch (tagType) {
+            case TAG_TYPE_VIDEO:
+                chunkStream = RtmpConnection.CHUNK_STREAM_VIDEO;
+                messageType = RtmpConnection.MSG_VIDEO;
+                break;
+            case TAG_TYPE_AUDIO:
+                chunkStream = RtmpConnection.CHUNK_STREAM_AUDIO;
+                messageType = RtmpConnection.MSG_AUDIO;
+                break;
+            default:
+                chunkStream = RtmpConnection.CHUNK_STREAM_DATA;
+                messageType = RtmpConnection.MSG_DATA_AMF0;
+                body = toDataFrame(body);
+                break;
+        }
+
+        try {
+            connection.flush();
+            int pending = connection.getPendingBytes();
+            if (isDroppable && tagType == TAG_TYPE_VIDEO) {
+                if (needsKeyframe && !isKeyframe) {
+                    droppedVideoFrames++;
+                    return;
+                }
+                if (!isKeyframe && pending > dropThreshold) {
+                    if (VERBOSE) Log.d(TAG, "Congested with " + pending + " bytes pending, dropping video until a keyframe");
+                    dropVideo();
+                    return;
+                }
+            }
+            if (!connection.sendMessage(chunkStream, messageType, timestampMs, body)) {
+                if (!isDroppable) {
+                    throw new IOException("No room for the sequence headers");
+                } else if (tagType == TAG_TYPE_VIDEO) {
+                    dropVideo();
+                } else {
+                    droppedAudioFrames++;
+                }
+                return;
+            }
+            if (tagType == TAG_TYPE_VIDEO && isDroppable) {
+                needsKeyframe = false;
+                sentVideoFrames++;
+            } else if (tagType == TAG_TYPE_AUDIO && isDroppable) {
+                sentAudioFrames++;
+            }
+            maxPendingBytes = Math.max(maxPendingBytes, connection.getPendingBytes());
+            connection.flush();
+        } catch (IOException e) {
+            error = e.toString();
+            Log.e(TAG, "Lost connection to " + outputPath, e);
+        }
+    }
+
+    @Override
+    protected void closeOutput() throws IOException
+    {
+        synchronized (this) {
+            if (isClosed) return;
+            isClosed = true;
+            Log.i(TAG, "Sent " + sentVideoFrames + " video and " + sentAudioFrames + " audio frames, dropped "
+                    + droppedVideoFrames + " video and " + droppedAudioFrames + " audio frames, max pending "
+                    + maxPendingBytes + " bytes");
+        }
+        // After a connect still in progress, without blocking the encoder
+        connector.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (RtmpMuxer.this) {
+                    connection.close(CLOSE_TIMEOUT_MS);
+                }
+            }
+        });
+        connector.shutdown();
+    }
+
+    @Override
+    public void release()
+    {
+        try {
+            closeOutput();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed closing connection", e);
+        }
+        super.release();
+    }
+
+    private void dropVideo()
+    {
+        droppedVideoFrames++;
+        if (!needsKeyframe) {
+            needsKeyframe = true;
+            requestSyncFrame();
+        }
+    }
+
+    private void countDropped(int tagType)
+    {
+        if (tagType == TAG_TYPE_VIDEO) {
+            droppedVideoFrames++;
+        } else if (tagType == TAG_TYPE_AUDIO) {
+            droppedAudioFrames++;
+        }
+    }
+
+    /**
+     * Prefixes onMetaData with @setDataFrame, which makes the server keep it for
+     * players joining later.
+     */
+    private static ByteBuffer toDataFrame(ByteBuffer body)
+    {
+        ByteBuffer dataFrame = ByteBuffer.allocate(body.remaining() + 16);
+        Amf0.putString(dataFrame, "@setDataFrame");
+        dataFrame.put(body);
+        dataFrame.flip();
+        return dataFrame;
+    }
+}
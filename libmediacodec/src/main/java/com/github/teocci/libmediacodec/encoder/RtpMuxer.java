@@ -0,0 +1,275 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import com.github.teocci.libmediacodec.format.TrackInfo;
+import com.github.teocci.libmediacodec.net.AacPacketizer;
+import com.github.teocci.libmediacodec.net.H264Packetizer;
+import com.github.teocci.libmediacodec.net.RtpPacketizer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Sends H.264 and AAC as RTP over UDP, for low latency monitoring on a local network.
+ * <p>
+ * Every encoded sample is packetized and sent from the encoder thread as soon as it
+ * is drained, and the codec buffer is released right after; nothing is buffered or
+ * interleaved. Track {@code i} is sent to port {@code port + 2 * i} of the destination
+ * and its RTCP sender reports, which players need for lip sync, to the port above.
+ * <p>
+ * Players learn the streams from {@link #getSessionDescription()}, e.g. saved as an
+ * .sdp file, once all tracks are added.
+ *
+ * @hide
+ */
+public class RtpMuxer extends MediaMuxer
+{
+    private static final String TAG = RtpMuxer.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    public static final int DEFAULT_PORT = 5004;
+    // Track i is sent with the dynamic payload type 96 + i
+    public static final int FIRST_PAYLOAD_TYPE = 96;
+
+    private static final long SENDER_REPORT_INTERVAL_US = 1000000;
+
+    private final InetSocketAddress destination;
+    private final int maxPacketSize;
+    private boolean isStarted;
+    private boolean isReleased;
+
+    private TrackInfo[] tracks;
+    private RtpPacketizer[] packetizers;
+    private DatagramChannel[] rtpChannels;
+    private DatagramChannel[] rtcpChannels;
+    private long[] lastReportPtsUs;
+    private long wallClockBaseUs = -1;
+    private String sessionDescription;
+
+    protected RtpMuxer(String url, MediaFormat format, InetSocketAddress destination, int maxPacketSize)
+    {
+        super(url, format);
+        this.destination = destination;
+        this.maxPacketSize = maxPacketSize;
+        tracks = new TrackInfo[0];
+        packetizers = new RtpPacketizer[0];
+        rtpChannels = new DatagramChannel[0];
+        rtcpChannels = new DatagramChannel[0];
+        lastReportPtsUs = new long[0];
+    }
+
+    public static RtpMuxer create(String url, MediaFormat format)
+    {
+        return create(url, format, RtpPacketizer.DEFAULT_MAX_PACKET_SIZE);
+    }
+
+    /**
+     * @param url           rtp://host[:port], the first port must be even
+     * @param maxPacketSize largest RTP packet; keep IP and UDP headers within the path MTU
+     */
+    public static RtpMuxer create(String url, MediaFormat format, int maxPacketSize)
+    {
+        if (format != MediaFormat.RTP)
+            throw new IllegalArgumentException("Unrecognized mediaFormat!");
+        URI uri = URI.create(url);
+        checkArgument("rtp".equals(uri.getScheme()) && uri.getHost() != null, "Expected rtp://host[:port], got " + url);
+        int port = uri.getPort() > 0 ? uri.getPort() : DEFAULT_PORT;
+        checkArgument(port % 2 == 0, "RTP ports must be even");
+        return new RtpMuxer(url, format, new InetSocketAddress(uri.getHost(), port), maxPacketSize);
+    }
+
+    @Override
+    public int addTrack(android.media.MediaFormat trackFormat)
+    {
+        int track = super.addTrack(trackFormat);
+        if (isStarted)
+            throw new RuntimeException("mediaFormat changed twice");
+
+        tracks = Arrays.copyOf(tracks, numTracks);
+        packetizers = Arrays.copyOf(packetizers, numTracks);
+        rtpChannels = Arrays.copyOf(rtpChannels, numTracks);
+        rtcpChannels = Arrays.copyOf(rtcpChannels, numTracks);
+        lastReportPtsUs = Arrays.copyOf(lastReportPtsUs, numTracks);
+        // Relative pts start at 0, so the first sample gets a report
+        lastReportPtsUs[track] = -SENDER_REPORT_INTERVAL_US;
+        TrackInfo info = TrackInfo.fromMediaFormat(track + 1, trackFormat);
+        tracks[track] = info;
+        try {
+            int port = destination.getPort() + 2 * track;
+            rtpChannels[track] = openChannel(port);
+            rtcpChannels[track] = openChannel(port + 1);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed opening RTP channels", e);
+        }
+        if (info.isVideo()) {
+            packetizers[track] = new H264Packetizer(rtpChannels[track], FIRST_PAYLOAD_TYPE + track,
+                    maxPacketSize, info.getSps(), info.getPps());
+        } else {
+            packetizers[track] = new AacPacketizer(rtpChannels[track], FIRST_PAYLOAD_TYPE + track,
+                    maxPacketSize, info.getSampleRate(), info.getChannelCount(), info.getAudioSpecificConfig());
+        }
+        Log.d(TAG, "addTrack " + info);
+
+        if (allTracksAdded()) {
+            start();
+        }
+        return track;
+    }
+
+    protected void start()
+    {
+        sessionDescription = buildSessionDescription();
+        isStarted = true;
+        Log.i(TAG, "Streaming to " + destination + ", session description:\n" + sessionDescription);
+    }
+
+    protected void stop()
+    {
+        if (isStarted) {
+            isStarted = false;
+            Log.d(TAG, "RTP mediaMuxer stop");
+        }
+        release();
+    }
+
+    @Override
+    public void release()
+    {
+        if (!isReleased) {
+            super.release();
+            for (int i = 0; i < numTracks; i++) {
+                if (packetizers[i] != null) {
+                    Log.i(TAG, "Track " + i + " sent " + packetizers[i].getPacketCount() + " packets, dropped "
+                            + packetizers[i].getDroppedPackets());
+                }
+                closeChannel(rtpChannels[i]);
+                closeChannel(rtcpChannels[i]);
+            }
+            isReleased = true;
+            Log.d(TAG, "RTP mediaMuxer Release");
+        } else {
+            Log.d(TAG, "RTP mediaMuxer Release called twice");
+        }
+    }
+
+    @Override
+    public boolean isStarted()
+    {
+        return isStarted;
+    }
+
+    /**
+     * Sending a datagram doesn't block, so samples are sent straight from the encoder
+     * thread rather than copied to a writer thread.
+     */
+    @Override
+    protected boolean formatRequiresBuffering()
+    {
+        return false;
+    }
+
+    /**
+     * @return the SDP describing the streams, or null until all tracks are added
+     */
+    public String getSessionDescription()
+    {
+        return sessionDescription;
+    }
+
+    @Override
+    public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
+    {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // SPS/PPS are in the session description and sent before every keyframe
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            releaseOutputBuffer(encoder, bufferIndex);
+            return;
+        }
+
+        if (bufferInfo.size == 0 || !isStarted) {
+            if (!isStarted) {
+                Log.e(TAG, "writeSampleData called before mediaMuxer isStarted. Ignoring packet. Track index: " + trackIndex + " tracks added: " + numTracks);
+            }
+            releaseOutputBuffer(encoder, bufferIndex);
+            if (isStarted && allTracksFinished()) {
+                stop();
+            }
+            return;
+        }
+
+        long pts = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        if (wallClockBaseUs < 0) {
+            wallClockBaseUs = System.currentTimeMillis() * 1000 - pts;
+        }
+        boolean isKeyframe = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        encodedData.position(bufferInfo.offset);
+        encodedData.limit(bufferInfo.offset + bufferInfo.size);
+        try {
+            RtpPacketizer packetizer = packetizers[trackIndex];
+            packetizer.packetize(encodedData, pts, isKeyframe);
+            if (pts - lastReportPtsUs[trackIndex] >= SENDER_REPORT_INTERVAL_US) {
+                packetizer.sendSenderReport(rtcpChannels[trackIndex], pts, wallClockBaseUs + pts);
+                lastReportPtsUs[trackIndex] = pts;
+            }
+        } catch (IOException e) {
+            // e.g. ICMP port unreachable while nobody is listening yet
+            if (VERBOSE) Log.w(TAG, "Failed sending RTP packets", e);
+        }
+
+        releaseOutputBuffer(encoder, bufferIndex);
+
+        if (allTracksFinished()) {
+            stop();
+        }
+    }
+
+    @Override
+    public void forceStop()
+    {
+        stop();
+        Log.d(TAG, "forceStop");
+    }
+
+    private DatagramChannel openChannel(int port) throws IOException
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(new InetSocketAddress(destination.getAddress(), port));
+        return channel;
+    }
+
+    private static void closeChannel(DatagramChannel channel)
+    {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed closing channel", e);
+        }
+    }
+
+    private String buildSessionDescription()
+    {
+        String address = destination.getAddress().getHostAddress();
+        StringBuilder sdp = new StringBuilder();
+        sdp.append("v=0\r\n");
+        sdp.append("o=- ").append(System.currentTimeMillis()).append(" 1 IN IP4 ")
+                .append(rtpChannels[0].socket().getLocalAddress().getHostAddress()).append("\r\n");
+        sdp.append("s=libmediacodec\r\n");
+        sdp.append("c=IN IP4 ").append(address).append("\r\n");
+        sdp.append("t=0 0\r\n");
+        for (int i = 0; i < numTracks; i++) {
+            sdp.append(packetizers[i].getMediaDescription(destination.getPort() + 2 * i));
+        }
+        return sdp.toString();
+    }
+}
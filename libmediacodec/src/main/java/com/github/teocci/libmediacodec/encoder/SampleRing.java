@@ -0,0 +1,126 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Bounded single-producer/single-consumer queue of encoded samples.
+ * <p>
+ * Slots are allocated up front and keep their direct ByteBuffer between uses, so a
+ * steady stream settles into zero allocations. The producer only writes {@code tail}
+ * and the consumer only writes {@code head}; neither side takes a lock.
+ *
+ * @hide
+ */
+final class SampleRing
+{
+    private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();  // next slot to read, consumer only
+    private final AtomicLong tail = new AtomicLong();  // next slot to write, producer only
+
+    private long cachedHead;                           // producer's last view of head
+    private long cachedTail;                           // consumer's last view of tail
+
+    // Timestamp of the last published sample. Written before publish(), so it is
+    // up to date for a consumer that has seen that sample
+    long newestPtsUs;
+
+    // Producer side metrics. Plain fields, so readers on other threads may see stale values
+    long samples;
+    long bytes;
+    long copyNanos;
+    long stalls;
+    long allocations;
+
+    // Consumer side state
+    boolean endOfStream;
+
+    SampleRing(int capacity)
+    {
+        checkArgument(Integer.bitCount(capacity) == 1, "Capacity must be a power of two");
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * Producer: returns the next free slot without publishing it, or null if the ring is full.
+     */
+    Slot claim()
+    {
+        long t = tail.get();
+        if (t - cachedHead >= slots.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= slots.length) return null;
+        }
+        return slots[(int) t & mask];
+    }
+
+    /**
+     * Producer: makes the slot returned by {@link #claim()} visible to the consumer.
+     */
+    void publish()
+    {
+        // A full volatile write, so a consumer that just checked for work and is
+        // about to park can't miss this sample
+        tail.set(tail.get() + 1);
+    }
+
+    /**
+     * Consumer: returns the oldest published slot, or null if the ring is empty.
+     */
+    Slot peek()
+    {
+        long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail) return null;
+        }
+        return slots[(int) h & mask];
+    }
+
+    /**
+     * Consumer: hands the slot returned by {@link #peek()} back to the producer.
+     */
+    void remove()
+    {
+        head.lazySet(head.get() + 1);
+    }
+
+    int size()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+    int capacity()
+    {
+        return slots.length;
+    }
+
+    static final class Slot
+    {
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer buffer;
+
+        /**
+         * @return true if a new buffer had to be allocated
+         */
+        boolean ensureCapacity(int size)
+        {
+            if (buffer != null && buffer.capacity() >= size) return false;
+            // Round up so a growing stream settles on a few buffer sizes
+            int capacity = Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(Math.max(size - 1, 1)) << 1);
+            buffer = ByteBuffer.allocateDirect(capacity);
+            return true;
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package com.github.teocci.libmediacodec.encoder;
 
+import android.util.Log;
+
+import com.github.teocci.libmediacodec.format.SampleJournal;
+
 import java.io.File;
+import java.io.IOException;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -23,12 +28,14 @@ public class SessionConfig
     private File outputDirectory;
     private MediaMuxer mediaMuxer;
     private boolean attachLocation;
+    private boolean adaptiveBitrate;
 
     public static int defaultWidth = 720;
     public static int defaultHeight = 1080;
 
     public static String sessionFolderTemp = "session_temp";
     public static String sessionFolder = "session";
+    public static String sessionStitchFile = "session_stitch.mp4";
 
 
     public SessionConfig(MediaMuxer muxer, VideoEncoderConfig videoConfig, AudioEncoderConfig audioConfig)
@@ -99,6 +106,22 @@ public class SessionConfig
         return audioConfig.getNumChannels();
     }
 
+    /**
+     * @return false for a video only session, which has no audio track
+     */
+    public boolean hasAudio()
+    {
+        return audioConfig.getNumChannels() > 0;
+    }
+
+    /**
+     * @return how many tracks the muxer waits for before it starts
+     */
+    public int getNumTracks()
+    {
+        return mediaMuxer.getExpectedNumTracks();
+    }
+
     public int getAudioBitrate()
     {
         return audioConfig.getBitrate();
@@ -119,6 +142,16 @@ public class SessionConfig
         this.attachLocation = mAttachLocation;
     }
 
+    public boolean isAdaptiveBitrate()
+    {
+        return adaptiveBitrate;
+    }
+
+    public void setAdaptiveBitrate(boolean adaptiveBitrate)
+    {
+        this.adaptiveBitrate = adaptiveBitrate;
+    }
+
     public static class Builder
     {
         private int width;
@@ -129,20 +162,36 @@ public class SessionConfig
         private int audioSamplerate;
         private int audioBitrate;
         private int audioChannels;
+        private int extraTracks;
+        private long maxInterleaveDurationUs = MediaMuxer.DEFAULT_MAX_INTERLEAVE_DURATION_US;
+        private boolean isJournaled;
 
+        private final MediaMuxer.MediaFormat format;
+        private final String outputPath;
         private MediaMuxer mediaMuxer;
+        private long hlsTargetDurationUs = HlsSegmenter.DEFAULT_TARGET_DURATION_US;
+        private int hlsWindowSize;
+        private long hlsPartTargetUs;
+        private long dashSegmentDurationUs = DashSegmenter.DEFAULT_SEGMENT_DURATION_US;
+        private int dashWindowSize;
+        private long maxSegmentDurationUs;
+        private long maxSegmentBytes;
+        private long maxReplayDurationUs;
+        private int maxReplayBytes;
 
         private File outputDirectory;
         private String title;
         private String description;
         private boolean isPrivate;
         private boolean isAttachLocation;
+        private boolean isAdaptiveBitrate;
 
         /**
          * Configure a SessionConfig quickly with intelligent path interpretation.
-         * Valid inputs are "/path/to/name.m3u8", "/path/to/name.mp4"
+         * Valid inputs are "/path/to/name.m3u8", "/path/to/name.mpd", "/path/to/name.mp4",
+         * "/path/to/name.ts", "/path/to/name.flv", "rtmp://host/app/streamName" and "rtp://host:port"
          * <p/>
-         * For file-based outputs (.m3u8, .mp4) the file structure is managed
+         * For file-based outputs (.m3u8, .mpd, .mp4) the file structure is managed
          * by a recording UUID.
          * <p/>
          * Given an absolute file-based outputLocation like:
@@ -163,15 +212,99 @@ public class SessionConfig
          *                       recordings will be stored at <outputLocationParent>/<UUID>/<outputLocationFileName>
          */
         public Builder(String outputLocation)
+        {
+            this(outputLocation, getMediaFormat(outputLocation));
+        }
+
+        /**
+         * Configure a SessionConfig with an explicit output format, e.g.
+         * {@link MediaMuxer.MediaFormat#FRAGMENTED_MPEG4} to record a crash tolerant
+         * .mp4 instead of one finalized by android.media.MediaMuxer.
+         *
+         * @param outputLocation desired output location, interpreted as in {@link #Builder(String)}
+         * @param format         container format of the recording
+         */
+        public Builder(String outputLocation, MediaMuxer.MediaFormat format)
         {
             setAVDefaults();
             setMetaDefaults();
 
-            if (outputLocation.contains(".mp4")) {
-                mediaMuxer = AndroidMuxer.create(createRecordingPath(outputLocation), MediaMuxer.MediaFormat.MPEG4);
-            } else
-                throw new RuntimeException("Unexpected mediaMuxer output. Expected a .mp4, Got: " + outputLocation);
+            this.format = format;
+            switch (format) {
+                case MPEG4:
+                case FRAGMENTED_MPEG4:
+                case HLS:
+                case DASH:
+                    outputPath = createRecordingPath(outputLocation);
+                    break;
+                case FLV:
+                    if (outputLocation.startsWith("rtmp://")) {
+                        outputPath = outputLocation;
+                    } else {
+                        outputPath = createRecordingPath(outputLocation);
+                    }
+                    break;
+                case RTP:
+                    outputPath = outputLocation;
+                    break;
+                default:
+                    throw new RuntimeException("Unsupported mediaMuxer output format: " + format);
+            }
+        }
 
+        /**
+         * Creates the muxer the output and the with* options ask for. Deferred to
+         * {@link #build()}, as most muxers create their first file right away.
+         */
+        private MediaMuxer createMuxer()
+        {
+            switch (format) {
+                case MPEG4:
+                    if (maxReplayDurationUs > 0) {
+                        return InstantReplayMuxer.create(outputPath, format, maxReplayDurationUs, maxReplayBytes);
+                    }
+                    if (maxSegmentDurationUs > 0 || maxSegmentBytes > 0) {
+                        return RotatingMuxer.create(outputPath, format, maxSegmentDurationUs, maxSegmentBytes);
+                    }
+                    return AndroidMuxer.create(outputPath, format);
+                case FRAGMENTED_MPEG4:
+                    return FragmentedMp4Muxer.create(outputPath, format);
+                case HLS:
+                    if (outputPath.contains(".m3u8")) {
+                        return HlsSegmenter.create(outputPath, format, hlsTargetDurationUs, hlsWindowSize,
+                                hlsPartTargetUs);
+                    }
+                    return TsMuxer.create(outputPath, format);
+                case DASH:
+                    return DashSegmenter.create(outputPath, format, dashSegmentDurationUs, dashWindowSize);
+                case FLV:
+                    if (outputPath.startsWith("rtmp://")) {
+                        return RtmpMuxer.create(outputPath, format);
+                    }
+                    return FlvMuxer.create(outputPath, format);
+                case RTP:
+                    return RtpMuxer.create(outputPath, format);
+                default:
+                    throw new RuntimeException("Unsupported mediaMuxer output format: " + format);
+            }
+        }
+
+        private static MediaMuxer.MediaFormat getMediaFormat(String outputLocation)
+        {
+            if (outputLocation.startsWith("rtmp://")) {
+                return MediaMuxer.MediaFormat.FLV;
+            } else if (outputLocation.startsWith("rtp://")) {
+                return MediaMuxer.MediaFormat.RTP;
+            } else if (outputLocation.contains(".mp4")) {
+                return MediaMuxer.MediaFormat.MPEG4;
+            } else if (outputLocation.contains(".m3u8") || outputLocation.contains(".ts")) {
+                return MediaMuxer.MediaFormat.HLS;
+            } else if (outputLocation.contains(".mpd")) {
+                return MediaMuxer.MediaFormat.DASH;
+            } else if (outputLocation.contains(".flv")) {
+                return MediaMuxer.MediaFormat.FLV;
+            } else
+                throw new RuntimeException("Unexpected mediaMuxer output. Expected a .mp4, .m3u8, .mpd, .ts, .flv, rtmp:// or rtp:// url, Got: " + outputLocation);
         }
 
 
@@ -213,6 +346,99 @@ public class SessionConfig
             return this;
         }
 
+        /**
+         * Configures live HLS segmenting for a .m3u8 output.
+         *
+         * @param targetDurationUs segment duration; a keyframe is requested once a segment reaches it
+         * @param windowSize       number of segments kept in the playlist and on disk, or 0 to keep all
+         */
+        public Builder withHlsSegmenting(long targetDurationUs, int windowSize)
+        {
+            return withHlsSegmenting(targetDurationUs, windowSize, 0);
+        }
+
+        /**
+         * Configures live Low-Latency HLS segmenting for a .m3u8 output.
+         *
+         * @param partTargetUs longest partial segment, e.g. 200 to 500 ms, or 0 for whole segments only
+         * @see HlsSegmenter
+         */
+        public Builder withHlsSegmenting(long targetDurationUs, int windowSize, long partTargetUs)
+        {
+            checkArgument(format == MediaMuxer.MediaFormat.HLS && outputPath.contains(".m3u8"),
+                    "HLS segmenting requires a .m3u8 output");
+            hlsTargetDurationUs = targetDurationUs;
+            hlsWindowSize = windowSize;
+            hlsPartTargetUs = partTargetUs;
+            return this;
+        }
+
+        /**
+         * Configures live DASH segmenting for a .mpd output.
+         *
+         * @param segmentDurationUs nominal segment duration, best a multiple of the keyframe interval
+         * @param windowSize        number of segments kept in the time shift buffer and on disk, or 0 to keep all
+         */
+        public Builder withDashSegmenting(long segmentDurationUs, int windowSize)
+        {
+            checkArgument(format == MediaMuxer.MediaFormat.DASH, "DASH segmenting requires a .mpd output");
+            dashSegmentDurationUs = segmentDurationUs;
+            dashWindowSize = windowSize;
+            return this;
+        }
+
+        /**
+         * Splits an .mp4 output into segments of at most the given duration or size,
+         * each ending on a video keyframe, without stopping the encoders.
+         *
+         * @param maxDurationUs segment duration limit, or 0 for none
+         * @param maxBytes      segment size limit, or 0 for none
+         * @see RotatingMuxer
+         */
+        public Builder withSegmentRotation(long maxDurationUs, long maxBytes)
+        {
+            checkArgument(format == MediaMuxer.MediaFormat.MPEG4, "Segment rotation requires an .mp4 output");
+            checkArgument(maxDurationUs >= 0 && maxBytes >= 0);
+            checkArgument(maxDurationUs > 0 || maxBytes > 0, "Segments need a duration or size limit");
+            checkArgument(maxReplayDurationUs == 0, "Instant replay records into memory, not into segments");
+            maxSegmentDurationUs = maxDurationUs;
+            maxSegmentBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Records into memory instead of a file, keeping the last {@code maxDurationUs}
+         * for {@link InstantReplayMuxer#save(String)}.
+         *
+         * @param maxBytes memory for encoded samples
+         * @see InstantReplayMuxer
+         */
+        public Builder withInstantReplay(long maxDurationUs, int maxBytes)
+        {
+            checkArgument(format == MediaMuxer.MediaFormat.MPEG4, "Instant replay requires an .mp4 output");
+            checkArgument(maxDurationUs > 0 && maxBytes > 0);
+            checkArgument(maxSegmentDurationUs == 0 && maxSegmentBytes == 0,
+                    "Instant replay records into memory, not into segments");
+            maxReplayDurationUs = maxDurationUs;
+            maxReplayBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Journals every sample next to an .mp4 output, so the chunk can be recovered
+         * if the app dies before android.media.MediaMuxer writes the moov box.
+         * Ignored for every other output: fragmented MP4, HLS, DASH and FLV files stay
+         * playable on their own, streams have nothing to recover, and instant replay
+         * records into memory.
+         *
+         * @see MediaMuxer#supportsSampleJournal()
+         */
+        public Builder withSampleJournal(boolean enabled)
+        {
+            isJournaled = enabled;
+            return this;
+        }
+
         public Builder withTitle(String title)
         {
             this.title = title;
@@ -250,6 +476,16 @@ public class SessionConfig
             return this;
         }
 
+        /**
+         * Lowers the video bitrate while the output falls behind, and raises it again up to
+         * twice {@link #BPP} bits per pixel once it keeps up. See {@link BitrateController}.
+         */
+        public Builder withAdaptiveBitrate(boolean enabled)
+        {
+            isAdaptiveBitrate = enabled;
+            return this;
+        }
+
         public Builder withVideoFramerate(int framerate)
         {
             videoFramerate = framerate;
@@ -268,6 +504,9 @@ public class SessionConfig
             return this;
         }
 
+        /**
+         * @param numChannels 1 for mono audio, or 0 to record video only
+         */
         public Builder withAudioChannels(int numChannels)
         {
             checkArgument(numChannels == 0 || numChannels == 1);
@@ -275,14 +514,65 @@ public class SessionConfig
             return this;
         }
 
+        /**
+         * Reserves tracks beyond the video and audio tracks managed by the session,
+         * e.g. a second video track or a timed metadata track. Their encoders must
+         * add them to {@link SessionConfig#getMuxer()} before the muxer starts.
+         */
+        public Builder withExtraTracks(int numTracks)
+        {
+            checkArgument(numTracks >= 0);
+            extraTracks = numTracks;
+            return this;
+        }
+
+        /**
+         * @param durationUs how far one track may run ahead of another in the output,
+         *                   or 0 to write samples in the order the encoders produce them
+         * @see MediaMuxer#setMaxInterleaveDurationUs(long)
+         */
+        public Builder withMaxInterleaveDuration(long durationUs)
+        {
+            checkArgument(durationUs >= 0);
+            maxInterleaveDurationUs = durationUs;
+            return this;
+        }
+
 
         public SessionConfig build()
         {
-            SessionConfig session = new SessionConfig(mediaMuxer,
+            MediaMuxer muxer = mediaMuxer != null ? mediaMuxer : createMuxer();
+            muxer.setExpectedNumTracks(1 + (audioChannels > 0 ? 1 : 0) + extraTracks);
+            if (isJournaled && muxer instanceof RotatingMuxer) {
+                // One journal per segment
+                ((RotatingMuxer) muxer).setJournaled(true);
+            } else if (isJournaled && muxer.supportsSampleJournal()) {
+                try {
+                    muxer.setSampleJournal(SampleJournal.create(muxer.getOutputPath(), 0));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed creating sample journal, recording without one", e);
+                }
+            }
+            long maxInterleaveDurationUs = this.maxInterleaveDurationUs;
+            if (muxer instanceof RtpMuxer) {
+                // Every track is a stream of its own, holding samples back only adds latency
+                maxInterleaveDurationUs = 0;
+            }
+            boolean interleave = maxInterleaveDurationUs > 0 && muxer.getExpectedNumTracks() > 1;
+            if ((muxer.formatRequiresBuffering() || interleave) && !(muxer instanceof BufferedMuxer)
+                    && !(muxer instanceof InstantReplayMuxer)) {
+                // Keep container writes off the encoder threads. Interleaving also needs
+                // the copies, as codec output buffers can't be held back. The instant
+                // replay ring copies samples itself and saves them interleaved.
+                muxer = BufferedMuxer.wrap(muxer);
+            }
+            muxer.setMaxInterleaveDurationUs(maxInterleaveDurationUs);
+            SessionConfig session = new SessionConfig(muxer,
                     new VideoEncoderConfig(width, height, videoBitrate, videoFramerate),
                     new AudioEncoderConfig(audioChannels, audioSamplerate, audioBitrate));
 
             session.setAttachLocation(isAttachLocation);
+            session.setAdaptiveBitrate(isAdaptiveBitrate);
             session.setOutputDirectory(outputDirectory);
 
             return session;
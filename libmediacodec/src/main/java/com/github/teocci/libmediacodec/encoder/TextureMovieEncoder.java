@@ -36,7 +36,8 @@ import com.github.teocci.libmediacodec.gles.WindowSurface;
  * <p>
  * The object wraps an encoder running on a dedicated thread.  The various control messages
  * may be sent from arbitrary threads (typically the app UI thread).  The encoder thread
- * manages both sides of the encoder (feeding and draining); the only external input is
+ * only renders frames onto the encoder's input surface; the output is drained on a
+ * thread of the encoder's own, see {@link VideoEncoderCore}.  The only external input is
  * the GL texture.
  * <p>
  * The design is complicated slightly by the need to create an EGL context that shares state
@@ -66,6 +67,9 @@ public class TextureMovieEncoder implements Runnable {
     private static final int MSG_SET_TEXTURE_ID = 3;
     private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
     private static final int MSG_QUIT = 5;
+    private static final int MSG_PAUSE_RECORDING = 6;
+    private static final int MSG_RESUME_RECORDING = 7;
+    private static final int MSG_UPDATE_BITRATE = 8;
 
     // ----- accessed exclusively by encoder thread -----
     private WindowSurface inputWindowSurface;
@@ -74,6 +78,7 @@ public class TextureMovieEncoder implements Runnable {
     private int textureId;
     private int frameNum;
     private VideoEncoderCore videoEncoder;
+    private BitrateController bitrateController;
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler encoderHandler;
@@ -81,6 +86,7 @@ public class TextureMovieEncoder implements Runnable {
     private Object readyFence = new Object();      // guards ready/running
     private boolean isReady;
     private boolean isRunning;
+    private volatile boolean isPaused;
 
 
     /**
@@ -98,20 +104,44 @@ public class TextureMovieEncoder implements Runnable {
         final int height;
         final int bitRate;
         final EGLContext eglContext;
+        final int maxFramesInFlight;
+        final boolean isAdaptiveBitrate;
         MediaMuxer mediaMuxer;
 
         public EncoderConfig(int width, int height, int bitRate,
                 EGLContext sharedEglContext, MediaMuxer muxer) {
+            this(width, height, bitRate, sharedEglContext, muxer,
+                    VideoEncoderCore.DEFAULT_MAX_FRAMES_IN_FLIGHT);
+        }
+
+        /**
+         * @param maxFramesInFlight frames the encoder may hold before new ones are dropped
+         */
+        public EncoderConfig(int width, int height, int bitRate,
+                EGLContext sharedEglContext, MediaMuxer muxer, int maxFramesInFlight) {
+            this(width, height, bitRate, sharedEglContext, muxer, maxFramesInFlight, false);
+        }
+
+        /**
+         * @param adaptiveBitrate lets a {@link BitrateController} adapt the bit rate to
+         *                        what the muxer keeps up with
+         */
+        public EncoderConfig(int width, int height, int bitRate,
+                EGLContext sharedEglContext, MediaMuxer muxer, int maxFramesInFlight,
+                boolean adaptiveBitrate) {
             this.width = width;
             this.height = height;
             this.bitRate = bitRate;
             eglContext = sharedEglContext;
             mediaMuxer = muxer;
+            this.maxFramesInFlight = maxFramesInFlight;
+            isAdaptiveBitrate = adaptiveBitrate;
         }
 
         @Override
         public String toString() {
             return "EncoderConfig: " + width + "x" + height + " @" + bitRate +
+                    " inFlight=" + maxFramesInFlight + " adaptive=" + isAdaptiveBitrate +
                     "' ctxt=" + eglContext;
         }
     }
@@ -132,6 +162,7 @@ public class TextureMovieEncoder implements Runnable {
                 return;
             }
             isRunning = true;
+            isPaused = false;
             new Thread(this, "TextureMovieEncoder").start();
             while (!isReady) {
                 try {
@@ -161,6 +192,39 @@ public class TextureMovieEncoder implements Runnable {
         // delay the UI thread though, so we return immediately.
     }
 
+    /**
+     * Stops feeding frames to the encoder without releasing it.  (Call from non-encoder thread.)
+     * <p>
+     * The encoder, EGL surface and muxer stay alive so {@link #resumeRecording()} only
+     * costs a single frame.  The caller is expected to pause the MediaMuxer as well, so
+     * the gap is removed from the output timestamps.
+     */
+    public void pauseRecording() {
+        isPaused = true;
+        synchronized (readyFence) {
+            if (!isReady) {
+                return;
+            }
+        }
+        encoderHandler.sendMessage(encoderHandler.obtainMessage(MSG_PAUSE_RECORDING));
+    }
+
+    /**
+     * Resumes feeding frames after {@link #pauseRecording()}.  (Call from non-encoder thread.)
+     */
+    public void resumeRecording() {
+        synchronized (readyFence) {
+            if (isReady) {
+                encoderHandler.sendMessage(encoderHandler.obtainMessage(MSG_RESUME_RECORDING));
+            }
+        }
+        isPaused = false;
+    }
+
+    public boolean isPaused() {
+        return isPaused;
+    }
+
     /**
      * Returns true if recording has been started.
      */
@@ -196,6 +260,9 @@ public class TextureMovieEncoder implements Runnable {
                 return;
             }
         }
+        if (isPaused) {
+            return;
+        }
 
         float[] transform = new float[16];      // TODO - avoid alloc every frame
         st.getTransformMatrix(transform);
@@ -286,6 +353,15 @@ public class TextureMovieEncoder implements Runnable {
                             (((long) inputMessage.arg2) & 0xffffffffL);
                     encoder.handleFrameAvailable((float[]) obj, timestamp);
                     break;
+                case MSG_PAUSE_RECORDING:
+                    encoder.handlePauseRecording();
+                    break;
+                case MSG_RESUME_RECORDING:
+                    encoder.handleResumeRecording();
+                    break;
+                case MSG_UPDATE_BITRATE:
+                    encoder.handleUpdateBitrate();
+                    break;
                 case MSG_SET_TEXTURE_ID:
                     encoder.handleSetTexture(inputMessage.arg1);
                     break;
@@ -308,32 +384,75 @@ public class TextureMovieEncoder implements Runnable {
         Log.d(TAG, "handleStartRecording " + config);
         frameNum = 0;
         prepareEncoder(config.eglContext, config.width, config.height, config.bitRate,
-                config.mediaMuxer);
+                config.mediaMuxer, config.maxFramesInFlight);
+        if (config.isAdaptiveBitrate) {
+            bitrateController = new BitrateController(videoEncoder, config.mediaMuxer,
+                    config.width, config.height, SessionConfig.FRAME_RATE, config.bitRate);
+            handleUpdateBitrate();
+        }
+    }
+
+    /**
+     * Samples the output for the bit rate controller, and schedules the next sample.
+     */
+    private void handleUpdateBitrate() {
+        if (bitrateController == null) {
+            return;
+        }
+        bitrateController.update(System.nanoTime());
+        encoderHandler.sendEmptyMessageDelayed(MSG_UPDATE_BITRATE, bitrateController.getIntervalMs());
     }
 
     /**
      * Handles notification of an available frame.
      * <p>
-     * The texture is rendered onto the encoder's input surface, along with a moving
-     * box (just because we can).
+     * The texture is rendered onto the encoder's input surface.  If the encoder still
+     * holds the maximum number of frames after a frame interval, the frame is dropped
+     * rather than letting frames back up behind it.
      * <p>
      * @param transform The texture transform, from SurfaceTexture.
      * @param timestampNanos The frame's timestamp, from SurfaceTexture.
      */
     private void handleFrameAvailable(float[] transform, long timestampNanos) {
         if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
-        videoEncoder.drainEncoder(false);
+        if (!videoEncoder.awaitFrameSlot()) {
+            return;
+        }
         fullScreen.drawFrame(textureId, transform);
 
         inputWindowSurface.setPresentationTime(timestampNanos);
+        videoEncoder.onFrameSubmitted(timestampNanos);
         inputWindowSurface.swapBuffers();
     }
 
+    /**
+     * Nothing to do on the encoder thread: frames still queued in the encoder are drained
+     * with their pre-pause timestamps by the drain thread.
+     */
+    private void handlePauseRecording() {
+        Log.d(TAG, "handlePauseRecording");
+    }
+
+    /**
+     * Starts the resumed part of the recording on a sync frame, so players can seek to it.
+     */
+    private void handleResumeRecording() {
+        Log.d(TAG, "handleResumeRecording");
+        if (videoEncoder != null) {
+            videoEncoder.requestSyncFrame();
+        }
+    }
+
     /**
      * Handles a request to stop encoding.
      */
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
+        if (bitrateController != null) {
+            encoderHandler.removeMessages(MSG_UPDATE_BITRATE);
+            Log.i(TAG, bitrateController.toString());
+            bitrateController = null;
+        }
         videoEncoder.drainEncoder(true);
         releaseEncoder();
     }
@@ -371,9 +490,10 @@ public class TextureMovieEncoder implements Runnable {
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
     }
 
-    private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate, MediaMuxer muxer) {
+    private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate, MediaMuxer muxer,
+            int maxFramesInFlight) {
         try {
-            videoEncoder = new VideoEncoderCore(width, height, bitRate, muxer);
+            videoEncoder = new VideoEncoderCore(width, height, bitRate, muxer, maxFramesInFlight);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -0,0 +1,512 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.github.teocci.libmediacodec.format.AacUtils;
+import com.github.teocci.libmediacodec.format.SequentialFileWriter;
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+/**
+ * Pure-Java MPEG-2 Transport Stream muxer for H.264 + AAC (ISO/IEC 13818-1).
+ * <p>
+ * Every encoded sample becomes one PES packet. Video access units are kept in
+ * Annex-B form and get an access unit delimiter, plus SPS/PPS in front of every
+ * keyframe; AAC frames get an ADTS header. PAT/PMT are repeated before every video
+ * keyframe and the PCR is carried on the first video track.
+ * <p>
+ * All packets are assembled in buffers allocated when the muxer starts, so the
+ * per-sample path does not allocate.
+ *
+ * @hide
+ */
+public class TsMuxer extends MediaMuxer
+{
+    private static final String TAG = TsMuxer.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    public static final int TS_PACKET_SIZE = 188;
+
+    private static final int PID_PAT = 0x0000;
+    private static final int PID_PMT = 0x1000;
+    private static final int PID_FIRST_ES = 0x0100;
+
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int STREAM_TYPE_AAC_ADTS = 0x0f;
+
+    // Offset between PCR and PTS, giving decoders 700 ms of buffering headroom
+    private static final long PTS_OFFSET_90KHZ = 63000;
+
+    private static final byte[] ACCESS_UNIT_DELIMITER = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private SequentialFileWriter output;
+    private final SequentialFileWriter.Stats outputStats = new SequentialFileWriter.Stats();
+    private boolean isStarted;
+    private boolean isReleased;
+
+    protected TrackInfo[] tracks;
+    protected int videoTrack = -1;
+    private int[] continuityCounters;
+
+    private final byte[] patPacket = new byte[TS_PACKET_SIZE];
+    private final byte[] pmtPacket = new byte[TS_PACKET_SIZE];
+    private int patContinuity;
+    private int pmtContinuity;
+
+    private ByteBuffer pesBuffer;
+    private final ByteBuffer outputBuffer = ByteBuffer.allocateDirect(TS_PACKET_SIZE * 512);
+    private final byte[] packet = new byte[TS_PACKET_SIZE];
+    private long bytesWritten;
+    protected long lastSamplePtsUs;
+
+    protected TsMuxer(String outputFile, MediaFormat format)
+    {
+        super(outputFile, format);
+        tracks = new TrackInfo[0];
+        isStarted = false;
+        isReleased = false;
+    }
+
+    public static TsMuxer create(String outputFile, MediaFormat format)
+    {
+        if (format != MediaFormat.HLS)
+            throw new IllegalArgumentException("Unrecognized mediaFormat!");
+        TsMuxer muxer = new TsMuxer(outputFile, format);
+        try {
+            muxer.openOutput(outputFile);
+        } catch (IOException e) {
+            throw new RuntimeException("MediaMuxer creation failed", e);
+        }
+        return muxer;
+    }
+
+    @Override
+    public int addTrack(android.media.MediaFormat trackFormat)
+    {
+        int track = super.addTrack(trackFormat);
+        if (isStarted)
+            throw new RuntimeException("mediaFormat changed twice");
+
+        tracks = Arrays.copyOf(tracks, numTracks);
+        tracks[track] = TrackInfo.fromMediaFormat(track + 1, trackFormat);
+        if (tracks[track].isVideo() && videoTrack < 0) {
+            videoTrack = track;
+        }
+        Log.d(TAG, "addTrack " + tracks[track]);
+
+        if (allTracksAdded()) {
+            start();
+        }
+        return track;
+    }
+
+    protected void start()
+    {
+        continuityCounters = new int[numTracks];
+        pesBuffer = ByteBuffer.allocateDirect(512 * 1024);
+        buildPat();
+        buildPmt();
+        try {
+            writePsi();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed writing PAT/PMT", e);
+        }
+        isStarted = true;
+        Log.d(TAG, "TS mediaMuxer start");
+    }
+
+    protected void stop()
+    {
+        if (isStarted) {
+            try {
+                closeOutput();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed closing output", e);
+            }
+            isStarted = false;
+            Log.d(TAG, "TS mediaMuxer stop");
+        }
+        release();
+    }
+
+    @Override
+    public void release()
+    {
+        if (!isReleased) {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing output", e);
+                }
+                output = null;
+            }
+            Log.i(TAG, "Output " + outputStats);
+            // Listeners of MuxerFinishedEvent may read the output
+            super.release();
+            isReleased = true;
+            Log.d(TAG, "TS mediaMuxer Release");
+        } else {
+            Log.d(TAG, "TS mediaMuxer Release called twice");
+        }
+    }
+
+    @Override
+    public boolean isStarted()
+    {
+        return isStarted;
+    }
+
+    /**
+     * @return write, sync and preallocation latencies of every file written so far
+     */
+    public SequentialFileWriter.Stats getOutputStats()
+    {
+        return outputStats;
+    }
+
+    @Override
+    public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo)
+    {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // SPS/PPS are taken from the track format and repeated before every keyframe
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            releaseOutputBuffer(encoder, bufferIndex);
+            return;
+        }
+
+        if (bufferInfo.size == 0 || !isStarted) {
+            if (!isStarted) {
+                Log.e(TAG, "writeSampleData called before mediaMuxer isStarted. Ignoring packet. Track index: " + trackIndex + " tracks added: " + numTracks);
+            }
+            releaseOutputBuffer(encoder, bufferIndex);
+            if (isStarted && allTracksFinished()) {
+                stop();
+            }
+            return;
+        }
+
+        long pts = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        boolean isKeyframe = trackIndex == videoTrack &&
+                (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+
+        try {
+            onSampleBoundary(trackIndex, pts, isKeyframe);
+            // Without video every AAC frame is a random access point
+            if (isKeyframe || videoTrack < 0) {
+                if (onRandomAccessPoint(pts) || isKeyframe) {
+                    writePsi();
+                }
+            }
+            writePes(trackIndex, encodedData, pts, isKeyframe);
+            lastSamplePtsUs = Math.max(lastSamplePtsUs, pts);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed writing TS packets", e);
+        }
+
+        releaseOutputBuffer(encoder, bufferIndex);
+
+        if (allTracksFinished()) {
+            stop();
+        }
+    }
+
+    @Override
+    public void forceStop()
+    {
+        stop();
+        Log.d(TAG, "forceStop");
+    }
+
+    /**
+     * Called before a video keyframe, or an audio frame of a stream without video, is
+     * written. Subclasses may switch the output here to start a new, independently
+     * decodable file, which then starts with a PAT/PMT.
+     *
+     * @param ptsUs relative presentation time of the sample
+     * @return true if a new output was opened
+     */
+    protected boolean onRandomAccessPoint(long ptsUs) throws IOException
+    {
+        return false;
+    }
+
+    /**
+     * Called before every sample is written, ahead of {@link #onRandomAccessPoint(long)}.
+     * Subclasses may publish everything written so far here, with {@link #publishOutput()}.
+     *
+     * @param ptsUs relative presentation time of the sample
+     */
+    protected void onSampleBoundary(int trackIndex, long ptsUs, boolean isKeyframe) throws IOException
+    {
+    }
+
+    /**
+     * Flushes and closes the current output, if any, and starts writing to {@code path}.
+     */
+    protected void openOutput(String path) throws IOException
+    {
+        closeOutput();
+        output = SequentialFileWriter.open(new File(path), outputStats);
+        bytesWritten = 0;
+    }
+
+    protected void closeOutput() throws IOException
+    {
+        if (output == null) return;
+        flushOutput();
+        output.close();
+        output = null;
+    }
+
+    protected void flushOutput() throws IOException
+    {
+        outputBuffer.flip();
+        output.write(outputBuffer);
+        outputBuffer.clear();
+    }
+
+    /**
+     * Writes the buffered packets through to the file, so readers of the growing
+     * file see all of them.
+     */
+    protected void publishOutput() throws IOException
+    {
+        flushOutput();
+        output.flush();
+    }
+
+    /**
+     * @return bytes written to the current output, including buffered packets
+     */
+    protected long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * Writes the PAT and PMT, and with them a new random access point.
+     */
+    protected void writePsi() throws IOException
+    {
+        patPacket[3] = (byte) (0x10 | patContinuity);
+        patContinuity = (patContinuity + 1) & 0x0f;
+        writePacket(patPacket);
+        pmtPacket[3] = (byte) (0x10 | pmtContinuity);
+        pmtContinuity = (pmtContinuity + 1) & 0x0f;
+        writePacket(pmtPacket);
+    }
+
+    private void writePes(int trackIndex, ByteBuffer encodedData, long ptsUs, boolean isKeyframe) throws IOException
+    {
+        TrackInfo track = tracks[trackIndex];
+        long pts90 = ptsUs * 9 / 100;
+        int payloadSize = encodedData.remaining();
+
+        pesBuffer.clear();
+        if (pesBuffer.capacity() < payloadSize + 1024) {
+            pesBuffer = ByteBuffer.allocateDirect(payloadSize * 2);
+        }
+        pesBuffer.put((byte) 0).put((byte) 0).put((byte) 1);
+        pesBuffer.put((byte) (track.isVideo() ? 0xe0 : 0xc0));
+        int lengthPosition = pesBuffer.position();
+        pesBuffer.putShort((short) 0);
+        pesBuffer.put((byte) 0x80);                 // marker bits, not scrambled
+        pesBuffer.put((byte) 0x80);                 // PTS only
+        pesBuffer.put((byte) 5);                    // PES_header_data_length
+        putTimestamp(pesBuffer, 0x2, pts90 + PTS_OFFSET_90KHZ);
+
+        if (track.isVideo()) {
+            pesBuffer.put(ACCESS_UNIT_DELIMITER);
+            if (isKeyframe) {
+                pesBuffer.put(START_CODE).put(track.getSps());
+                pesBuffer.put(START_CODE).put(track.getPps());
+            }
+            pesBuffer.put(encodedData);
+        } else {
+            AacUtils.writeAdtsHeader(pesBuffer, payloadSize, AacUtils.PROFILE_AAC_LC,
+                    AacUtils.getSamplingFrequencyIndex(track.getSampleRate()), track.getChannelCount());
+            pesBuffer.put(encodedData);
+        }
+
+        int pesLength = pesBuffer.position() - lengthPosition - 2;
+        // Unbounded (0) length is only allowed for video elementary streams
+        if (!track.isVideo() || pesLength <= 0xffff) {
+            pesBuffer.putShort(lengthPosition, (short) (pesLength <= 0xffff ? pesLength : 0));
+        }
+        pesBuffer.flip();
+
+        boolean writePcr = trackIndex == videoTrack || videoTrack < 0;
+        packetize(trackIndex, pesBuffer, writePcr ? pts90 : -1);
+    }
+
+    /**
+     * Splits a PES packet into TS packets. The first packet carries the
+     * payload_unit_start_indicator and, if {@code pcr90} is non negative, a PCR.
+     */
+    private void packetize(int trackIndex, ByteBuffer pes, long pcr90) throws IOException
+    {
+        int pid = PID_FIRST_ES + trackIndex;
+        boolean first = true;
+        while (pes.hasRemaining()) {
+            int headerSize = 4;
+            boolean hasPcr = first && pcr90 >= 0;
+            int adaptationSize = hasPcr ? 8 : 0;    // length byte + flags + 6 byte PCR
+            int available = TS_PACKET_SIZE - headerSize - adaptationSize;
+            int payload = Math.min(available, pes.remaining());
+            if (payload < available && adaptationSize == 0) {
+                // Adaptation field of at least the length byte for stuffing
+                adaptationSize = Math.min(available - payload, TS_PACKET_SIZE - headerSize - payload);
+            } else if (payload < available) {
+                adaptationSize += available - payload;
+            }
+
+            packet[0] = 0x47;
+            packet[1] = (byte) ((first ? 0x40 : 0) | (pid >> 8));
+            packet[2] = (byte) pid;
+            packet[3] = (byte) ((adaptationSize > 0 ? 0x30 : 0x10) | continuityCounters[trackIndex]);
+            continuityCounters[trackIndex] = (continuityCounters[trackIndex] + 1) & 0x0f;
+
+            int index = headerSize;
+            if (adaptationSize > 0) {
+                packet[index++] = (byte) (adaptationSize - 1);
+                if (adaptationSize > 1) {
+                    packet[index++] = (byte) (hasPcr ? 0x10 : 0x00);
+                    if (hasPcr) {
+                        packet[index++] = (byte) (pcr90 >> 25);
+                        packet[index++] = (byte) (pcr90 >> 17);
+                        packet[index++] = (byte) (pcr90 >> 9);
+                        packet[index++] = (byte) (pcr90 >> 1);
+                        packet[index++] = (byte) (((pcr90 & 1) << 7) | 0x7e);
+                        packet[index++] = 0;        // PCR extension
+                    }
+                    while (index < headerSize + adaptationSize) {
+                        packet[index++] = (byte) 0xff;
+                    }
+                }
+            }
+            pes.get(packet, index, payload);
+            writePacket(packet);
+            first = false;
+        }
+    }
+
+    private void writePacket(byte[] data) throws IOException
+    {
+        if (outputBuffer.remaining() < TS_PACKET_SIZE) {
+            flushOutput();
+        }
+        outputBuffer.put(data, 0, TS_PACKET_SIZE);
+        bytesWritten += TS_PACKET_SIZE;
+    }
+
+    private void buildPat()
+    {
+        int index = startPsiPacket(patPacket, PID_PAT);
+        int sectionStart = index;
+        patPacket[index++] = 0x00;                  // table_id
+        index = putSectionLength(patPacket, index, 13);
+        patPacket[index++] = 0x00;                  // transport_stream_id
+        patPacket[index++] = 0x01;
+        patPacket[index++] = (byte) 0xc1;           // version 0, current_next_indicator
+        patPacket[index++] = 0x00;                  // section_number
+        patPacket[index++] = 0x00;                  // last_section_number
+        patPacket[index++] = 0x00;                  // program_number 1
+        patPacket[index++] = 0x01;
+        patPacket[index++] = (byte) (0xe0 | (PID_PMT >> 8));
+        patPacket[index++] = (byte) PID_PMT;
+        finishPsiPacket(patPacket, sectionStart, index);
+    }
+
+    private void buildPmt()
+    {
+        int pcrPid = PID_FIRST_ES + (videoTrack >= 0 ? videoTrack : 0);
+        int index = startPsiPacket(pmtPacket, PID_PMT);
+        int sectionStart = index;
+        pmtPacket[index++] = 0x02;                  // table_id
+        index = putSectionLength(pmtPacket, index, 13 + 5 * numTracks);
+        pmtPacket[index++] = 0x00;                  // program_number 1
+        pmtPacket[index++] = 0x01;
+        pmtPacket[index++] = (byte) 0xc1;
+        pmtPacket[index++] = 0x00;
+        pmtPacket[index++] = 0x00;
+        pmtPacket[index++] = (byte) (0xe0 | (pcrPid >> 8));
+        pmtPacket[index++] = (byte) pcrPid;
+        pmtPacket[index++] = (byte) 0xf0;           // program_info_length 0
+        pmtPacket[index++] = 0x00;
+        for (int i = 0; i < numTracks; i++) {
+            int pid = PID_FIRST_ES + i;
+            pmtPacket[index++] = (byte) (tracks[i].isVideo() ? STREAM_TYPE_H264 : STREAM_TYPE_AAC_ADTS);
+            pmtPacket[index++] = (byte) (0xe0 | (pid >> 8));
+            pmtPacket[index++] = (byte) pid;
+            pmtPacket[index++] = (byte) 0xf0;       // ES_info_length 0
+            pmtPacket[index++] = 0x00;
+        }
+        finishPsiPacket(pmtPacket, sectionStart, index);
+    }
+
+    private static int startPsiPacket(byte[] psi, int pid)
+    {
+        psi[0] = 0x47;
+        psi[1] = (byte) (0x40 | (pid >> 8));
+        psi[2] = (byte) pid;
+        psi[3] = 0x10;
+        psi[4] = 0x00;                              // pointer_field
+        return 5;
+    }
+
+    private static int putSectionLength(byte[] psi, int index, int length)
+    {
+        psi[index++] = (byte) (0xb0 | (length >> 8));
+        psi[index++] = (byte) length;
+        return index;
+    }
+
+    private static void finishPsiPacket(byte[] psi, int sectionStart, int index)
+    {
+        int crc = crc32(psi, sectionStart, index);
+        psi[index++] = (byte) (crc >> 24);
+        psi[index++] = (byte) (crc >> 16);
+        psi[index++] = (byte) (crc >> 8);
+        psi[index++] = (byte) crc;
+        Arrays.fill(psi, index, TS_PACKET_SIZE, (byte) 0xff);
+    }
+
+    /**
+     * MPEG-2 CRC32 (polynomial 0x04c11db7, not reflected), as used by PSI sections.
+     */
+    private static int crc32(byte[] data, int start, int end)
+    {
+        int crc = 0xffffffff;
+        for (int i = start; i < end; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    private static void putTimestamp(ByteBuffer dst, int prefix, long ts90)
+    {
+        dst.put((byte) ((prefix << 4) | (((ts90 >> 30) & 0x07) << 1) | 1));
+        dst.putShort((short) ((((ts90 >> 15) & 0x7fff) << 1) | 1));
+        dst.putShort((short) (((ts90 & 0x7fff) << 1) | 1));
+    }
+}
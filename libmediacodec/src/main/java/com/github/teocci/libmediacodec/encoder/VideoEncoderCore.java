@@ -21,17 +21,25 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Process;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.IOException;
 
+import com.github.teocci.libmediacodec.format.LatencyHistogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * This class wraps up the core components used for surface-input video encoding.
  * <p/>
  * Once created, frames are fed to the input surface.  Remember to provide the presentation
- * time stamp, and always call drainEncoder() before swapBuffers() to ensure that the
- * producer side doesn't get backed up.
+ * time stamp.  Output is drained on a thread of its own, so a slow muxer write doesn't
+ * delay the next frame: the MediaCodec callback thread in asynchronous mode, otherwise
+ * a drain thread waiting on dequeueOutputBuffer.  Before every swapBuffers() call
+ * {@link #awaitFrameSlot()}, which keeps the number of frames inside the encoder
+ * bounded, then {@link #onFrameSubmitted(long)}.
  * <p/>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
@@ -48,15 +56,42 @@ public class VideoEncoderCore extends AndroidEncoder
     private static final int FRAME_RATE = 30;               // 30fps
     private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
 
+    public static final int DEFAULT_MAX_FRAMES_IN_FLIGHT = 4;
+    // How long the drain thread waits for output before checking whether to stop
+    private static final long DRAIN_TIMEOUT_USEC = 10000;
+    // A frame interval; once a slot stays taken that long the frame is dropped
+    private static final long FRAME_SLOT_TIMEOUT_MS = 1000 / FRAME_RATE;
+
     private Surface inputSurface;
 
+    // Frames submitted but not drained yet, oldest first, in a ring of maxFramesInFlight
+    private final Object frameLock = new Object();
+    private final long[] inFlightPtsUs;
+    private final long[] inFlightSubmitNanos;
+    private int inFlightHead;
+    private int inFlightCount;
+    private long droppedFrames;
+    private final LatencyHistogram drainWaits = new LatencyHistogram();
+    private final LatencyHistogram encodeLatency = new LatencyHistogram();
+
+    private Thread drainThread;
+    private volatile boolean isDraining;
+
     /**
      * Configures encoder and mediaMuxer state, and prepares the input Surface.
      */
     public VideoEncoderCore(int width, int height, int bitRate, MediaMuxer muxer) throws IOException
     {
-        this.mediaMuxer = muxer;
-        bufferInfo = new MediaCodec.BufferInfo();
+        this(width, height, bitRate, muxer, DEFAULT_MAX_FRAMES_IN_FLIGHT);
+    }
+
+    /**
+     * @param maxFramesInFlight how many frames may be submitted to the encoder and not yet
+     *                          drained before {@link #awaitFrameSlot()} holds the next one back
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, MediaMuxer muxer, int maxFramesInFlight) throws IOException
+    {
+        this(muxer, maxFramesInFlight);
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
         // Set some properties.  Failing to specify some of these can cause the MediaCodec
@@ -70,14 +105,184 @@ public class VideoEncoderCore extends AndroidEncoder
 
         // Create a MediaCodec encoder, and configure it with our mediaFormat.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mediaEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mediaEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        inputSurface = mediaEncoder.createInputSurface();
+        MediaCodecAdapter codec = createEncoder(MIME_TYPE, "VideoEncoderCallback", Process.THREAD_PRIORITY_DISPLAY);
+        codec.getCodec().configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        inputSurface = codec.getCodec().createInputSurface();
+        mediaEncoder = codec;
+        mediaEncoder.start();
+        if (!isAsync()) {
+            startDrainThread();
+        }
+    }
+
+    /**
+     * Encodes with {@code codec}, e.g. a {@link FakeEncoderCodec}, instead of a MediaCodec.
+     * There is no input surface; frames are handed to the codec directly.
+     */
+    public VideoEncoderCore(EncoderCodec codec, MediaMuxer muxer, int maxFramesInFlight)
+    {
+        this(muxer, maxFramesInFlight);
+        mediaEncoder = codec;
         mediaEncoder.start();
+        startDrainThread();
+    }
 
+    private VideoEncoderCore(MediaMuxer muxer, int maxFramesInFlight)
+    {
+        checkArgument(maxFramesInFlight > 0, "At least one frame must be allowed in flight");
+        this.mediaMuxer = muxer;
+        inFlightPtsUs = new long[maxFramesInFlight];
+        inFlightSubmitNanos = new long[maxFramesInFlight];
+        bufferInfo = new MediaCodec.BufferInfo();
+        // Before start(): in asynchronous mode the format callback may assign the track right away
         trackIndex = -1;
     }
 
+    private void startDrainThread()
+    {
+        isDraining = true;
+        drainThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                while (isDraining) {
+                    drainEncoder(false, DRAIN_TIMEOUT_USEC);
+                }
+            }
+        }, "VideoEncoderDrain");
+        drainThread.start();
+    }
+
+    private void stopDrainThread()
+    {
+        if (drainThread == null) return;
+        isDraining = false;
+        try {
+            drainThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drainThread = null;
+    }
+
+    /**
+     * Output is drained by the drain or callback thread, so only the final drain, which
+     * stops the drain thread first, does anything here.
+     */
+    @Override
+    public void drainEncoder(boolean endOfStream)
+    {
+        if (endOfStream) {
+            stopDrainThread();
+            super.drainEncoder(true);
+        } else if (drainThread == null && !isAsync()) {
+            super.drainEncoder(false);
+        }
+    }
+
+    /**
+     * Waits up to a frame interval until fewer than the maximum number of frames are
+     * inside the encoder. The time waited is counted in {@link #getDrainWaitLatency()}.
+     *
+     * @return false if the encoder is still full and the frame should be dropped
+     */
+    public boolean awaitFrameSlot()
+    {
+        synchronized (frameLock) {
+            if (inFlightCount < inFlightPtsUs.length) return true;
+            long start = System.nanoTime();
+            long deadline = start + FRAME_SLOT_TIMEOUT_MS * 1000000;
+            long remaining = deadline - start;
+            while (inFlightCount == inFlightPtsUs.length && remaining > 0) {
+                try {
+                    frameLock.wait(Math.max(1, remaining / 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+            drainWaits.record(System.nanoTime() - start);
+            if (inFlightCount < inFlightPtsUs.length) return true;
+            droppedFrames++;
+            if (VERBOSE) Log.d(TAG, "Encoder full, dropping frame " + droppedFrames);
+            return false;
+        }
+    }
+
+    /**
+     * Counts a frame as inside the encoder until output with its timestamp is drained.
+     * Call before swapBuffers(), after {@link #awaitFrameSlot()} returned true.
+     */
+    public void onFrameSubmitted(long timestampNanos)
+    {
+        synchronized (frameLock) {
+            if (inFlightCount == inFlightPtsUs.length) {
+                // Not awaited; forget the oldest frame rather than overwrite the ring
+                inFlightHead = (inFlightHead + 1) % inFlightPtsUs.length;
+                inFlightCount--;
+            }
+            int tail = (inFlightHead + inFlightCount) % inFlightPtsUs.length;
+            inFlightPtsUs[tail] = timestampNanos / 1000;
+            inFlightSubmitNanos[tail] = System.nanoTime();
+            inFlightCount++;
+        }
+    }
+
+    @Override
+    protected void onOutputWritten(long ptsUs, int size, int flags)
+    {
+        if (size == 0 || (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+        synchronized (frameLock) {
+            // Frames the encoder skipped leave with the next frame drained after them
+            while (inFlightCount > 0 && inFlightPtsUs[inFlightHead] <= ptsUs) {
+                if (inFlightPtsUs[inFlightHead] == ptsUs) {
+                    encodeLatency.record(System.nanoTime() - inFlightSubmitNanos[inFlightHead]);
+                }
+                inFlightHead = (inFlightHead + 1) % inFlightPtsUs.length;
+                inFlightCount--;
+            }
+            frameLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return how long the rendering thread waited for the drain to free a frame slot
+     */
+    public LatencyHistogram getDrainWaitLatency()
+    {
+        return drainWaits;
+    }
+
+    /**
+     * @return time from submitting a frame to writing its output to the muxer
+     */
+    public LatencyHistogram getEncodeLatency()
+    {
+        return encodeLatency;
+    }
+
+    /**
+     * @return frames dropped because the encoder was still full after a frame interval
+     */
+    public long getDroppedFrames()
+    {
+        synchronized (frameLock) {
+            return droppedFrames;
+        }
+    }
+
+    @Override
+    public void release()
+    {
+        stopDrainThread();
+        super.release();
+        Log.i(TAG, "Dropped " + getDroppedFrames() + " frames, drain waits: " + drainWaits
+                + ", encode latency: " + encodeLatency);
+    }
+
     /**
      * Returns the encoder's input surface.
      */
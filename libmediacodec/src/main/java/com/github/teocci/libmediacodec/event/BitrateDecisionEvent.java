@@ -0,0 +1,83 @@
+package com.github.teocci.libmediacodec.event;
+
+import java.util.Locale;
+
+/**
+ * Posted for every sample a {@link com.github.teocci.libmediacodec.encoder.BitrateController}
+ * takes, with what it measured and the bitrate it chose.
+ */
+public class BitrateDecisionEvent
+{
+    public enum Action
+    {
+        HOLD, DECREASE, INCREASE
+    }
+
+    private final long timeNanos;
+    private final float writeQueueFill;
+    private final float sendBufferFill;
+    private final int encodedBitrate;
+    private final int previousBitrate;
+    private final int bitrate;
+    private final Action action;
+
+    public BitrateDecisionEvent(long timeNanos, float writeQueueFill, float sendBufferFill, int encodedBitrate,
+                                int previousBitrate, int bitrate, Action action)
+    {
+        this.timeNanos = timeNanos;
+        this.writeQueueFill = writeQueueFill;
+        this.sendBufferFill = sendBufferFill;
+        this.encodedBitrate = encodedBitrate;
+        this.previousBitrate = previousBitrate;
+        this.bitrate = bitrate;
+        this.action = action;
+    }
+
+    /**
+     * @return when the sample was taken, on the System.nanoTime() clock
+     */
+    public long getTimeNanos()
+    {
+        return timeNanos;
+    }
+
+    public float getWriteQueueFill()
+    {
+        return writeQueueFill;
+    }
+
+    public float getSendBufferFill()
+    {
+        return sendBufferFill;
+    }
+
+    /**
+     * @return bits per second the encoder produced since the previous sample
+     */
+    public int getEncodedBitrate()
+    {
+        return encodedBitrate;
+    }
+
+    public int getPreviousBitrate()
+    {
+        return previousBitrate;
+    }
+
+    public int getBitrate()
+    {
+        return bitrate;
+    }
+
+    public Action getAction()
+    {
+        return action;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.US, "%s %d -> %d bps at %d ms: write queue %.2f, send buffer %.2f, encoded %d bps",
+                action, previousBitrate, bitrate, timeNanos / 1000000, writeQueueFill, sendBufferFill, encodedBitrate);
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.teocci.libmediacodec.event;
+
+import java.io.File;
+
+/**
+ * Posted when an instant replay was written to its file, or failed to be.
+ */
+public class ReplaySavedEvent
+{
+    private final File file;
+    private final long durationUs;
+    private final boolean isSuccess;
+
+    public ReplaySavedEvent(File file, long durationUs, boolean isSuccess)
+    {
+        this.file = file;
+        this.durationUs = durationUs;
+        this.isSuccess = isSuccess;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public long getDurationUs()
+    {
+        return durationUs;
+    }
+
+    public boolean isSuccess()
+    {
+        return isSuccess;
+    }
+}
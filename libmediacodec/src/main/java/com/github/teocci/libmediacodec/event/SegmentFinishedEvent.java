@@ -0,0 +1,21 @@
+package com.github.teocci.libmediacodec.event;
+
+import java.io.File;
+
+/**
+ * Posted when a segment of a rotating recording was finalized and is playable on its own.
+ */
+public class SegmentFinishedEvent
+{
+    private final File segment;
+
+    public SegmentFinishedEvent(File segment)
+    {
+        this.segment = segment;
+    }
+
+    public File getSegment()
+    {
+        return segment;
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.teocci.libmediacodec.format;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AAC helpers shared by the pure-Java muxers.
+ * see http://wiki.multimedia.cx/index.php?title=MPEG-4_Audio
+ */
+public class AacUtils
+{
+    public static final int PROFILE_AAC_LC = 2;
+    public static final int SAMPLES_PER_FRAME = 1024;
+    public static final int ADTS_HEADER_SIZE = 7;
+
+    private static final int[] SAMPLING_FREQUENCIES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    public static int getSamplingFrequencyIndex(int sampleRate)
+    {
+        for (int i = 0; i < SAMPLING_FREQUENCIES.length; i++) {
+            if (SAMPLING_FREQUENCIES[i] == sampleRate) return i;
+        }
+        throw new IllegalArgumentException("Unsupported AAC sample rate: " + sampleRate);
+    }
+
+    public static int getSampleRate(int samplingFrequencyIndex)
+    {
+        return SAMPLING_FREQUENCIES[samplingFrequencyIndex];
+    }
+
+    /**
+     * Builds a two byte AudioSpecificConfig, matching what MediaCodec reports as csd-0.
+     */
+    public static byte[] buildAudioSpecificConfig(int profile, int sampleRate, int channelCount)
+    {
+        int frequencyIndex = getSamplingFrequencyIndex(sampleRate);
+        return new byte[]{
+                (byte) ((profile << 3) | (frequencyIndex >> 1)),
+                (byte) (((frequencyIndex & 0x01) << 7) | (channelCount << 3))
+        };
+    }
+
+    /**
+     * Writes a 7 byte ADTS header (no CRC) for a raw AAC frame of {@code frameLength} bytes.
+     * see http://wiki.multimedia.cx/index.php?title=ADTS
+     */
+    public static void writeAdtsHeader(ByteBuffer dst, int frameLength, int profile,
+                                       int frequencyIndex, int channelCount)
+    {
+        int fullLength = frameLength + ADTS_HEADER_SIZE;
+        dst.put((byte) 0xff);
+        dst.put((byte) 0xf1);                // MPEG-4, layer 0, no CRC
+        dst.put((byte) (((profile - 1) << 6) | (frequencyIndex << 2) | (channelCount >> 2)));
+        dst.put((byte) (((channelCount & 0x03) << 6) | (fullLength >> 11)));
+        dst.put((byte) ((fullLength >> 3) & 0xff));
+        dst.put((byte) (((fullLength & 0x07) << 5) | 0x1f));
+        dst.put((byte) 0xfc);                // buffer fullness 0x7ff (VBR), one raw data block
+    }
+}
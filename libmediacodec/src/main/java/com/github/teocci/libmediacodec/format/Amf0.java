@@ -0,0 +1,165 @@
+package com.github.teocci.libmediacodec.format;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Action Message Format 0 values, as carried by FLV script tags and RTMP commands.
+ * <p>
+ * Numbers map to {@link Double}, booleans to {@link Boolean}, strings to {@link String},
+ * objects and ECMA arrays to {@link Map}, strict arrays to {@link List}, null and
+ * undefined to null. Allocates; meant for metadata and commands only.
+ */
+public class Amf0
+{
+    public static final int TYPE_NUMBER = 0x00;
+    public static final int TYPE_BOOLEAN = 0x01;
+    public static final int TYPE_STRING = 0x02;
+    public static final int TYPE_OBJECT = 0x03;
+    public static final int TYPE_NULL = 0x05;
+    public static final int TYPE_UNDEFINED = 0x06;
+    public static final int TYPE_ECMA_ARRAY = 0x08;
+    public static final int TYPE_OBJECT_END = 0x09;
+    public static final int TYPE_STRICT_ARRAY = 0x0a;
+    public static final int TYPE_LONG_STRING = 0x0c;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void putNumber(ByteBuffer dst, double value)
+    {
+        dst.put((byte) TYPE_NUMBER);
+        dst.putDouble(value);
+    }
+
+    public static void putBoolean(ByteBuffer dst, boolean value)
+    {
+        dst.put((byte) TYPE_BOOLEAN);
+        dst.put((byte) (value ? 1 : 0));
+    }
+
+    public static void putString(ByteBuffer dst, String value)
+    {
+        byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length > 0xffff) {
+            dst.put((byte) TYPE_LONG_STRING);
+            dst.putInt(bytes.length);
+        } else {
+            dst.put((byte) TYPE_STRING);
+            dst.putShort((short) bytes.length);
+        }
+        dst.put(bytes);
+    }
+
+    public static void putNull(ByteBuffer dst)
+    {
+        dst.put((byte) TYPE_NULL);
+    }
+
+    public static void putObject(ByteBuffer dst, Map<String, ?> properties)
+    {
+        dst.put((byte) TYPE_OBJECT);
+        putProperties(dst, properties);
+    }
+
+    /**
+     * Writes an associative array, the form onMetaData is sent in.
+     */
+    public static void putEcmaArray(ByteBuffer dst, Map<String, ?> properties)
+    {
+        dst.put((byte) TYPE_ECMA_ARRAY);
+        dst.putInt(properties.size());
+        putProperties(dst, properties);
+    }
+
+    public static void putValue(ByteBuffer dst, Object value)
+    {
+        if (value == null) {
+            putNull(dst);
+        } else if (value instanceof Number) {
+            putNumber(dst, ((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            putBoolean(dst, (Boolean) value);
+        } else if (value instanceof String) {
+            putString(dst, (String) value);
+        } else if (value instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, ?> properties = (Map<String, ?>) value;
+            putObject(dst, properties);
+        } else {
+            throw new IllegalArgumentException("No AMF0 type for " + value.getClass());
+        }
+    }
+
+    private static void putProperties(ByteBuffer dst, Map<String, ?> properties)
+    {
+        for (Map.Entry<String, ?> property : properties.entrySet()) {
+            byte[] name = property.getKey().getBytes(UTF_8);
+            dst.putShort((short) name.length);
+            dst.put(name);
+            putValue(dst, property.getValue());
+        }
+        dst.putShort((short) 0);
+        dst.put((byte) TYPE_OBJECT_END);
+    }
+
+    /**
+     * Reads the value at the buffer's position and advances past it.
+     *
+     * @throws IllegalArgumentException for types that aren't used by FLV or RTMP
+     */
+    public static Object readValue(ByteBuffer src)
+    {
+        int type = src.get() & 0xff;
+        switch (type) {
+            case TYPE_NUMBER:
+                return src.getDouble();
+            case TYPE_BOOLEAN:
+                return src.get() != 0;
+            case TYPE_STRING:
+                return readUtf8(src, src.getShort() & 0xffff);
+            case TYPE_LONG_STRING:
+                return readUtf8(src, src.getInt());
+            case TYPE_OBJECT:
+                return readProperties(src);
+            case TYPE_ECMA_ARRAY:
+                src.getInt();                       // count, not reliable
+                return readProperties(src);
+            case TYPE_STRICT_ARRAY:
+                int count = src.getInt();
+                List<Object> values = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    values.add(readValue(src));
+                }
+                return values;
+            case TYPE_NULL:
+            case TYPE_UNDEFINED:
+                return null;
+            default:
+                throw new IllegalArgumentException("Unsupported AMF0 type " + type);
+        }
+    }
+
+    private static Map<String, Object> readProperties(ByteBuffer src)
+    {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        while (true) {
+            String name = readUtf8(src, src.getShort() & 0xffff);
+            if (name.isEmpty() && src.get(src.position()) == TYPE_OBJECT_END) {
+                src.get();
+                return properties;
+            }
+            properties.put(name, readValue(src));
+        }
+    }
+
+    private static String readUtf8(ByteBuffer src, int length)
+    {
+        byte[] bytes = new byte[length];
+        src.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.teocci.libmediacodec.format;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * H.264 bitstream helpers shared by the pure-Java muxers.
+ * <p>
+ * MediaCodec AVC encoders emit Annex-B access units (start code prefixed NAL units),
+ * while ISO BMFF and FLV expect 4 byte length prefixes.
+ */
+public class AvcUtils
+{
+    public static final int NAL_TYPE_SLICE = 1;
+    public static final int NAL_TYPE_IDR = 5;
+    public static final int NAL_TYPE_SEI = 6;
+    public static final int NAL_TYPE_SPS = 7;
+    public static final int NAL_TYPE_PPS = 8;
+    public static final int NAL_TYPE_AUD = 9;
+
+    /**
+     * Returns the index of the first byte after the next 00 00 01 start code at or
+     * after {@code from}, or -1 if there is none before {@code limit}.
+     */
+    public static int findNalStart(ByteBuffer data, int from, int limit)
+    {
+        for (int i = from; i + 2 < limit; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the end of the NAL unit starting at {@code nalStart}: the index of the
+     * zero bytes of the following start code, or {@code limit}.
+     */
+    public static int findNalEnd(ByteBuffer data, int nalStart, int limit)
+    {
+        int next = findNalStart(data, nalStart, limit);
+        if (next < 0) return limit;
+
+        int end = next - 3;
+        // A four byte start code leaves one more zero byte behind the three byte prefix
+        while (end > nalStart && data.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    public static int getNalType(byte header)
+    {
+        return header & 0x1f;
+    }
+
+    /**
+     * Splits an Annex-B buffer, e.g. csd-0, into its NAL units.
+     * Allocates; meant for codec config only.
+     */
+    public static List<byte[]> splitNalUnits(ByteBuffer annexB)
+    {
+        List<byte[]> nals = new ArrayList<>();
+        int limit = annexB.limit();
+        int start = findNalStart(annexB, annexB.position(), limit);
+        while (start >= 0 && start < limit) {
+            int end = findNalEnd(annexB, start, limit);
+            byte[] nal = new byte[end - start];
+            for (int i = 0; i < nal.length; i++) {
+                nal[i] = annexB.get(start + i);
+            }
+            if (nal.length > 0) nals.add(nal);
+            start = findNalStart(annexB, end, limit);
+        }
+        return nals;
+    }
+
+    /**
+     * Copies an Annex-B access unit into {@code dst} replacing every start code
+     * with a 4 byte big-endian NAL length. Both buffers' positions are advanced.
+     *
+     * @return number of bytes written to dst
+     */
+    public static int annexBToAvcc(ByteBuffer src, ByteBuffer dst)
+    {
+        int written = 0;
+        int limit = src.limit();
+        int start = findNalStart(src, src.position(), limit);
+        if (start < 0) {
+            // Already length prefixed, or a single raw NAL without prefix
+            written = src.remaining();
+            dst.put(src);
+            return written;
+        }
+        while (start >= 0 && start < limit) {
+            int end = findNalEnd(src, start, limit);
+            int length = end - start;
+            dst.putInt(length);
+            ByteBuffer nal = src.duplicate();
+            nal.limit(end).position(start);
+            dst.put(nal);
+            written += 4 + length;
+            start = findNalStart(src, end, limit);
+        }
+        src.position(limit);
+        return written;
+    }
+
+    /**
+     * Returns true if the Annex-B access unit contains an IDR slice.
+     */
+    public static boolean containsIdr(ByteBuffer data)
+    {
+        int limit = data.limit();
+        int start = findNalStart(data, data.position(), limit);
+        while (start >= 0 && start < limit) {
+            if (getNalType(data.get(start)) == NAL_TYPE_IDR) return true;
+            start = findNalStart(data, start, limit);
+        }
+        return false;
+    }
+
+    /**
+     * Builds an AVCDecoderConfigurationRecord (ISO/IEC 14496-15 5.2.4.1), the payload
+     * of both the avcC box and the FLV AVC sequence header.
+     */
+    public static byte[] buildDecoderConfigurationRecord(byte[] sps, byte[] pps)
+    {
+        byte[] record = new byte[11 + sps.length + pps.length];
+        ByteBuffer out = ByteBuffer.wrap(record);
+        out.put((byte) 1);                  // configurationVersion
+        out.put(sps[1]);                    // AVCProfileIndication
+        out.put(sps[2]);                    // profile_compatibility
+        out.put(sps[3]);                    // AVCLevelIndication
+        out.put((byte) 0xff);               // 6 bits reserved + lengthSizeMinusOne = 3
+        out.put((byte) 0xe1);               // 3 bits reserved + numOfSequenceParameterSets = 1
+        out.putShort((short) sps.length);
+        out.put(sps);
+        out.put((byte) 1);                  // numOfPictureParameterSets
+        out.putShort((short) pps.length);
+        out.put(pps);
+        return record;
+    }
+}
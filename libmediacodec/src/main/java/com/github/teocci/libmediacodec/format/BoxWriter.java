@@ -0,0 +1,196 @@
+package com.github.teocci.libmediacodec.format;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Growable big-endian buffer used to serialize ISO BMFF boxes.
+ * <p>
+ * Boxes are opened with {@link #startBox(String)} and closed with {@link #endBox()},
+ * which back-patches the 32 bit size field. The backing buffer only grows, so a writer
+ * that is {@link #reset()} and reused for every fragment stops allocating once it
+ * has seen the largest box of the session.
+ */
+public class BoxWriter
+{
+    private static final int MAX_DEPTH = 16;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private ByteBuffer buffer;
+    private final int[] boxStarts = new int[MAX_DEPTH];
+    private int depth;
+
+    public BoxWriter(int initialCapacity)
+    {
+        buffer = ByteBuffer.allocate(initialCapacity);
+        depth = 0;
+    }
+
+    public void reset()
+    {
+        buffer.clear();
+        depth = 0;
+    }
+
+    public int position()
+    {
+        return buffer.position();
+    }
+
+    public BoxWriter startBox(String type)
+    {
+        if (depth == MAX_DEPTH)
+            throw new IllegalStateException("Boxes nested too deeply");
+        ensureCapacity(8);
+        boxStarts[depth++] = buffer.position();
+        buffer.putInt(0);
+        putFourCC(type);
+        return this;
+    }
+
+    public BoxWriter startFullBox(String type, int version, int flags)
+    {
+        startBox(type);
+        return put32((version << 24) | (flags & 0xffffff));
+    }
+
+    public BoxWriter endBox()
+    {
+        if (depth == 0)
+            throw new IllegalStateException("endBox called without a matching startBox");
+        int start = boxStarts[--depth];
+        buffer.putInt(start, buffer.position() - start);
+        return this;
+    }
+
+    public BoxWriter put8(int value)
+    {
+        ensureCapacity(1);
+        buffer.put((byte) value);
+        return this;
+    }
+
+    public BoxWriter put16(int value)
+    {
+        ensureCapacity(2);
+        buffer.putShort((short) value);
+        return this;
+    }
+
+    public BoxWriter put24(int value)
+    {
+        ensureCapacity(3);
+        buffer.put((byte) (value >> 16));
+        buffer.putShort((short) value);
+        return this;
+    }
+
+    public BoxWriter put32(int value)
+    {
+        ensureCapacity(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    public BoxWriter put32(long value)
+    {
+        return put32((int) value);
+    }
+
+    public BoxWriter put64(long value)
+    {
+        ensureCapacity(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    public BoxWriter putFourCC(String type)
+    {
+        if (type.length() != 4)
+            throw new IllegalArgumentException("Invalid box type: " + type);
+        return putBytes(type.getBytes(ASCII));
+    }
+
+    /**
+     * Writes a null terminated string, as used by hdlr names.
+     */
+    public BoxWriter putString(String value)
+    {
+        putBytes(value.getBytes(ASCII));
+        return put8(0);
+    }
+
+    public BoxWriter putBytes(byte[] bytes)
+    {
+        ensureCapacity(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    public BoxWriter putBytes(ByteBuffer bytes)
+    {
+        ensureCapacity(bytes.remaining());
+        buffer.put(bytes);
+        return this;
+    }
+
+    public BoxWriter putZeros(int count)
+    {
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            buffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    /**
+     * Overwrites a 32 bit value at an absolute position, e.g. a trun data_offset
+     * that is only known once the enclosing moof is complete.
+     */
+    public void patch32(int position, int value)
+    {
+        buffer.putInt(position, value);
+    }
+
+    /**
+     * Returns a read-only view of the bytes written so far.
+     */
+    public ByteBuffer asByteBuffer()
+    {
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        return view.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the buffered bytes to the channel and resets this writer.
+     *
+     * @return number of bytes written
+     */
+    public int writeTo(WritableByteChannel channel) throws IOException
+    {
+        if (depth != 0)
+            throw new IllegalStateException("Unclosed box");
+        buffer.flip();
+        int written = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    private void ensureCapacity(int extra)
+    {
+        if (buffer.remaining() >= extra) return;
+
+        int required = buffer.position() + extra;
+        int capacity = Math.max(required, buffer.capacity() * 2);
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
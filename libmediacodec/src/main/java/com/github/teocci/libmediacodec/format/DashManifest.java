@@ -0,0 +1,196 @@
+package com.github.teocci.libmediacodec.format;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Dynamic MPEG-DASH manifest (ISO/IEC 23009-1, live profile) for one multiplexed
+ * fragmented MP4 representation.
+ * <p>
+ * Segments are addressed with a {@code $Number$} SegmentTemplate of a nominal
+ * duration, so players derive which segments exist from the availabilityStartTime
+ * and the wall clock. The manifest lists no segments and keeps the same size however
+ * long the session runs: it only has to be written once the first segment is
+ * available, and once more when the session ends.
+ */
+public class DashManifest
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String initializationUri;
+    private final String mediaTemplate;
+    private final long segmentDurationUs;
+    private final int windowSize;
+    private final StringBuilder text = new StringBuilder(1024);
+    private final SimpleDateFormat dateFormat;
+
+    private String codecs = "";
+    private int width;
+    private int height;
+    private int sampleRate;
+    private int channelCount;
+    private long bandwidth;
+    private long availabilityStartTimeMs = -1;
+    private long durationUs = -1;
+
+    /**
+     * @param initializationUri uri of the init segment, relative to the manifest
+     * @param mediaTemplate     uri of the media segments with a {@code $Number$} placeholder
+     * @param segmentDurationUs nominal segment duration; segment n starts at (n - 1) times it
+     * @param windowSize        number of segments kept available, or 0 to keep all
+     */
+    public DashManifest(String initializationUri, String mediaTemplate, long segmentDurationUs, int windowSize)
+    {
+        if (!mediaTemplate.contains("$Number$"))
+            throw new IllegalArgumentException("Media template lacks $Number$: " + mediaTemplate);
+        if (windowSize < 0)
+            throw new IllegalArgumentException("Invalid manifest window size: " + windowSize);
+        this.initializationUri = initializationUri;
+        this.mediaTemplate = mediaTemplate;
+        this.segmentDurationUs = segmentDurationUs;
+        this.windowSize = windowSize;
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Describes the tracks multiplexed into every segment.
+     */
+    public void setTracks(TrackInfo[] tracks, int numTracks)
+    {
+        StringBuilder codecs = new StringBuilder();
+        for (int i = 0; i < numTracks; i++) {
+            TrackInfo track = tracks[i];
+            if (codecs.length() > 0) codecs.append(',');
+            if (track.isVideo()) {
+                byte[] sps = track.getSps();
+                codecs.append(String.format(Locale.US, "avc1.%02x%02x%02x", sps[1], sps[2], sps[3]));
+                width = track.getWidth();
+                height = track.getHeight();
+            } else {
+                byte[] config = track.getAudioSpecificConfig();
+                codecs.append("mp4a.40.").append((config[0] & 0xff) >> 3);
+                sampleRate = track.getSampleRate();
+                channelCount = track.getChannelCount();
+            }
+        }
+        this.codecs = codecs.toString();
+    }
+
+    /**
+     * @param bitsPerSecond bitrate of the representation, including both tracks
+     */
+    public void setBandwidth(long bitsPerSecond)
+    {
+        bandwidth = bitsPerSecond;
+    }
+
+    /**
+     * @param wallClockMs when media time 0 was captured, in milliseconds since the epoch
+     */
+    public void setAvailabilityStartTime(long wallClockMs)
+    {
+        availabilityStartTimeMs = wallClockMs;
+    }
+
+    public long getAvailabilityStartTime()
+    {
+        return availabilityStartTimeMs;
+    }
+
+    /**
+     * Marks the session complete. The manifest stays dynamic, so players keep their
+     * position, but carries the duration and no longer asks for updates.
+     */
+    public void end(long durationUs)
+    {
+        this.durationUs = durationUs;
+    }
+
+    public boolean isEnded()
+    {
+        return durationUs >= 0;
+    }
+
+    public String render()
+    {
+        if (availabilityStartTimeMs < 0)
+            throw new IllegalStateException("Availability start time not set");
+        text.setLength(0);
+        text.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        text.append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\"");
+        text.append(" profiles=\"urn:mpeg:dash:profile:isoff-live:2011\" type=\"dynamic\"");
+        text.append("\n    availabilityStartTime=\"").append(formatDate(availabilityStartTimeMs)).append('"');
+        text.append(" publishTime=\"").append(formatDate(System.currentTimeMillis())).append('"');
+        if (isEnded()) {
+            text.append("\n    mediaPresentationDuration=\"").append(formatDuration(durationUs)).append('"');
+        } else {
+            text.append("\n    minimumUpdatePeriod=\"").append(formatDuration(segmentDurationUs)).append('"');
+        }
+        text.append(" minBufferTime=\"").append(formatDuration(segmentDurationUs)).append('"');
+        text.append(" suggestedPresentationDelay=\"").append(formatDuration(2 * segmentDurationUs)).append('"');
+        if (windowSize > 0) {
+            text.append(" timeShiftBufferDepth=\"").append(formatDuration(windowSize * segmentDurationUs)).append('"');
+        }
+        text.append(">\n");
+        text.append("  <Period id=\"0\" start=\"PT0S\">\n");
+        text.append("    <AdaptationSet mimeType=\"video/mp4\" segmentAlignment=\"true\" startWithSAP=\"1\">\n");
+        text.append("      <SegmentTemplate timescale=\"1000\" duration=\"").append(segmentDurationUs / 1000).append('"');
+        text.append(" startNumber=\"1\" initialization=\"").append(initializationUri).append('"');
+        text.append(" media=\"").append(mediaTemplate).append("\"/>\n");
+        text.append("      <Representation id=\"0\" codecs=\"").append(codecs).append('"');
+        text.append(" bandwidth=\"").append(bandwidth).append('"');
+        if (width > 0) {
+            text.append(" width=\"").append(width).append("\" height=\"").append(height).append('"');
+        }
+        if (sampleRate > 0) {
+            text.append(" audioSamplingRate=\"").append(sampleRate).append("\">\n");
+            text.append("        <AudioChannelConfiguration schemeIdUri=\"urn:mpeg:dash:23003:3:audio_channel_configuration:2011\"");
+            text.append(" value=\"").append(channelCount).append("\"/>\n");
+            text.append("      </Representation>\n");
+        } else {
+            text.append("/>\n");
+        }
+        text.append("    </AdaptationSet>\n");
+        text.append("  </Period>\n");
+        text.append("</MPD>\n");
+        return text.toString();
+    }
+
+    /**
+     * Writes the manifest to a temporary file and renames it over {@code file}, so
+     * readers never observe a partially written manifest.
+     */
+    public void writeTo(File file) throws IOException
+    {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF_8);
+        try {
+            writer.write(render());
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to replace manifest " + file);
+        }
+    }
+
+    private String formatDate(long wallClockMs)
+    {
+        return dateFormat.format(new Date(wallClockMs));
+    }
+
+    private static String formatDuration(long us)
+    {
+        return String.format(Locale.US, "PT%.3fS", us / 1000000.0);
+    }
+}
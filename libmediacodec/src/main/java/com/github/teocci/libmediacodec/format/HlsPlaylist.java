@@ -0,0 +1,361 @@
+package com.github.teocci.libmediacodec.format;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * HLS media playlist (RFC 8216) with an optional sliding window.
+ * <p>
+ * EXT-X-TARGETDURATION is fixed when the playlist is created, as it may not change
+ * while the playlist is live (RFC 8216 6.2.1), so segments must be cut to fit it.
+ * <p>
+ * With a window size of 0 every segment is kept and the playlist is an EVENT
+ * playlist. Otherwise only the newest {@code windowSize} segments are listed and
+ * EXT-X-MEDIA-SEQUENCE advances as older ones are evicted.
+ * <p>
+ * With a part target the playlist is a Low-Latency HLS playlist: the segment being
+ * written is announced part by part, with a preload hint for the next part, and
+ * {@link #render(boolean)} can produce delta updates. The lines of segments whose
+ * parts are no longer listed are rendered once and kept, so a playlist update costs
+ * a copy of that text rather than formatting every segment again.
+ * <p>
+ * All methods may be called from any thread, e.g. by an origin server answering
+ * blocking playlist reloads with {@link #awaitPart(long, int, long)}.
+ */
+public class HlsPlaylist
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Parts are listed for the segments this many target durations from the end
+    private static final int PART_RETENTION_TARGET_DURATIONS = 3;
+    // Delta updates skip the segments further than this many target durations from the end
+    private static final int SKIP_BOUNDARY_TARGET_DURATIONS = 6;
+
+    private final int windowSize;
+    private final long partTargetUs;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    // The segments still listed with their parts, the newest of segments
+    private final ArrayDeque<Segment> recentSegments = new ArrayDeque<>();
+    private final List<Part> pendingParts = new ArrayList<>();
+    private final StringBuilder text = new StringBuilder(1024);
+
+    // Rendered lines of the listed segments not in recentSegments, from renderedStart on
+    private final StringBuilder renderedSegments = new StringBuilder(1024);
+    private int renderedStart;
+    private long recentDurationUs;
+
+    private final long targetDurationUs;
+    private long mediaSequence;
+    private boolean ended;
+    private String preloadHintUri;
+    private long preloadHintOffset;
+
+    /**
+     * @param targetDurationUs longest segment; EXT-X-TARGETDURATION is this rounded up to
+     *                         whole seconds
+     * @param windowSize       number of segments to keep listed, or 0 to keep all
+     */
+    public HlsPlaylist(long targetDurationUs, int windowSize)
+    {
+        this(targetDurationUs, windowSize, 0);
+    }
+
+    /**
+     * @param partTargetUs longest partial segment, or 0 for a playlist without parts
+     */
+    public HlsPlaylist(long targetDurationUs, int windowSize, long partTargetUs)
+    {
+        if (targetDurationUs <= 0)
+            throw new IllegalArgumentException("Invalid target duration: " + targetDurationUs);
+        if (windowSize < 0)
+            throw new IllegalArgumentException("Invalid playlist window size: " + windowSize);
+        if (partTargetUs < 0 || partTargetUs > targetDurationUs)
+            throw new IllegalArgumentException("Invalid part target: " + partTargetUs);
+        this.targetDurationUs = targetDurationUs;
+        this.windowSize = windowSize;
+        this.partTargetUs = partTargetUs;
+        mediaSequence = 0;
+        ended = false;
+    }
+
+    /**
+     * Announces the next part of the segment being written, as a byte range of it.
+     */
+    public synchronized void addPart(String uri, long offset, long length, long durationUs, boolean isIndependent)
+    {
+        if (partTargetUs == 0)
+            throw new IllegalStateException("Playlist has no partial segments");
+        pendingParts.add(new Part(uri, offset, length, durationUs, isIndependent));
+        notifyAll();
+    }
+
+    /**
+     * @param uri    the segment the next part will be written to
+     * @param offset where in it the next part will start
+     */
+    public synchronized void setPreloadHint(String uri, long offset)
+    {
+        preloadHintUri = uri;
+        preloadHintOffset = offset;
+    }
+
+    /**
+     * Appends a completed segment, along with the parts announced for it. Rounded to
+     * whole seconds, its duration should not exceed the target duration, see
+     * {@link #fitsTargetDuration(long)}.
+     *
+     * @return the uri of the segment that slid out of the window, or null
+     */
+    public synchronized String addSegment(String uri, long durationUs)
+    {
+        Segment segment = new Segment(uri, durationUs, pendingParts.isEmpty() ? null : new ArrayList<>(pendingParts));
+        pendingParts.clear();
+        segments.addLast(segment);
+        recentSegments.addLast(segment);
+        recentDurationUs += durationUs;
+
+        long retentionUs = partTargetUs > 0 ? PART_RETENTION_TARGET_DURATIONS * targetDurationUs : 0;
+        while (!recentSegments.isEmpty() && recentDurationUs - recentSegments.peekFirst().durationUs >= retentionUs) {
+            Segment recent = recentSegments.removeFirst();
+            recentDurationUs -= recent.durationUs;
+            int start = renderedSegments.length();
+            appendSegment(renderedSegments, recent, false);
+            recent.renderedLength = renderedSegments.length() - start;
+            recent.parts = null;
+        }
+
+        String expired = null;
+        if (windowSize > 0 && segments.size() > windowSize) {
+            mediaSequence++;
+            Segment evicted = segments.removeFirst();
+            if (evicted.renderedLength > 0) {
+                renderedStart += evicted.renderedLength;
+                if (renderedStart > renderedSegments.length() / 2) {
+                    renderedSegments.delete(0, renderedStart);
+                    renderedStart = 0;
+                }
+            } else {
+                recentSegments.removeFirst();
+                recentDurationUs -= evicted.durationUs;
+            }
+            expired = evicted.uri;
+        }
+        notifyAll();
+        return expired;
+    }
+
+    /**
+     * Marks the playlist complete; the next render carries EXT-X-ENDLIST.
+     */
+    public synchronized void end()
+    {
+        ended = true;
+        preloadHintUri = null;
+        notifyAll();
+    }
+
+    public synchronized boolean isEnded()
+    {
+        return ended;
+    }
+
+    public synchronized int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    public synchronized long getMediaSequence()
+    {
+        return mediaSequence;
+    }
+
+    /**
+     * @return EXT-X-TARGETDURATION in seconds
+     */
+    public int getTargetDuration()
+    {
+        return (int) ((targetDurationUs + 999999) / 1000000);
+    }
+
+    /**
+     * @return true if a segment of {@code durationUs}, rounded to the nearest second as
+     * clients do, is no longer than the target duration
+     */
+    public boolean fitsTargetDuration(long durationUs)
+    {
+        return (durationUs + 500000) / 1000000 <= getTargetDuration();
+    }
+
+    /**
+     * Blocks until the playlist holds part {@code part} of the segment with media
+     * sequence number {@code msn}, or all of that segment if {@code part} is negative,
+     * as a server must before answering a _HLS_msn / _HLS_part playlist request.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public synchronized boolean awaitPart(long msn, int part, long timeoutMs) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!ended) {
+            long nextMsn = mediaSequence + segments.size();
+            if (msn < nextMsn || (msn == nextMsn && part >= 0 && part < pendingParts.size())) {
+                return true;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public String render()
+    {
+        return render(false);
+    }
+
+    /**
+     * @param skip render a delta update, replacing the segments older than the skip
+     *             boundary with an EXT-X-SKIP tag, as requested by _HLS_skip=YES
+     */
+    public synchronized String render(boolean skip)
+    {
+        boolean isLowLatency = partTargetUs > 0;
+        int targetDuration = getTargetDuration();
+        text.setLength(0);
+        text.append("#EXTM3U\n");
+        text.append("#EXT-X-VERSION:").append(isLowLatency ? 9 : 3).append('\n');
+        text.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
+        if (isLowLatency) {
+            text.append(String.format(Locale.US,
+                    "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,CAN-SKIP-UNTIL=%d,PART-HOLD-BACK=%.3f\n",
+                    SKIP_BOUNDARY_TARGET_DURATIONS * targetDuration, 3 * partTargetUs / 1000000.0));
+            text.append(String.format(Locale.US, "#EXT-X-PART-INF:PART-TARGET=%.3f\n", partTargetUs / 1000000.0));
+        }
+        text.append("#EXT-X-MEDIA-SEQUENCE:").append(mediaSequence).append('\n');
+        if (windowSize == 0) {
+            text.append("#EXT-X-PLAYLIST-TYPE:EVENT\n");
+        }
+
+        // Rendered segments, or the ones within the skip boundary of a delta update
+        int renderedFrom = renderedStart;
+        if (skip && isLowLatency) {
+            long skipBoundaryUs = SKIP_BOUNDARY_TARGET_DURATIONS * targetDuration * 1000000L;
+            long durationUs = 0;
+            int keptLength = 0;
+            int kept = 0;
+            Iterator<Segment> newestFirst = segments.descendingIterator();
+            while (newestFirst.hasNext()) {
+                Segment segment = newestFirst.next();
+                durationUs += segment.durationUs;
+                if (durationUs > skipBoundaryUs) break;
+                keptLength += segment.renderedLength;
+                kept++;
+            }
+            int skipped = segments.size() - kept;
+            if (skipped > 0) {
+                text.append("#EXT-X-SKIP:SKIPPED-SEGMENTS=").append(skipped).append('\n');
+                renderedFrom = renderedSegments.length() - keptLength;
+            }
+        }
+        text.append(renderedSegments, renderedFrom, renderedSegments.length());
+
+        for (Segment segment : recentSegments) {
+            appendSegment(text, segment, true);
+        }
+        for (Part part : pendingParts) {
+            appendPart(text, part);
+        }
+        if (preloadHintUri != null && isLowLatency) {
+            text.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"").append(preloadHintUri)
+                    .append("\",BYTERANGE-START=").append(preloadHintOffset).append('\n');
+        }
+        if (ended) {
+            text.append("#EXT-X-ENDLIST\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes the playlist to a temporary file and renames it over {@code file}, so
+     * readers never observe a partially written playlist.
+     */
+    public void writeTo(File file) throws IOException
+    {
+        String playlist = render();
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF_8);
+        try {
+            writer.write(playlist);
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to replace playlist " + file);
+        }
+    }
+
+    private static void appendSegment(StringBuilder out, Segment segment, boolean withParts)
+    {
+        if (withParts && segment.parts != null) {
+            for (Part part : segment.parts) {
+                appendPart(out, part);
+            }
+        }
+        out.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationUs / 1000000.0));
+        out.append(segment.uri).append('\n');
+    }
+
+    private static void appendPart(StringBuilder out, Part part)
+    {
+        out.append(String.format(Locale.US, "#EXT-X-PART:DURATION=%.3f,URI=\"", part.durationUs / 1000000.0));
+        out.append(part.uri).append("\",BYTERANGE=\"").append(part.length).append('@').append(part.offset).append('"');
+        if (part.isIndependent) {
+            out.append(",INDEPENDENT=YES");
+        }
+        out.append('\n');
+    }
+
+    private static class Segment
+    {
+        final String uri;
+        final long durationUs;
+        List<Part> parts;
+        // Length of its lines in renderedSegments, 0 while it is a recent segment
+        int renderedLength;
+
+        Segment(String uri, long durationUs, List<Part> parts)
+        {
+            this.uri = uri;
+            this.durationUs = durationUs;
+            this.parts = parts;
+        }
+    }
+
+    private static class Part
+    {
+        final String uri;
+        final long offset;
+        final long length;
+        final long durationUs;
+        final boolean isIndependent;
+
+        Part(String uri, long offset, long length, long durationUs, boolean isIndependent)
+        {
+            this.uri = uri;
+            this.offset = offset;
+            this.length = length;
+            this.durationUs = durationUs;
+            this.isIndependent = isIndependent;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.teocci.libmediacodec.format;
+
+/**
+ * Log2 histogram of operation latencies, cheap enough to record every call on a hot path.
+ * <p>
+ * Bucket {@code i} counts latencies from 2^i up to 2^(i+1) microseconds, bucket 0 also
+ * everything faster. Percentiles are reported as the upper bound of their bucket, so
+ * they are within a factor of two of the real value. That is enough to tell fast
+ * storage from slow storage, and a steady write path from one with periodic stalls.
+ *
+ * @hide
+ */
+public class LatencyHistogram
+{
+    private static final int BUCKETS = 32;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public synchronized void record(long nanos)
+    {
+        long micros = nanos / 1000;
+        int bucket = micros <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+        counts[Math.min(bucket, BUCKETS - 1)]++;
+        count++;
+        totalNanos += nanos;
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+    }
+
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    public synchronized long getMaxNanos()
+    {
+        return maxNanos;
+    }
+
+    public synchronized long getMeanNanos()
+    {
+        return count == 0 ? 0 : totalNanos / count;
+    }
+
+    /**
+     * @param percentile e.g. 99 for the latency 99% of the operations didn't exceed
+     * @return the upper bound of the bucket holding that percentile, in nanoseconds
+     */
+    public synchronized long getPercentileNanos(double percentile)
+    {
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(maxNanos, (2L << i) * 1000);
+            }
+        }
+        return maxNanos;
+    }
+
+    /**
+     * @return a copy of the bucket counts, see the class documentation for their bounds
+     */
+    public synchronized long[] getBucketCounts()
+    {
+        return counts.clone();
+    }
+
+    public synchronized void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "n " + count
+                + " mean " + getMeanNanos() / 1000 + " us"
+                + " p50 " + getPercentileNanos(50) / 1000 + " us"
+                + " p99 " + getPercentileNanos(99) / 1000 + " us"
+                + " max " + maxNanos / 1000 + " us";
+    }
+}
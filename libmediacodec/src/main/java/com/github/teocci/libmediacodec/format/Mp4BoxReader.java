@@ -0,0 +1,184 @@
+package com.github.teocci.libmediacodec.format;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal ISO BMFF reader. Top level boxes are walked on the file channel without
+ * reading their payload, and metadata boxes such as moov are parsed from memory.
+ */
+public class Mp4BoxReader
+{
+    /**
+     * Location of a box in a file.
+     */
+    public static class BoxHeader
+    {
+        public final String type;
+        public final long offset;
+        public final int headerSize;
+        public final long size;
+
+        BoxHeader(String type, long offset, int headerSize, long size)
+        {
+            this.type = type;
+            this.offset = offset;
+            this.headerSize = headerSize;
+            this.size = size;
+        }
+
+        public long getPayloadOffset()
+        {
+            return offset + headerSize;
+        }
+
+        public long getEnd()
+        {
+            return offset + size;
+        }
+
+        @Override
+        public String toString()
+        {
+            return type + "@" + offset + "[" + size + "]";
+        }
+    }
+
+    /**
+     * Lists the top level boxes of a file. A box whose declared size runs past the
+     * end of the file, as left behind by an interrupted writer, is clipped to the file end.
+     */
+    public static List<BoxHeader> readTopLevelBoxes(FileChannel channel) throws IOException
+    {
+        List<BoxHeader> boxes = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long fileSize = channel.size();
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            header.limit((int) Math.min(16, fileSize - position));
+            readFully(channel, header, position);
+            header.flip();
+            long size = header.getInt() & 0xffffffffL;
+            String type = readFourCC(header);
+            int headerSize = 8;
+            if (size == 1 && header.remaining() >= 8) {
+                size = header.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize) break;
+            size = Math.min(size, fileSize - position);
+            boxes.add(new BoxHeader(type, position, headerSize, size));
+            position += size;
+        }
+        return boxes;
+    }
+
+    /**
+     * Reads the payload of a box, i.e. everything after its header, into memory.
+     */
+    public static ByteBuffer readPayload(FileChannel channel, BoxHeader box) throws IOException
+    {
+        long length = box.size - box.headerSize;
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Box too large to read into memory: " + box);
+        ByteBuffer payload = ByteBuffer.allocate((int) length);
+        readFully(channel, payload, box.getPayloadOffset());
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Returns the payload of the first child of {@code container} with the given type,
+     * or null. The container's position is left untouched.
+     */
+    public static ByteBuffer findBox(ByteBuffer container, String type)
+    {
+        List<ByteBuffer> boxes = findBoxes(container, type, true);
+        return boxes.isEmpty() ? null : boxes.get(0);
+    }
+
+    public static List<ByteBuffer> findBoxes(ByteBuffer container, String type)
+    {
+        return findBoxes(container, type, false);
+    }
+
+    /**
+     * Returns the whole box, header included, of the first child with the given type.
+     */
+    public static ByteBuffer findBoxWithHeader(ByteBuffer container, String type)
+    {
+        int position = container.position();
+        while (position + 8 <= container.limit()) {
+            int size = container.getInt(position);
+            if (size < 8 || position + size > container.limit()) break;
+            if (matchesType(container, position + 4, type)) {
+                return slice(container, position, size);
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    public static String readFourCC(ByteBuffer buffer)
+    {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) (buffer.get() & 0xff);
+        }
+        return new String(chars);
+    }
+
+    public static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException
+    {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) throw new EOFException("Unexpected end of file at " + position);
+            position += read;
+        }
+    }
+
+    private static List<ByteBuffer> findBoxes(ByteBuffer container, String type, boolean firstOnly)
+    {
+        List<ByteBuffer> boxes = new ArrayList<>();
+        int position = container.position();
+        while (position + 8 <= container.limit()) {
+            long size = container.getInt(position) & 0xffffffffL;
+            int headerSize = 8;
+            if (size == 1) {
+                size = container.getLong(position + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = container.limit() - position;
+            }
+            if (size < headerSize || position + size > container.limit()) break;
+            if (matchesType(container, position + 4, type)) {
+                boxes.add(slice(container, position + headerSize, (int) size - headerSize));
+                if (firstOnly) break;
+            }
+            position += size;
+        }
+        return boxes;
+    }
+
+    private static boolean matchesType(ByteBuffer buffer, int position, String type)
+    {
+        for (int i = 0; i < 4; i++) {
+            if ((buffer.get(position + i) & 0xff) != type.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length)
+    {
+        ByteBuffer copy = buffer.duplicate();
+        copy.limit(offset + length).position(offset);
+        return copy.slice();
+    }
+}
@@ -0,0 +1,266 @@
+package com.github.teocci.libmediacodec.format;
+
+import java.util.List;
+
+/**
+ * Serializers for the ISO BMFF (ISO/IEC 14496-12) boxes written by the pure-Java muxers.
+ */
+public class Mp4Boxes
+{
+    public static final int MOVIE_TIMESCALE = 1000;
+
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+    private static final int LANGUAGE_UNDETERMINED = 0x55c4;       // packed ISO-639-2/T "und"
+
+    public static void writeFtyp(BoxWriter w, String majorBrand, int minorVersion, String... compatibleBrands)
+    {
+        w.startBox("ftyp");
+        w.putFourCC(majorBrand);
+        w.put32(minorVersion);
+        for (String brand : compatibleBrands) {
+            w.putFourCC(brand);
+        }
+        w.endBox();
+    }
+
+    /**
+     * @param duration    in {@link #MOVIE_TIMESCALE} units, 0 if unknown (fragmented files)
+     * @param nextTrackId one greater than the largest track id in use
+     */
+    public static void writeMvhd(BoxWriter w, long duration, int nextTrackId)
+    {
+        boolean wide = duration > 0xffffffffL;
+        w.startFullBox("mvhd", wide ? 1 : 0, 0);
+        putTimes(w, wide);
+        w.put32(MOVIE_TIMESCALE);
+        putDuration(w, duration, wide);
+        w.put32(0x00010000);                // rate 1.0
+        w.put16(0x0100);                    // volume 1.0
+        w.putZeros(10);                     // reserved
+        putMatrix(w, UNITY_MATRIX);
+        w.putZeros(24);                     // pre_defined
+        w.put32(nextTrackId);
+        w.endBox();
+    }
+
+    /**
+     * Writes a trak box.
+     *
+     * @param samples       the sample table, or null to leave it empty as required for
+     *                      fragmented files where samples are described by moof boxes
+     * @param mediaDuration in the track's timescale
+     * @param movieDuration in {@link #MOVIE_TIMESCALE} units
+     */
+    public static void writeTrak(BoxWriter w, TrackInfo track, SampleTable samples,
+                                 long mediaDuration, long movieDuration)
+    {
+        w.startBox("trak");
+        writeTkhd(w, track, movieDuration);
+        w.startBox("mdia");
+        writeMdhd(w, track, mediaDuration);
+        writeHdlr(w, track);
+        w.startBox("minf");
+        writeMediaHeader(w, track);
+        writeDinf(w);
+        w.startBox("stbl");
+        writeStsd(w, track);
+        if (samples != null) {
+            samples.write(w);
+        } else {
+            w.startFullBox("stts", 0, 0).put32(0).endBox();
+            w.startFullBox("stsc", 0, 0).put32(0).endBox();
+            w.startFullBox("stsz", 0, 0).put32(0).put32(0).endBox();
+            w.startFullBox("stco", 0, 0).put32(0).endBox();
+        }
+        w.endBox();                         // stbl
+        w.endBox();                         // minf
+        w.endBox();                         // mdia
+        w.endBox();                         // trak
+    }
+
+    /**
+     * Writes the mvex box announcing that the movie continues in fragments.
+     */
+    public static void writeMvex(BoxWriter w, TrackInfo[] tracks, int numTracks)
+    {
+        w.startBox("mvex");
+        for (int i = 0; i < numTracks; i++) {
+            w.startFullBox("trex", 0, 0);
+            w.put32(tracks[i].getTrackId());
+            w.put32(1);                     // default_sample_description_index
+            w.put32(0);                     // default_sample_duration
+            w.put32(0);                     // default_sample_size
+            w.put32(0);                     // default_sample_flags
+            w.endBox();
+        }
+        w.endBox();
+    }
+
+    static void writeTkhd(BoxWriter w, TrackInfo track, long movieDuration)
+    {
+        boolean wide = movieDuration > 0xffffffffL;
+        w.startFullBox("tkhd", wide ? 1 : 0, 0x000007);     // enabled, in movie, in preview
+        putTimes(w, wide);
+        w.put32(track.getTrackId());
+        w.put32(0);                         // reserved
+        putDuration(w, movieDuration, wide);
+        w.putZeros(8);                      // reserved
+        w.put16(0);                         // layer
+        w.put16(0);                         // alternate_group
+        w.put16(track.isAudio() ? 0x0100 : 0);
+        w.put16(0);                         // reserved
+        putMatrix(w, track.getMatrix());
+        w.put32(track.getWidth() << 16);
+        w.put32(track.getHeight() << 16);
+        w.endBox();
+    }
+
+    static void writeMdhd(BoxWriter w, TrackInfo track, long mediaDuration)
+    {
+        boolean wide = mediaDuration > 0xffffffffL;
+        w.startFullBox("mdhd", wide ? 1 : 0, 0);
+        putTimes(w, wide);
+        w.put32(track.getTimescale());
+        putDuration(w, mediaDuration, wide);
+        w.put16(LANGUAGE_UNDETERMINED);
+        w.put16(0);                         // pre_defined
+        w.endBox();
+    }
+
+    static void writeHdlr(BoxWriter w, TrackInfo track)
+    {
+        w.startFullBox("hdlr", 0, 0);
+        w.put32(0);                         // pre_defined
+        w.putFourCC(track.getHandlerType());
+        w.putZeros(12);                     // reserved
+        w.putString(track.isVideo() ? "VideoHandler" : "SoundHandler");
+        w.endBox();
+    }
+
+    static void writeMediaHeader(BoxWriter w, TrackInfo track)
+    {
+        if (track.isVideo()) {
+            w.startFullBox("vmhd", 0, 1);
+            w.putZeros(8);                  // graphicsmode + opcolor
+            w.endBox();
+        } else {
+            w.startFullBox("smhd", 0, 0);
+            w.put32(0);                     // balance + reserved
+            w.endBox();
+        }
+    }
+
+    static void writeDinf(BoxWriter w)
+    {
+        w.startBox("dinf");
+        w.startFullBox("dref", 0, 0);
+        w.put32(1);
+        w.startFullBox("url ", 0, 1);       // media data is in this file
+        w.endBox();
+        w.endBox();
+        w.endBox();
+    }
+
+    static void writeStsd(BoxWriter w, TrackInfo track)
+    {
+        w.startFullBox("stsd", 0, 0);
+        List<byte[]> entries = track.getSampleEntries();
+        if (entries != null) {
+            w.put32(entries.size());
+            for (byte[] entry : entries) {
+                w.putBytes(entry);
+            }
+            w.endBox();
+            return;
+        }
+        w.put32(1);
+        if (TrackInfo.MIME_AVC.equals(track.getMime())) {
+            writeAvc1(w, track);
+        } else if (TrackInfo.MIME_AAC.equals(track.getMime())) {
+            writeMp4a(w, track);
+        } else {
+            throw new IllegalArgumentException("No sample entry for " + track.getMime());
+        }
+        w.endBox();
+    }
+
+    private static void writeAvc1(BoxWriter w, TrackInfo track)
+    {
+        w.startBox("avc1");
+        w.putZeros(6);                      // reserved
+        w.put16(1);                         // data_reference_index
+        w.putZeros(16);                     // pre_defined + reserved
+        w.put16(track.getWidth());
+        w.put16(track.getHeight());
+        w.put32(0x00480000);                // 72 dpi
+        w.put32(0x00480000);
+        w.put32(0);                         // reserved
+        w.put16(1);                         // frame_count
+        w.putZeros(32);                     // compressorname
+        w.put16(0x0018);                    // depth
+        w.put16(0xffff);                    // pre_defined = -1
+        w.startBox("avcC");
+        w.putBytes(AvcUtils.buildDecoderConfigurationRecord(track.getSps(), track.getPps()));
+        w.endBox();
+        w.endBox();
+    }
+
+    private static void writeMp4a(BoxWriter w, TrackInfo track)
+    {
+        byte[] asc = track.getAudioSpecificConfig();
+        w.startBox("mp4a");
+        w.putZeros(6);                      // reserved
+        w.put16(1);                         // data_reference_index
+        w.putZeros(8);                      // reserved
+        w.put16(track.getChannelCount());
+        w.put16(16);                        // samplesize
+        w.put32(0);                         // pre_defined + reserved
+        w.put32(track.getSampleRate() << 16);
+        w.startFullBox("esds", 0, 0);
+        // ES_Descriptor
+        w.put8(0x03).put8(23 + asc.length);
+        w.put16(track.getTrackId());
+        w.put8(0);                          // flags
+        // DecoderConfigDescriptor
+        w.put8(0x04).put8(15 + asc.length);
+        w.put8(0x40);                       // objectTypeIndication: MPEG-4 audio
+        w.put8(0x15);                       // streamType audio, upstream 0, reserved 1
+        w.put24(0);                         // bufferSizeDB
+        w.put32(0);                         // maxBitrate
+        w.put32(0);                         // avgBitrate
+        // DecoderSpecificInfo
+        w.put8(0x05).put8(asc.length);
+        w.putBytes(asc);
+        // SLConfigDescriptor
+        w.put8(0x06).put8(1).put8(0x02);
+        w.endBox();
+        w.endBox();
+    }
+
+    private static void putTimes(BoxWriter w, boolean wide)
+    {
+        if (wide) {
+            w.put64(0);
+            w.put64(0);
+        } else {
+            w.put32(0);
+            w.put32(0);
+        }
+    }
+
+    private static void putDuration(BoxWriter w, long duration, boolean wide)
+    {
+        if (wide) {
+            w.put64(duration);
+        } else {
+            w.put32(duration);
+        }
+    }
+
+    private static void putMatrix(BoxWriter w, int[] matrix)
+    {
+        for (int value : matrix) {
+            w.put32(value);
+        }
+    }
+}
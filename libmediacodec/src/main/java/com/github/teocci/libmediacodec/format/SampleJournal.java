@@ -0,0 +1,365 @@
+package com.github.teocci.libmediacodec.format;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Append-only, memory-mapped record of every sample handed to a muxer.
+ * <p>
+ * A container like MPEG-4 only becomes playable once its index is written at the end
+ * of the recording. If the process dies first, the journal still describes each sample
+ * that reached the output: its track, size, offset, timestamp and flags, plus the format
+ * and codec config (csd-0/csd-1) of every track. That is enough to rebuild the index.
+ * <p>
+ * The file is a 32 byte header followed by 32 byte records. A track record is followed
+ * by its serialized format, padded to a multiple of 32 bytes. Records are written
+ * through a mapping, so appending one is a handful of stores into the page cache. The
+ * kind byte of a record is stored last and the file is zero-filled ahead of the writer,
+ * so a reader stops cleanly at the first record that wasn't completely written.
+ *
+ * @hide
+ */
+public class SampleJournal
+{
+    private static final String TAG = SampleJournal.class.getSimpleName();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final String FILE_SUFFIX = ".journal";
+
+    public static final int MAGIC = 0x534a524e;          // "SJRN"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 32;
+
+    public static final byte KIND_END = 0;
+    public static final byte KIND_SAMPLE = 1;
+    public static final byte KIND_TRACK = 2;
+
+    /**
+     * Header flag: sample offsets are positions in the output file. Without it they
+     * count the sample bytes written before each sample, e.g. for android.media.MediaMuxer
+     * which decides the file layout itself.
+     */
+    public static final int FLAG_FILE_OFFSETS = 1;
+
+    private static final int REGION_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long position;
+    private int sequence;
+    private long streamOffset;
+    private boolean isClosed;
+
+    private SampleJournal(File file, int flags) throws IOException
+    {
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        map(0, REGION_SIZE);
+        region.putInt(0, MAGIC);
+        region.putInt(4, VERSION);
+        region.putInt(8, RECORD_SIZE);
+        region.putInt(12, flags);
+        region.putLong(16, System.currentTimeMillis());
+        position = HEADER_SIZE;
+    }
+
+    /**
+     * Creates the journal for {@code outputPath}, replacing any previous one.
+     *
+     * @param flags {@link #FLAG_FILE_OFFSETS} or 0
+     */
+    public static SampleJournal create(String outputPath, int flags) throws IOException
+    {
+        return new SampleJournal(getJournalFile(outputPath), flags);
+    }
+
+    public static File getJournalFile(String outputPath)
+    {
+        return new File(outputPath + FILE_SUFFIX);
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Records the output format of a track as passed to addTrack.
+     */
+    public void appendTrack(int trackIndex, MediaFormat format)
+    {
+        if (isClosed) return;
+        byte[] payload = serializeFormat(format);
+        int paddedLength = (payload.length + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+        long recordPosition = reserve(RECORD_SIZE + paddedLength);
+        if (recordPosition < 0) return;
+        int index = (int) (recordPosition - regionStart);
+        region.putInt(index + 4, payload.length);
+        region.putInt(index + 28, sequence++);
+        ByteBuffer payloadRegion = region.duplicate();
+        payloadRegion.position(index + RECORD_SIZE);
+        payloadRegion.put(payload);
+        region.put(index + 1, (byte) trackIndex);
+        region.put(index, KIND_TRACK);
+    }
+
+    /**
+     * Records a sample whose offset counts the sample bytes journaled before it.
+     */
+    public void appendSample(int trackIndex, int size, long ptsUs, int flags)
+    {
+        appendSample(trackIndex, streamOffset, size, ptsUs, flags);
+    }
+
+    public void appendSample(int trackIndex, long offset, int size, long ptsUs, int flags)
+    {
+        if (isClosed) return;
+        long recordPosition = reserve(RECORD_SIZE);
+        if (recordPosition < 0) return;
+        int index = (int) (recordPosition - regionStart);
+        region.putInt(index + 4, size);
+        region.putLong(index + 8, offset);
+        region.putLong(index + 16, ptsUs);
+        region.putInt(index + 24, flags);
+        region.putInt(index + 28, sequence++);
+        region.put(index + 1, (byte) trackIndex);
+        region.put(index, KIND_SAMPLE);
+        streamOffset += size;
+    }
+
+    /**
+     * Forces journaled records to storage, e.g. after a keyframe. Without it the
+     * records survive the process being killed, but not the device losing power.
+     */
+    public void sync()
+    {
+        if (!isClosed) region.force();
+    }
+
+    /**
+     * Closes the journal and keeps the file, e.g. because the output wasn't finalized.
+     */
+    public void close()
+    {
+        if (isClosed) return;
+        isClosed = true;
+        try {
+            region.force();
+            region = null;
+            channel.truncate(position + RECORD_SIZE);    // keep a zeroed end record
+            raf.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed closing journal " + file, e);
+        }
+    }
+
+    /**
+     * Closes and deletes the journal once the output it describes is complete.
+     */
+    public void delete()
+    {
+        close();
+        if (!file.delete()) {
+            Log.w(TAG, "Failed deleting journal " + file);
+        }
+    }
+
+    /**
+     * @return the file position of a record of {@code length} bytes, mapping more of the
+     * file if needed, or -1 if the journal couldn't grow
+     */
+    private long reserve(int length)
+    {
+        long recordPosition = position;
+        // Keep room for the zeroed end record after this one
+        if (recordPosition + length + RECORD_SIZE > regionStart + region.capacity()) {
+            try {
+                map(recordPosition, Math.max(REGION_SIZE, length + RECORD_SIZE));
+            } catch (IOException e) {
+                // Storage is likely full. The recording matters more than its journal
+                Log.e(TAG, "Failed growing journal " + file + ", journaling stopped", e);
+                close();
+                return -1;
+            }
+        }
+        position += length;
+        return recordPosition;
+    }
+
+    private void map(long start, int size) throws IOException
+    {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        regionStart = start;
+    }
+
+    private static byte[] serializeFormat(MediaFormat format)
+    {
+        byte[] mime = getString(format, MediaFormat.KEY_MIME).getBytes(UTF8);
+        byte[] csd0 = getBytes(format, "csd-0");
+        byte[] csd1 = getBytes(format, "csd-1");
+        ByteBuffer out = ByteBuffer.allocate(4 + mime.length + 16 + 4 + csd0.length + 4 + csd1.length);
+        out.putInt(mime.length).put(mime);
+        out.putInt(getInteger(format, MediaFormat.KEY_WIDTH));
+        out.putInt(getInteger(format, MediaFormat.KEY_HEIGHT));
+        out.putInt(getInteger(format, MediaFormat.KEY_SAMPLE_RATE));
+        out.putInt(getInteger(format, MediaFormat.KEY_CHANNEL_COUNT));
+        out.putInt(csd0.length).put(csd0);
+        out.putInt(csd1.length).put(csd1);
+        return out.array();
+    }
+
+    private static String getString(MediaFormat format, String key)
+    {
+        String value = format != null && format.containsKey(key) ? format.getString(key) : null;
+        return value != null ? value : "";
+    }
+
+    private static int getInteger(MediaFormat format, String key)
+    {
+        return format != null && format.containsKey(key) ? format.getInteger(key) : 0;
+    }
+
+    private static byte[] getBytes(MediaFormat format, String key)
+    {
+        ByteBuffer buffer = format != null && format.containsKey(key) ? format.getByteBuffer(key) : null;
+        if (buffer == null) return new byte[0];
+        ByteBuffer copy = buffer.duplicate();
+        copy.rewind();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Streams the records of a journal, e.g. one left behind by a crashed recording.
+     */
+    public static class Reader implements Closeable
+    {
+        private final DataInputStream in;
+        private final int flags;
+
+        // The record returned by the last call to next()
+        public int trackIndex;
+        public int size;
+        public long offset;
+        public long ptsUs;
+        public int sampleFlags;
+        public TrackFormat trackFormat;
+
+        public Reader(File file) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            try {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("Not a sample journal: " + file);
+                int version = in.readInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported journal version " + version + ": " + file);
+                if (in.readInt() != RECORD_SIZE)
+                    throw new IOException("Unexpected journal record size: " + file);
+                flags = in.readInt();
+                in.skipBytes(HEADER_SIZE - 16);
+            } catch (EOFException e) {
+                in.close();
+                throw new IOException("Truncated journal header: " + file, e);
+            }
+        }
+
+        public int getFlags()
+        {
+            return flags;
+        }
+
+        /**
+         * Reads the next record into this reader's fields.
+         *
+         * @return {@link #KIND_SAMPLE}, {@link #KIND_TRACK} or {@link #KIND_END} once no
+         * complete record is left
+         */
+        public int next() throws IOException
+        {
+            try {
+                byte kind = in.readByte();
+                trackIndex = in.readUnsignedByte();
+                in.skipBytes(2);
+                size = in.readInt();
+                offset = in.readLong();
+                ptsUs = in.readLong();
+                sampleFlags = in.readInt();
+                in.readInt();                           // sequence
+                if (kind == KIND_TRACK) {
+                    byte[] payload = new byte[size];
+                    in.readFully(payload);
+                    in.skipBytes((RECORD_SIZE - size % RECORD_SIZE) % RECORD_SIZE);
+                    trackFormat = TrackFormat.parse(payload);
+                } else if (kind != KIND_SAMPLE) {
+                    return KIND_END;
+                }
+                return kind;
+            } catch (EOFException e) {
+                return KIND_END;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * The parts of a track's MediaFormat kept in the journal.
+     */
+    public static class TrackFormat
+    {
+        public String mime;
+        public int width;
+        public int height;
+        public int sampleRate;
+        public int channelCount;
+        public byte[] csd0;
+        public byte[] csd1;
+
+        static TrackFormat parse(byte[] payload) throws IOException
+        {
+            try {
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                TrackFormat format = new TrackFormat();
+                byte[] mime = new byte[in.getInt()];
+                in.get(mime);
+                format.mime = new String(mime, UTF8);
+                format.width = in.getInt();
+                format.height = in.getInt();
+                format.sampleRate = in.getInt();
+                format.channelCount = in.getInt();
+                format.csd0 = new byte[in.getInt()];
+                in.get(format.csd0);
+                format.csd1 = new byte[in.getInt()];
+                in.get(format.csd1);
+                return format;
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed track record", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package com.github.teocci.libmediacodec.format;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * In-memory sample table of a progressive MP4 track (the stbl children other than stsd).
+ * <p>
+ * Tables are stored as primitive arrays in their run-length coded form, so merging the
+ * tables of many recordings costs memory proportional to the number of samples and
+ * never touches the media data itself.
+ */
+public class SampleTable
+{
+    private int sampleCount;
+    private int[] sizes = new int[256];
+    private long duration;
+
+    private int sttsEntries;
+    private int[] sttsCounts = new int[16];
+    private int[] sttsDeltas = new int[16];
+
+    // Composition offsets; absent while every offset is zero
+    private boolean hasCtts;
+    private int cttsEntries;
+    private int[] cttsCounts;
+    private int[] cttsOffsets;
+
+    // Sync sample numbers (1-based); absent while every sample is a sync sample
+    private boolean hasStss;
+    private int syncCount;
+    private int[] syncSamples;
+
+    private int chunkCount;
+    private long[] chunkOffsets = new long[64];
+
+    private int stscEntries;
+    private int[] stscFirstChunk = new int[16];
+    private int[] stscSamplesPerChunk = new int[16];
+    private int[] stscDescriptionIndex = new int[16];
+
+    public int getSampleCount()
+    {
+        return sampleCount;
+    }
+
+    public int getChunkCount()
+    {
+        return chunkCount;
+    }
+
+    /**
+     * @return sum of all sample durations, in the track timescale
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * Appends one sample. Samples must be added in decode order and grouped
+     * into chunks with {@link #addChunk(long, int, int)}.
+     */
+    public void addSample(int size, int delta, boolean isSync, int compositionOffset)
+    {
+        int sampleNumber = sampleCount + 1;
+        if (sampleCount == sizes.length) {
+            sizes = Arrays.copyOf(sizes, sampleCount * 2);
+        }
+        sizes[sampleCount] = size;
+        addTimeToSample(1, delta);
+        addCompositionOffset(1, compositionOffset);
+        if (!isSync && !hasStss) {
+            materializeSyncSamples();
+        }
+        if (isSync && hasStss) {
+            addSyncSample(sampleNumber);
+        }
+        sampleCount++;
+    }
+
+    /**
+     * Appends a chunk holding the next {@code samples} samples, stored at {@code offset}.
+     *
+     * @param descriptionIndex 1-based index into the track's stsd entries
+     */
+    public void addChunk(long offset, int samples, int descriptionIndex)
+    {
+        if (chunkCount == chunkOffsets.length) {
+            chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+        }
+        chunkOffsets[chunkCount++] = offset;
+        addStscEntry(chunkCount, samples, descriptionIndex);
+    }
+
+    /**
+     * Appends all samples and chunks of {@code other}.
+     *
+     * @param chunkOffsetDelta   added to every chunk offset of {@code other}, i.e. where its
+     *                           media data moved to in the output file
+     * @param descriptionIndices maps other's 1-based stsd indices to ours, null for identity
+     * @param otherTimescale     timescale of {@code other}
+     * @param timescale          timescale of this table
+     */
+    public void append(SampleTable other, long chunkOffsetDelta, int[] descriptionIndices,
+                       int otherTimescale, int timescale)
+    {
+        int firstNewSample = sampleCount + 1;
+        int firstNewChunk = chunkCount + 1;
+
+        if (sampleCount + other.sampleCount > sizes.length) {
+            sizes = Arrays.copyOf(sizes, Math.max(sizes.length * 2, sampleCount + other.sampleCount));
+        }
+        System.arraycopy(other.sizes, 0, sizes, sampleCount, other.sampleCount);
+
+        for (int i = 0; i < other.sttsEntries; i++) {
+            long delta = other.sttsDeltas[i];
+            if (otherTimescale != timescale) {
+                delta = delta * timescale / otherTimescale;
+            }
+            addTimeToSample(other.sttsCounts[i], (int) delta);
+        }
+
+        if (other.hasCtts) {
+            if (!hasCtts) {
+                materializeCompositionOffsets();
+            }
+            for (int i = 0; i < other.cttsEntries; i++) {
+                long offset = other.cttsOffsets[i];
+                if (otherTimescale != timescale) {
+                    offset = offset * timescale / otherTimescale;
+                }
+                addCompositionOffset(other.cttsCounts[i], (int) offset);
+            }
+        } else {
+            addCompositionOffset(other.sampleCount, 0);
+        }
+
+        if (other.hasStss && !hasStss) {
+            materializeSyncSamples();
+        }
+        if (hasStss) {
+            if (other.hasStss) {
+                for (int i = 0; i < other.syncCount; i++) {
+                    addSyncSample(firstNewSample - 1 + other.syncSamples[i]);
+                }
+            } else {
+                for (int i = 0; i < other.sampleCount; i++) {
+                    addSyncSample(firstNewSample + i);
+                }
+            }
+        }
+        sampleCount += other.sampleCount;
+
+        if (chunkCount + other.chunkCount > chunkOffsets.length) {
+            chunkOffsets = Arrays.copyOf(chunkOffsets, Math.max(chunkOffsets.length * 2, chunkCount + other.chunkCount));
+        }
+        for (int i = 0; i < other.chunkCount; i++) {
+            chunkOffsets[chunkCount + i] = other.chunkOffsets[i] + chunkOffsetDelta;
+        }
+        chunkCount += other.chunkCount;
+        for (int i = 0; i < other.stscEntries; i++) {
+            int descriptionIndex = other.stscDescriptionIndex[i];
+            if (descriptionIndices != null) {
+                descriptionIndex = descriptionIndices[descriptionIndex - 1];
+            }
+            addStscEntry(firstNewChunk - 1 + other.stscFirstChunk[i], other.stscSamplesPerChunk[i], descriptionIndex);
+        }
+    }
+
+    /**
+     * Parses the sample tables of an stbl payload. The stsd box is ignored.
+     */
+    public static SampleTable parse(ByteBuffer stbl)
+    {
+        SampleTable table = new SampleTable();
+
+        ByteBuffer stts = require(stbl, "stts");
+        stts.getInt();                                  // version + flags
+        int entries = stts.getInt();
+        for (int i = 0; i < entries; i++) {
+            table.addTimeToSample(stts.getInt(), stts.getInt());
+        }
+
+        ByteBuffer stsz = Mp4BoxReader.findBox(stbl, "stsz");
+        if (stsz == null)
+            throw new IllegalArgumentException("Missing stsz box (stz2 is not supported)");
+        stsz.getInt();
+        int constantSize = stsz.getInt();
+        int count = stsz.getInt();
+        table.sizes = new int[Math.max(count, 16)];
+        for (int i = 0; i < count; i++) {
+            table.sizes[i] = constantSize != 0 ? constantSize : stsz.getInt();
+        }
+        table.sampleCount = count;
+
+        ByteBuffer ctts = Mp4BoxReader.findBox(stbl, "ctts");
+        if (ctts != null) {
+            ctts.getInt();
+            entries = ctts.getInt();
+            table.hasCtts = true;
+            table.cttsCounts = new int[Math.max(entries, 16)];
+            table.cttsOffsets = new int[Math.max(entries, 16)];
+            for (int i = 0; i < entries; i++) {
+                table.addCompositionOffset(ctts.getInt(), ctts.getInt());
+            }
+        }
+
+        ByteBuffer stss = Mp4BoxReader.findBox(stbl, "stss");
+        if (stss != null) {
+            stss.getInt();
+            entries = stss.getInt();
+            table.hasStss = true;
+            table.syncSamples = new int[Math.max(entries, 16)];
+            for (int i = 0; i < entries; i++) {
+                table.addSyncSample(stss.getInt());
+            }
+        }
+
+        ByteBuffer stsc = require(stbl, "stsc");
+        stsc.getInt();
+        entries = stsc.getInt();
+        for (int i = 0; i < entries; i++) {
+            table.addStscEntry(stsc.getInt(), stsc.getInt(), stsc.getInt());
+        }
+
+        ByteBuffer stco = Mp4BoxReader.findBox(stbl, "stco");
+        ByteBuffer co64 = Mp4BoxReader.findBox(stbl, "co64");
+        if (stco == null && co64 == null)
+            throw new IllegalArgumentException("Missing chunk offset box");
+        ByteBuffer offsets = stco != null ? stco : co64;
+        offsets.getInt();
+        count = offsets.getInt();
+        table.chunkOffsets = new long[Math.max(count, 16)];
+        for (int i = 0; i < count; i++) {
+            table.chunkOffsets[i] = stco != null ? offsets.getInt() & 0xffffffffL : offsets.getLong();
+        }
+        table.chunkCount = count;
+        return table;
+    }
+
+    /**
+     * Writes stts, ctts, stss, stsz, stsc and stco, or co64 once an offset needs 64 bits.
+     */
+    public void write(BoxWriter w)
+    {
+        w.startFullBox("stts", 0, 0);
+        w.put32(sttsEntries);
+        for (int i = 0; i < sttsEntries; i++) {
+            w.put32(sttsCounts[i]);
+            w.put32(sttsDeltas[i]);
+        }
+        w.endBox();
+
+        if (hasCtts) {
+            w.startFullBox("ctts", 0, 0);
+            w.put32(cttsEntries);
+            for (int i = 0; i < cttsEntries; i++) {
+                w.put32(cttsCounts[i]);
+                w.put32(cttsOffsets[i]);
+            }
+            w.endBox();
+        }
+
+        if (hasStss) {
+            w.startFullBox("stss", 0, 0);
+            w.put32(syncCount);
+            for (int i = 0; i < syncCount; i++) {
+                w.put32(syncSamples[i]);
+            }
+            w.endBox();
+        }
+
+        w.startFullBox("stsz", 0, 0);
+        w.put32(0);                         // sample_size: sizes follow
+        w.put32(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            w.put32(sizes[i]);
+        }
+        w.endBox();
+
+        w.startFullBox("stsc", 0, 0);
+        w.put32(stscEntries);
+        for (int i = 0; i < stscEntries; i++) {
+            w.put32(stscFirstChunk[i]);
+            w.put32(stscSamplesPerChunk[i]);
+            w.put32(stscDescriptionIndex[i]);
+        }
+        w.endBox();
+
+        boolean wide = chunkCount > 0 && chunkOffsets[chunkCount - 1] > 0xffffffffL;
+        for (int i = 0; i < chunkCount && !wide; i++) {
+            wide = chunkOffsets[i] > 0xffffffffL;
+        }
+        w.startFullBox(wide ? "co64" : "stco", 0, 0);
+        w.put32(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            if (wide) {
+                w.put64(chunkOffsets[i]);
+            } else {
+                w.put32(chunkOffsets[i]);
+            }
+        }
+        w.endBox();
+    }
+
+    private void addTimeToSample(int count, int delta)
+    {
+        duration += (long) count * delta;
+        if (sttsEntries > 0 && sttsDeltas[sttsEntries - 1] == delta) {
+            sttsCounts[sttsEntries - 1] += count;
+            return;
+        }
+        if (sttsEntries == sttsCounts.length) {
+            sttsCounts = Arrays.copyOf(sttsCounts, sttsEntries * 2);
+            sttsDeltas = Arrays.copyOf(sttsDeltas, sttsEntries * 2);
+        }
+        sttsCounts[sttsEntries] = count;
+        sttsDeltas[sttsEntries] = delta;
+        sttsEntries++;
+    }
+
+    private void addCompositionOffset(int count, int offset)
+    {
+        if (count == 0) return;
+        if (!hasCtts) {
+            if (offset == 0) return;
+            materializeCompositionOffsets();
+        }
+        if (cttsEntries > 0 && cttsOffsets[cttsEntries - 1] == offset) {
+            cttsCounts[cttsEntries - 1] += count;
+            return;
+        }
+        if (cttsEntries == cttsCounts.length) {
+            cttsCounts = Arrays.copyOf(cttsCounts, cttsEntries * 2);
+            cttsOffsets = Arrays.copyOf(cttsOffsets, cttsEntries * 2);
+        }
+        cttsCounts[cttsEntries] = count;
+        cttsOffsets[cttsEntries] = offset;
+        cttsEntries++;
+    }
+
+    /**
+     * Starts a ctts table, giving every sample added so far a zero offset.
+     */
+    private void materializeCompositionOffsets()
+    {
+        hasCtts = true;
+        cttsCounts = new int[16];
+        cttsOffsets = new int[16];
+        cttsEntries = 0;
+        if (sampleCount > 0) {
+            cttsCounts[0] = sampleCount;
+            cttsEntries = 1;
+        }
+    }
+
+    private void materializeSyncSamples()
+    {
+        hasStss = true;
+        syncSamples = new int[Math.max(16, sampleCount * 2)];
+        for (int i = 0; i < sampleCount; i++) {
+            syncSamples[i] = i + 1;
+        }
+        syncCount = sampleCount;
+    }
+
+    private void addSyncSample(int sampleNumber)
+    {
+        if (syncCount == syncSamples.length) {
+            syncSamples = Arrays.copyOf(syncSamples, syncCount * 2);
+        }
+        syncSamples[syncCount++] = sampleNumber;
+    }
+
+    private void addStscEntry(int firstChunk, int samplesPerChunk, int descriptionIndex)
+    {
+        if (stscEntries > 0 && stscSamplesPerChunk[stscEntries - 1] == samplesPerChunk
+                && stscDescriptionIndex[stscEntries - 1] == descriptionIndex) {
+            // Same run continues
+            return;
+        }
+        if (stscEntries == stscFirstChunk.length) {
+            stscFirstChunk = Arrays.copyOf(stscFirstChunk, stscEntries * 2);
+            stscSamplesPerChunk = Arrays.copyOf(stscSamplesPerChunk, stscEntries * 2);
+            stscDescriptionIndex = Arrays.copyOf(stscDescriptionIndex, stscEntries * 2);
+        }
+        stscFirstChunk[stscEntries] = firstChunk;
+        stscSamplesPerChunk[stscEntries] = samplesPerChunk;
+        stscDescriptionIndex[stscEntries] = descriptionIndex;
+        stscEntries++;
+    }
+
+    private static ByteBuffer require(ByteBuffer stbl, String type)
+    {
+        ByteBuffer box = Mp4BoxReader.findBox(stbl, type);
+        if (box == null)
+            throw new IllegalArgumentException("Missing " + type + " box");
+        return box;
+    }
+}
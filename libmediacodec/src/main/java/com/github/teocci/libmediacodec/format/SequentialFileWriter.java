@@ -0,0 +1,317 @@
+package com.github.teocci.libmediacodec.format;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Append-only output file for the pure-Java muxers, tuned for long recordings.
+ * <p>
+ * Small writes are collected in a direct buffer and reach the file as whole
+ * {@link #BLOCK_SIZE} blocks at block aligned offsets, so the filesystem never has to
+ * read-modify-write a partial block. The file is grown with posix_fallocate() in large
+ * increments ahead of the data (API 21+), which keeps its extents contiguous and
+ * spares every write a block allocation and a size update. Written data is synced to
+ * storage at a configurable interval, and {@link #close()} trims the preallocated
+ * tail. A crashed recording ends in zeros instead, which
+ * {@link com.github.teocci.libmediacodec.utils.Mp4Recovery#trimFragments(java.io.File)}
+ * cuts off a fragmented MP4.
+ * <p>
+ * {@link #flush()} writes a trailing partial block too, but keeps it buffered, so the
+ * next write rewrites it whole and later writes stay aligned.
+ * <p>
+ * Every write, sync and preallocation is timed into the {@link LatencyHistogram}s of
+ * a {@link Stats}, which can be shared by the files of a segmented recording.
+ * <p>
+ * Not thread safe; a muxer writes from one thread at a time.
+ *
+ * @hide
+ */
+public class SequentialFileWriter implements GatheringByteChannel
+{
+    private static final String TAG = SequentialFileWriter.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    public static final int BLOCK_SIZE = 4096;
+    public static final int DEFAULT_BATCH_SIZE = 256 * 1024;
+    public static final long DEFAULT_PREALLOCATION_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final ByteBuffer batch;
+    private final Stats stats;
+
+    private long batchStart;                        // file offset of the first buffered byte, block aligned
+    private long writtenEnd;                        // where the data in the file ends
+    private long allocatedEnd;
+    private long preallocationSize = DEFAULT_PREALLOCATION_SIZE;
+    private boolean canPreallocate = Build.VERSION.SDK_INT >= 21;
+    private long syncIntervalBytes;
+    private long syncIntervalNanos = DEFAULT_SYNC_INTERVAL_MS * 1000000;
+    private long syncedEnd;
+    private long lastSyncNanos;
+    private boolean isOpen;
+
+    private SequentialFileWriter(File file, int batchSize, Stats stats) throws IOException
+    {
+        checkArgument(batchSize > 0 && batchSize % BLOCK_SIZE == 0, "Batch size must be a multiple of the block size");
+        this.file = file;
+        this.stats = stats != null ? stats : new Stats();
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        batch = ByteBuffer.allocateDirect(batchSize);
+        lastSyncNanos = System.nanoTime();
+        isOpen = true;
+    }
+
+    /**
+     * Creates or truncates {@code file}.
+     */
+    public static SequentialFileWriter open(File file) throws IOException
+    {
+        return open(file, null);
+    }
+
+    /**
+     * @param stats latency statistics to add to, e.g. shared by the segments of one
+     *              recording, or null for statistics of this file only
+     */
+    public static SequentialFileWriter open(File file, Stats stats) throws IOException
+    {
+        return new SequentialFileWriter(file, DEFAULT_BATCH_SIZE, stats);
+    }
+
+    /**
+     * @param bytes how far ahead of the data to allocate the file, or 0 to let it grow
+     *              with every write
+     */
+    public void setPreallocationSize(long bytes)
+    {
+        checkArgument(bytes >= 0);
+        preallocationSize = bytes;
+    }
+
+    /**
+     * Sets how much written data may be lost if the device loses power. Syncs happen
+     * after a block write, once either limit is reached.
+     *
+     * @param bytes  data written since the last sync, or 0 for no size limit
+     * @param millis time since the last sync, or 0 for no time limit
+     */
+    public void setSyncInterval(long bytes, long millis)
+    {
+        checkArgument(bytes >= 0 && millis >= 0);
+        syncIntervalBytes = bytes;
+        syncIntervalNanos = millis * 1000000;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public Stats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * @return bytes written so far, including those still buffered
+     */
+    public long position()
+    {
+        return batchStart + batch.position();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (!isOpen) throw new ClosedChannelException();
+        int length = src.remaining();
+        int limit = src.limit();
+        while (src.hasRemaining()) {
+            if (!batch.hasRemaining()) {
+                writeBlocks(false);
+            }
+            src.limit(src.position() + Math.min(src.remaining(), batch.remaining()));
+            batch.put(src);
+            src.limit(limit);
+        }
+        return length;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        long written = 0;
+        for (int i = offset; i < offset + length; i++) {
+            written += write(srcs[i]);
+        }
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException
+    {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Writes the buffered data to the file including a trailing partial block, e.g. so
+     * a reader of the growing file sees the last complete fragment.
+     */
+    public void flush() throws IOException
+    {
+        if (!isOpen) throw new ClosedChannelException();
+        writeBlocks(true);
+    }
+
+    /**
+     * Flushes and forces the written data to storage.
+     */
+    public void sync() throws IOException
+    {
+        flush();
+        force();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return isOpen;
+    }
+
+    /**
+     * Flushes, trims the preallocated space past the data, syncs and closes the file.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!isOpen) return;
+        isOpen = false;
+        try {
+            writeBlocks(true);
+            channel.truncate(writtenEnd);
+            force();
+            if (VERBOSE) Log.d(TAG, "Closed " + file + ", " + writtenEnd + " bytes, " + stats);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the buffered whole blocks, or everything if {@code all} is set, and
+     * keeps a trailing partial block buffered.
+     */
+    private void writeBlocks(boolean all) throws IOException
+    {
+        long end = batchStart + batch.position();
+        long alignedEnd = end / BLOCK_SIZE * BLOCK_SIZE;
+        long writeEnd = all ? end : alignedEnd;
+        if (writeEnd <= writtenEnd) return;
+
+        ensureAllocated(writeEnd);
+        batch.flip();
+        batch.limit((int) (writeEnd - batchStart));
+        while (batch.hasRemaining()) {
+            long start = System.nanoTime();
+            channel.write(batch, batchStart + batch.position());
+            stats.writes.record(System.nanoTime() - start);
+        }
+        // A partial block stays buffered, to be written again once it is complete
+        batch.limit((int) (end - batchStart));
+        batch.position((int) (alignedEnd - batchStart));
+        batch.compact();
+        batchStart = alignedEnd;
+        stats.bytesWritten += writeEnd - writtenEnd;
+        writtenEnd = writeEnd;
+
+        if ((syncIntervalBytes > 0 && writtenEnd - syncedEnd >= syncIntervalBytes)
+                || (syncIntervalNanos > 0 && System.nanoTime() - lastSyncNanos >= syncIntervalNanos)) {
+            force();
+        }
+    }
+
+    private void force() throws IOException
+    {
+        long start = System.nanoTime();
+        channel.force(false);
+        lastSyncNanos = System.nanoTime();
+        stats.syncs.record(lastSyncNanos - start);
+        syncedEnd = writtenEnd;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void ensureAllocated(long end) throws IOException
+    {
+        if (!canPreallocate || preallocationSize == 0 || end <= allocatedEnd) return;
+        long newEnd = Math.max(end, allocatedEnd + preallocationSize);
+        newEnd = (newEnd + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        long start = System.nanoTime();
+        try {
+            Os.posix_fallocate(raf.getFD(), allocatedEnd, newEnd - allocatedEnd);
+            stats.allocations.record(System.nanoTime() - start);
+            allocatedEnd = newEnd;
+        } catch (ErrnoException e) {
+            // e.g. EOPNOTSUPP on FUSE or FAT backed external storage
+            Log.w(TAG, "Preallocation not supported for " + file + ", disabled", e);
+            canPreallocate = false;
+        }
+    }
+
+    /**
+     * Latencies of the file operations of one or more writers.
+     */
+    public static class Stats
+    {
+        private final LatencyHistogram writes = new LatencyHistogram();
+        private final LatencyHistogram syncs = new LatencyHistogram();
+        private final LatencyHistogram allocations = new LatencyHistogram();
+        private volatile long bytesWritten;
+
+        /**
+         * @return latencies of the write() calls that move buffered blocks to the file
+         */
+        public LatencyHistogram getWriteLatency()
+        {
+            return writes;
+        }
+
+        public LatencyHistogram getSyncLatency()
+        {
+            return syncs;
+        }
+
+        public LatencyHistogram getAllocationLatency()
+        {
+            return allocations;
+        }
+
+        public long getBytesWritten()
+        {
+            return bytesWritten;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "wrote " + bytesWritten + " bytes, writes [" + writes + "], syncs [" + syncs
+                    + "], allocations [" + allocations + "]";
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.github.teocci.libmediacodec.format;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Codec and presentation parameters of a single track, independent of
+ * {@link android.media.MediaFormat} so container writers can run without
+ * the Android framework.
+ */
+public class TrackInfo
+{
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+
+    public static final String HANDLER_VIDEO = "vide";
+    public static final String HANDLER_SOUND = "soun";
+
+    public static final int VIDEO_TIMESCALE = 90000;
+
+    private static final int[] IDENTITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private final int trackId;
+    private final String mime;
+    private final String handlerType;
+    private final int timescale;
+
+    private int width;
+    private int height;
+    private int sampleRate;
+    private int channelCount;
+
+    private byte[] sps;
+    private byte[] pps;
+    private byte[] audioSpecificConfig;
+
+    private int[] matrix = IDENTITY_MATRIX;
+
+    // Complete stsd entries copied from an existing file, written verbatim instead of
+    // the entry generated from the codec parameters above
+    private List<byte[]> sampleEntries;
+
+    private TrackInfo(int trackId, String mime, String handlerType, int timescale)
+    {
+        this.trackId = trackId;
+        this.mime = mime;
+        this.handlerType = handlerType;
+        this.timescale = timescale;
+    }
+
+    public static TrackInfo createAvc(int trackId, int width, int height, byte[] sps, byte[] pps)
+    {
+        TrackInfo track = new TrackInfo(trackId, MIME_AVC, HANDLER_VIDEO, VIDEO_TIMESCALE);
+        track.width = width;
+        track.height = height;
+        track.sps = sps;
+        track.pps = pps;
+        return track;
+    }
+
+    public static TrackInfo createAac(int trackId, int sampleRate, int channelCount, byte[] audioSpecificConfig)
+    {
+        TrackInfo track = new TrackInfo(trackId, MIME_AAC, HANDLER_SOUND, sampleRate);
+        track.sampleRate = sampleRate;
+        track.channelCount = channelCount;
+        track.audioSpecificConfig = audioSpecificConfig != null ? audioSpecificConfig :
+                AacUtils.buildAudioSpecificConfig(AacUtils.PROFILE_AAC_LC, sampleRate, channelCount);
+        return track;
+    }
+
+    /**
+     * Creates a track whose sample descriptions are copied from an existing file
+     * rather than built from codec parameters.
+     *
+     * @param sampleEntry a complete sample entry box (e.g. avc1 or mp4a) from an stsd
+     */
+    public static TrackInfo createFromSampleEntry(int trackId, String handlerType, int timescale,
+                                                  int width, int height, byte[] sampleEntry)
+    {
+        String mime = null;
+        String format = new String(sampleEntry, 4, 4);
+        if ("avc1".equals(format) || "avc3".equals(format)) mime = MIME_AVC;
+        if ("mp4a".equals(format)) mime = MIME_AAC;
+
+        TrackInfo track = new TrackInfo(trackId, mime, handlerType, timescale);
+        track.width = width;
+        track.height = height;
+        track.sampleEntries = new ArrayList<>();
+        track.sampleEntries.add(sampleEntry);
+        return track;
+    }
+
+    /**
+     * Creates a TrackInfo from the output format reported by MediaCodec
+     * when dequeueOutputBuffer returns INFO_OUTPUT_FORMAT_CHANGED.
+     *
+     * @param trackId 1-based ISO BMFF track id
+     */
+    public static TrackInfo fromMediaFormat(int trackId, MediaFormat format)
+    {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MIME_AVC.equals(mime)) {
+            byte[] sps = null;
+            byte[] pps = null;
+            for (String key : new String[]{"csd-0", "csd-1"}) {
+                if (!format.containsKey(key)) continue;
+                List<byte[]> nals = AvcUtils.splitNalUnits(format.getByteBuffer(key).duplicate());
+                for (byte[] nal : nals) {
+                    int type = AvcUtils.getNalType(nal[0]);
+                    if (type == AvcUtils.NAL_TYPE_SPS && sps == null) sps = nal;
+                    if (type == AvcUtils.NAL_TYPE_PPS && pps == null) pps = nal;
+                }
+            }
+            if (sps == null || pps == null)
+                throw new IllegalArgumentException("AVC format is missing SPS/PPS: " + format);
+            return createAvc(trackId, format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), sps, pps);
+        } else if (MIME_AAC.equals(mime)) {
+            byte[] asc = null;
+            if (format.containsKey("csd-0")) {
+                ByteBuffer csd = format.getByteBuffer("csd-0").duplicate();
+                asc = new byte[csd.remaining()];
+                csd.get(asc);
+            }
+            return createAac(trackId, format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), asc);
+        }
+        throw new IllegalArgumentException("Unsupported track mime type: " + mime);
+    }
+
+    public int getTrackId()
+    {
+        return trackId;
+    }
+
+    public String getMime()
+    {
+        return mime;
+    }
+
+    public String getHandlerType()
+    {
+        return handlerType;
+    }
+
+    public boolean isVideo()
+    {
+        return HANDLER_VIDEO.equals(handlerType);
+    }
+
+    public boolean isAudio()
+    {
+        return HANDLER_SOUND.equals(handlerType);
+    }
+
+    /**
+     * @return media timescale in ticks per second
+     */
+    public int getTimescale()
+    {
+        return timescale;
+    }
+
+    public long usToTicks(long us)
+    {
+        return us * timescale / 1000000L;
+    }
+
+    public long ticksToUs(long ticks)
+    {
+        return ticks * 1000000L / timescale;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    public int getChannelCount()
+    {
+        return channelCount;
+    }
+
+    public byte[] getSps()
+    {
+        return sps;
+    }
+
+    public byte[] getPps()
+    {
+        return pps;
+    }
+
+    public byte[] getAudioSpecificConfig()
+    {
+        return audioSpecificConfig;
+    }
+
+    /**
+     * @return the sample entries copied from an existing file, or null if the
+     * entry is generated from the codec parameters
+     */
+    public List<byte[]> getSampleEntries()
+    {
+        return sampleEntries;
+    }
+
+    /**
+     * Adds a sample entry unless an identical one is already present.
+     *
+     * @return the 1-based sample description index of the entry
+     */
+    public int addSampleEntry(byte[] sampleEntry)
+    {
+        if (sampleEntries == null)
+            throw new IllegalStateException("Track has no copied sample entries");
+        for (int i = 0; i < sampleEntries.size(); i++) {
+            if (Arrays.equals(sampleEntries.get(i), sampleEntry)) return i + 1;
+        }
+        sampleEntries.add(sampleEntry);
+        return sampleEntries.size();
+    }
+
+    public int[] getMatrix()
+    {
+        return matrix;
+    }
+
+    public void setMatrix(int[] matrix)
+    {
+        if (matrix.length != 9)
+            throw new IllegalArgumentException("Track matrix must have 9 entries");
+        this.matrix = matrix;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TrackInfo: " + trackId + " " + mime + (isVideo() ? " " + width + "x" + height :
+                " " + sampleRate + " Hz " + channelCount + " ch");
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.teocci.libmediacodec.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * RTP payload format for AAC in the AAC-hbr mode of RFC 3640 (mpeg4-generic).
+ * <p>
+ * Every AAC frame is sent as soon as it is encoded, with an AU header section holding
+ * one AU header: a 13 bit size and a 3 bit index. Frames are not aggregated, which
+ * would add a frame duration of latency per extra frame; a frame larger than a packet
+ * is fragmented, and only its last fragment carries the marker bit.
+ *
+ * @hide
+ */
+public class AacPacketizer extends RtpPacketizer
+{
+    private static final int AU_HEADER_SECTION_SIZE = 4;
+    private static final int MAX_AU_SIZE = (1 << 13) - 1;
+
+    private final int channelCount;
+    private final byte[] audioSpecificConfig;
+
+    public AacPacketizer(WritableByteChannel channel, int payloadType, int maxPacketSize,
+                         int sampleRate, int channelCount, byte[] audioSpecificConfig)
+    {
+        super(channel, payloadType, sampleRate, maxPacketSize);
+        this.channelCount = channelCount;
+        this.audioSpecificConfig = audioSpecificConfig;
+    }
+
+    @Override
+    public void packetize(ByteBuffer sample, long ptsUs, boolean isKeyframe) throws IOException
+    {
+        int size = sample.remaining();
+        if (size > MAX_AU_SIZE)
+            throw new IOException("AAC frame of " + size + " bytes exceeds the AU size field");
+        int limit = sample.limit();
+        int maxDataSize = getMaxPayloadSize() - AU_HEADER_SECTION_SIZE;
+        while (sample.position() < limit) {
+            int fragmentSize = Math.min(maxDataSize, limit - sample.position());
+            startPacket();
+            packet.putShort((short) 16);            // AU-headers-length in bits
+            packet.putShort((short) (size << 3));   // AU-size, AU-Index 0
+            sample.limit(sample.position() + fragmentSize);
+            packet.put(sample);
+            sample.limit(limit);
+            sendPacket(ptsUs, sample.position() == limit);
+        }
+    }
+
+    @Override
+    public String getMediaDescription(int port)
+    {
+        StringBuilder config = new StringBuilder();
+        for (byte b : audioSpecificConfig) {
+            config.append(String.format("%02x", b));
+        }
+        return "m=audio " + port + " RTP/AVP " + getPayloadType() + "\r\n"
+                + "a=rtpmap:" + getPayloadType() + " mpeg4-generic/" + getClockRate() + "/" + channelCount + "\r\n"
+                + "a=fmtp:" + getPayloadType() + " streamtype=5;profile-level-id=1;mode=AAC-hbr"
+                + ";sizelength=13;indexlength=3;indexdeltalength=3;config=" + config + "\r\n";
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.teocci.libmediacodec.net;
+
+import android.util.Base64;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import com.github.teocci.libmediacodec.format.AvcUtils;
+
+/**
+ * RTP payload format for H.264 in non-interleaved mode (RFC 6184, packetization-mode=1).
+ * <p>
+ * The NAL units of an access unit are sent as they come from the encoder, without
+ * their start codes. NAL units that fit together in one packet are aggregated into
+ * STAP-A packets, NAL units too large for one packet are split into FU-A fragments,
+ * and the last packet of the access unit carries the marker bit. SPS and PPS are
+ * sent in front of every keyframe, so a receiver can join at any keyframe.
+ *
+ * @hide
+ */
+public class H264Packetizer extends RtpPacketizer
+{
+    public static final int CLOCK_RATE = 90000;
+
+    private static final int NAL_TYPE_STAP_A = 24;
+    private static final int NAL_TYPE_FU_A = 28;
+
+    private final byte[] sps;
+    private final byte[] pps;
+    private final ByteBuffer parameterSets;
+
+    // NAL units of the current access unit
+    private ByteBuffer[] nalSources = new ByteBuffer[16];
+    private int[] nalStarts = new int[16];
+    private int[] nalEnds = new int[16];
+    private int nalCount;
+
+    public H264Packetizer(WritableByteChannel channel, int payloadType, int maxPacketSize, byte[] sps, byte[] pps)
+    {
+        super(channel, payloadType, CLOCK_RATE, maxPacketSize);
+        this.sps = sps;
+        this.pps = pps;
+        parameterSets = ByteBuffer.allocateDirect(sps.length + pps.length);
+        parameterSets.put(sps).put(pps);
+    }
+
+    @Override
+    public void packetize(ByteBuffer sample, long ptsUs, boolean isKeyframe) throws IOException
+    {
+        nalCount = 0;
+        int limit = sample.limit();
+        int start = AvcUtils.findNalStart(sample, sample.position(), limit);
+        if (start < 0) {
+            // A single NAL unit without start code
+            addNal(sample, sample.position(), limit);
+        }
+        boolean hasParameterSets = false;
+        while (start >= 0 && start < limit) {
+            int end = AvcUtils.findNalEnd(sample, start, limit);
+            int type = AvcUtils.getNalType(sample.get(start));
+            hasParameterSets |= type == AvcUtils.NAL_TYPE_SPS;
+            if (end > start && type != AvcUtils.NAL_TYPE_AUD) {
+                addNal(sample, start, end);
+            }
+            start = AvcUtils.findNalStart(sample, end, limit);
+        }
+        if (isKeyframe && !hasParameterSets) {
+            insertParameterSets();
+        }
+
+        int maxPayloadSize = getMaxPayloadSize();
+        int i = 0;
+        while (i < nalCount) {
+            int size = nalEnds[i] - nalStarts[i];
+            if (size > maxPayloadSize) {
+                sendFragmented(i, ptsUs, i == nalCount - 1);
+                i++;
+                continue;
+            }
+            // Aggregate following NAL units while they fit
+            int aggregateSize = 1 + 2 + size;
+            int j = i + 1;
+            while (j < nalCount && aggregateSize + 2 + nalEnds[j] - nalStarts[j] <= maxPayloadSize) {
+                aggregateSize += 2 + nalEnds[j] - nalStarts[j];
+                j++;
+            }
+            if (j - i > 1) {
+                sendAggregated(i, j, ptsUs, j == nalCount);
+                i = j;
+            } else {
+                startPacket();
+                putNal(i, nalStarts[i]);
+                sendPacket(ptsUs, i == nalCount - 1);
+                i++;
+            }
+        }
+        sample.limit(limit);
+        sample.position(limit);
+    }
+
+    @Override
+    public String getMediaDescription(int port)
+    {
+        return "m=video " + port + " RTP/AVP " + getPayloadType() + "\r\n"
+                + "a=rtpmap:" + getPayloadType() + " H264/" + CLOCK_RATE + "\r\n"
+                + "a=fmtp:" + getPayloadType() + " packetization-mode=1"
+                + String.format(";profile-level-id=%02x%02x%02x", sps[1], sps[2], sps[3])
+                + ";sprop-parameter-sets=" + Base64.encodeToString(sps, Base64.NO_WRAP)
+                + "," + Base64.encodeToString(pps, Base64.NO_WRAP) + "\r\n";
+    }
+
+    private void addNal(ByteBuffer source, int start, int end)
+    {
+        if (nalCount == nalStarts.length) {
+            nalSources = Arrays.copyOf(nalSources, nalCount * 2);
+            nalStarts = Arrays.copyOf(nalStarts, nalCount * 2);
+            nalEnds = Arrays.copyOf(nalEnds, nalCount * 2);
+        }
+        nalSources[nalCount] = source;
+        nalStarts[nalCount] = start;
+        nalEnds[nalCount] = end;
+        nalCount++;
+    }
+
+    private void insertParameterSets()
+    {
+        addNal(null, 0, 0);
+        addNal(null, 0, 0);
+        System.arraycopy(nalSources, 0, nalSources, 2, nalCount - 2);
+        System.arraycopy(nalStarts, 0, nalStarts, 2, nalCount - 2);
+        System.arraycopy(nalEnds, 0, nalEnds, 2, nalCount - 2);
+        nalSources[0] = parameterSets;
+        nalStarts[0] = 0;
+        nalEnds[0] = sps.length;
+        nalSources[1] = parameterSets;
+        nalStarts[1] = sps.length;
+        nalEnds[1] = sps.length + pps.length;
+    }
+
+    private void sendAggregated(int first, int end, long ptsUs, boolean isLast) throws IOException
+    {
+        // STAP-A header: the highest NRI and any forbidden bit of the aggregated units
+        int forbidden = 0;
+        int nri = 0;
+        for (int i = first; i < end; i++) {
+            int nalHeader = nalSources[i].get(nalStarts[i]) & 0xff;
+            forbidden |= nalHeader & 0x80;
+            nri = Math.max(nri, nalHeader & 0x60);
+        }
+        startPacket();
+        packet.put((byte) (forbidden | nri | NAL_TYPE_STAP_A));
+        for (int i = first; i < end; i++) {
+            packet.putShort((short) (nalEnds[i] - nalStarts[i]));
+            putNal(i, nalStarts[i]);
+        }
+        sendPacket(ptsUs, isLast);
+    }
+
+    private void sendFragmented(int index, long ptsUs, boolean isLast) throws IOException
+    {
+        ByteBuffer source = nalSources[index];
+        int nalHeader = source.get(nalStarts[index]) & 0xff;
+        int fragmentSize = getMaxPayloadSize() - 2;
+        // The NAL header itself isn't sent, FU indicator and header describe it
+        int offset = nalStarts[index] + 1;
+        int end = nalEnds[index];
+        while (offset < end) {
+            int size = Math.min(fragmentSize, end - offset);
+            boolean isFirst = offset == nalStarts[index] + 1;
+            boolean isLastFragment = offset + size == end;
+            startPacket();
+            packet.put((byte) ((nalHeader & 0xe0) | NAL_TYPE_FU_A));
+            packet.put((byte) ((isFirst ? 0x80 : 0) | (isLastFragment ? 0x40 : 0) | (nalHeader & 0x1f)));
+            putRange(source, offset, offset + size);
+            sendPacket(ptsUs, isLast && isLastFragment);
+            offset += size;
+        }
+    }
+
+    private void putNal(int index, int from)
+    {
+        putRange(nalSources[index], from, nalEnds[index]);
+    }
+
+    private void putRange(ByteBuffer source, int start, int end)
+    {
+        int limit = source.limit();
+        source.limit(end).position(start);
+        packet.put(source);
+        source.limit(limit);
+    }
+}
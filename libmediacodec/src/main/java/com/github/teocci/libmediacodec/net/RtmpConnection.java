@@ -0,0 +1,628 @@
+package com.github.teocci.libmediacodec.net;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.github.teocci.libmediacodec.format.Amf0;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Publishing side of an RTMP connection (Adobe RTMP Specification 1.0).
+ * <p>
+ * {@link #connect(long)} performs the handshake and the connect, createStream and
+ * publish commands, blocking up to a timeout. After that the connection never blocks:
+ * {@link #sendMessage} chunks a message into a send buffer of fixed size, or refuses
+ * it if it doesn't fit, and {@link #flush()} writes as much of the buffer as the socket
+ * takes while answering the server's pings and acknowledgement windows.
+ * <p>
+ * Not thread safe.
+ *
+ * @hide
+ */
+public class RtmpConnection
+{
+    private static final String TAG = RtmpConnection.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    public static final int DEFAULT_PORT = 1935;
+
+    public static final int MSG_SET_CHUNK_SIZE = 1;
+    public static final int MSG_ABORT = 2;
+    public static final int MSG_ACKNOWLEDGEMENT = 3;
+    public static final int MSG_USER_CONTROL = 4;
+    public static final int MSG_WINDOW_ACK_SIZE = 5;
+    public static final int MSG_SET_PEER_BANDWIDTH = 6;
+    public static final int MSG_AUDIO = 8;
+    public static final int MSG_VIDEO = 9;
+    public static final int MSG_DATA_AMF0 = 18;
+    public static final int MSG_COMMAND_AMF0 = 20;
+
+    public static final int CHUNK_STREAM_CONTROL = 2;
+    public static final int CHUNK_STREAM_COMMAND = 3;
+    public static final int CHUNK_STREAM_AUDIO = 4;
+    public static final int CHUNK_STREAM_DATA = 5;
+    public static final int CHUNK_STREAM_VIDEO = 6;
+
+    private static final int USER_CONTROL_PING_REQUEST = 6;
+    private static final int USER_CONTROL_PING_RESPONSE = 7;
+
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int DEFAULT_CHUNK_SIZE = 128;
+    private static final int OUTGOING_CHUNK_SIZE = 4096;
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    // Small enough that congestion shows in the send buffer, not in the kernel's
+    private static final int SOCKET_SEND_BUFFER_SIZE = 64 * 1024;
+    // Kept free for control messages, which are never refused
+    private static final int CONTROL_RESERVE = 1024;
+
+    private final String host;
+    private final int port;
+    private final String app;
+    private final String streamName;
+    private final String tcUrl;
+
+    private SocketChannel channel;
+    private Selector selector;
+    private final ByteBuffer sendBuffer;
+    private ByteBuffer receiveBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer commandBuffer = ByteBuffer.allocate(4096);
+    private final Map<Integer, ChunkStream> incomingStreams = new HashMap<>();
+    private int incomingChunkSize = DEFAULT_CHUNK_SIZE;
+    private int outgoingChunkSize = DEFAULT_CHUNK_SIZE;
+    private long windowAckSize;
+    private long bytesReceived;
+    private long lastAckBytes;
+    private int transactionId;
+    private int streamId;
+    private boolean isPublishing;
+    private String error;
+
+    private RtmpConnection(String host, int port, String app, String streamName, String tcUrl, int sendBufferSize)
+    {
+        this.host = host;
+        this.port = port;
+        this.app = app;
+        this.streamName = streamName;
+        this.tcUrl = tcUrl;
+        sendBuffer = ByteBuffer.allocateDirect(sendBufferSize);
+    }
+
+    /**
+     * @param url            rtmp://host[:port]/app[/instance]/streamName
+     * @param sendBufferSize bytes of chunked messages that may wait for the network
+     */
+    public static RtmpConnection create(String url, int sendBufferSize)
+    {
+        checkArgument(sendBufferSize > CONTROL_RESERVE, "Send buffer too small");
+        URI uri = URI.create(url);
+        checkArgument("rtmp".equals(uri.getScheme()), "Not an rtmp:// url: " + url);
+        String path = uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+        int split = path.lastIndexOf('/');
+        checkArgument(uri.getHost() != null && split > 0 && split < path.length() - 1,
+                "Expected rtmp://host[:port]/app/streamName, got " + url);
+        String app = path.substring(1, split);
+        String streamName = path.substring(split + 1);
+        int port = uri.getPort() > 0 ? uri.getPort() : DEFAULT_PORT;
+        String tcUrl = "rtmp://" + uri.getHost() + ":" + port + "/" + app;
+        return new RtmpConnection(uri.getHost(), port, app, streamName, tcUrl, sendBufferSize);
+    }
+
+    public String getStreamName()
+    {
+        return streamName;
+    }
+
+    public boolean isPublishing()
+    {
+        return isPublishing;
+    }
+
+    /**
+     * @return the server's reason for ending the stream, or null
+     */
+    public String getError()
+    {
+        return error;
+    }
+
+    /**
+     * @return chunked bytes not yet taken by the socket
+     */
+    public int getPendingBytes()
+    {
+        return sendBuffer.position();
+    }
+
+    public int getSendBufferSize()
+    {
+        return sendBuffer.capacity();
+    }
+
+    /**
+     * Connects and starts publishing, blocking up to {@code timeoutMs}.
+     *
+     * @throws IOException if the server can't be reached or refuses the stream
+     */
+    public void connect(long timeoutMs) throws IOException
+    {
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        selector = Selector.open();
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setSendBufferSize(SOCKET_SEND_BUFFER_SIZE);
+        channel.connect(new InetSocketAddress(host, port));
+        channel.register(selector, SelectionKey.OP_CONNECT);
+        while (!channel.finishConnect()) {
+            await(SelectionKey.OP_CONNECT, deadline);
+        }
+
+        handshake(deadline);
+        sendSetChunkSize(OUTGOING_CHUNK_SIZE);
+
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("app", app);
+        properties.put("type", "nonprivate");
+        properties.put("flashVer", "FMLE/3.0 (compatible; libmediacodec)");
+        properties.put("tcUrl", tcUrl);
+        List<Object> result = call(0, "connect", deadline, properties);
+        checkStatus(result, "connect");
+
+        call(0, "releaseStream", -1, null, streamName);
+        call(0, "FCPublish", -1, null, streamName);
+        result = call(0, "createStream", deadline, (Object) null);
+        if (result.size() < 4 || !(result.get(3) instanceof Double))
+            throw new IOException("createStream returned no stream id: " + result);
+        streamId = ((Double) result.get(3)).intValue();
+
+        call(streamId, "publish", -1, null, streamName, "live");
+        while (true) {
+            Message message = readMessage(deadline);
+            if (message.type != MSG_COMMAND_AMF0) continue;
+            List<Object> command = parseCommand(message.payload);
+            if (!"onStatus".equals(command.get(0))) continue;
+            String code = getStatusCode(command);
+            if ("NetStream.Publish.Start".equals(code)) break;
+            throw new IOException("publish refused: " + code);
+        }
+        isPublishing = true;
+        Log.i(TAG, "Publishing " + streamName + " to " + tcUrl + ", stream " + streamId);
+    }
+
+    /**
+     * Chunks a message into the send buffer.
+     *
+     * @return false if the message doesn't fit; nothing was buffered then
+     */
+    public boolean sendMessage(int chunkStreamId, int type, long timestampMs, ByteBuffer payload)
+    {
+        return sendMessage(chunkStreamId, type, streamId, timestampMs, payload, CONTROL_RESERVE);
+    }
+
+    /**
+     * Writes buffered messages without blocking and handles what the server sent.
+     *
+     * @throws IOException if the connection is lost or the server ended the stream
+     */
+    public void flush() throws IOException
+    {
+        if (sendBuffer.position() > 0) {
+            sendBuffer.flip();
+            channel.write(sendBuffer);
+            sendBuffer.compact();
+        }
+        while (true) {
+            Message message = pollMessage();
+            if (message == null) break;
+            if (message.type == MSG_COMMAND_AMF0) {
+                handleCommand(parseCommand(message.payload));
+            }
+        }
+        if (error != null)
+            throw new IOException(error);
+    }
+
+    /**
+     * Ends the stream and closes the connection, waiting up to {@code timeoutMs} for
+     * buffered messages to be sent.
+     */
+    public void close(long timeoutMs)
+    {
+        if (channel == null) return;
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        try {
+            if (isPublishing) {
+                isPublishing = false;
+                call(0, "FCUnpublish", -1, null, streamName);
+                call(0, "deleteStream", -1, null, streamId);
+                while (sendBuffer.position() > 0) {
+                    flush();
+                    if (sendBuffer.position() > 0) await(SelectionKey.OP_WRITE, deadline);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed ending stream " + streamName, e);
+        } finally {
+            try {
+                channel.close();
+                selector.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed closing connection", e);
+            }
+            channel = null;
+        }
+    }
+
+    private void handshake(long deadline) throws IOException
+    {
+        // C0 + C1: version 3, time, zero, random bytes
+        ByteBuffer c0c1 = ByteBuffer.allocate(1 + HANDSHAKE_SIZE);
+        c0c1.put((byte) 3);
+        c0c1.putInt(0);
+        c0c1.putInt(0);
+        byte[] random = new byte[HANDSHAKE_SIZE - 8];
+        new Random().nextBytes(random);
+        c0c1.put(random);
+        c0c1.flip();
+        writeFully(c0c1, deadline);
+
+        // S0 + S1 + S2, then C2 echoes S1
+        ByteBuffer s0s1s2 = ByteBuffer.allocate(1 + 2 * HANDSHAKE_SIZE);
+        while (s0s1s2.hasRemaining()) {
+            if (channel.read(s0s1s2) < 0) throw new EOFException("Connection closed during handshake");
+            if (s0s1s2.hasRemaining()) await(SelectionKey.OP_READ, deadline);
+        }
+        if (s0s1s2.get(0) != 3)
+            throw new IOException("Unsupported RTMP version " + s0s1s2.get(0));
+        ByteBuffer c2 = ByteBuffer.allocate(HANDSHAKE_SIZE);
+        s0s1s2.position(1).limit(1 + HANDSHAKE_SIZE);
+        c2.put(s0s1s2);
+        c2.flip();
+        writeFully(c2, deadline);
+    }
+
+    private void sendSetChunkSize(int chunkSize) throws IOException
+    {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(chunkSize);
+        payload.flip();
+        sendControl(MSG_SET_CHUNK_SIZE, payload);
+        outgoingChunkSize = chunkSize;
+    }
+
+    private void sendControl(int type, ByteBuffer payload) throws IOException
+    {
+        if (!sendMessage(CHUNK_STREAM_CONTROL, type, 0, 0, payload, 0))
+            throw new IOException("Send buffer full");
+    }
+
+    /**
+     * Sends a command; if {@code deadline} isn't negative, waits for its _result.
+     *
+     * @return the _result command, or null when not waiting
+     */
+    private List<Object> call(int messageStreamId, String name, long deadline, Object... arguments) throws IOException
+    {
+        int transaction = ++transactionId;
+        commandBuffer.clear();
+        Amf0.putString(commandBuffer, name);
+        Amf0.putNumber(commandBuffer, transaction);
+        for (Object argument : arguments) {
+            Amf0.putValue(commandBuffer, argument);
+        }
+        commandBuffer.flip();
+        if (!sendMessage(CHUNK_STREAM_COMMAND, MSG_COMMAND_AMF0, messageStreamId, 0, commandBuffer, 0))
+            throw new IOException("Send buffer full");
+        if (VERBOSE) Log.d(TAG, "Sent " + name + " " + transaction);
+        if (deadline < 0) return null;
+
+        while (true) {
+            Message message = readMessage(deadline);
+            if (message.type != MSG_COMMAND_AMF0) continue;
+            List<Object> command = parseCommand(message.payload);
+            if (command.size() > 1 && command.get(1) instanceof Double
+                    && ((Double) command.get(1)).intValue() == transaction) {
+                return command;
+            }
+            handleCommand(command);
+        }
+    }
+
+    private void checkStatus(List<Object> result, String name) throws IOException
+    {
+        if (!"_result".equals(result.get(0)))
+            throw new IOException(name + " refused: " + getStatusCode(result));
+    }
+
+    private void handleCommand(List<Object> command)
+    {
+        String name = String.valueOf(command.get(0));
+        String code = getStatusCode(command);
+        if (VERBOSE) Log.d(TAG, "Received " + name + " " + code);
+        if ("onStatus".equals(name) && code != null && (code.endsWith(".Failed") || code.endsWith(".BadName")
+                || code.endsWith(".UnpublishNotify") || code.endsWith(".Rejected"))) {
+            error = code;
+        } else if ("_error".equals(name) || "close".equals(name)) {
+            error = name + " " + code;
+        }
+    }
+
+    private static String getStatusCode(List<Object> command)
+    {
+        for (Object value : command) {
+            if (value instanceof Map) {
+                Object code = ((Map) value).get("code");
+                if (code != null) return code.toString();
+            }
+        }
+        return null;
+    }
+
+    private static List<Object> parseCommand(ByteBuffer payload)
+    {
+        List<Object> values = new ArrayList<>();
+        while (payload.hasRemaining()) {
+            values.add(Amf0.readValue(payload));
+        }
+        return values;
+    }
+
+    private boolean sendMessage(int chunkStreamId, int type, int messageStreamId, long timestampMs,
+                                ByteBuffer payload, int reserve)
+    {
+        int length = payload.remaining();
+        boolean isExtended = timestampMs >= 0xffffff;
+        int chunks = Math.max(1, (length + outgoingChunkSize - 1) / outgoingChunkSize);
+        int extendedSize = isExtended ? 4 : 0;
+        int size = 12 + extendedSize + (chunks - 1) * (1 + extendedSize) + length;
+        if (sendBuffer.remaining() - reserve < size) return false;
+
+        // Type 0 header, then type 3 headers for the continuation chunks
+        sendBuffer.put((byte) chunkStreamId);
+        int timestamp = isExtended ? 0xffffff : (int) timestampMs;
+        sendBuffer.put((byte) (timestamp >> 16)).put((byte) (timestamp >> 8)).put((byte) timestamp);
+        sendBuffer.put((byte) (length >> 16)).put((byte) (length >> 8)).put((byte) length);
+        sendBuffer.put((byte) type);
+        sendBuffer.putInt(Integer.reverseBytes(messageStreamId));
+        int limit = payload.limit();
+        for (int i = 0; i < chunks; i++) {
+            if (i > 0) sendBuffer.put((byte) (0xc0 | chunkStreamId));
+            if (isExtended) sendBuffer.putInt((int) timestampMs);
+            payload.limit(Math.min(limit, payload.position() + outgoingChunkSize));
+            sendBuffer.put(payload);
+        }
+        payload.limit(limit);
+        return true;
+    }
+
+    private Message readMessage(long deadline) throws IOException
+    {
+        while (true) {
+            Message message = pollMessage();
+            if (message != null) return message;
+            await(SelectionKey.OP_READ, deadline);
+        }
+    }
+
+    /**
+     * Reads what the socket has and returns the next complete message that isn't
+     * handled here, or null.
+     */
+    private Message pollMessage() throws IOException
+    {
+        while (true) {
+            Message message = parseMessage();
+            if (message == null) {
+                if (!receiveBuffer.hasRemaining()) {
+                    // A chunk larger than the buffer
+                    receiveBuffer = ByteBuffer.allocate(receiveBuffer.capacity() * 2).put((ByteBuffer) receiveBuffer.flip());
+                }
+                int read = channel.read(receiveBuffer);
+                if (read < 0) throw new EOFException("Connection closed by server");
+                if (read == 0) return null;
+                bytesReceived += read;
+                if (windowAckSize > 0 && bytesReceived - lastAckBytes >= windowAckSize) {
+                    ByteBuffer ack = ByteBuffer.allocate(4);
+                    ack.putInt((int) bytesReceived);
+                    ack.flip();
+                    sendControl(MSG_ACKNOWLEDGEMENT, ack);
+                    lastAckBytes = bytesReceived;
+                }
+                continue;
+            }
+            if (!handleProtocolMessage(message)) return message;
+        }
+    }
+
+    private boolean handleProtocolMessage(Message message) throws IOException
+    {
+        ByteBuffer payload = message.payload;
+        switch (message.type) {
+            case MSG_SET_CHUNK_SIZE:
+                incomingChunkSize = payload.getInt() & 0x7fffffff;
+                return true;
+            case MSG_ABORT:
+                incomingStreams.remove(payload.getInt());
+                return true;
+            case MSG_WINDOW_ACK_SIZE:
+                windowAckSize = payload.getInt() & 0xffffffffL;
+                return true;
+            case MSG_USER_CONTROL:
+                if (payload.getShort() == USER_CONTROL_PING_REQUEST) {
+                    ByteBuffer pong = ByteBuffer.allocate(6);
+                    pong.putShort((short) USER_CONTROL_PING_RESPONSE);
+                    pong.putInt(payload.getInt());
+                    pong.flip();
+                    sendControl(MSG_USER_CONTROL, pong);
+                }
+                return true;
+            case MSG_ACKNOWLEDGEMENT:
+            case MSG_SET_PEER_BANDWIDTH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Parses whole chunks from the receive buffer until a message is complete.
+     * Partial chunks are left in the buffer.
+     */
+    private Message parseMessage() throws IOException
+    {
+        receiveBuffer.flip();
+        try {
+            while (receiveBuffer.hasRemaining()) {
+                int start = receiveBuffer.position();
+                int available = receiveBuffer.remaining();
+                int first = receiveBuffer.get(start) & 0xff;
+                int format = first >> 6;
+                int chunkStreamId = first & 0x3f;
+                int basicSize = chunkStreamId == 0 ? 2 : chunkStreamId == 1 ? 3 : 1;
+                int headerSize = basicSize + (format == 0 ? 11 : format == 1 ? 7 : format == 2 ? 3 : 0);
+                if (available < headerSize) return null;
+                if (chunkStreamId == 0) {
+                    chunkStreamId = 64 + (receiveBuffer.get(start + 1) & 0xff);
+                } else if (chunkStreamId == 1) {
+                    chunkStreamId = 64 + (receiveBuffer.get(start + 1) & 0xff) + (receiveBuffer.get(start + 2) & 0xff) * 256;
+                }
+
+                ChunkStream stream = incomingStreams.get(chunkStreamId);
+                if (stream == null) {
+                    if (format != 0) throw new IOException("Chunk stream " + chunkStreamId + " starts without a type 0 header");
+                    stream = new ChunkStream();
+                    incomingStreams.put(chunkStreamId, stream);
+                }
+                int index = start + basicSize;
+                long timestampField = stream.timestampField;
+                int length = stream.length;
+                int type = stream.type;
+                int messageStreamId = stream.streamId;
+                if (format <= 2) {
+                    timestampField = getInt24(receiveBuffer, index);
+                }
+                if (format <= 1) {
+                    length = getInt24(receiveBuffer, index + 3);
+                    type = receiveBuffer.get(index + 6) & 0xff;
+                }
+                if (format == 0) {
+                    messageStreamId = Integer.reverseBytes(receiveBuffer.getInt(index + 7));
+                }
+                if (length > MAX_MESSAGE_SIZE) throw new IOException("Message of " + length + " bytes");
+                int extendedSize = timestampField == 0xffffff ? 4 : 0;
+                if (available < headerSize + extendedSize) return null;
+                long timestamp = extendedSize > 0 ? receiveBuffer.getInt(start + headerSize) & 0xffffffffL : timestampField;
+
+                boolean isNewMessage = stream.payload == null;
+                int received = isNewMessage ? 0 : stream.payload.position();
+                int chunkSize = Math.min(incomingChunkSize, length - received);
+                if (available < headerSize + extendedSize + chunkSize) return null;
+
+                // The whole chunk is here; commit the header
+                stream.timestampField = timestampField;
+                stream.length = length;
+                stream.type = type;
+                stream.streamId = messageStreamId;
+                if (isNewMessage) {
+                    stream.timestamp = format == 0 ? timestamp : stream.timestamp + timestamp;
+                    stream.payload = ByteBuffer.allocate(length);
+                }
+                receiveBuffer.position(start + headerSize + extendedSize);
+                int limit = receiveBuffer.limit();
+                receiveBuffer.limit(receiveBuffer.position() + chunkSize);
+                stream.payload.put(receiveBuffer);
+                receiveBuffer.limit(limit);
+
+                if (!stream.payload.hasRemaining()) {
+                    Message message = new Message(type, messageStreamId, stream.timestamp, stream.payload);
+                    message.payload.flip();
+                    stream.payload = null;
+                    return message;
+                }
+            }
+            return null;
+        } finally {
+            receiveBuffer.compact();
+        }
+    }
+
+    private void writeFully(ByteBuffer data, long deadline) throws IOException
+    {
+        while (data.hasRemaining()) {
+            channel.write(data);
+            if (data.hasRemaining()) await(SelectionKey.OP_WRITE, deadline);
+        }
+    }
+
+    private void flushBlocking(long deadline) throws IOException
+    {
+        while (sendBuffer.position() > 0) {
+            sendBuffer.flip();
+            channel.write(sendBuffer);
+            sendBuffer.compact();
+            if (sendBuffer.position() > 0) await(SelectionKey.OP_WRITE, deadline);
+        }
+    }
+
+    private void await(int operation, long deadline) throws IOException
+    {
+        if (operation == SelectionKey.OP_READ) {
+            flushBlocking(deadline);
+        }
+        long timeoutMs = (deadline - System.nanoTime()) / 1000000;
+        if (timeoutMs <= 0) throw new SocketTimeoutException("RTMP connection to " + tcUrl + " timed out");
+        channel.keyFor(selector).interestOps(operation);
+        selector.select(timeoutMs);
+        selector.selectedKeys().clear();
+    }
+
+    private static int getInt24(ByteBuffer buffer, int index)
+    {
+        return ((buffer.get(index) & 0xff) << 16) | ((buffer.get(index + 1) & 0xff) << 8) | (buffer.get(index + 2) & 0xff);
+    }
+
+    private static class ChunkStream
+    {
+        long timestampField;
+        long timestamp;
+        int length;
+        int type;
+        int streamId;
+        ByteBuffer payload;
+    }
+
+    private static class Message
+    {
+        final int type;
+        final int streamId;
+        final long timestamp;
+        final ByteBuffer payload;
+
+        Message(int type, int streamId, long timestamp, ByteBuffer payload)
+        {
+            this.type = type;
+            this.streamId = streamId;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.github.teocci.libmediacodec.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Turns the encoded samples of one track into RTP packets (RFC 3550).
+ * <p>
+ * Every packet is assembled in one preallocated buffer and written to the channel,
+ * usually a connected {@link java.nio.channels.DatagramChannel}, before the next is
+ * started, so packetizing doesn't allocate. A packet the channel doesn't take is
+ * counted and dropped; RTP receivers cope with loss better than with delay.
+ * <p>
+ * Sequence numbers, the SSRC and the timestamp offset start at random values.
+ *
+ * @hide
+ */
+public abstract class RtpPacketizer
+{
+    public static final int DEFAULT_MAX_PACKET_SIZE = 1400;
+    public static final int RTP_HEADER_SIZE = 12;
+
+    private static final int RTCP_SENDER_REPORT = 200;
+    // Seconds from the NTP epoch (1900) to the Unix epoch
+    private static final long NTP_UNIX_OFFSET_S = 2208988800L;
+
+    private final WritableByteChannel channel;
+    private final int payloadType;
+    private final int clockRate;
+    private final int ssrc;
+    private final int timestampOffset;
+    protected final ByteBuffer packet;
+    private final ByteBuffer report = ByteBuffer.allocateDirect(28);
+
+    private int sequence;
+    private long packetCount;
+    private long octetCount;
+    private long droppedPackets;
+
+    protected RtpPacketizer(WritableByteChannel channel, int payloadType, int clockRate, int maxPacketSize)
+    {
+        checkArgument(payloadType >= 0 && payloadType < 128);
+        checkArgument(maxPacketSize > RTP_HEADER_SIZE + 16, "Packet size too small");
+        this.channel = channel;
+        this.payloadType = payloadType;
+        this.clockRate = clockRate;
+        packet = ByteBuffer.allocateDirect(maxPacketSize);
+        Random random = new Random();
+        ssrc = random.nextInt();
+        timestampOffset = random.nextInt();
+        sequence = random.nextInt(0x10000);
+    }
+
+    /**
+     * Sends one encoded sample.
+     *
+     * @param sample from its position to its limit; the position is advanced
+     * @param ptsUs  presentation time, relative to the start of the session
+     */
+    public abstract void packetize(ByteBuffer sample, long ptsUs, boolean isKeyframe) throws IOException;
+
+    /**
+     * @param port where the receiver expects this stream
+     * @return the SDP media description of this stream, from the m= line on
+     */
+    public abstract String getMediaDescription(int port);
+
+    public int getPayloadType()
+    {
+        return payloadType;
+    }
+
+    public int getClockRate()
+    {
+        return clockRate;
+    }
+
+    public int getSsrc()
+    {
+        return ssrc;
+    }
+
+    public long getPacketCount()
+    {
+        return packetCount;
+    }
+
+    /**
+     * @return packets the channel didn't take
+     */
+    public long getDroppedPackets()
+    {
+        return droppedPackets;
+    }
+
+    /**
+     * @return the RTP timestamp of {@code ptsUs}
+     */
+    public int getTimestamp(long ptsUs)
+    {
+        return (int) (ptsUs * clockRate / 1000000) + timestampOffset;
+    }
+
+    /**
+     * Sends an RTCP sender report, which lets the receiver align this stream's RTP
+     * timestamps with those of the other streams of the session.
+     *
+     * @param rtcpChannel the channel to the RTCP port, one above the RTP port
+     * @param ptsUs       a presentation time of this stream
+     * @param wallClockUs the wall clock time {@code ptsUs} was captured at, in
+     *                    microseconds since the Unix epoch
+     */
+    public void sendSenderReport(WritableByteChannel rtcpChannel, long ptsUs, long wallClockUs) throws IOException
+    {
+        long seconds = wallClockUs / 1000000 + NTP_UNIX_OFFSET_S;
+        long fraction = (wallClockUs % 1000000 << 32) / 1000000;
+        report.clear();
+        report.put((byte) 0x80);                    // version 2, no reception reports
+        report.put((byte) RTCP_SENDER_REPORT);
+        report.putShort((short) 6);                 // length in words - 1
+        report.putInt(ssrc);
+        report.putInt((int) seconds);
+        report.putInt((int) fraction);
+        report.putInt(getTimestamp(ptsUs));
+        report.putInt((int) packetCount);
+        report.putInt((int) octetCount);
+        report.flip();
+        rtcpChannel.write(report);
+    }
+
+    /**
+     * Starts a packet; the payload is put at the buffer's position.
+     */
+    protected void startPacket()
+    {
+        packet.clear();
+        packet.position(RTP_HEADER_SIZE);
+    }
+
+    /**
+     * Fills in the header of the packet in the buffer and sends it.
+     *
+     * @param marker set on the last packet of a video access unit and on every
+     *               packet completing an audio frame
+     */
+    protected void sendPacket(long ptsUs, boolean marker) throws IOException
+    {
+        int payloadSize = packet.position() - RTP_HEADER_SIZE;
+        packet.put(0, (byte) 0x80);                 // version 2
+        packet.put(1, (byte) ((marker ? 0x80 : 0) | payloadType));
+        packet.putShort(2, (short) sequence);
+        packet.putInt(4, getTimestamp(ptsUs));
+        packet.putInt(8, ssrc);
+        packet.flip();
+        sequence = (sequence + 1) & 0xffff;
+        if (channel.write(packet) == 0) {
+            droppedPackets++;
+            return;
+        }
+        packetCount++;
+        octetCount += payloadSize;
+    }
+
+    /**
+     * @return payload bytes that fit in one packet
+     */
+    protected int getMaxPayloadSize()
+    {
+        return packet.capacity() - RTP_HEADER_SIZE;
+    }
+}
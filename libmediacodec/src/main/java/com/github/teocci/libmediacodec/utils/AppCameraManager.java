@@ -9,6 +9,7 @@ import com.google.common.eventbus.DeadEvent;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -26,11 +27,13 @@ public class AppCameraManager
     private long elapsedTime;
     private MediaActionSound sound;
     private boolean isRecording;
+    private boolean isPaused;
     private EventBus eventBus;
     private SessionConfig lastSessionConfig;
     private SessionConfig sessionConfig;
     private Context context;
     private Camera camera;
+    private IncrementalStitcher stitcher;
 
     private String currentFlashMode;
     private String desiredFlashMode;
@@ -46,6 +49,8 @@ public class AppCameraManager
         config.getMuxer().setEventBus(eventBus);
         sessionConfig = lastSessionConfig = config;
         this.context = context;
+        stitcher = new IncrementalStitcher(new File(context.getExternalFilesDir(null),
+                SessionConfig.sessionStitchFile));
         loadMediaActionSoundPlayer();
 
 
@@ -70,19 +75,49 @@ public class AppCameraManager
     {
         isRecording = true;
         recordingStartTime = System.currentTimeMillis();
+        stitcher.expectChunk();
         sound.play(MediaActionSound.START_VIDEO_RECORDING);
     }
 
     public void stopRecording()
     {
+        if (isRecording) {
+            recordingStopTime = System.currentTimeMillis();
+            elapsedTime += (recordingStopTime - recordingStartTime);
+        }
+        isRecording = false;
+        isPaused = false;
+        sound.play(MediaActionSound.STOP_VIDEO_RECORDING);
+    }
+
+    /**
+     * Pauses the current recording. The encoders and muxer of the session stay alive,
+     * and the muxer removes the paused time from the output timestamps.
+     */
+    public void pauseRecording()
+    {
+        if (!isRecording) return;
+        sessionConfig.getMuxer().pause();
         isRecording = false;
+        isPaused = true;
         recordingStopTime = System.currentTimeMillis();
         elapsedTime += (recordingStopTime - recordingStartTime);
         sound.play(MediaActionSound.STOP_VIDEO_RECORDING);
     }
 
+    public void resumeRecording()
+    {
+        if (!isPaused) return;
+        sessionConfig.getMuxer().resume();
+        isPaused = false;
+        isRecording = true;
+        recordingStartTime = System.currentTimeMillis();
+        sound.play(MediaActionSound.START_VIDEO_RECORDING);
+    }
+
     public long getRecordingTime()
     {
+        if (!isRecording) return elapsedTime;
         long currentTime = System.currentTimeMillis();
         return elapsedTime + (currentTime - recordingStartTime);
     }
@@ -99,6 +134,11 @@ public class AppCameraManager
         return isRecording;
     }
 
+    public boolean isPaused()
+    {
+        return isPaused;
+    }
+
     public void toggleFlash()
     {
 //        mCamEncoder.toggleFlashMode();
@@ -140,7 +180,34 @@ public class AppCameraManager
     public void onMuxerFinished(MuxerFinishedEvent e)
     {
         Log.d(TAG, "onMuxerFinished");
-        CameraUtils.moveVideoChunk(context, lastSessionConfig);
+        stitcher.chunkFinished(CameraUtils.moveVideoChunk(context, lastSessionConfig));
+    }
+
+    /**
+     * Completes the stitched session. Chunks are appended while recording, so this
+     * only waits for the last chunk and writes the movie header.
+     * <p>
+     * Called from a background thread
+     *
+     * @return the path of the stitched video, or null on failure
+     */
+    public String finishSession(String outputDirPath)
+    {
+        return CameraUtils.finishStitching(context, stitcher, outputDirPath);
+    }
+
+    /**
+     * Discards all chunks recorded in this session.
+     */
+    public void cancelSession()
+    {
+        stitcher.cancel();
+        CameraUtils.clearSessionFolders(context, true, false);
+    }
+
+    public void release()
+    {
+        stitcher.release();
     }
 
     public int getCameraPreviewWidth()
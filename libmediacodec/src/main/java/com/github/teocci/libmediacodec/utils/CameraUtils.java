@@ -16,13 +16,16 @@
 
 package com.github.teocci.libmediacodec.utils;
 
+import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.hardware.Camera;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
 import com.google.common.io.Files;
@@ -30,6 +33,8 @@ import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import com.github.teocci.libmediacodec.encoder.SessionConfig;
@@ -55,7 +60,7 @@ public class CameraUtils
         Log.i(TAG, "Setting default SessionConfig");
         checkNotNull(context);
         final String FILE_NAME = System.currentTimeMillis() + ".mp4";
-        final String FILE_PATH = Environment.getExternalStorageDirectory().getPath() + "/videokit";
+        final String FILE_PATH = getRecordingFolder().getPath();
         final String TEST_FILE = FILE_PATH + "/" + FILE_NAME;
         final String outputLocation = new File(TEST_FILE).getAbsolutePath();
 
@@ -64,9 +69,37 @@ public class CameraUtils
                 .withPrivateVisibility(false)
                 .withLocation(true)
                 .withVideoResolution(width, height)
+                .withAudioChannels(hasAudioPermission(context) ? 1 : 0)
+                .withSampleJournal(true)
                 .build());
     }
 
+    /**
+     * @return where recordings are written before they're moved into the session folder
+     */
+    public static File getRecordingFolder()
+    {
+        return new File(Environment.getExternalStorageDirectory(), "videokit");
+    }
+
+    /**
+     * @return where chunks are written while they are recorded, see
+     * {@link SessionConfig.Builder}
+     */
+    private static File getRecordingTempFolder()
+    {
+        return new File(getRecordingFolder(), SessionConfig.sessionFolderTemp);
+    }
+
+    /**
+     * Without the microphone permission sessions record video only.
+     */
+    public static boolean hasAudioPermission(Context context)
+    {
+        return ContextCompat.checkSelfPermission(context, Manifest.permission.RECORD_AUDIO)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
     public static SessionConfig getSessionConfig(Context context)
     {
         if (sessionConfig == null) {
@@ -161,7 +194,12 @@ public class CameraUtils
         return guess;
     }
 
-    public static void moveVideoChunk(Context context, SessionConfig config)
+    /**
+     * Moves the recording of {@code config} into the session folder.
+     *
+     * @return the moved chunk, or null if it could not be moved
+     */
+    public static File moveVideoChunk(Context context, SessionConfig config)
     {
         SessionConfig oldConfig = config;
         String path = oldConfig.getOutputPath();
@@ -170,9 +208,35 @@ public class CameraUtils
             outputDirectory.mkdirs();
             File outPutFileName = new File(outputDirectory, System.currentTimeMillis() + ".mp4");
             Files.move(new File(path), outPutFileName);
+            return outPutFileName;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Completes the session stitched by {@code stitcher} into a new file in {@code outputDirPath}.
+     *
+     * @return the path of the stitched video, or null if there was nothing to stitch
+     */
+    public static String finishStitching(Context context, IncrementalStitcher stitcher, String outputDirPath)
+    {
+        File outputFile = new File(outputDirPath, "testOut" + System.currentTimeMillis() + ".mp4");
+        try {
+            if (stitcher.finish(outputFile) == null) {
+                Log.e(TAG, "no video's found for stiching");
+                return null;
+            }
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
+
+        Intent broadcastIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
+        broadcastIntent.setData(Uri.fromFile(outputFile));
+        context.sendBroadcast(broadcastIntent);
+        return outputFile.getPath();
     }
 
     public static String stichVideos(Context context, String inputDirPath, String outputDirPath)
@@ -205,17 +269,17 @@ public class CameraUtils
             }
 
 
-            ArrayList<String> inputVideolist = new ArrayList<>();
-            for (File inputFile : inputDir.listFiles()) {
-                inputVideolist.add(inputFile.getPath());
-            }
+            // Chunks are named after their recording time, so name order is recording order
+            File[] inputFiles = inputDir.listFiles();
+            Arrays.sort(inputFiles);
+            List<File> inputVideolist = Arrays.asList(inputFiles);
 
             if (inputVideolist.size() == 0) {
                 Log.e(TAG, "no video's found for stiching");
                 return null;
             }
 
-            Mp4ParserUtility.stitchVideos(outputFile.getPath(), inputVideolist);
+            Mp4Stitcher.stitch(outputFile, inputVideolist);
 
             // Removes input files
             for (File inputFile : inputDir.listFiles()) {
@@ -236,6 +300,75 @@ public class CameraUtils
         return outputFile.getPath();
     }
 
+    /**
+     * @return true if a previous session left chunks behind, e.g. because the app was killed
+     * while recording
+     */
+    public static boolean hasInterruptedSession(Context context)
+    {
+        File sessionFolder = new File(context.getExternalFilesDir(null), SessionConfig.sessionFolder);
+        return !listVideos(sessionFolder).isEmpty() || !listVideos(getRecordingTempFolder()).isEmpty();
+    }
+
+    /**
+     * Rebuilds the index of chunks whose recording was interrupted and stitches them,
+     * together with the chunks completed before, into a new file in {@code outputDirPath}.
+     *
+     * @param activeOutputPath output of the session built since, which the sweep must not touch, or null
+     * @return the path of the stitched video, or null if nothing could be recovered
+     */
+    public static String recoverInterruptedSession(Context context, String outputDirPath, String activeOutputPath)
+    {
+        File sessionFolder = new File(context.getExternalFilesDir(null), SessionConfig.sessionFolder);
+        List<File> completed = listVideos(sessionFolder);
+
+        // A completed chunk recorded with the same settings describes the video track
+        // of a chunk that lost its journal
+        File reference = null;
+        for (File file : completed) {
+            try {
+                if (!Mp4Recovery.needsRecovery(file)) {
+                    reference = file;
+                    break;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed reading " + file, e);
+            }
+        }
+
+        sessionFolder.mkdirs();
+        long now = System.currentTimeMillis();
+        File activeOutput = activeOutputPath != null ? new File(activeOutputPath) : null;
+        List<File> recovered = Mp4Recovery.sweep(getRecordingTempFolder(), reference, activeOutput);
+        for (int i = 0; i < recovered.size(); i++) {
+            // Named after the completed chunks so name order stays recording order
+            File chunk = new File(sessionFolder, (now + i) + ".mp4");
+            try {
+                Files.move(recovered.get(i), chunk);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed moving recovered chunk " + recovered.get(i), e);
+            }
+        }
+
+        if (listVideos(sessionFolder).isEmpty()) return null;
+        Log.i(TAG, "Recovered " + recovered.size() + " interrupted chunks, stitching the session");
+        return stichVideos(context, sessionFolder.getPath(), outputDirPath);
+    }
+
+    private static List<File> listVideos(File directory)
+    {
+        List<File> videos = new ArrayList<>();
+        File[] files = directory != null ? directory.listFiles() : null;
+        if (files == null) return videos;
+        for (File file : files) {
+            if (file.getName().endsWith(".mp4") && file.length() > 0) {
+                videos.add(file);
+            }
+        }
+        Collections.sort(videos);
+        return videos;
+    }
+
     public static float dp2px(Resources resources, float dp)
     {
         final float scale = resources.getDisplayMetrics().density;
@@ -0,0 +1,216 @@
+package com.github.teocci.libmediacodec.utils;
+
+import android.util.Log;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stitches recording chunks into a growing MP4 file as soon as each chunk is finished,
+ * so that completing a session only has to write the merged moov box.
+ * <p>
+ * All file work happens on a single background thread. Callers announce a chunk with
+ * {@link #expectChunk()} when recording starts and hand it over with
+ * {@link #chunkFinished(File)} once its muxer has finished; {@link #finish(File)}
+ * waits for announced chunks before completing the output.
+ */
+public class IncrementalStitcher
+{
+    private static final String TAG = IncrementalStitcher.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    private static final long CHUNK_WAIT_TIMEOUT_MS = 5000;
+
+    private final File workFile;
+    private final ExecutorService executor;
+    private final Object chunkLock = new Object();
+
+    // Only touched on the executor thread
+    private Mp4Stitcher stitcher;
+    private int numChunks;
+
+    // Guarded by chunkLock. Negative while chunks arrived before they were announced
+    private int pendingChunks;
+    private int discardedChunks;                // announced before cancel(), dropped on arrival
+
+    /**
+     * @param workFile where the output grows until {@link #finish(File)} moves it into place
+     */
+    public IncrementalStitcher(File workFile)
+    {
+        this.workFile = workFile;
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Announces that a chunk is being recorded and will be passed to {@link #chunkFinished(File)}.
+     */
+    public void expectChunk()
+    {
+        synchronized (chunkLock) {
+            pendingChunks++;
+        }
+    }
+
+    /**
+     * Queues a finished chunk for appending. The chunk is deleted once its samples are
+     * in the output; if appending fails it is left in place. A chunk may be handed over
+     * before its {@link #expectChunk()}, which then has nothing left to wait for.
+     *
+     * @param chunk the finished recording, or null if the recording produced no file
+     */
+    public void chunkFinished(final File chunk)
+    {
+        synchronized (chunkLock) {
+            if (discardedChunks > 0) {
+                discardedChunks--;
+                if (chunk != null) chunk.delete();
+                return;
+            }
+        }
+        if (chunk != null) {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    appendChunk(chunk);
+                }
+            });
+        }
+        synchronized (chunkLock) {
+            pendingChunks--;
+            chunkLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for outstanding chunks, completes the output and moves it to {@code outputFile}.
+     * Must not be called on the thread that delivers {@link #chunkFinished(File)}.
+     *
+     * @return the output file, or null if no chunk was stitched
+     */
+    public File finish(final File outputFile) throws IOException
+    {
+        awaitPendingChunks();
+        return await(executor.submit(new Callable<File>()
+        {
+            @Override
+            public File call() throws Exception
+            {
+                if (stitcher == null) {
+                    Log.w(TAG, "No chunks to stitch");
+                    return null;
+                }
+                Mp4Stitcher current = stitcher;
+                stitcher = null;
+                try {
+                    current.finish();
+                } catch (IOException e) {
+                    current.abort();
+                    throw e;
+                }
+                Files.move(workFile, outputFile);
+                Log.i(TAG, "Finished " + outputFile + " from " + numChunks + " chunks");
+                numChunks = 0;
+                return outputFile;
+            }
+        }));
+    }
+
+    /**
+     * Discards everything stitched so far, including chunks that were announced
+     * but have not finished yet.
+     */
+    public void cancel()
+    {
+        synchronized (chunkLock) {
+            discardedChunks += Math.max(0, pendingChunks);
+            pendingChunks = 0;
+            chunkLock.notifyAll();
+        }
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (stitcher != null) {
+                    stitcher.abort();
+                    stitcher = null;
+                }
+                numChunks = 0;
+            }
+        });
+    }
+
+    /**
+     * Cancels the session and stops the background thread.
+     */
+    public void release()
+    {
+        cancel();
+        executor.shutdown();
+    }
+
+    private void appendChunk(File chunk)
+    {
+        try {
+            if (stitcher == null) {
+                File parent = workFile.getParentFile();
+                if (parent != null) parent.mkdirs();
+                stitcher = new Mp4Stitcher(workFile);
+            }
+            stitcher.append(chunk);
+            numChunks++;
+            if (VERBOSE) Log.d(TAG, "Appended chunk " + numChunks + ": " + chunk);
+            if (!chunk.delete()) {
+                Log.w(TAG, "Failed to delete stitched chunk " + chunk);
+            }
+        } catch (IOException e) {
+            // Mp4Stitcher only commits sample tables after a successful copy, so the
+            // output stays consistent and the chunk can still be recovered by hand
+            Log.e(TAG, "Failed to append chunk " + chunk, e);
+        }
+    }
+
+    private void awaitPendingChunks() throws IOException
+    {
+        long deadline = System.currentTimeMillis() + CHUNK_WAIT_TIMEOUT_MS;
+        synchronized (chunkLock) {
+            while (pendingChunks > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.w(TAG, "Gave up waiting for " + pendingChunks + " chunks");
+                    pendingChunks = 0;
+                    break;
+                }
+                try {
+                    chunkLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for chunks", e);
+                }
+            }
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stitching", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new RuntimeException("Stitching failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,839 @@
+package com.github.teocci.libmediacodec.utils;
+
+import android.util.Log;
+
+import com.github.teocci.libmediacodec.format.AvcUtils;
+import com.github.teocci.libmediacodec.format.BoxWriter;
+import com.github.teocci.libmediacodec.format.Mp4BoxReader;
+import com.github.teocci.libmediacodec.format.Mp4BoxReader.BoxHeader;
+import com.github.teocci.libmediacodec.format.Mp4Boxes;
+import com.github.teocci.libmediacodec.format.SampleJournal;
+import com.github.teocci.libmediacodec.format.SampleTable;
+import com.github.teocci.libmediacodec.format.SequentialFileWriter;
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.github.teocci.libmediacodec.encoder.SessionConfig.FRAME_RATE;
+
+/**
+ * Makes MP4 files that were never finalized playable again.
+ * <p>
+ * android.media.MediaMuxer only writes the moov box when it is stopped, so a recording
+ * interrupted by a crash is an ftyp and an mdat full of samples nobody can find. This
+ * walks that mdat and writes a fresh moov box after the last complete sample:
+ * <ul>
+ * <li>With the {@link SampleJournal} left next to the file, the size, timestamp, flags
+ * and codec config of every sample are known. Only the order in which the muxer
+ * interleaved its chunks has to be rediscovered, which H.264 length prefixes settle.</li>
+ * <li>Without a journal, H.264 access units are located by their length prefixes and
+ * the sample description is taken from a reference recording made with the same
+ * settings. AAC frames aren't self-delimiting, so only the video track is recovered,
+ * at {@link com.github.teocci.libmediacodec.encoder.SessionConfig#FRAME_RATE}.</li>
+ * </ul>
+ * The mdat is read through a small window and never copied unless its header is too
+ * small for the recovered size, so memory use depends on the number of samples only.
+ */
+public class Mp4Recovery
+{
+    private static final String TAG = Mp4Recovery.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    private static final int MAX_NAL_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_NALS_PER_SAMPLE = 64;
+    private static final int BUFFER_FLAG_KEY_FRAME = 1;     // MediaCodec.BUFFER_FLAG_KEY_FRAME
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final Window window;
+    private final List<Track> tracks = new ArrayList<>();
+
+    private long ftypOffset = -1;
+    private int ftypSize;
+    private long mdatOffset = -1;
+    private int mdatHeaderSize;
+    private long dataEnd;
+
+    private Mp4Recovery(File file) throws IOException
+    {
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        window = new Window(channel);
+    }
+
+    /**
+     * @return true if {@code file} has media data but no moov box
+     */
+    public static boolean needsRecovery(File file) throws IOException
+    {
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+        try {
+            boolean hasMdat = false;
+            for (BoxHeader box : Mp4BoxReader.readTopLevelBoxes(source.getChannel())) {
+                if ("moov".equals(box.type)) return false;
+                hasMdat |= "mdat".equals(box.type);
+            }
+            return hasMdat;
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * @return true if {@code file} is a fragmented MP4, with moof boxes or an mvex box
+     * in its moov, as {@link SequentialFileWriter} writes them
+     */
+    public static boolean isFragmented(File file) throws IOException
+    {
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = source.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(8);
+            for (BoxHeader box : Mp4BoxReader.readTopLevelBoxes(channel)) {
+                if ("moof".equals(box.type)) return true;
+                if (!"moov".equals(box.type)) continue;
+                // Only the child headers; the moov of a long recording is large
+                long position = box.getPayloadOffset();
+                while (position + 8 <= box.getEnd()) {
+                    header.clear();
+                    Mp4BoxReader.readFully(channel, header, position);
+                    header.flip();
+                    long size = header.getInt() & 0xffffffffL;
+                    if ("mvex".equals(Mp4BoxReader.readFourCC(header))) return true;
+                    if (size < 8) break;
+                    position += size;
+                }
+            }
+            return false;
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Rebuilds the index of {@code file} in place and deletes its journal.
+     *
+     * @param reference a complete MP4 recorded with the same settings, used when there is
+     *                  no journal; may be null
+     * @return the number of samples recovered
+     * @throws IOException if no sample could be recovered
+     */
+    public static int recover(File file, File reference) throws IOException
+    {
+        File journal = SampleJournal.getJournalFile(file.getPath());
+        Mp4Recovery recovery = new Mp4Recovery(file);
+        int samples;
+        try {
+            recovery.findMediaData();
+            if (journal.exists()) {
+                samples = recovery.scanWithJournal(journal);
+            } else if (reference != null) {
+                samples = recovery.scanVideo(reference);
+            } else {
+                throw new IOException("No journal or reference to recover " + file);
+            }
+            if (samples == 0)
+                throw new IOException("No complete samples in " + file);
+            recovery.writeIndex();
+        } finally {
+            recovery.raf.close();
+        }
+        if (journal.exists() && !journal.delete()) {
+            Log.w(TAG, "Failed deleting " + journal);
+        }
+        Log.i(TAG, "Recovered " + samples + " samples of " + file + " (" + file.length() + " bytes)");
+        return samples;
+    }
+
+    /**
+     * Cuts off the zeros a crashed {@link SequentialFileWriter} leaves in the space it
+     * preallocated, so a fragmented MP4 ends with its last complete fragment. A fragment
+     * that only partly reached the file before the crash goes as well.
+     *
+     * @return the number of bytes cut off
+     */
+    public static long trimFragments(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long fileSize = channel.size();
+            // Data reaches the file in whole blocks, so a box that runs into the zero
+            // blocks past the last data wasn't written completely
+            int blockSize = SequentialFileWriter.BLOCK_SIZE;
+            long limit = Math.min(fileSize, (findDataEnd(channel) + blockSize - 1) / blockSize * blockSize);
+
+            ByteBuffer header = ByteBuffer.allocate(16);
+            long end = 0;
+            long moofOffset = -1;
+            while (end + 8 <= limit) {
+                header.clear();
+                header.limit((int) Math.min(16, limit - end));
+                Mp4BoxReader.readFully(channel, header, end);
+                header.flip();
+                long size = header.getInt() & 0xffffffffL;
+                String type = Mp4BoxReader.readFourCC(header);
+                int headerSize = 8;
+                if (size == 1 && header.remaining() >= 8) {
+                    size = header.getLong();
+                    headerSize = 16;
+                }
+                // Zeros read as a box of size 0
+                if (size < headerSize || end + size > limit) break;
+                moofOffset = "moof".equals(type) ? end : -1;
+                end += size;
+            }
+            // A moof is useless without its mdat
+            if (moofOffset >= 0) {
+                end = moofOffset;
+            }
+            if (end == fileSize) return 0;
+            channel.truncate(end);
+            Log.i(TAG, "Trimmed " + file + " from " + fileSize + " to " + end + " bytes");
+            return fileSize - end;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the offset after the last byte of {@code channel} that isn't zero
+     */
+    private static long findDataEnd(FileChannel channel) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long end = channel.size();
+        while (end > 0) {
+            long start = Math.max(0, end - buffer.capacity());
+            buffer.clear();
+            buffer.limit((int) (end - start));
+            Mp4BoxReader.readFully(channel, buffer, start);
+            for (int i = buffer.limit() - 1; i >= 0; i--) {
+                if (buffer.get(i) != 0) return start + i + 1;
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    /**
+     * Recovers every unfinished MP4 in {@code directory} and deletes journals whose
+     * recording is gone. Fragmented MP4s are playable as they are and only get
+     * {@link #trimFragments(File) trimmed} in place. Complete MP4s that aren't
+     * fragmented, and files that can't be recovered, are left untouched.
+     *
+     * @param reference see {@link #recover(File, File)}
+     * @return the recovered files, in name order
+     */
+    public static List<File> sweep(File directory, File reference)
+    {
+        return sweep(directory, reference, null);
+    }
+
+    /**
+     * Sweeps {@code directory} like {@link #sweep(File, File)}, except for a recording
+     * that is still being written there.
+     *
+     * @param activeOutput output of the current session, left alone with its journal, or null
+     */
+    public static List<File> sweep(File directory, File reference, File activeOutput)
+    {
+        List<File> recovered = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) return recovered;
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (activeOutput != null && (name.equals(activeOutput.getName())
+                    || name.equals(activeOutput.getName() + SampleJournal.FILE_SUFFIX))) {
+                continue;
+            }
+            if (name.endsWith(SampleJournal.FILE_SUFFIX)) {
+                File output = new File(directory, name.substring(0, name.length() - SampleJournal.FILE_SUFFIX.length()));
+                if (!output.exists() || output.length() == 0) {
+                    Log.d(TAG, "Deleting orphaned journal " + file);
+                    file.delete();
+                }
+                continue;
+            }
+            if (!name.endsWith(".mp4") || file.length() == 0) continue;
+            try {
+                if (needsRecovery(file)) {
+                    recover(file, reference);
+                    recovered.add(file);
+                } else if (isFragmented(file)) {
+                    trimFragments(file);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed recovering " + file, e);
+            }
+        }
+        return recovered;
+    }
+
+    private void findMediaData() throws IOException
+    {
+        // An interrupted writer leaves the mdat size as a placeholder, so the headers
+        // are read directly rather than trusting the declared sizes
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long fileSize = channel.size();
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            header.limit((int) Math.min(16, fileSize - position));
+            Mp4BoxReader.readFully(channel, header, position);
+            header.flip();
+            long size = header.getInt() & 0xffffffffL;
+            String type = Mp4BoxReader.readFourCC(header);
+            int headerSize = size == 1 ? 16 : 8;
+            if ("mdat".equals(type)) {
+                mdatOffset = position;
+                mdatHeaderSize = headerSize;
+                dataEnd = fileSize;
+                return;
+            }
+            if (size == 1 && header.remaining() >= 8) {
+                size = header.getLong();
+            }
+            if (size < headerSize) break;
+            if ("ftyp".equals(type)) {
+                ftypOffset = position;
+                ftypSize = (int) size;
+            }
+            position += size;
+        }
+        throw new IOException("No mdat box in " + file);
+    }
+
+    private long getDataStart()
+    {
+        return mdatOffset + mdatHeaderSize;
+    }
+
+    /**
+     * Replays the journal against the media data.
+     */
+    private int scanWithJournal(File journalFile) throws IOException
+    {
+        SampleJournal.Reader journal = new SampleJournal.Reader(journalFile);
+        boolean fileOffsets;
+        try {
+            fileOffsets = (journal.getFlags() & SampleJournal.FLAG_FILE_OFFSETS) != 0;
+            int kind;
+            while ((kind = journal.next()) != SampleJournal.KIND_END) {
+                while (tracks.size() <= journal.trackIndex) {
+                    tracks.add(new Track(null));
+                }
+                Track track = tracks.get(journal.trackIndex);
+                if (kind == SampleJournal.KIND_TRACK) {
+                    tracks.set(journal.trackIndex, new Track(createTrackInfo(journal.trackIndex + 1, journal.trackFormat)));
+                } else {
+                    track.addJournaled(journal.offset, journal.size, journal.ptsUs, journal.sampleFlags);
+                }
+            }
+        } finally {
+            journal.close();
+        }
+
+        int samples = 0;
+        if (fileOffsets) {
+            for (Track track : tracks) {
+                if (track.info == null) continue;
+                for (int i = 0; i < track.journaled; i++) {
+                    long offset = track.journalOffsets[i];
+                    if (offset < getDataStart() || offset + track.journalSizes[i] > dataEnd) break;
+                    track.addSample(offset, track.journalSizes[i], track.journalPts[i], track.isSync(track.journalFlags[i]));
+                    samples++;
+                }
+            }
+            return samples;
+        }
+
+        // The muxer wrote each track's samples in order, in chunks of one track at a time
+        long position = getDataStart();
+        Track current = null;
+        while (true) {
+            Track next = null;
+            int nextSize = -1;
+            boolean anyPending = false;
+            boolean cutOff = false;
+            for (Track track : tracks) {
+                if (track.next >= track.journaled) continue;
+                anyPending = true;
+                if (track.isAvc()) {
+                    int size = getAvcSampleSize(position, track.journalSizes[track.next]);
+                    if (size > 0) {
+                        next = track;
+                        nextSize = size;
+                        break;
+                    }
+                    cutOff |= endsInsideAvcSample(position, track.journalSizes[track.next]);
+                }
+            }
+            if (!anyPending) break;
+            // Otherwise the rest of a cut off frame would pass for AAC
+            if (next == null && cutOff) break;
+            if (next == null) {
+                next = pickOpaqueTrack(current);
+                if (next == null) {
+                    Log.w(TAG, "No journaled sample matches offset " + position + " of " + file);
+                    break;
+                }
+                nextSize = next.journalSizes[next.next];
+            }
+            if (position + nextSize > dataEnd) break;
+
+            int i = next.next++;
+            if (next.info != null) {
+                next.addSample(position, nextSize, next.journalPts[i], next.isSync(next.journalFlags[i]));
+                samples++;
+            }
+            position += nextSize;
+            current = next;
+        }
+        return samples;
+    }
+
+    /**
+     * Picks the track of a sample that can't be validated by its content, e.g. AAC.
+     * A chunk is continued if possible, otherwise the oldest pending sample wins.
+     */
+    private Track pickOpaqueTrack(Track current)
+    {
+        if (current != null && !current.isAvc() && current.next < current.journaled) {
+            return current;
+        }
+        Track oldest = null;
+        for (Track track : tracks) {
+            if (track.isAvc() || track.next >= track.journaled) continue;
+            if (oldest == null || track.journalPts[track.next] < oldest.journalPts[oldest.next]) {
+                oldest = track;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Finds H.264 access units without a journal.
+     */
+    private int scanVideo(File reference) throws IOException
+    {
+        Track video = null;
+        RandomAccessFile source = new RandomAccessFile(reference, "r");
+        try {
+            FileChannel in = source.getChannel();
+            for (BoxHeader box : Mp4BoxReader.readTopLevelBoxes(in)) {
+                if (!"moov".equals(box.type)) continue;
+                for (Mp4Stitcher.Track track : Mp4Stitcher.parseTracks(Mp4BoxReader.readPayload(in, box))) {
+                    if (track.info.isVideo() && TrackInfo.MIME_AVC.equals(track.info.getMime())) {
+                        TrackInfo info = TrackInfo.createFromSampleEntry(1, TrackInfo.HANDLER_VIDEO,
+                                track.info.getTimescale(), track.info.getWidth(), track.info.getHeight(),
+                                track.entries.get(0));
+                        info.setMatrix(track.info.getMatrix());
+                        video = new Track(info);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            source.close();
+        }
+        if (video == null)
+            throw new IOException("No H.264 track in reference " + reference);
+        tracks.add(video);
+        Log.w(TAG, "No journal for " + file + ", recovering video only");
+
+        long frameDurationUs = 1000000L / FRAME_RATE;
+        long position = getDataStart();
+        boolean inVideoChunk = false;
+        int samples = 0;
+        while (position < dataEnd) {
+            int size = getAccessUnitSize(position);
+            // Outside a video chunk, demand two access units in a row before trusting a match
+            if (size > 0 && (inVideoChunk || position + size == dataEnd || getAccessUnitSize(position + size) > 0)) {
+                video.addSample(position, size, samples * frameDurationUs, containsIdr(position, size));
+                samples++;
+                position += size;
+                inVideoChunk = true;
+            } else {
+                inVideoChunk = false;
+                position++;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Checks that {@code expectedSize} bytes of encoder output, stored with 4 byte NAL
+     * length prefixes, start at {@code position}.
+     *
+     * @return the stored size, which exceeds the encoder's by one byte per NAL unit if it
+     * used 3 byte start codes, or -1 if the data doesn't match
+     */
+    private int getAvcSampleSize(long position, int expectedSize) throws IOException
+    {
+        long total = 0;
+        int nals = 0;
+        while (total < expectedSize) {
+            int length = getNalLength(position + total);
+            if (length < 0 || ++nals > MAX_NALS_PER_SAMPLE) return -1;
+            total += 4 + length;
+        }
+        return total == expectedSize || total == expectedSize + nals ? (int) total : -1;
+    }
+
+    /**
+     * @return true if the data ends inside {@code expectedSize} bytes of encoder output
+     * that start at {@code position}, as far as they made it to the file
+     */
+    private boolean endsInsideAvcSample(long position, int expectedSize) throws IOException
+    {
+        long total = 0;
+        while (position + total + 5 <= dataEnd) {
+            int length = window.getInt(position + total);
+            int header = window.get(position + total + 4);
+            if (length <= 0 || length > MAX_NAL_SIZE || (header & 0x80) != 0
+                    || AvcUtils.getNalType((byte) header) == 0) {
+                return false;
+            }
+            total += 4 + length;
+            if (position + total > dataEnd) return true;
+            if (total >= expectedSize) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the size of the H.264 access unit starting at {@code position}, or -1
+     */
+    private int getAccessUnitSize(long position) throws IOException
+    {
+        long total = 0;
+        boolean hasSlice = false;
+        for (int nals = 0; nals < MAX_NALS_PER_SAMPLE; nals++) {
+            long nalPosition = position + total;
+            if (nalPosition + 5 > dataEnd) return hasSlice ? (int) total : -1;
+            int length = getNalLength(nalPosition);
+            if (length < 0) return hasSlice ? (int) total : -1;
+            int type = AvcUtils.getNalType((byte) window.get(nalPosition + 4));
+            boolean isSlice = type == AvcUtils.NAL_TYPE_SLICE || type == AvcUtils.NAL_TYPE_IDR;
+            if (hasSlice) {
+                // Further slices of the same picture have first_mb_in_slice != 0
+                if (!isSlice || length < 2 || (window.get(nalPosition + 5) & 0x80) != 0) return (int) total;
+            } else if (!isSlice && type != AvcUtils.NAL_TYPE_SEI && type != AvcUtils.NAL_TYPE_AUD
+                    && type != AvcUtils.NAL_TYPE_SPS && type != AvcUtils.NAL_TYPE_PPS) {
+                return -1;
+            }
+            hasSlice |= isSlice;
+            total += 4 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the length of a plausible NAL unit at {@code position}, or -1
+     */
+    private int getNalLength(long position) throws IOException
+    {
+        if (position + 5 > dataEnd) return -1;
+        int length = window.getInt(position);
+        if (length <= 0 || length > MAX_NAL_SIZE || position + 4 + length > dataEnd) return -1;
+        int header = window.get(position + 4);
+        if ((header & 0x80) != 0 || AvcUtils.getNalType((byte) header) == 0) return -1;
+        return length;
+    }
+
+    private boolean containsIdr(long position, int size) throws IOException
+    {
+        long offset = 0;
+        while (offset < size) {
+            int length = window.getInt(position + offset);
+            if (AvcUtils.getNalType((byte) window.get(position + offset + 4)) == AvcUtils.NAL_TYPE_IDR) return true;
+            offset += 4 + length;
+        }
+        return false;
+    }
+
+    /**
+     * Ends the mdat after the last recovered sample and appends the moov box.
+     */
+    private void writeIndex() throws IOException
+    {
+        long mediaEnd = getDataStart();
+        for (Track track : tracks) {
+            if (track.info == null) continue;
+            track.finish();
+            mediaEnd = Math.max(mediaEnd, track.mediaEnd);
+        }
+
+        long mdatSize = mediaEnd - mdatOffset;
+        if (mdatHeaderSize == 8 && mdatSize > 0xffffffffL) {
+            rewriteWithLargeMdat(mediaEnd);
+            return;
+        }
+        ByteBuffer size = ByteBuffer.allocate(mdatHeaderSize == 16 ? 8 : 4);
+        if (mdatHeaderSize == 16) {
+            size.putLong(0, mdatSize);
+            channel.write(size, mdatOffset + 8);
+        } else {
+            size.putInt(0, (int) mdatSize);
+            channel.write(size, mdatOffset);
+        }
+        channel.truncate(mediaEnd);
+        writeMoov(mediaEnd, 0);
+    }
+
+    /**
+     * An mdat over 4 GB needs a 64-bit size its 8 byte header has no room for, so the
+     * media is copied behind a new header. Rare, as only very long chunks get there.
+     */
+    private void rewriteWithLargeMdat(long mediaEnd) throws IOException
+    {
+        File temp = new File(file.getPath() + ".recovering");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(0);
+            FileChannel outChannel = out.getChannel();
+            BoxWriter w = new BoxWriter(64);
+            if (ftypOffset >= 0) {
+                ByteBuffer ftypBox = ByteBuffer.allocate(ftypSize);
+                Mp4BoxReader.readFully(channel, ftypBox, ftypOffset);
+                ftypBox.flip();
+                outChannel.write(ftypBox);
+            } else {
+                Mp4Boxes.writeFtyp(w, "isom", 512, "isom", "iso2", "avc1", "mp41");
+            }
+            long newMdatOffset = outChannel.position() + w.position();
+            w.put32(1);
+            w.putFourCC("mdat");
+            w.put64(16 + mediaEnd - getDataStart());
+            w.writeTo(outChannel);
+
+            long transferred = 0;
+            long length = mediaEnd - getDataStart();
+            while (transferred < length) {
+                long count = channel.transferTo(getDataStart() + transferred, length - transferred, outChannel);
+                if (count <= 0)
+                    throw new IOException("Failed copying media data of " + file);
+                transferred += count;
+            }
+            writeMoov(outChannel, outChannel.position(), newMdatOffset + 16 - getDataStart());
+        } finally {
+            out.close();
+        }
+        raf.close();
+        if (!file.delete() || !temp.renameTo(file))
+            throw new IOException("Failed replacing " + file + " with " + temp);
+    }
+
+    private void writeMoov(long position, long offsetDelta) throws IOException
+    {
+        writeMoov(channel, position, offsetDelta);
+    }
+
+    private void writeMoov(FileChannel out, long position, long offsetDelta) throws IOException
+    {
+        List<Track> indexed = new ArrayList<>();
+        long movieDuration = 0;
+        for (Track track : tracks) {
+            if (track.info == null || track.samples.getSampleCount() == 0) continue;
+            indexed.add(track);
+            movieDuration = Math.max(movieDuration, getMovieDuration(track));
+        }
+
+        BoxWriter w = new BoxWriter(64 * 1024);
+        w.startBox("moov");
+        Mp4Boxes.writeMvhd(w, movieDuration, indexed.size() + 1);
+        for (Track track : indexed) {
+            SampleTable samples = track.samples;
+            if (offsetDelta != 0) {
+                samples = new SampleTable();
+                samples.append(track.samples, offsetDelta, null, track.info.getTimescale(), track.info.getTimescale());
+            }
+            Mp4Boxes.writeTrak(w, track.info, samples, samples.getDuration(), getMovieDuration(track));
+        }
+        w.endBox();
+        out.position(position);
+        w.writeTo(out);
+    }
+
+    private static long getMovieDuration(Track track)
+    {
+        return track.samples.getDuration() * Mp4Boxes.MOVIE_TIMESCALE / track.info.getTimescale();
+    }
+
+    private static boolean isKeyFrame(int flags)
+    {
+        return (flags & BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    /**
+     * @return the track described by a journal record, or null for one that can't be indexed
+     */
+    private static TrackInfo createTrackInfo(int trackId, SampleJournal.TrackFormat format)
+    {
+        if (TrackInfo.MIME_AVC.equals(format.mime)) {
+            byte[] sps = null;
+            byte[] pps = null;
+            for (byte[] csd : new byte[][]{format.csd0, format.csd1}) {
+                for (byte[] nal : AvcUtils.splitNalUnits(ByteBuffer.wrap(csd))) {
+                    int type = AvcUtils.getNalType(nal[0]);
+                    if (type == AvcUtils.NAL_TYPE_SPS && sps == null) sps = nal;
+                    if (type == AvcUtils.NAL_TYPE_PPS && pps == null) pps = nal;
+                }
+            }
+            if (sps != null && pps != null) {
+                return TrackInfo.createAvc(trackId, format.width, format.height, sps, pps);
+            }
+        } else if (TrackInfo.MIME_AAC.equals(format.mime) && format.csd0.length > 0) {
+            return TrackInfo.createAac(trackId, format.sampleRate, format.channelCount, format.csd0);
+        }
+        Log.w(TAG, "Can't index journaled track " + trackId + " (" + format.mime + "), skipping its samples");
+        return null;
+    }
+
+    private static class Track
+    {
+        final TrackInfo info;
+        final SampleTable samples = new SampleTable();
+
+        // Journaled samples, in the order they were written
+        int journaled;
+        int next;
+        long[] journalOffsets = new long[0];
+        int[] journalSizes = new int[0];
+        long[] journalPts = new long[0];
+        int[] journalFlags = new int[0];
+
+        // A sample is added to the table once the next one gives its duration
+        boolean hasPending;
+        int pendingSize;
+        long pendingTicks;
+        boolean pendingSync;
+        int lastDelta;
+
+        long chunkOffset;
+        int chunkSamples;
+        long mediaEnd;
+
+        Track(TrackInfo info)
+        {
+            this.info = info;
+        }
+
+        boolean isAvc()
+        {
+            return info != null && TrackInfo.MIME_AVC.equals(info.getMime());
+        }
+
+        /**
+         * AAC encoders don't flag their frames, all of which are sync samples.
+         */
+        boolean isSync(int flags)
+        {
+            return !info.isVideo() || isKeyFrame(flags);
+        }
+
+        void addJournaled(long offset, int size, long ptsUs, int flags)
+        {
+            if (journaled == journalSizes.length) {
+                int capacity = Math.max(256, journaled * 2);
+                journalOffsets = Arrays.copyOf(journalOffsets, capacity);
+                journalSizes = Arrays.copyOf(journalSizes, capacity);
+                journalPts = Arrays.copyOf(journalPts, capacity);
+                journalFlags = Arrays.copyOf(journalFlags, capacity);
+            }
+            journalOffsets[journaled] = offset;
+            journalSizes[journaled] = size;
+            journalPts[journaled] = ptsUs;
+            journalFlags[journaled] = flags;
+            journaled++;
+        }
+
+        void addSample(long offset, int size, long ptsUs, boolean isSync)
+        {
+            if (chunkSamples > 0 && offset != mediaEnd) {
+                samples.addChunk(chunkOffset, chunkSamples, 1);
+                chunkSamples = 0;
+            }
+            if (chunkSamples == 0) {
+                chunkOffset = offset;
+            }
+            chunkSamples++;
+            mediaEnd = offset + size;
+
+            long ticks = info.usToTicks(ptsUs);
+            if (hasPending) {
+                lastDelta = (int) Math.max(1, ticks - pendingTicks);
+                samples.addSample(pendingSize, lastDelta, pendingSync, 0);
+            }
+            hasPending = true;
+            pendingSize = size;
+            pendingTicks = ticks;
+            pendingSync = isSync;
+        }
+
+        void finish()
+        {
+            if (hasPending) {
+                samples.addSample(pendingSize, lastDelta > 0 ? lastDelta : 1, pendingSync, 0);
+                hasPending = false;
+            }
+            if (chunkSamples > 0) {
+                samples.addChunk(chunkOffset, chunkSamples, 1);
+                chunkSamples = 0;
+            }
+        }
+    }
+
+    /**
+     * Random access to the file through a small buffer, for the short reads of a scan.
+     */
+    private static class Window
+    {
+        private static final int SIZE = 64 * 1024;
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        private long start = -1;
+
+        Window(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        int get(long position) throws IOException
+        {
+            ensure(position, 1);
+            return buffer.get((int) (position - start)) & 0xff;
+        }
+
+        int getInt(long position) throws IOException
+        {
+            ensure(position, 4);
+            return buffer.getInt((int) (position - start));
+        }
+
+        private void ensure(long position, int length) throws IOException
+        {
+            if (start >= 0 && position >= start && position + length <= start + buffer.limit()) return;
+            long available = channel.size() - position;
+            if (available < length)
+                throw new IOException("Read past the end of the file at " + position);
+            buffer.clear();
+            buffer.limit((int) Math.min(SIZE, available));
+            Mp4BoxReader.readFully(channel, buffer, position);
+            buffer.flip();
+            start = position;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.github.teocci.libmediacodec.utils;
+
+import android.util.Log;
+
+import com.github.teocci.libmediacodec.format.BoxWriter;
+import com.github.teocci.libmediacodec.format.Mp4BoxReader;
+import com.github.teocci.libmediacodec.format.Mp4BoxReader.BoxHeader;
+import com.github.teocci.libmediacodec.format.Mp4Boxes;
+import com.github.teocci.libmediacodec.format.SampleTable;
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Concatenates progressive MP4 files recorded with the same codec settings.
+ * <p>
+ * Only the moov box of every input is parsed; its sample tables are merged and the
+ * mdat payload is copied with {@link FileChannel#transferTo}, so the cost of stitching
+ * grows with the amount of metadata rather than with the size of the media.
+ * <p>
+ * Tracks are matched by handler type in the order they appear in the first input.
+ * The output has a single 64-bit mdat followed by the moov box.
+ */
+public class Mp4Stitcher
+{
+    private static final String TAG = Mp4Stitcher.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    private final File outputFile;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long mdatOffset;
+
+    private final List<Track> tracks = new ArrayList<>();
+    private int numChunks;
+    private boolean finished;
+
+    public Mp4Stitcher(File outputFile) throws IOException
+    {
+        this.outputFile = outputFile;
+        file = new RandomAccessFile(outputFile, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+
+        BoxWriter w = new BoxWriter(64);
+        Mp4Boxes.writeFtyp(w, "isom", 512, "isom", "iso2", "avc1", "mp41");
+        mdatOffset = w.position();
+        w.put32(1);                         // size is in largesize
+        w.putFourCC("mdat");
+        w.put64(0);                         // largesize, patched by finish()
+        w.writeTo(channel);
+    }
+
+    /**
+     * Stitches {@code inputs} into {@code outputFile}, in order.
+     */
+    public static void stitch(File outputFile, List<File> inputs) throws IOException
+    {
+        Mp4Stitcher stitcher = new Mp4Stitcher(outputFile);
+        boolean success = false;
+        try {
+            for (File input : inputs) {
+                stitcher.append(input);
+            }
+            stitcher.finish();
+            success = true;
+        } finally {
+            if (!success) {
+                stitcher.abort();
+            }
+        }
+    }
+
+    /**
+     * Appends the samples of {@code input} to the end of the output.
+     *
+     * @throws IOException if the input cannot be read or has no moov box
+     */
+    public void append(File input) throws IOException
+    {
+        if (finished)
+            throw new IllegalStateException("Stitcher already finished");
+
+        RandomAccessFile source = new RandomAccessFile(input, "r");
+        try {
+            FileChannel in = source.getChannel();
+            BoxHeader moovHeader = null;
+            long mediaStart = -1;
+            long mediaEnd = -1;
+            for (BoxHeader box : Mp4BoxReader.readTopLevelBoxes(in)) {
+                if ("moov".equals(box.type)) {
+                    moovHeader = box;
+                } else if ("mdat".equals(box.type)) {
+                    if (mediaStart < 0) mediaStart = box.getPayloadOffset();
+                    mediaEnd = box.getEnd();
+                }
+            }
+            if (moovHeader == null)
+                throw new IOException("No moov box in " + input);
+
+            List<Track> chunkTracks = parseTracks(Mp4BoxReader.readPayload(in, moovHeader));
+
+            // Samples of every mdat are copied as one span, so offsets move by a single delta
+            long delta = 0;
+            if (mediaStart >= 0) {
+                long destination = channel.position();
+                delta = destination - mediaStart;
+                transfer(in, mediaStart, mediaEnd - mediaStart);
+            }
+
+            boolean[] used = new boolean[tracks.size() + chunkTracks.size()];
+            for (Track chunkTrack : chunkTracks) {
+                Track track = findTrack(chunkTrack.info.getHandlerType(), used);
+                if (track == null) {
+                    if (numChunks > 0) {
+                        Log.w(TAG, "Dropping " + chunkTrack.info.getHandlerType() + " track of " + input
+                                + ": not present in the first input");
+                        continue;
+                    }
+                    TrackInfo info = TrackInfo.createFromSampleEntry(tracks.size() + 1,
+                            chunkTrack.info.getHandlerType(), chunkTrack.info.getTimescale(),
+                            chunkTrack.info.getWidth(), chunkTrack.info.getHeight(),
+                            chunkTrack.entries.get(0));
+                    info.setMatrix(chunkTrack.info.getMatrix());
+                    track = new Track(info, new SampleTable(), null);
+                    used[tracks.size()] = true;
+                    tracks.add(track);
+                }
+
+                List<byte[]> entries = chunkTrack.entries;
+                int[] descriptionIndices = new int[entries.size()];
+                for (int i = 0; i < entries.size(); i++) {
+                    descriptionIndices[i] = track.info.addSampleEntry(entries.get(i));
+                }
+                track.samples.append(chunkTrack.samples, delta, descriptionIndices,
+                        chunkTrack.info.getTimescale(), track.info.getTimescale());
+            }
+            numChunks++;
+            if (VERBOSE) Log.d(TAG, "Appended " + input + ", media delta " + delta);
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Completes the mdat box, writes the moov box and closes the output.
+     */
+    public void finish() throws IOException
+    {
+        if (finished) return;
+        if (tracks.isEmpty())
+            throw new IOException("No tracks were stitched into " + outputFile);
+
+        long mdatEnd = channel.position();
+        ByteBuffer largeSize = ByteBuffer.allocate(8);
+        largeSize.putLong(0, mdatEnd - mdatOffset);
+        channel.write(largeSize, mdatOffset + 8);
+
+        long movieDuration = 0;
+        for (Track track : tracks) {
+            movieDuration = Math.max(movieDuration, getMovieDuration(track));
+        }
+
+        BoxWriter w = new BoxWriter(64 * 1024);
+        w.startBox("moov");
+        Mp4Boxes.writeMvhd(w, movieDuration, tracks.size() + 1);
+        for (Track track : tracks) {
+            Mp4Boxes.writeTrak(w, track.info, track.samples, track.samples.getDuration(),
+                    getMovieDuration(track));
+        }
+        w.endBox();
+        channel.position(mdatEnd);
+        w.writeTo(channel);
+        file.close();
+        finished = true;
+        Log.i(TAG, "Stitched " + numChunks + " inputs into " + outputFile + " (" + outputFile.length() + " bytes)");
+    }
+
+    /**
+     * Closes and deletes the partially written output.
+     */
+    public void abort()
+    {
+        if (finished) return;
+        finished = true;
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close " + outputFile, e);
+        }
+        outputFile.delete();
+    }
+
+    private Track findTrack(String handlerType, boolean[] used)
+    {
+        for (int i = 0; i < tracks.size(); i++) {
+            if (!used[i] && tracks.get(i).info.getHandlerType().equals(handlerType)) {
+                used[i] = true;
+                return tracks.get(i);
+            }
+        }
+        return null;
+    }
+
+    private void transfer(FileChannel in, long position, long length) throws IOException
+    {
+        long transferred = 0;
+        while (transferred < length) {
+            long count = in.transferTo(position + transferred, length - transferred, channel);
+            if (count <= 0)
+                throw new IOException("Failed to copy media data at " + (position + transferred));
+            transferred += count;
+        }
+    }
+
+    private static long getMovieDuration(Track track)
+    {
+        return track.samples.getDuration() * Mp4Boxes.MOVIE_TIMESCALE / track.info.getTimescale();
+    }
+
+    static List<Track> parseTracks(ByteBuffer moov) throws IOException
+    {
+        List<Track> result = new ArrayList<>();
+        for (ByteBuffer trak : Mp4BoxReader.findBoxes(moov, "trak")) {
+            ByteBuffer tkhd = Mp4BoxReader.findBox(trak, "tkhd");
+            ByteBuffer mdia = Mp4BoxReader.findBox(trak, "mdia");
+            ByteBuffer mdhd = mdia != null ? Mp4BoxReader.findBox(mdia, "mdhd") : null;
+            ByteBuffer hdlr = mdia != null ? Mp4BoxReader.findBox(mdia, "hdlr") : null;
+            ByteBuffer minf = mdia != null ? Mp4BoxReader.findBox(mdia, "minf") : null;
+            ByteBuffer stbl = minf != null ? Mp4BoxReader.findBox(minf, "stbl") : null;
+            ByteBuffer stsd = stbl != null ? Mp4BoxReader.findBox(stbl, "stsd") : null;
+            if (tkhd == null || mdhd == null || hdlr == null || stsd == null)
+                throw new IOException("Incomplete trak box");
+
+            boolean wide = tkhd.get(0) == 1;
+            int trackId = tkhd.getInt(wide ? 20 : 12);
+            int matrixOffset = wide ? 52 : 40;
+            int[] matrix = new int[9];
+            for (int i = 0; i < 9; i++) {
+                matrix[i] = tkhd.getInt(matrixOffset + i * 4);
+            }
+            int width = tkhd.getInt(matrixOffset + 36) >>> 16;
+            int height = tkhd.getInt(matrixOffset + 40) >>> 16;
+            int timescale = mdhd.getInt(mdhd.get(0) == 1 ? 20 : 12);
+            hdlr.position(8);
+            String handlerType = Mp4BoxReader.readFourCC(hdlr);
+
+            int entryCount = stsd.getInt(4);
+            List<byte[]> entries = new ArrayList<>(entryCount);
+            int position = 8;
+            for (int i = 0; i < entryCount; i++) {
+                int size = stsd.getInt(position);
+                if (size < 8 || position + size > stsd.limit())
+                    throw new IOException("Malformed stsd box in track " + trackId);
+                byte[] entry = new byte[size];
+                stsd.position(position);
+                stsd.get(entry);
+                entries.add(entry);
+                position += size;
+            }
+            if (entries.isEmpty())
+                throw new IOException("No sample description in track " + trackId);
+
+            SampleTable samples;
+            try {
+                samples = SampleTable.parse(stbl);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed sample table in track " + trackId, e);
+            }
+
+            TrackInfo info = TrackInfo.createFromSampleEntry(trackId, handlerType, timescale,
+                    width, height, entries.get(0));
+            info.setMatrix(matrix);
+            result.add(new Track(info, samples, entries));
+        }
+        return result;
+    }
+
+    static class Track
+    {
+        final TrackInfo info;
+        final SampleTable samples;
+        // Sample entries as listed in the input's stsd, indexed by its stsc; null for output tracks
+        final List<byte[]> entries;
+
+        Track(TrackInfo info, SampleTable samples, List<byte[]> entries)
+        {
+            this.info = info;
+            this.samples = samples;
+            this.entries = entries;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.teocci.libmediacodec;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collection;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Runs the JMH benchmarks in the unit test JVM, where android.media is backed by
+ * Robolectric. Skipped unless asked for:
+ * <pre>
+ * ./gradlew :libmediacodec:testDebugUnitTest --tests '*BenchmarkTest' -Pbenchmark=PipelineBenchmark
+ * </pre>
+ * The benchmarks run in-process without forks, so absolute numbers are only comparable
+ * within one run.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BenchmarkTest
+{
+    @Test
+    public void runBenchmarks() throws Exception
+    {
+        String include = System.getProperty("benchmark", "");
+        assumeFalse("No -Pbenchmark=<regexp> given", include.isEmpty());
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .forks(0)
+                .shouldFailOnError(true)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+        assertFalse("No benchmark matches " + include, results.isEmpty());
+    }
+}
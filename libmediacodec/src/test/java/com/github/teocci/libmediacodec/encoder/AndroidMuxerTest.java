@@ -0,0 +1,62 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stopping android.media.MediaMuxer, which throws if it is stopped twice or before it started.
+ * Runs against {@link ShadowMediaMuxer}, registered in robolectric.properties.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AndroidMuxerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String outputPath;
+    private AndroidMuxer muxer;
+
+    @Before
+    public void setUp()
+    {
+        outputPath = new File(folder.getRoot(), "chunk.mp4").getAbsolutePath();
+        muxer = AndroidMuxer.create(outputPath, MediaMuxer.MediaFormat.MPEG4);
+        muxer.setExpectedNumTracks(2);
+    }
+
+    @Test
+    public void forceStopsOncePerEncoder()
+    {
+        muxer.addTrack(FakeEncoderCodec.createVideo(640, 360, 30, 1000000, 30).getOutputFormat());
+        muxer.addTrack(FakeEncoderCodec.createAudio(44100, 1, 128000).getOutputFormat());
+        assertTrue(muxer.isStarted());
+
+        // Both encoders missed the stop deadline
+        muxer.forceStop();
+        muxer.forceStop();
+        assertFalse(muxer.isStarted());
+        assertEquals(1, ShadowMediaMuxer.getStopCount(outputPath));
+    }
+
+    @Test
+    public void forceStopsBeforeAllTracksWereAdded()
+    {
+        // The audio encoder never produced its format
+        muxer.addTrack(FakeEncoderCodec.createVideo(640, 360, 30, 1000000, 30).getOutputFormat());
+        assertFalse(muxer.isStarted());
+
+        muxer.forceStop();
+        muxer.forceStop();
+        assertEquals(0, ShadowMediaMuxer.getStopCount(outputPath));
+    }
+}
@@ -0,0 +1,282 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import com.github.teocci.libmediacodec.event.BitrateDecisionEvent;
+import com.github.teocci.libmediacodec.event.BitrateDecisionEvent.Action;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link BitrateController} with a simulated link: the encoder produces its
+ * target bitrate, a send buffer of fixed size drains at the link's rate and drops what
+ * doesn't fit, and the controller samples the buffer every interval on a simulated clock.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BitrateControllerTest
+{
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 360;
+    private static final int FRAME_RATE = 30;
+    private static final int INITIAL_BITRATE = (int) (SessionConfig.BPP * FRAME_RATE * WIDTH * HEIGHT);
+    private static final long INTERVAL_MS = BitrateController.DEFAULT_INTERVAL_MS;
+    private static final int SEND_BUFFER_SIZE = RtmpMuxer.DEFAULT_SEND_BUFFER_SIZE;
+    private static final int INCREASE_HOLD_SAMPLES = 6;
+
+    private SimulatedEncoder encoder;
+    private SimulatedMuxer muxer;
+    private BitrateController controller;
+    private final List<BitrateDecisionEvent> posted = new ArrayList<>();
+    private final List<BitrateDecisionEvent> decisions = new ArrayList<>();
+    private long nowNanos = 1000000000L;
+    private double pendingBytes;
+    private double droppedBytes;
+
+    @Before
+    public void setUp()
+    {
+        encoder = new SimulatedEncoder(INITIAL_BITRATE);
+        muxer = new SimulatedMuxer();
+        EventBus eventBus = new EventBus();
+        eventBus.register(this);
+        muxer.setEventBus(eventBus);
+        controller = new BitrateController(encoder, muxer, WIDTH, HEIGHT, FRAME_RATE, INITIAL_BITRATE, INTERVAL_MS);
+        assertNull(controller.update(nowNanos));
+    }
+
+    @Subscribe
+    public void onBitrateDecision(BitrateDecisionEvent decision)
+    {
+        posted.add(decision);
+    }
+
+    @Test
+    public void followsTheLinkWithoutOscillating()
+    {
+        int floor = controller.getFloor();
+        int ceiling = controller.getCeiling();
+        // Above the ceiling: 10% steps every three seconds, up to the ceiling and no further
+        run(2000000, 30);
+        assertEquals(ceiling, controller.getBitrate());
+        assertEquals(8, controller.getIncreases());
+        assertEquals(0, controller.getDecreases());
+        assertEquals(Action.HOLD, decisions.get(decisions.size() - 1).getAction());
+
+        // Congested: stepped down below the link, held while the backlog drains, then
+        // probing up again, without turning back down within the 90 seconds
+        int linkBitrate = 400000;
+        int congested = run(linkBitrate, 90);
+        List<Action> steps = new ArrayList<>();
+        for (BitrateDecisionEvent decision : decisions.subList(congested, decisions.size())) {
+            if (decision.getAction() != Action.HOLD) steps.add(decision.getAction());
+        }
+        int decreases = steps.lastIndexOf(Action.DECREASE) + 1;
+        assertTrue(decreases > 0 && decreases < steps.size());
+        assertEquals(decreases, steps.indexOf(Action.INCREASE));
+        int lowest = controller.getBitrate();
+        boolean isProbing = false;
+        for (BitrateDecisionEvent decision : decisions.subList(congested, decisions.size())) {
+            lowest = Math.min(lowest, decision.getBitrate());
+            isProbing |= decision.getAction() == Action.INCREASE;
+            if (isProbing) {
+                // Probing stops once the backlog passes the low water mark, which the
+                // send buffer lets happen less than a quarter above the link
+                assertTrue(decision.toString(), decision.getBitrate() < linkBitrate * 5 / 4);
+            }
+        }
+        assertTrue(lowest < linkBitrate && lowest > linkBitrate / 2);
+        // The backlog never grew into frame drops
+        assertEquals(0, droppedBytes, 0);
+
+        // Below the floor: down to the floor and held there
+        run(50000, 20);
+        assertEquals(floor, controller.getBitrate());
+        BitrateDecisionEvent last = decisions.get(decisions.size() - 1);
+        assertEquals(Action.HOLD, last.getAction());
+        assertTrue(last.getSendBufferFill() >= BitrateController.HIGH_WATER);
+
+        // Recovered: back up from the floor
+        run(2000000, 30);
+        assertTrue(controller.getBitrate() > floor);
+
+        checkDecisions();
+    }
+
+    @Test
+    public void holdsWhileTheBacklogSwingsBetweenTheMarks()
+    {
+        // Every other sample calm: the three seconds start over each time
+        float[] fills = {0.24f, 0.06f, 0.0f, 0.2f, 0.05f, 0.1f};
+        for (int i = 0; i < 120; i++) {
+            sample(fills[i % fills.length]);
+        }
+        assertEquals(0, controller.getDecreases());
+        assertEquals(0, controller.getIncreases());
+        assertEquals(INITIAL_BITRATE, controller.getBitrate());
+
+        // Above the high water mark: a decrease, two samples held, then the next
+        sample(0.3f);
+        sample(0.4f);
+        sample(0.5f);
+        sample(0.6f);
+        assertEquals(2, controller.getDecreases());
+        checkDecisions();
+    }
+
+    /**
+     * Properties every decision of the run must have.
+     */
+    private void checkDecisions()
+    {
+        assertEquals(decisions, posted);
+        List<Integer> adjustments = new ArrayList<>();
+        int previousBitrate = INITIAL_BITRATE;
+        int lastDecrease = -3;
+        int calmSamples = 0;
+        for (int i = 0; i < decisions.size(); i++) {
+            BitrateDecisionEvent decision = decisions.get(i);
+            String at = "Decision " + i + ": " + decision;
+            float fill = decision.getSendBufferFill();
+            assertEquals(at, 0, decision.getWriteQueueFill(), 0);
+            assertEquals(at, previousBitrate, decision.getPreviousBitrate());
+            assertTrue(at, decision.getBitrate() >= controller.getFloor());
+            assertTrue(at, decision.getBitrate() <= controller.getCeiling());
+            // What the encoder produced during the interval, to the byte
+            assertTrue(at, Math.abs(decision.getEncodedBitrate() - previousBitrate) < 16);
+            calmSamples = fill <= BitrateController.LOW_WATER ? calmSamples + 1 : 0;
+
+            switch (decision.getAction()) {
+                case DECREASE:
+                    assertTrue(at, fill >= BitrateController.HIGH_WATER);
+                    // Held for two samples after the previous decrease
+                    assertTrue(at, i - lastDecrease > 2);
+                    int base = Math.min(previousBitrate, decision.getEncodedBitrate());
+                    assertEquals(at, Math.max(controller.getFloor(), (int) (base * 0.7f)), decision.getBitrate());
+                    lastDecrease = i;
+                    break;
+                case INCREASE:
+                    // Only after three seconds below the low water mark, so never right
+                    // after a decrease or while the backlog sits between the marks
+                    assertTrue(at, calmSamples >= INCREASE_HOLD_SAMPLES);
+                    assertEquals(at, Math.min(controller.getCeiling(), (int) (previousBitrate * 1.1f)),
+                            decision.getBitrate(), 1);
+                    calmSamples = 0;
+                    break;
+                default:
+                    assertEquals(at, previousBitrate, decision.getBitrate());
+                    break;
+            }
+            if (decision.getAction() != Action.HOLD) {
+                adjustments.add(decision.getBitrate());
+            }
+            previousBitrate = decision.getBitrate();
+        }
+        assertEquals(adjustments, encoder.adjustments);
+        assertEquals(controller.getDecreases() + controller.getIncreases(), adjustments.size());
+    }
+
+    /**
+     * Simulates {@code seconds} of a link draining {@code linkBitrate}.
+     *
+     * @return the index of the first decision made on this link
+     */
+    private int run(int linkBitrate, int seconds)
+    {
+        int first = decisions.size();
+        int samples = (int) (seconds * 1000 / INTERVAL_MS);
+        double intervalS = INTERVAL_MS / 1000.0;
+        for (int i = 0; i < samples; i++) {
+            double producedBytes = encoder.bitrate * intervalS / 8;
+            encoder.encodedBytes += (long) producedBytes;
+            pendingBytes = Math.max(0, pendingBytes + producedBytes - linkBitrate * intervalS / 8);
+            if (pendingBytes > SEND_BUFFER_SIZE) {
+                droppedBytes += pendingBytes - SEND_BUFFER_SIZE;
+                pendingBytes = SEND_BUFFER_SIZE;
+            }
+            muxer.sendBufferFill = (float) (pendingBytes / SEND_BUFFER_SIZE);
+            nowNanos += INTERVAL_MS * 1000000;
+            BitrateDecisionEvent decision = controller.update(nowNanos);
+            assertNotNull(decision);
+            assertEquals(nowNanos, decision.getTimeNanos());
+            decisions.add(decision);
+        }
+        return first;
+    }
+
+    /**
+     * One interval at the target bitrate, with the send buffer as full as given.
+     */
+    private void sample(float sendBufferFill)
+    {
+        encoder.encodedBytes += encoder.bitrate * INTERVAL_MS / 8000;
+        muxer.sendBufferFill = sendBufferFill;
+        nowNanos += INTERVAL_MS * 1000000;
+        decisions.add(controller.update(nowNanos));
+    }
+
+    /**
+     * Produces exactly its target bitrate.
+     */
+    private static class SimulatedEncoder extends AndroidEncoder
+    {
+        int bitrate;
+        long encodedBytes;
+        final List<Integer> adjustments = new ArrayList<>();
+
+        SimulatedEncoder(int bitrate)
+        {
+            this.bitrate = bitrate;
+        }
+
+        @Override
+        public long getEncodedBytes()
+        {
+            return encodedBytes;
+        }
+
+        @Override
+        public void adjustBitrate(int targetBitrate)
+        {
+            bitrate = targetBitrate;
+            adjustments.add(targetBitrate);
+        }
+
+        @Override
+        protected boolean isSurfaceInputEncoder()
+        {
+            return true;
+        }
+    }
+
+    private static class SimulatedMuxer extends MediaMuxer
+    {
+        float sendBufferFill;
+
+        SimulatedMuxer()
+        {
+            super("/dev/null", MediaFormat.FLV);
+        }
+
+        @Override
+        public float getSendBufferFill()
+        {
+            return sendBufferFill;
+        }
+
+        @Override
+        public void forceStop()
+        {
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples per second encoded and handed to the muxer by a video and an audio encoder
+ * thread at the same time. Buffered, each thread only copies into its own
+ * {@link SampleRing}; unbuffered, the threads serialize on the muxer's monitor as
+ * encoders do for muxers without concurrent writers, and each waits for the other's
+ * container write. Run through {@link com.github.teocci.libmediacodec.BenchmarkTest}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BufferedMuxerBenchmark
+{
+    private static final int VIDEO_SAMPLE_SIZE = 16 * 1024;
+    private static final int AUDIO_SAMPLE_SIZE = 372;
+    private static final long VIDEO_SAMPLE_US = 1000000 / 30;
+    private static final long AUDIO_SAMPLE_US = 1024 * 1000000 / 44100;
+
+    // CPU spent encoding each sample and writing it to the container, in Blackhole
+    // tokens. Two encoders keep the writer busy about two thirds of the time, so the
+    // buffered writer keeps up and the producers rarely wait for room in their ring
+    private static final long ENCODE_TOKENS = 15000;
+    private static final long WRITE_TOKENS = 5000;
+
+    @Param({"false", "true"})
+    public boolean isBuffered;
+
+    private MediaMuxer muxer;
+    private int videoTrack;
+    private int audioTrack;
+
+    // Each touched by its producer thread only
+    private final ByteBuffer videoSample = ByteBuffer.allocateDirect(VIDEO_SAMPLE_SIZE);
+    private final ByteBuffer audioSample = ByteBuffer.allocateDirect(AUDIO_SAMPLE_SIZE);
+    private final MediaCodec.BufferInfo videoInfo = new MediaCodec.BufferInfo();
+    private final MediaCodec.BufferInfo audioInfo = new MediaCodec.BufferInfo();
+    private long videoPtsUs;
+    private long audioPtsUs;
+
+    @Setup(Level.Iteration)
+    public void setUp()
+    {
+        muxer = new DiscardingMuxer();
+        if (isBuffered) {
+            muxer = BufferedMuxer.wrap(muxer);
+        }
+        videoTrack = muxer.addTrack(FakeEncoderCodec.createVideo(1280, 720, 30, 4000000, 30).getOutputFormat());
+        audioTrack = muxer.addTrack(FakeEncoderCodec.createAudio(44100, 1, 128000).getOutputFormat());
+        videoPtsUs = 0;
+        audioPtsUs = 0;
+    }
+
+    @Benchmark
+    @Group("producers")
+    @GroupThreads(1)
+    public void video(MuxerCounters counters)
+    {
+        videoInfo.set(0, VIDEO_SAMPLE_SIZE, videoPtsUs, 0);
+        videoPtsUs += VIDEO_SAMPLE_US;
+        Blackhole.consumeCPU(ENCODE_TOKENS);
+        write(videoTrack, videoSample, videoInfo);
+    }
+
+    @Benchmark
+    @Group("producers")
+    @GroupThreads(1)
+    public void audio()
+    {
+        audioInfo.set(0, AUDIO_SAMPLE_SIZE, audioPtsUs, 0);
+        audioPtsUs += AUDIO_SAMPLE_US;
+        Blackhole.consumeCPU(ENCODE_TOKENS);
+        write(audioTrack, audioSample, audioInfo);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown()
+    {
+        muxer.release();
+    }
+
+    private void write(int trackIndex, ByteBuffer sample, MediaCodec.BufferInfo info)
+    {
+        sample.clear();
+        // As AndroidEncoder.writeOutput does
+        if (muxer.supportsConcurrentWriters()) {
+            muxer.writeSampleData(null, trackIndex, -1, sample, info);
+        } else {
+            synchronized (muxer) {
+                muxer.writeSampleData(null, trackIndex, -1, sample, info);
+            }
+        }
+    }
+
+    /**
+     * The buffered muxer's metrics, reported next to the throughput. JMH adds these up over
+     * the measurement iterations, so each is what the iteration added: the average copy
+     * cost is copyNanos / copiedSamples, and maxQueueDepth sums to the deepest the queue got.
+     * Only the video thread takes them, so the muxer-wide figures are counted once.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class MuxerCounters
+    {
+        // How often an encoder waited for room in its ring
+        public long stalls;
+        public long copiedSamples;
+        public long copyNanos;
+        public long maxQueueDepth;
+
+        // Over the measurement iterations so far
+        private long deepestQueue;
+
+        @TearDown(Level.Iteration)
+        public void tearDown(BufferedMuxerBenchmark benchmark, IterationParams iteration)
+        {
+            if (benchmark.muxer instanceof BufferedMuxer) {
+                // A new muxer every iteration
+                BufferedMuxer bufferedMuxer = (BufferedMuxer) benchmark.muxer;
+                stalls = bufferedMuxer.getStallCount();
+                copiedSamples = bufferedMuxer.getSampleCount();
+                copyNanos = bufferedMuxer.getCopyNanos();
+                maxQueueDepth = Math.max(0, bufferedMuxer.getMaxQueueDepth() - deepestQueue);
+                if (iteration.getType() == IterationType.MEASUREMENT) {
+                    deepestQueue += maxQueueDepth;
+                }
+            }
+        }
+    }
+
+    /**
+     * Spends a fixed amount of CPU on every sample instead of writing it anywhere.
+     */
+    private static class DiscardingMuxer extends MediaMuxer
+    {
+        private volatile boolean isReleased;
+
+        DiscardingMuxer()
+        {
+            super("/dev/null", MediaFormat.FRAGMENTED_MPEG4);
+        }
+
+        @Override
+        public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData,
+                                    MediaCodec.BufferInfo bufferInfo)
+        {
+            super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+            Blackhole.consumeCPU(WRITE_TOKENS);
+            releaseOutputBuffer(encoder, bufferIndex);
+        }
+
+        @Override
+        public boolean isStarted()
+        {
+            return !isReleased;
+        }
+
+        @Override
+        public void forceStop()
+        {
+            isReleased = true;
+        }
+
+        @Override
+        public void release()
+        {
+            isReleased = true;
+            super.release();
+        }
+    }
+}
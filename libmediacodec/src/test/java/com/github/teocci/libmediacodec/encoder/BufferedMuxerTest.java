@@ -0,0 +1,250 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The order in which the writer thread hands samples to the wrapped muxer, for encoders
+ * that deliver them late or in bursts.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BufferedMuxerTest
+{
+    private static final long MAX_INTERLEAVE_US = 500000;
+    private static final long VIDEO_FRAME_US = 1000000 / 30;
+    private static final long AUDIO_FRAME_US = 1024 * 1000000 / 48000;
+    private static final long DURATION_US = 5000000;
+    private static final int VIDEO_TRACK = 0;
+    private static final int AUDIO_TRACK = 1;
+    private static final long TIMEOUT_MS = 5000;
+
+    private RecordingMuxer target;
+    private BufferedMuxer muxer;
+    private final List<Sample> delivered = new ArrayList<>();
+
+    @Before
+    public void setUp()
+    {
+        target = new RecordingMuxer();
+        muxer = BufferedMuxer.wrap(target);
+        muxer.setMaxInterleaveDurationUs(MAX_INTERLEAVE_US);
+        assertEquals(VIDEO_TRACK, muxer.addTrack(FakeEncoderCodec.createVideo(640, 360, 30, 1000000, 30).getOutputFormat()));
+        assertEquals(AUDIO_TRACK, muxer.addTrack(FakeEncoderCodec.createAudio(48000, 1, 64000).getOutputFormat()));
+    }
+
+    @After
+    public void tearDown()
+    {
+        muxer.release();
+    }
+
+    @Test
+    public void writesInTimestampOrderWhenTracksLagLessThanTheWindow() throws InterruptedException
+    {
+        // Video comes in bursts of ten frames, up to 400 ms after the audio of the same time
+        for (long ptsUs = 0; ptsUs < DURATION_US; ptsUs += VIDEO_FRAME_US) {
+            long burstEndUs = (ptsUs / (10 * VIDEO_FRAME_US) + 1) * 10 * VIDEO_FRAME_US;
+            delivered.add(new Sample(VIDEO_TRACK, ptsUs, burstEndUs + 70000));
+        }
+        addAudio(0, DURATION_US);
+        deliver(0, Long.MAX_VALUE);
+        List<Sample> written = finish();
+
+        for (int i = 1; i < written.size(); i++) {
+            assertTrue("Sample " + i + " written out of order",
+                    written.get(i).ptsUs >= written.get(i - 1).ptsUs);
+        }
+        // Well within the window: never more than one frame apart
+        assertTrue(getMaxSeparationUs(written) <= VIDEO_FRAME_US);
+    }
+
+    @Test
+    public void writesAheadOfAStalledTrackOnceTheWindowIsFull() throws InterruptedException
+    {
+        // The video encoder stalls for 1.5 s, then catches up at once
+        long stallStartUs = 2000000;
+        long stallEndUs = 3500000;
+        for (long ptsUs = 0; ptsUs < DURATION_US; ptsUs += VIDEO_FRAME_US) {
+            boolean isStalled = ptsUs >= stallStartUs && ptsUs < stallEndUs;
+            delivered.add(new Sample(VIDEO_TRACK, ptsUs, isStalled ? stallEndUs : ptsUs));
+        }
+        addAudio(0, DURATION_US);
+        long newestAudioUs = deliver(0, stallEndUs);
+
+        // The writer stops waiting for the video, but still holds back the last window of audio
+        long writableUs = newestAudioUs - MAX_INTERLEAVE_US;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (target.getNewestPtsUs(AUDIO_TRACK) <= writableUs - AUDIO_FRAME_US) {
+            assertTrue("Audio held back behind the stalled video", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertTrue(target.getNewestPtsUs(AUDIO_TRACK) <= writableUs);
+        assertTrue(target.getNewestPtsUs(VIDEO_TRACK) < stallStartUs);
+
+        deliver(stallEndUs, Long.MAX_VALUE);
+        List<Sample> written = finish();
+        assertEquals(delivered.size(), written.size());
+        // Only the part of the stall beyond the window shows in the output
+        long separationUs = getMaxSeparationUs(written);
+        assertTrue(separationUs <= stallEndUs - stallStartUs - MAX_INTERLEAVE_US);
+        assertTrue(separationUs > stallEndUs - stallStartUs - MAX_INTERLEAVE_US - AUDIO_FRAME_US - VIDEO_FRAME_US);
+    }
+
+    /**
+     * Adds audio that arrives as it is recorded.
+     */
+    private void addAudio(long startUs, long endUs)
+    {
+        for (long ptsUs = startUs; ptsUs < endUs; ptsUs += AUDIO_FRAME_US) {
+            delivered.add(new Sample(AUDIO_TRACK, ptsUs, ptsUs));
+        }
+    }
+
+    /**
+     * Writes the samples that arrive in {@code [fromUs, toUs)}, in the order they arrive.
+     *
+     * @return the newest audio timestamp written
+     */
+    private long deliver(long fromUs, long toUs)
+    {
+        List<Sample> arriving = new ArrayList<>();
+        for (Sample sample : delivered) {
+            if (sample.arrivalUs >= fromUs && sample.arrivalUs < toUs) {
+                arriving.add(sample);
+            }
+        }
+        // Stable, so each track stays in order
+        Collections.sort(arriving, new Comparator<Sample>()
+        {
+            @Override
+            public int compare(Sample a, Sample b)
+            {
+                return a.arrivalUs < b.arrivalUs ? -1 : (a.arrivalUs == b.arrivalUs ? 0 : 1);
+            }
+        });
+
+        long newestAudioUs = -1;
+        ByteBuffer data = ByteBuffer.allocate(100);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (Sample sample : arriving) {
+            data.clear();
+            info.set(0, data.remaining(), sample.ptsUs, 0);
+            muxer.writeSampleData(null, sample.trackIndex, -1, data, info);
+            if (sample.trackIndex == AUDIO_TRACK) {
+                newestAudioUs = sample.ptsUs;
+            }
+        }
+        return newestAudioUs;
+    }
+
+    /**
+     * Releases the muxer once everything was delivered.
+     *
+     * @return the samples in the order the target received them
+     */
+    private List<Sample> finish() throws InterruptedException
+    {
+        muxer.release();
+        assertTrue("Target not released", target.released.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return target.samples;
+    }
+
+    /**
+     * @return how far apart the newest video and audio written so far ever got
+     */
+    private static long getMaxSeparationUs(List<Sample> written)
+    {
+        long[] newestPtsUs = {-1, -1};
+        long maxSeparationUs = 0;
+        for (Sample sample : written) {
+            newestPtsUs[sample.trackIndex] = sample.ptsUs;
+            if (newestPtsUs[VIDEO_TRACK] >= 0 && newestPtsUs[AUDIO_TRACK] >= 0) {
+                maxSeparationUs = Math.max(maxSeparationUs, Math.abs(newestPtsUs[VIDEO_TRACK] - newestPtsUs[AUDIO_TRACK]));
+            }
+        }
+        return maxSeparationUs;
+    }
+
+    private static class Sample
+    {
+        final int trackIndex;
+        final long ptsUs;
+        // When the encoder hands it over, on the same clock as ptsUs
+        final long arrivalUs;
+
+        Sample(int trackIndex, long ptsUs, long arrivalUs)
+        {
+            this.trackIndex = trackIndex;
+            this.ptsUs = ptsUs;
+            this.arrivalUs = arrivalUs;
+        }
+    }
+
+    /**
+     * Records what it is handed instead of writing it anywhere.
+     */
+    private static class RecordingMuxer extends MediaMuxer
+    {
+        final List<Sample> samples = Collections.synchronizedList(new ArrayList<Sample>());
+        final CountDownLatch released = new CountDownLatch(1);
+        private final long[] newestPtsUs = {-1, -1};
+
+        RecordingMuxer()
+        {
+            super("/dev/null", MediaFormat.FRAGMENTED_MPEG4);
+        }
+
+        @Override
+        public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData,
+                                    MediaCodec.BufferInfo bufferInfo)
+        {
+            super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+            samples.add(new Sample(trackIndex, bufferInfo.presentationTimeUs, -1));
+            synchronized (newestPtsUs) {
+                newestPtsUs[trackIndex] = bufferInfo.presentationTimeUs;
+            }
+            releaseOutputBuffer(encoder, bufferIndex);
+        }
+
+        long getNewestPtsUs(int trackIndex)
+        {
+            synchronized (newestPtsUs) {
+                return newestPtsUs[trackIndex];
+            }
+        }
+
+        @Override
+        public boolean isStarted()
+        {
+            return released.getCount() > 0;
+        }
+
+        @Override
+        public void forceStop()
+        {
+        }
+
+        @Override
+        public void release()
+        {
+            super.release();
+            released.countDown();
+        }
+    }
+}
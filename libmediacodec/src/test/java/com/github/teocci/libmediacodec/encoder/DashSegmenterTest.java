@@ -0,0 +1,161 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+
+import com.github.teocci.libmediacodec.format.DashManifest;
+import com.github.teocci.libmediacodec.format.Mp4BoxReader;
+import com.github.teocci.libmediacodec.format.Mp4BoxReader.BoxHeader;
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segments cut from the fake encoder's output, numbered by their media time.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DashSegmenterTest
+{
+    private static final int FRAME_RATE = 30;
+    private static final long START_US = 1000000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void numbersSegmentsAndDeletesThoseLeavingTheWindow() throws IOException
+    {
+        long segmentDurationUs = 2000000;
+        File manifestFile = new File(folder.getRoot(), "test.mpd");
+        DashSegmenter segmenter = DashSegmenter.create(manifestFile.getPath(), MediaMuxer.MediaFormat.DASH,
+                segmentDurationUs, 2);
+        segmenter.setExpectedNumTracks(1);
+        // Keyframes every 5 s unless the segmenter asks for one
+        FakeEncoderCodec codec = FakeEncoderCodec.createVideo(640, 360, FRAME_RATE, 1000000, 5 * FRAME_RATE);
+        VideoEncoderCore core = new VideoEncoderCore(codec, segmenter, VideoEncoderCore.DEFAULT_MAX_FRAMES_IN_FLIGHT);
+
+        for (int i = 0; i < 13 * FRAME_RATE; i++) {
+            long ptsUs = START_US + i * 1000000L / FRAME_RATE;
+            // Every frame, however long the first segment takes to open
+            while (!core.awaitFrameSlot()) {
+                Thread.yield();
+            }
+            core.onFrameSubmitted(ptsUs * 1000);
+            codec.queueFrame(ptsUs);
+        }
+        core.drainEncoder(true);
+        core.release();
+
+        assertTrue(new File(folder.getRoot(), "test-init.mp4").length() > 0);
+        // Two segments in the window and two more for players still fetching them
+        for (int number = 1; number <= 3; number++) {
+            assertFalse("Segment " + number, getSegmentFile(number).exists());
+        }
+        for (int number = 4; number <= 7; number++) {
+            // Each starts with the keyframe requested as its nominal start comes within 100 ms
+            long startUs = getStartUs(getSegmentFile(number));
+            long nominalStartUs = (number - 1) * segmentDurationUs;
+            assertTrue("Segment " + number + " starts at " + startUs + " us",
+                    startUs >= nominalStartUs - 100000 && startUs < nominalStartUs + 200000);
+        }
+        assertFalse(getSegmentFile(8).exists());
+
+        DashManifest manifest = segmenter.getManifest();
+        String text = new String(Files.readAllBytes(manifestFile.toPath()), Charset.forName("UTF-8"));
+        assertEquals(withoutPublishTime(manifest.render()), withoutPublishTime(text));
+        assertTrue(text.contains(" timeShiftBufferDepth=\"PT4.000S\""));
+        assertTrue(text.contains("<SegmentTemplate timescale=\"1000\" duration=\"2000\" startNumber=\"1\""
+                + " initialization=\"test-init.mp4\" media=\"test-$Number$.m4s\"/>"));
+        assertTrue(text.contains(" codecs=\"avc1.42c01f\""));
+        assertTrue(text.contains(" width=\"640\" height=\"360\"/>"));
+        // The last frame's pts, 12.967 s after the first
+        assertTrue(text.contains(" mediaPresentationDuration=\"PT12.967S\""));
+        assertFalse(text.contains("minimumUpdatePeriod"));
+    }
+
+    @Test
+    public void skipsNumbersAfterALateKeyframe() throws IOException
+    {
+        File manifestFile = new File(folder.getRoot(), "test.mpd");
+        DashSegmenter segmenter = DashSegmenter.create(manifestFile.getPath(), MediaMuxer.MediaFormat.DASH,
+                1000000, 0);
+        segmenter.setExpectedNumTracks(1);
+        // Keyframes every 3 s whatever the segmenter asks for
+        FakeEncoderCodec codec = FakeEncoderCodec.createVideo(640, 360, FRAME_RATE, 1000000, 3 * FRAME_RATE);
+        codec.start();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int track = -1;
+        for (int i = 0; i <= 10 * FRAME_RATE; i++) {
+            if (i < 10 * FRAME_RATE) {
+                codec.queueFrame(START_US + i * 1000000L / FRAME_RATE);
+            } else {
+                codec.signalEndOfInputStream();
+            }
+            int index;
+            while ((index = codec.dequeueOutputBuffer(info, 0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    track = segmenter.addTrack(codec.getOutputFormat());
+                } else {
+                    segmenter.writeSampleData(codec, track, index, codec.getOutputBuffer(index), info);
+                }
+            }
+        }
+        // It did ask for keyframes at the boundaries
+        assertTrue(segmenter.takeSyncFrameRequest());
+        assertFalse(segmenter.isStarted());
+
+        // Segment n still starts at n - 1 seconds, as players expect from the template
+        for (int number = 1; number <= 10; number++) {
+            boolean isCut = number % 3 == 1;
+            assertEquals("Segment " + number, isCut, getSegmentFile(number).exists());
+            if (isCut) {
+                assertEquals((number - 1) * 1000000L, getStartUs(getSegmentFile(number)));
+            }
+        }
+    }
+
+    private File getSegmentFile(int number)
+    {
+        return new File(folder.getRoot(), "test-" + number + ".m4s");
+    }
+
+    /**
+     * @return the decode time of the first video sample in {@code segment}
+     */
+    private static long getStartUs(File segment) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(segment, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            for (BoxHeader box : Mp4BoxReader.readTopLevelBoxes(channel)) {
+                if (!"moof".equals(box.type)) continue;
+                ByteBuffer traf = Mp4BoxReader.findBox(Mp4BoxReader.readPayload(channel, box), "traf");
+                ByteBuffer tfdt = Mp4BoxReader.findBox(traf, "tfdt");
+                return tfdt.getLong(4) * 1000000L / TrackInfo.VIDEO_TIMESCALE;
+            }
+        } finally {
+            raf.close();
+        }
+        throw new AssertionError("No fragment in " + segment);
+    }
+
+    private static String withoutPublishTime(String manifest)
+    {
+        return manifest.replaceAll(" publishTime=\"[^\"]*\"", "");
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+
+import com.github.teocci.libmediacodec.event.MuxerFinishedEvent;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records fake video and audio through the encoders' drain paths into each file muxer.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+public class FakeEncoderPipelineTest
+{
+    private static final int FRAME_RATE = 30;
+    private static final int VIDEO_FRAMES = 150;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int AUDIO_INPUT_SIZE = 2048;
+    private static final long START_US = 1000000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MediaMuxer.MediaFormat format;
+    private final boolean isBuffered;
+
+    public FakeEncoderPipelineTest(MediaMuxer.MediaFormat format, boolean isBuffered)
+    {
+        this.format = format;
+        this.isBuffered = isBuffered;
+    }
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "{0} buffered={1}")
+    public static List<Object[]> parameters()
+    {
+        return Arrays.asList(new Object[][]{
+                {MediaMuxer.MediaFormat.FRAGMENTED_MPEG4, false},
+                {MediaMuxer.MediaFormat.FRAGMENTED_MPEG4, true},
+                {MediaMuxer.MediaFormat.HLS, false},
+                {MediaMuxer.MediaFormat.FLV, true},
+        });
+    }
+
+    @Test
+    public void recordsAndFinalizesBothTracks() throws Exception
+    {
+        File output = new File(folder.getRoot(), "out");
+        MediaMuxer muxer = createMuxer(output.getPath());
+        muxer.setExpectedNumTracks(2);
+        FinishedListener listener = new FinishedListener();
+        EventBus eventBus = new EventBus();
+        eventBus.register(listener);
+        muxer.setEventBus(eventBus);
+
+        FakeEncoderCodec video = FakeEncoderCodec.createVideo(640, 360, FRAME_RATE, 1000000, FRAME_RATE);
+        FakeEncoderCodec audio = FakeEncoderCodec.createAudio(SAMPLE_RATE, 1, 64000);
+        VideoEncoderCore videoCore = new VideoEncoderCore(video, muxer, VideoEncoderCore.DEFAULT_MAX_FRAMES_IN_FLIGHT);
+        AudioEncoderCore audioCore = new AudioEncoderCore(audio, muxer);
+
+        // Like MediaMuxer, the muxers drop samples until every track is added
+        audioCore.drainEncoder(false);
+        long audioPtsUs = START_US;
+        int audioInputs = 0;
+        long endUs = START_US + VIDEO_FRAMES * 1000000L / FRAME_RATE;
+        for (int i = 0; i < VIDEO_FRAMES; i++) {
+            long videoPtsUs = START_US + i * 1000000L / FRAME_RATE;
+            assertTrue(videoCore.awaitFrameSlot());
+            videoCore.onFrameSubmitted(videoPtsUs * 1000);
+            video.queueFrame(videoPtsUs);
+            if (i == 0) {
+                awaitStarted(muxer);
+            }
+
+            // Audio up to the video frame, as a microphone would deliver it
+            while (audioPtsUs <= videoPtsUs) {
+                boolean isLast = audioPtsUs + audioInputDurationUs() > endUs;
+                queueAudio(audioCore, audioPtsUs, isLast);
+                audioInputs++;
+                audioPtsUs += audioInputDurationUs();
+                if (!isLast) {
+                    audioCore.drainEncoder(false);
+                }
+            }
+        }
+        videoCore.drainEncoder(true);
+        audioCore.drainEncoder(true);
+        videoCore.release();
+        audioCore.release();
+
+        assertFalse(videoCore.isFlushTimedOut());
+        assertFalse(audioCore.isFlushTimedOut());
+        assertEquals(VIDEO_FRAMES, video.getFramesEncoded());
+        assertEquals(audioInputs, audio.getFramesEncoded());
+        assertEquals(0, videoCore.getDroppedFrames());
+        // BufferedMuxer releases its target on the writer thread
+        assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+        // Every encoded byte plus container overhead
+        assertTrue(output.length() > video.getBytesEncoded() + audio.getBytesEncoded());
+    }
+
+    private static void awaitStarted(MediaMuxer muxer) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!muxer.isStarted()) {
+            assertTrue("Muxer not started", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static long audioInputDurationUs()
+    {
+        return AUDIO_INPUT_SIZE / 2 * 1000000L / SAMPLE_RATE;
+    }
+
+    private static void queueAudio(AudioEncoderCore core, long ptsUs, boolean isLast)
+    {
+        int index = core.dequeueInputBuffer(-1);
+        ByteBuffer input = core.getInputBuffer(index);
+        input.clear();
+        input.put(new byte[AUDIO_INPUT_SIZE]);
+        core.queueInputBuffer(index, 0, AUDIO_INPUT_SIZE, ptsUs, isLast ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+    }
+
+    private MediaMuxer createMuxer(String path)
+    {
+        MediaMuxer muxer;
+        switch (format) {
+            case FRAGMENTED_MPEG4:
+                muxer = FragmentedMp4Muxer.create(path, format);
+                break;
+            case HLS:
+                muxer = TsMuxer.create(path, format);
+                break;
+            case FLV:
+                muxer = FlvMuxer.create(path, format);
+                break;
+            default:
+                throw new IllegalArgumentException("No file muxer for " + format);
+        }
+        return isBuffered ? BufferedMuxer.wrap(muxer) : muxer;
+    }
+
+    private static class FinishedListener
+    {
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        @Subscribe
+        public void onMuxerFinished(MuxerFinishedEvent event)
+        {
+            finished.countDown();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+
+import com.github.teocci.libmediacodec.format.Mp4BoxReader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.teocci.libmediacodec.encoder.TestSamples.fill;
+import static com.github.teocci.libmediacodec.encoder.TestSamples.toAvcc;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks the box layout of the fragmented MP4 output: ftyp and moov with mvex, then a
+ * moof + mdat pair per fragment whose trun data offsets point at the samples.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FragmentedMp4MuxerTest
+{
+    private static final int FRAME_RATE = 30;
+    private static final int KEYFRAME_INTERVAL = 15;
+    private static final int VIDEO_FRAMES = 2 * FRAME_RATE;
+    private static final int SAMPLE_RATE = 44100;
+    private static final long START_US = 1000000;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final byte NAL_IDR = 0x65;
+    private static final byte NAL_SLICE = 0x41;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<byte[]> videoSamples = new ArrayList<>();
+    private final List<byte[]> audioSamples = new ArrayList<>();
+
+    @Test
+    public void writesFragmentsWithOffsetsIntoTheirMdat() throws IOException
+    {
+        File file = folder.newFile("test.mp4");
+        FragmentedMp4Muxer muxer = FragmentedMp4Muxer.create(file.getPath(), MediaMuxer.MediaFormat.FRAGMENTED_MPEG4);
+        int videoTrack = muxer.addTrack(FakeEncoderCodec.createVideo(640, 360, FRAME_RATE, 1000000,
+                KEYFRAME_INTERVAL).getOutputFormat());
+        int audioTrack = muxer.addTrack(FakeEncoderCodec.createAudio(SAMPLE_RATE, 1, 128000).getOutputFormat());
+        writeSamples(muxer, videoTrack, audioTrack);
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            List<Mp4BoxReader.BoxHeader> boxes = Mp4BoxReader.readTopLevelBoxes(channel);
+            assertEquals("[ftyp, moov, moof, mdat, moof, mdat]", getTypes(boxes).toString());
+            assertEquals(channel.size(), boxes.get(boxes.size() - 1).getEnd());
+
+            ByteBuffer ftyp = Mp4BoxReader.readPayload(channel, boxes.get(0));
+            assertEquals("iso5", Mp4BoxReader.readFourCC(ftyp));
+
+            ByteBuffer moov = Mp4BoxReader.readPayload(channel, boxes.get(1));
+            assertNotNull(Mp4BoxReader.findBox(moov, "mvhd"));
+            assertEquals(2, Mp4BoxReader.findBoxes(moov, "trak").size());
+            ByteBuffer mvex = Mp4BoxReader.findBox(moov, "mvex");
+            assertNotNull(mvex);
+            List<ByteBuffer> trexs = Mp4BoxReader.findBoxes(mvex, "trex");
+            assertEquals(2, trexs.size());
+            assertEquals(1, trexs.get(0).getInt(4));
+            assertEquals(2, trexs.get(1).getInt(4));
+
+            // The video keyframe at 1 s cuts the first fragment
+            int[] videoCounts = {FRAME_RATE, FRAME_RATE};
+            int videoIndex = 0;
+            int audioIndex = 0;
+            long[] nextDecodeTime = {-1, -1};
+            for (int i = 0; i < 2; i++) {
+                Mp4BoxReader.BoxHeader moofHeader = boxes.get(2 + 2 * i);
+                Mp4BoxReader.BoxHeader mdatHeader = boxes.get(3 + 2 * i);
+                ByteBuffer moof = Mp4BoxReader.readPayload(channel, moofHeader);
+
+                ByteBuffer mfhd = Mp4BoxReader.findBox(moof, "mfhd");
+                assertEquals(i + 1, mfhd.getInt(4));
+
+                List<ByteBuffer> trafs = Mp4BoxReader.findBoxes(moof, "traf");
+                assertEquals(2, trafs.size());
+                long expectedOffset = moofHeader.size + mdatHeader.headerSize;
+                for (int track = 0; track < 2; track++) {
+                    ByteBuffer traf = trafs.get(track);
+                    ByteBuffer tfhd = Mp4BoxReader.findBox(traf, "tfhd");
+                    // default-base-is-moof
+                    assertEquals(0x020000, tfhd.getInt(0));
+                    assertEquals(track + 1, tfhd.getInt(4));
+
+                    ByteBuffer tfdt = Mp4BoxReader.findBox(traf, "tfdt");
+                    assertEquals(1, tfdt.get(0));
+                    long decodeTime = tfdt.getLong(4);
+                    if (nextDecodeTime[track] >= 0) {
+                        assertEquals(nextDecodeTime[track], decodeTime);
+                    }
+
+                    ByteBuffer trun = Mp4BoxReader.findBox(traf, "trun");
+                    // data-offset, sample-duration, sample-size and sample-flags
+                    assertEquals(0x000701, trun.getInt(0));
+                    int sampleCount = trun.getInt(4);
+                    int dataOffset = trun.getInt(8);
+                    assertEquals(expectedOffset, dataOffset);
+                    if (track == videoTrack) {
+                        assertEquals(videoCounts[i], sampleCount);
+                    }
+
+                    long position = moofHeader.offset + dataOffset;
+                    long durations = 0;
+                    for (int s = 0; s < sampleCount; s++) {
+                        int entry = 12 + 12 * s;
+                        durations += trun.getInt(entry);
+                        int size = trun.getInt(entry + 4);
+                        int flags = trun.getInt(entry + 8);
+                        byte[] expected;
+                        if (track == videoTrack) {
+                            expected = toAvcc(videoSamples.get(videoIndex));
+                            assertEquals(videoIndex % KEYFRAME_INTERVAL == 0 ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC,
+                                    flags);
+                            videoIndex++;
+                        } else {
+                            expected = audioSamples.get(audioIndex++);
+                            assertEquals(SAMPLE_FLAGS_SYNC, flags);
+                        }
+                        assertEquals(expected.length, size);
+                        ByteBuffer data = ByteBuffer.allocate(size);
+                        Mp4BoxReader.readFully(channel, data, position);
+                        assertArrayEquals(expected, data.array());
+                        position += size;
+                    }
+                    nextDecodeTime[track] = decodeTime + durations;
+                    expectedOffset += position - (moofHeader.offset + dataOffset);
+                }
+                assertEquals(mdatHeader.getEnd() - moofHeader.offset, expectedOffset);
+            }
+            assertEquals(VIDEO_FRAMES, videoIndex);
+            assertEquals(audioSamples.size(), audioIndex);
+        }
+    }
+
+    /**
+     * Writes two seconds of video and audio in timestamp order, then ends both tracks.
+     */
+    private void writeSamples(MediaMuxer muxer, int videoTrack, int audioTrack)
+    {
+        long endUs = START_US + VIDEO_FRAMES * 1000000L / FRAME_RATE;
+        int frame = 0;
+        int audioFrame = 0;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (true) {
+            long videoPtsUs = START_US + frame * 1000000L / FRAME_RATE;
+            long audioPtsUs = START_US + audioFrame * 1024 * 1000000L / SAMPLE_RATE;
+            if (videoPtsUs >= endUs && audioPtsUs >= endUs) break;
+            if (videoPtsUs <= audioPtsUs) {
+                boolean isKeyframe = frame % KEYFRAME_INTERVAL == 0;
+                byte[] sample = new byte[4 + 1 + 100 + frame];
+                sample[3] = 1;
+                sample[4] = isKeyframe ? NAL_IDR : NAL_SLICE;
+                fill(sample, 5, frame);
+                videoSamples.add(sample);
+                info.set(0, sample.length, videoPtsUs, isKeyframe ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                muxer.writeSampleData(null, videoTrack, -1, ByteBuffer.wrap(sample), info);
+                frame++;
+            } else {
+                byte[] sample = new byte[200 + audioFrame % 50];
+                fill(sample, 0, 1000 + audioFrame);
+                audioSamples.add(sample);
+                info.set(0, sample.length, audioPtsUs, 0);
+                muxer.writeSampleData(null, audioTrack, -1, ByteBuffer.wrap(sample), info);
+                audioFrame++;
+            }
+        }
+        info.set(0, 0, endUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        muxer.writeSampleData(null, videoTrack, -1, ByteBuffer.allocate(0), info);
+        muxer.writeSampleData(null, audioTrack, -1, ByteBuffer.allocate(0), info);
+    }
+
+
+    private static List<String> getTypes(List<Mp4BoxReader.BoxHeader> boxes)
+    {
+        List<String> types = new ArrayList<>();
+        for (Mp4BoxReader.BoxHeader box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+}
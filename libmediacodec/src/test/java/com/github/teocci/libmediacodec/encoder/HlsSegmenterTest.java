@@ -0,0 +1,87 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import com.github.teocci.libmediacodec.format.HlsPlaylist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segments cut from the fake encoder's output, whose periodic keyframes don't line up
+ * with the target duration.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HlsSegmenterTest
+{
+    private static final int FRAME_RATE = 30;
+    private static final long TARGET_DURATION_US = HlsSegmenter.DEFAULT_TARGET_DURATION_US;
+    // SessionConfig's default I-frame interval
+    private static final int KEYFRAME_INTERVAL = 5 * FRAME_RATE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cutsSegmentsAtTheTargetDuration() throws IOException
+    {
+        File playlistFile = new File(folder.getRoot(), "test.m3u8");
+        HlsSegmenter segmenter = HlsSegmenter.create(playlistFile.getPath(), MediaMuxer.MediaFormat.HLS,
+                TARGET_DURATION_US, 0);
+        segmenter.setExpectedNumTracks(1);
+        FakeEncoderCodec codec = FakeEncoderCodec.createVideo(640, 360, FRAME_RATE, 1000000, KEYFRAME_INTERVAL);
+        VideoEncoderCore core = new VideoEncoderCore(codec, segmenter, VideoEncoderCore.DEFAULT_MAX_FRAMES_IN_FLIGHT);
+
+        int frames = 40 * FRAME_RATE;
+        for (int i = 0; i < frames; i++) {
+            long ptsUs = 1000000 + i * 1000000L / FRAME_RATE;
+            assertTrue(core.awaitFrameSlot());
+            core.onFrameSubmitted(ptsUs * 1000);
+            codec.queueFrame(ptsUs);
+        }
+        core.drainEncoder(true);
+        core.release();
+
+        HlsPlaylist playlist = segmenter.getPlaylist();
+        String text = new String(Files.readAllBytes(playlistFile.toPath()), Charset.forName("UTF-8"));
+        assertEquals(playlist.render(), text);
+        assertTrue(text.contains("#EXT-X-TARGETDURATION:6\n"));
+        assertTrue(text.endsWith("#EXT-X-ENDLIST\n"));
+
+        List<Long> durationsUs = getDurationsUs(text);
+        // Six segments just over the target, then the rest of the 40 s; the encoder's own
+        // keyframes every 5 s would give 10 s segments
+        assertEquals(7, durationsUs.size());
+        for (int i = 0; i < durationsUs.size() - 1; i++) {
+            long durationUs = durationsUs.get(i);
+            // Ended by the requested keyframe, a few frames in flight after the target
+            assertTrue("Segment " + i + " of " + durationUs + " us",
+                    durationUs >= TARGET_DURATION_US && durationUs < TARGET_DURATION_US + 200000);
+            assertTrue(playlist.fitsTargetDuration(durationUs));
+            assertTrue(new File(folder.getRoot(), "test" + i + ".ts").length() > 0);
+        }
+    }
+
+    private static List<Long> getDurationsUs(String playlist)
+    {
+        List<Long> durationsUs = new ArrayList<>();
+        for (String line : playlist.split("\n")) {
+            if (line.startsWith("#EXTINF:")) {
+                String seconds = line.substring("#EXTINF:".length(), line.indexOf(','));
+                durationsUs.add(Math.round(Double.parseDouble(seconds) * 1000000));
+            }
+        }
+        return durationsUs;
+    }
+}
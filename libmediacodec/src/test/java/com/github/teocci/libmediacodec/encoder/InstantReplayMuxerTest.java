@@ -0,0 +1,138 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Eviction of the replay ring: it keeps whole GOPs and always starts on a video keyframe.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class InstantReplayMuxerTest
+{
+    private static final long FRAME_US = 40000;
+    private static final int GOP = 25;
+    private static final int FRAME_SIZE = 1000;
+    private static final int KEYFRAME_SIZE = 4000;
+
+    private InstantReplayMuxer muxer;
+
+    @After
+    public void tearDown()
+    {
+        if (muxer != null) muxer.release();
+    }
+
+    @Test
+    public void dropsSamplesBeforeTheFirstKeyframe()
+    {
+        muxer = createMuxer(InstantReplayMuxer.DEFAULT_MAX_DURATION_US, InstantReplayMuxer.DEFAULT_MAX_BYTES, true);
+        // Audio first, then video that joins mid-GOP
+        write(1, 0, 100, false);
+        write(0, 0, FRAME_SIZE, false);
+        write(1, 20000, 100, false);
+        assertEquals(0, muxer.getRetainedSampleCount());
+
+        write(0, FRAME_US, KEYFRAME_SIZE, true);
+        write(1, FRAME_US + 20000, 100, false);
+        write(0, 2 * FRAME_US, FRAME_SIZE, false);
+        assertEquals(3, muxer.getRetainedSampleCount());
+        assertEquals(FRAME_US, muxer.getRetainedDurationUs());
+    }
+
+    @Test
+    public void evictsWholeGopsPastTheMaxDuration()
+    {
+        long maxDurationUs = 2 * GOP * FRAME_US;
+        muxer = createMuxer(maxDurationUs, InstantReplayMuxer.DEFAULT_MAX_BYTES, false);
+        for (int i = 0; i < 10 * GOP; i++) {
+            writeFrame(i);
+            int completeGops = i / GOP;
+            if (completeGops < 2) {
+                assertEquals(i + 1, muxer.getRetainedSampleCount());
+                assertEquals(0, muxer.getEvictedGopCount());
+            } else {
+                // The two GOPs before the current one, so at least the max duration is kept
+                assertEquals(2 * GOP + i % GOP + 1, muxer.getRetainedSampleCount());
+                assertEquals(completeGops - 2, muxer.getEvictedGopCount());
+                assertTrue(muxer.getRetainedDurationUs() >= maxDurationUs);
+                assertTrue(muxer.getRetainedDurationUs() < maxDurationUs + GOP * FRAME_US);
+            }
+        }
+    }
+
+    @Test
+    public void evictsWholeGopsToStayWithinTheMaxBytes()
+    {
+        int gopBytes = KEYFRAME_SIZE + (GOP - 1) * FRAME_SIZE;
+        int maxBytes = 3 * gopBytes + gopBytes / 2;
+        muxer = createMuxer(InstantReplayMuxer.DEFAULT_MAX_DURATION_US, maxBytes, false);
+        for (int i = 0; i < 20 * GOP; i++) {
+            writeFrame(i);
+            int retained = muxer.getRetainedSampleCount();
+            // Starts on a keyframe: the current partial GOP plus whole GOPs
+            assertEquals(0, (retained - (i % GOP + 1)) % GOP);
+            assertTrue(muxer.getRetainedBytes() <= maxBytes);
+            if (i >= 3 * GOP) {
+                // The arena wraps around, so up to one GOP of it may be unusable
+                assertTrue(retained >= GOP + i % GOP + 1);
+            }
+        }
+        assertTrue(muxer.getEvictedGopCount() > 10);
+    }
+
+    @Test
+    public void startsOverWhenOneGopOutgrowsTheBuffer()
+    {
+        int maxBytes = KEYFRAME_SIZE + 5 * FRAME_SIZE;
+        muxer = createMuxer(InstantReplayMuxer.DEFAULT_MAX_DURATION_US, maxBytes, false);
+        for (int i = 0; i <= 5; i++) {
+            writeFrame(i);
+        }
+        assertEquals(6, muxer.getRetainedSampleCount());
+        assertEquals(maxBytes, muxer.getRetainedBytes());
+
+        // No older GOP to evict: everything goes until the next keyframe
+        for (int i = 6; i < GOP; i++) {
+            writeFrame(i);
+            assertEquals(0, muxer.getRetainedSampleCount());
+        }
+        writeFrame(GOP);
+        assertEquals(1, muxer.getRetainedSampleCount());
+        assertEquals(KEYFRAME_SIZE, muxer.getRetainedBytes());
+        assertEquals(0, muxer.getEvictedGopCount());
+    }
+
+    private InstantReplayMuxer createMuxer(long maxDurationUs, int maxBytes, boolean hasAudio)
+    {
+        InstantReplayMuxer muxer = InstantReplayMuxer.create("replay.mp4", MediaMuxer.MediaFormat.MPEG4,
+                maxDurationUs, maxBytes);
+        muxer.setExpectedNumTracks(hasAudio ? 2 : 1);
+        muxer.addTrack(android.media.MediaFormat.createVideoFormat("video/avc", 640, 360));
+        if (hasAudio) {
+            muxer.addTrack(android.media.MediaFormat.createAudioFormat("audio/mp4a-latm", 44100, 1));
+        }
+        return muxer;
+    }
+
+    private void writeFrame(int frame)
+    {
+        boolean isKeyframe = frame % GOP == 0;
+        write(0, frame * FRAME_US, isKeyframe ? KEYFRAME_SIZE : FRAME_SIZE, isKeyframe);
+    }
+
+    private void write(int track, long ptsUs, int size, boolean isKeyframe)
+    {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, size, ptsUs, isKeyframe ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        muxer.writeSampleData(null, track, -1, ByteBuffer.allocate(size), info);
+    }
+}
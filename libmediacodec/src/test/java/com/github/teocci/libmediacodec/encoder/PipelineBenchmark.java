@@ -0,0 +1,90 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames per second through the video drain thread into each file muxer, with the
+ * software {@link FakeEncoderCodec} standing in for the hardware encoder. Run through
+ * {@link com.github.teocci.libmediacodec.BenchmarkTest}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PipelineBenchmark
+{
+    private static final int FRAME_RATE = 30;
+
+    @Param({"FRAGMENTED_MPEG4", "HLS", "FLV"})
+    public String format;
+
+    @Param({"false", "true"})
+    public boolean isBuffered;
+
+    private File output;
+    private FakeEncoderCodec codec;
+    private VideoEncoderCore core;
+    private long frames;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException
+    {
+        output = File.createTempFile("benchmark", null);
+        MediaMuxer.MediaFormat mediaFormat = MediaMuxer.MediaFormat.valueOf(format);
+        MediaMuxer muxer;
+        switch (mediaFormat) {
+            case FRAGMENTED_MPEG4:
+                muxer = FragmentedMp4Muxer.create(output.getPath(), mediaFormat);
+                break;
+            case HLS:
+                muxer = TsMuxer.create(output.getPath(), mediaFormat);
+                break;
+            default:
+                muxer = FlvMuxer.create(output.getPath(), mediaFormat);
+                break;
+        }
+        if (isBuffered) {
+            muxer = BufferedMuxer.wrap(muxer);
+        }
+        muxer.setExpectedNumTracks(1);
+        codec = FakeEncoderCodec.createVideo(1280, 720, FRAME_RATE, 4000000, FRAME_RATE);
+        core = new VideoEncoderCore(codec, muxer, VideoEncoderCore.DEFAULT_MAX_FRAMES_IN_FLIGHT);
+        frames = 0;
+    }
+
+    @Benchmark
+    public void encodeFrame()
+    {
+        long ptsUs = 1000000 + frames++ * 1000000 / FRAME_RATE;
+        if (core.awaitFrameSlot()) {
+            core.onFrameSubmitted(ptsUs * 1000);
+            codec.queueFrame(ptsUs);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown()
+    {
+        core.drainEncoder(true);
+        core.release();
+        if (!output.delete()) {
+            output.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the timestamp traces in src/test/resources/pts through a single track. Each
+ * trace starts with its nominal duration, reorder window and the expected counters, then
+ * lists one encoder timestamp per line in the order the samples were written.
+ */
+@RunWith(Parameterized.class)
+public class PtsNormalizerTest
+{
+    private final String traceName;
+
+    public PtsNormalizerTest(String traceName)
+    {
+        this.traceName = traceName;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<String> traces()
+    {
+        return Arrays.asList("audio-burst.txt", "audio-clock-stall.txt", "video-bframes.txt");
+    }
+
+    @Test
+    public void replaysTrace() throws IOException
+    {
+        Map<String, Long> header = new HashMap<>();
+        List<Long> input = new ArrayList<>();
+        readTrace(traceName, header, input);
+        long nominalUs = header.get("nominal");
+        long reorderWindowUs = header.get("reorder");
+
+        PtsNormalizer normalizer = new PtsNormalizer();
+        int track = normalizer.addTrack(nominalUs, reorderWindowUs);
+        long maxSlewUs = nominalUs * normalizer.getMaxSlewPercent() / 100;
+
+        Set<Long> written = new HashSet<>();
+        long newestUs = Long.MIN_VALUE;
+        long lastDriftUs = 0;
+        long repaired = 0;
+        for (int i = 0; i < input.size(); i++) {
+            long inUs = input.get(i);
+            long outUs = normalizer.normalize(track, inUs);
+            String at = traceName + " sample " + i;
+            assertTrue(at + " written twice", written.add(outUs));
+            if (reorderWindowUs == 0) {
+                assertTrue(at + " not after " + newestUs, outUs > newestUs);
+            } else if (i > 0) {
+                assertTrue(at + " older than the reorder window", outUs >= newestUs - reorderWindowUs);
+            }
+
+            long driftUs = normalizer.getDriftUs(track);
+            assertEquals(at, outUs - inUs, driftUs);
+            if (outUs != inUs) {
+                // Repaired: one nominal duration after the newest, shortened by at most the slew
+                repaired++;
+                long stepUs = outUs - newestUs;
+                assertTrue(at + " step " + stepUs, stepUs >= nominalUs - maxSlewUs && stepUs <= nominalUs);
+                if (i > 0 && inUs - input.get(i - 1) == nominalUs) {
+                    // Ahead of an encoder clock that runs on, so the drift shrinks by the slew
+                    assertEquals(at, lastDriftUs - maxSlewUs, driftUs);
+                }
+            }
+            newestUs = Math.max(newestUs, outUs);
+            lastDriftUs = driftUs;
+        }
+
+        assertEquals(header.get("repaired").longValue(), repaired);
+        assertEquals(header.get("repaired").longValue(), normalizer.getRepairedCount(track));
+        assertEquals(header.get("reordered").longValue(), normalizer.getReorderedCount(track));
+        assertEquals(header.get("maxDrift").longValue(), normalizer.getMaxDriftUs(track));
+        // Every trace ends back on the encoder clock
+        assertEquals(0, normalizer.getDriftUs(track));
+    }
+
+    private static void readTrace(String name, Map<String, Long> header, List<Long> pts) throws IOException
+    {
+        InputStream in = PtsNormalizerTest.class.getResourceAsStream("/pts/" + name);
+        assertNotNull("No trace " + name, in);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8")))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length == 2) {
+                    header.put(fields[0], Long.parseLong(fields[1]));
+                } else {
+                    pts.add(Long.parseLong(fields[0]));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+
+import com.github.teocci.libmediacodec.format.Amf0;
+import com.github.teocci.libmediacodec.net.LoopbackRtmpServer;
+import com.github.teocci.libmediacodec.net.RtmpConnection;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.teocci.libmediacodec.encoder.TestSamples.fill;
+import static com.github.teocci.libmediacodec.encoder.TestSamples.toAvcc;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes to {@link LoopbackRtmpServer}: the handshake and commands, the tags the
+ * server receives, and what is dropped while the server stops reading.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RtmpMuxerTest
+{
+    private static final int FRAME_RATE = 30;
+    private static final int KEYFRAME_INTERVAL = 30;
+    private static final int SAMPLE_RATE = 44100;
+    private static final long START_US = 1000000;
+    private static final long TIMEOUT_MS = 10000;
+
+    private static final byte NAL_IDR = 0x65;
+    private static final byte NAL_SLICE = 0x41;
+
+    private LoopbackRtmpServer server;
+    private RtmpMuxer muxer;
+    private int videoTrack;
+    private int audioTrack;
+
+    private int videoFrame;
+    private int audioFrame;
+    private int syncFrameRequests;
+    private final List<byte[]> videoSamples = new ArrayList<>();
+    private final List<Boolean> videoKeyframes = new ArrayList<>();
+    private final List<byte[]> audioSamples = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (muxer != null) muxer.release();
+        if (server != null) server.close();
+    }
+
+    @Test
+    public void publishesTagsAfterHandshakeAndCommands() throws Exception
+    {
+        connect(64 * 1024, RtmpMuxer.DEFAULT_SEND_BUFFER_SIZE);
+        for (int i = 0; i < 2 * FRAME_RATE; i++) {
+            writeVideoAndAudio(2000);
+        }
+        endStreams();
+        assertTrue(server.awaitClose(TIMEOUT_MS));
+
+        assertTrue(server.isHandshakeValid());
+        assertTrue(server.isPongReceived());
+        assertEquals(Arrays.asList("connect", "releaseStream", "FCPublish", "createStream", "publish",
+                "FCUnpublish", "deleteStream"), server.getCommandNames());
+        List<List<Object>> commands = server.getCommands();
+        Map<?, ?> properties = (Map<?, ?>) commands.get(0).get(2);
+        assertEquals("live", properties.get("app"));
+        assertTrue(properties.get("tcUrl").toString().endsWith("/live"));
+        assertEquals(Arrays.<Object>asList("publish", 5.0, null, "test", "live"), commands.get(4));
+
+        List<LoopbackRtmpServer.Message> media = server.getMedia();
+        // onMetaData and the sequence headers precede every sample
+        LoopbackRtmpServer.Message data = media.get(0);
+        assertEquals(RtmpConnection.MSG_DATA_AMF0, data.type);
+        assertEquals(1, data.streamId);
+        ByteBuffer payload = ByteBuffer.wrap(data.payload);
+        assertEquals("@setDataFrame", Amf0.readValue(payload));
+        assertEquals("onMetaData", Amf0.readValue(payload));
+        Map<?, ?> metadata = (Map<?, ?>) Amf0.readValue(payload);
+        assertEquals(640.0, metadata.get("width"));
+        assertEquals(360.0, metadata.get("height"));
+
+        LoopbackRtmpServer.Message avcHeader = media.get(1);
+        assertEquals(RtmpConnection.MSG_VIDEO, avcHeader.type);
+        assertEquals(0x17, avcHeader.payload[0]);
+        assertEquals(0, avcHeader.payload[1]);
+        // AVCDecoderConfigurationRecord version
+        assertEquals(1, avcHeader.payload[5]);
+        LoopbackRtmpServer.Message aacHeader = media.get(2);
+        assertEquals(RtmpConnection.MSG_AUDIO, aacHeader.type);
+        // AAC, mono
+        assertEquals(0xae, aacHeader.payload[0] & 0xff);
+        assertEquals(0, aacHeader.payload[1]);
+
+        // Nothing was dropped, so every sample arrives with its relative timestamp
+        int receivedVideo = 0;
+        int receivedAudio = 0;
+        for (LoopbackRtmpServer.Message message : media.subList(3, media.size())) {
+            if (message.type == RtmpConnection.MSG_VIDEO) {
+                int index = receivedVideo++;
+                assertEquals(videoKeyframes.get(index) ? 0x17 : 0x27, message.payload[0]);
+                assertEquals(1, message.payload[1]);
+                assertEquals(getVideoPtsUs(index) / 1000, message.timestamp);
+                assertArrayEquals(toAvcc(videoSamples.get(index)),
+                        Arrays.copyOfRange(message.payload, 5, message.payload.length));
+            } else {
+                assertEquals(RtmpConnection.MSG_AUDIO, message.type);
+                int index = receivedAudio++;
+                assertEquals(1, message.payload[1]);
+                assertEquals(getAudioPtsUs(index) / 1000, message.timestamp);
+                assertArrayEquals(audioSamples.get(index), Arrays.copyOfRange(message.payload, 2, message.payload.length));
+            }
+        }
+        assertEquals(videoSamples.size(), receivedVideo);
+        assertEquals(audioSamples.size(), receivedAudio);
+        assertEquals(0, muxer.getDroppedVideoFrames());
+        assertEquals(0, muxer.getDroppedAudioFrames());
+        assertNull(muxer.getError());
+    }
+
+    @Test
+    public void dropsVideoUntilAKeyframeWhileTheServerStalls() throws Exception
+    {
+        int sendBufferSize = 128 * 1024;
+        connect(8 * 1024, sendBufferSize);
+        for (int i = 0; i < FRAME_RATE; i++) {
+            writeVideoAndAudio(10000);
+        }
+        server.stall();
+        for (int i = 0; i < 200; i++) {
+            writeVideoAndAudio(10000);
+        }
+        server.resume();
+        // Caught up again: the tail isn't dropped
+        int tailStart = videoFrame + FRAME_RATE;
+        for (int i = 0; i < 2 * FRAME_RATE; i++) {
+            writeVideoAndAudio(10000);
+            Thread.sleep(5);
+        }
+        endStreams();
+        assertTrue(server.awaitClose(TIMEOUT_MS));
+        assertNull(muxer.getError());
+
+        assertTrue(muxer.getDroppedVideoFrames() > 0);
+        assertTrue(muxer.getMaxPendingBytes() <= sendBufferSize);
+        // One request after the sequence headers, at least one more for the drops
+        assertTrue(syncFrameRequests >= 2);
+
+        List<Integer> video = new ArrayList<>();
+        List<Integer> audio = new ArrayList<>();
+        int previous = -1;
+        for (LoopbackRtmpServer.Message message : server.getMedia()) {
+            if (message.type == RtmpConnection.MSG_VIDEO && message.payload[1] == 1) {
+                int index = getIndex(message.payload, 10);
+                if ((message.payload[0] >> 4) != 1) {
+                    // Never an inter frame whose reference was dropped
+                    assertEquals(previous + 1, index);
+                }
+                assertEquals(getVideoPtsUs(index) / 1000, message.timestamp);
+                video.add(index);
+                previous = index;
+            } else if (message.type == RtmpConnection.MSG_AUDIO && message.payload[1] == 1) {
+                audio.add(getIndex(message.payload, 2));
+            }
+        }
+        assertEquals(videoSamples.size(), video.size() + muxer.getDroppedVideoFrames());
+        assertEquals(audioSamples.size(), audio.size() + muxer.getDroppedAudioFrames());
+        for (int i = tailStart; i < videoFrame; i++) {
+            assertTrue("Frame " + i + " dropped", video.contains(i));
+        }
+    }
+
+    private void connect(int receiveBufferSize, int sendBufferSize) throws Exception
+    {
+        server = new LoopbackRtmpServer(receiveBufferSize);
+        muxer = RtmpMuxer.create(server.getUrl("live", "test"), MediaMuxer.MediaFormat.FLV, sendBufferSize);
+        videoTrack = muxer.addTrack(FakeEncoderCodec.createVideo(640, 360, FRAME_RATE, 1000000,
+                KEYFRAME_INTERVAL).getOutputFormat());
+        audioTrack = muxer.addTrack(FakeEncoderCodec.createAudio(SAMPLE_RATE, 1, 128000).getOutputFormat());
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!muxer.isConnected()) {
+            assertNull(muxer.getError());
+            assertTrue("Not connected", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Writes the next video frame and the audio up to it. Like an encoder, a frame is a
+     * keyframe at the interval or when the muxer requested one.
+     */
+    private void writeVideoAndAudio(int frameSize)
+    {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long videoPtsUs = START_US + getVideoPtsUs(videoFrame);
+        boolean isKeyframe = videoFrame % KEYFRAME_INTERVAL == 0;
+        if (muxer.takeSyncFrameRequest()) {
+            syncFrameRequests++;
+            isKeyframe = true;
+        }
+        byte[] sample = new byte[frameSize];
+        sample[3] = 1;
+        sample[4] = isKeyframe ? NAL_IDR : NAL_SLICE;
+        putIndex(sample, 5, videoFrame);
+        fill(sample, 7, videoFrame);
+        videoSamples.add(sample);
+        videoKeyframes.add(isKeyframe);
+        info.set(0, sample.length, videoPtsUs, isKeyframe ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        muxer.writeSampleData(null, videoTrack, -1, ByteBuffer.wrap(sample), info);
+        videoFrame++;
+
+        while (getAudioPtsUs(audioFrame) < getVideoPtsUs(videoFrame)) {
+            sample = new byte[200 + audioFrame % 50];
+            putIndex(sample, 0, audioFrame);
+            fill(sample, 2, 1000 + audioFrame);
+            audioSamples.add(sample);
+            info.set(0, sample.length, START_US + getAudioPtsUs(audioFrame), 0);
+            muxer.writeSampleData(null, audioTrack, -1, ByteBuffer.wrap(sample), info);
+            audioFrame++;
+        }
+    }
+
+    private void endStreams()
+    {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, 0, START_US + getVideoPtsUs(videoFrame), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        muxer.writeSampleData(null, videoTrack, -1, ByteBuffer.allocate(0), info);
+        muxer.writeSampleData(null, audioTrack, -1, ByteBuffer.allocate(0), info);
+    }
+
+    private static long getVideoPtsUs(int frame)
+    {
+        return frame * 1000000L / FRAME_RATE;
+    }
+
+    private static long getAudioPtsUs(int frame)
+    {
+        return frame * 1024 * 1000000L / SAMPLE_RATE;
+    }
+
+    /**
+     * Two bytes without zeros, so the index can't form a start code.
+     */
+    private static void putIndex(byte[] sample, int offset, int index)
+    {
+        sample[offset] = (byte) (0x80 | (index >> 7));
+        sample[offset + 1] = (byte) (0x80 | (index & 0x7f));
+    }
+
+    private static int getIndex(byte[] payload, int offset)
+    {
+        return ((payload[offset] & 0x7f) << 7) | (payload[offset + 1] & 0x7f);
+    }
+}
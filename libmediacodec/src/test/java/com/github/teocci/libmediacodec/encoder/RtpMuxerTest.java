@@ -0,0 +1,436 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import android.media.MediaCodec;
+import android.util.Base64;
+
+import com.github.teocci.libmediacodec.format.TrackInfo;
+import com.github.teocci.libmediacodec.net.H264Packetizer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.github.teocci.libmediacodec.encoder.TestSamples.fill;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Receives the RTP streams on loopback channels and puts them back together: H.264
+ * access units from single NAL unit, STAP-A and FU-A packets, AAC frames from their
+ * RFC 3640 AU headers. Each must match what was written, with the RTP timestamp of
+ * its pts, and the session description must describe the streams received.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RtpMuxerTest
+{
+    private static final int FRAME_RATE = 30;
+    private static final int KEYFRAME_INTERVAL = 15;
+    private static final int VIDEO_FRAMES = 2 * FRAME_RATE;
+    private static final int SAMPLE_RATE = 44100;
+    private static final long START_US = 1000000;
+    private static final int MAX_PACKET_SIZE = 400;
+
+    private static final int NAL_TYPE_STAP_A = 24;
+    private static final int NAL_TYPE_FU_A = 28;
+    private static final byte NAL_SLICE = 0x41;
+    private static final byte NAL_IDR = 0x65;
+    private static final byte NAL_SEI = 0x06;
+
+    private final DatagramChannel[] receivers = new DatagramChannel[4];
+    private RtpMuxer muxer;
+    private int videoTrack;
+    private int audioTrack;
+
+    private final List<List<byte[]>> writtenAccessUnits = new ArrayList<>();
+    private final List<Long> writtenVideoPts = new ArrayList<>();
+    private final List<byte[]> writtenAudio = new ArrayList<>();
+    private final List<Long> writtenAudioPts = new ArrayList<>();
+
+    private final VideoDepacketizer video = new VideoDepacketizer();
+    private final AudioDepacketizer audio = new AudioDepacketizer();
+    private final List<ByteBuffer> videoReports = new ArrayList<>();
+    private final List<ByteBuffer> audioReports = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (muxer != null) muxer.release();
+        for (DatagramChannel receiver : receivers) {
+            if (receiver != null) receiver.close();
+        }
+    }
+
+    @Test
+    public void reassemblesAccessUnitsAndFrames() throws IOException
+    {
+        int port = bindReceivers();
+        muxer = RtpMuxer.create("rtp://127.0.0.1:" + port, MediaMuxer.MediaFormat.RTP, MAX_PACKET_SIZE);
+        android.media.MediaFormat videoFormat = FakeEncoderCodec.createVideo(640, 360, FRAME_RATE, 1000000,
+                KEYFRAME_INTERVAL).getOutputFormat();
+        android.media.MediaFormat audioFormat = FakeEncoderCodec.createAudio(SAMPLE_RATE, 1, 128000).getOutputFormat();
+        videoTrack = muxer.addTrack(videoFormat);
+        audioTrack = muxer.addTrack(audioFormat);
+        TrackInfo videoInfo = TrackInfo.fromMediaFormat(1, videoFormat);
+        TrackInfo audioInfo = TrackInfo.fromMediaFormat(2, audioFormat);
+        writeSamples();
+
+        // The session description
+        String[] sdp = muxer.getSessionDescription().split("\r\n");
+        assertEquals("v=0", sdp[0]);
+        assertTrue(sdp[1].startsWith("o=- "));
+        assertEquals("c=IN IP4 127.0.0.1", sdp[3]);
+        assertEquals("t=0 0", sdp[4]);
+        byte[] sps = videoInfo.getSps();
+        byte[] pps = videoInfo.getPps();
+        assertEquals("m=video " + port + " RTP/AVP 96", sdp[5]);
+        assertEquals("a=rtpmap:96 H264/90000", sdp[6]);
+        assertEquals("a=fmtp:96 packetization-mode=1"
+                + String.format(";profile-level-id=%02x%02x%02x", sps[1], sps[2], sps[3])
+                + ";sprop-parameter-sets=" + Base64.encodeToString(sps, Base64.NO_WRAP)
+                + "," + Base64.encodeToString(pps, Base64.NO_WRAP), sdp[7]);
+        assertEquals("m=audio " + (port + 2) + " RTP/AVP 97", sdp[8]);
+        assertEquals("a=rtpmap:97 mpeg4-generic/44100/1", sdp[9]);
+        StringBuilder config = new StringBuilder();
+        for (byte b : audioInfo.getAudioSpecificConfig()) {
+            config.append(String.format("%02x", b));
+        }
+        assertEquals("a=fmtp:97 streamtype=5;profile-level-id=1;mode=AAC-hbr"
+                + ";sizelength=13;indexlength=3;indexdeltalength=3;config=" + config, sdp[10]);
+        assertEquals(11, sdp.length);
+        assertEquals(96, video.payloadType);
+        assertEquals(97, audio.payloadType);
+
+        // Video: whole access units, SPS and PPS in front of every keyframe
+        assertEquals(VIDEO_FRAMES, video.accessUnits.size());
+        for (int i = 0; i < VIDEO_FRAMES; i++) {
+            List<byte[]> expected = new ArrayList<>();
+            if (i % KEYFRAME_INTERVAL == 0) {
+                expected.add(sps);
+                expected.add(pps);
+            }
+            expected.addAll(writtenAccessUnits.get(i));
+            List<byte[]> received = video.accessUnits.get(i);
+            assertEquals("Access unit " + i, expected.size(), received.size());
+            for (int n = 0; n < expected.size(); n++) {
+                assertArrayEquals("Access unit " + i + " NAL " + n, expected.get(n), received.get(n));
+            }
+            assertEquals(toRtpTicks(writtenVideoPts.get(i), H264Packetizer.CLOCK_RATE),
+                    video.timestamps.get(i) - video.timestamps.get(0));
+        }
+        assertTrue(video.singleNalPackets > 0);
+        assertTrue(video.aggregatedPackets > 0);
+        assertTrue(video.fragmentedNals > 0);
+
+        // Audio: one AU header per packet, the frame split when it doesn't fit
+        assertEquals(writtenAudio.size(), audio.frames.size());
+        for (int i = 0; i < writtenAudio.size(); i++) {
+            assertArrayEquals("Audio frame " + i, writtenAudio.get(i), audio.frames.get(i));
+            assertEquals(toRtpTicks(writtenAudioPts.get(i), SAMPLE_RATE),
+                    audio.timestamps.get(i) - audio.timestamps.get(0));
+        }
+        assertTrue(audio.fragmentedFrames > 0);
+
+        // A sender report a second, the first one with the first sample
+        checkSenderReports(videoReports, video, H264Packetizer.CLOCK_RATE);
+        checkSenderReports(audioReports, audio, SAMPLE_RATE);
+    }
+
+    /**
+     * The reports map RTP timestamps of the stream to one wall clock.
+     */
+    private static void checkSenderReports(List<ByteBuffer> reports, Depacketizer stream, int clockRate)
+    {
+        assertEquals(2, reports.size());
+        long firstWallClockUs = 0;
+        for (int i = 0; i < reports.size(); i++) {
+            ByteBuffer report = reports.get(i);
+            assertEquals(0x80, report.get(0) & 0xff);
+            assertEquals(200, report.get(1) & 0xff);
+            assertEquals(6, report.getShort(2));
+            assertEquals(stream.ssrc, report.getInt(4));
+            long wallClockUs = (report.getInt(8) & 0xffffffffL) * 1000000
+                    + ((report.getInt(12) & 0xffffffffL) * 1000000 >> 32);
+            int timestamp = report.getInt(16);
+            assertTrue(stream.timestamps.contains(timestamp));
+            if (i == 0) {
+                assertEquals(stream.timestamps.get(0).intValue(), timestamp);
+                firstWallClockUs = wallClockUs;
+            } else {
+                long rtpElapsedUs = (timestamp - stream.timestamps.get(0)) * 1000000L / clockRate;
+                assertTrue(Math.abs(wallClockUs - firstWallClockUs - rtpElapsedUs) <= 1000000 / clockRate + 1);
+            }
+        }
+    }
+
+    /**
+     * Binds the RTP and RTCP ports of both tracks, starting at a free even port.
+     */
+    private int bindReceivers() throws IOException
+    {
+        Random random = new Random();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        for (int attempt = 0; attempt < 20; attempt++) {
+            int port = 20000 + 2 * random.nextInt(20000);
+            try {
+                for (int i = 0; i < receivers.length; i++) {
+                    receivers[i] = DatagramChannel.open();
+                    receivers[i].configureBlocking(false);
+                    receivers[i].socket().bind(new InetSocketAddress(loopback, port + i));
+                }
+                return port;
+            } catch (IOException e) {
+                for (int i = 0; i < receivers.length; i++) {
+                    if (receivers[i] != null) receivers[i].close();
+                    receivers[i] = null;
+                }
+            }
+        }
+        throw new IOException("No free ports");
+    }
+
+    /**
+     * Writes two seconds of video and audio in timestamp order, receiving the packets
+     * of every sample before writing the next. Access units alternate between one
+     * large slice, two small ones and one that fits a packet; keyframes start with an SEI.
+     */
+    private void writeSamples() throws IOException
+    {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int frame = 0;
+        int audioFrame = 0;
+        long endUs = VIDEO_FRAMES * 1000000L / FRAME_RATE;
+        while (true) {
+            long videoPtsUs = frame * 1000000L / FRAME_RATE;
+            long audioPtsUs = audioFrame * 1024 * 1000000L / SAMPLE_RATE;
+            if (videoPtsUs >= endUs && audioPtsUs >= endUs) break;
+            if (videoPtsUs <= audioPtsUs) {
+                boolean isKeyframe = frame % KEYFRAME_INTERVAL == 0;
+                List<byte[]> nals = new ArrayList<>();
+                if (isKeyframe) {
+                    nals.add(createNal(NAL_SEI, 20, frame));
+                    nals.add(createNal(NAL_IDR, 1500 + frame, frame));
+                } else if (frame % 3 == 0) {
+                    nals.add(createNal(NAL_SLICE, 900 + frame, frame));
+                } else if (frame % 3 == 1) {
+                    nals.add(createNal(NAL_SLICE, 60 + frame, frame));
+                    nals.add(createNal(NAL_SLICE, 80 + frame, frame + 1));
+                } else {
+                    nals.add(createNal(NAL_SLICE, 300, frame));
+                }
+                byte[] sample = toAnnexB(nals);
+                writtenAccessUnits.add(nals);
+                writtenVideoPts.add(videoPtsUs);
+                info.set(0, sample.length, START_US + videoPtsUs, isKeyframe ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                muxer.writeSampleData(null, videoTrack, -1, ByteBuffer.wrap(sample), info);
+                frame++;
+            } else {
+                // Every tenth frame needs two packets
+                byte[] sample = new byte[audioFrame % 10 == 0 ? 600 : 200 + audioFrame % 50];
+                fill(sample, 0, 1000 + audioFrame);
+                writtenAudio.add(sample);
+                writtenAudioPts.add(audioPtsUs);
+                info.set(0, sample.length, START_US + audioPtsUs, 0);
+                muxer.writeSampleData(null, audioTrack, -1, ByteBuffer.wrap(sample), info);
+                audioFrame++;
+            }
+            receive();
+        }
+        info.set(0, 0, START_US + endUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        muxer.writeSampleData(null, videoTrack, -1, ByteBuffer.allocate(0), info);
+        muxer.writeSampleData(null, audioTrack, -1, ByteBuffer.allocate(0), info);
+    }
+
+    private void receive() throws IOException
+    {
+        ByteBuffer datagram = ByteBuffer.allocate(2048);
+        for (int i = 0; i < receivers.length; i++) {
+            while (true) {
+                datagram.clear();
+                if (receivers[i].receive(datagram) == null) break;
+                datagram.flip();
+                ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+                copy.put(datagram).flip();
+                if (i == 0) {
+                    video.onPacket(copy);
+                } else if (i == 2) {
+                    audio.onPacket(copy);
+                } else if (i == 1) {
+                    videoReports.add(copy);
+                } else {
+                    audioReports.add(copy);
+                }
+            }
+        }
+    }
+
+    private static int toRtpTicks(long ptsUs, int clockRate)
+    {
+        return (int) (ptsUs * clockRate / 1000000);
+    }
+
+    private static byte[] createNal(byte header, int size, int seed)
+    {
+        byte[] nal = new byte[size];
+        nal[0] = header;
+        fill(nal, 1, seed);
+        return nal;
+    }
+
+    private static byte[] toAnnexB(List<byte[]> nals)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(new byte[]{0, 0, 0, 1}, 0, 4);
+            out.write(nal, 0, nal.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks the RTP header and the sequence of the packets of one stream.
+     */
+    private abstract static class Depacketizer
+    {
+        int payloadType = -1;
+        int ssrc;
+        int nextSequence = -1;
+        final List<Integer> timestamps = new ArrayList<>();
+
+        void onPacket(ByteBuffer packet)
+        {
+            assertEquals(2, (packet.get(0) & 0xff) >> 6);
+            boolean marker = (packet.get(1) & 0x80) != 0;
+            int type = packet.get(1) & 0x7f;
+            int sequence = packet.getShort(2) & 0xffff;
+            int timestamp = packet.getInt(4);
+            if (payloadType < 0) {
+                payloadType = type;
+                ssrc = packet.getInt(8);
+            } else {
+                assertEquals(payloadType, type);
+                assertEquals(ssrc, packet.getInt(8));
+                assertEquals(nextSequence, sequence);
+            }
+            nextSequence = (sequence + 1) & 0xffff;
+            packet.position(12);
+            onPayload(packet, timestamp, marker);
+        }
+
+        abstract void onPayload(ByteBuffer payload, int timestamp, boolean marker);
+    }
+
+    /**
+     * RFC 6184 non-interleaved mode: NAL units in order, the access unit ends on the marker.
+     */
+    private static class VideoDepacketizer extends Depacketizer
+    {
+        final List<List<byte[]>> accessUnits = new ArrayList<>();
+        int singleNalPackets;
+        int aggregatedPackets;
+        int fragmentedNals;
+
+        private List<byte[]> current = new ArrayList<>();
+        private int currentTimestamp;
+        private ByteArrayOutputStream fragments;
+
+        @Override
+        void onPayload(ByteBuffer payload, int timestamp, boolean marker)
+        {
+            if (current.isEmpty() && fragments == null) {
+                currentTimestamp = timestamp;
+            } else {
+                assertEquals("Packets of one access unit share its timestamp", currentTimestamp, timestamp);
+            }
+            int indicator = payload.get() & 0xff;
+            int type = indicator & 0x1f;
+            if (type == NAL_TYPE_STAP_A) {
+                aggregatedPackets++;
+                while (payload.hasRemaining()) {
+                    byte[] nal = new byte[payload.getShort() & 0xffff];
+                    payload.get(nal);
+                    current.add(nal);
+                }
+            } else if (type == NAL_TYPE_FU_A) {
+                int header = payload.get() & 0xff;
+                if ((header & 0x80) != 0) {
+                    fragments = new ByteArrayOutputStream();
+                    fragments.write((indicator & 0xe0) | (header & 0x1f));
+                }
+                assertNotNull("FU-A without a start fragment", fragments);
+                fragments.write(payload.array(), payload.position(), payload.remaining());
+                if ((header & 0x40) != 0) {
+                    current.add(fragments.toByteArray());
+                    fragments = null;
+                    fragmentedNals++;
+                }
+            } else {
+                singleNalPackets++;
+                payload.position(payload.position() - 1);
+                byte[] nal = new byte[payload.remaining()];
+                payload.get(nal);
+                current.add(nal);
+            }
+            if (marker) {
+                assertNull("Access unit ends inside a NAL unit", fragments);
+                accessUnits.add(current);
+                timestamps.add(currentTimestamp);
+                current = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * RFC 3640 AAC-hbr: one 16 bit AU header of 13 bit size and 3 bit index per packet.
+     */
+    private static class AudioDepacketizer extends Depacketizer
+    {
+        final List<byte[]> frames = new ArrayList<>();
+        int fragmentedFrames;
+
+        private ByteArrayOutputStream frame;
+        private int frameSize;
+        private int frameTimestamp;
+
+        @Override
+        void onPayload(ByteBuffer payload, int timestamp, boolean marker)
+        {
+            assertEquals("AU-headers-length in bits", 16, payload.getShort());
+            int auHeader = payload.getShort() & 0xffff;
+            assertEquals("AU-Index", 0, auHeader & 0x7);
+            int size = auHeader >> 3;
+            if (frame == null) {
+                frame = new ByteArrayOutputStream();
+                frameSize = size;
+                frameTimestamp = timestamp;
+            } else {
+                // A fragment repeats the size and timestamp of its frame
+                assertEquals(frameSize, size);
+                assertEquals(frameTimestamp, timestamp);
+                fragmentedFrames++;
+            }
+            frame.write(payload.array(), payload.position(), payload.remaining());
+            if (marker) {
+                assertEquals(frameSize, frame.size());
+                frames.add(frame.toByteArray());
+                timestamps.add(frameTimestamp);
+                frame = null;
+            } else {
+                assertTrue(frame.size() < frameSize);
+            }
+        }
+    }
+}
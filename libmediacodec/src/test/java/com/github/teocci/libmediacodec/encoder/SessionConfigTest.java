@@ -0,0 +1,132 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import com.github.teocci.libmediacodec.format.DashManifest;
+import com.github.teocci.libmediacodec.format.SampleJournal;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The muxer {@link SessionConfig.Builder} picks for an output and its with* options.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SessionConfigTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MediaMuxer muxer;
+
+    @After
+    public void tearDown()
+    {
+        if (muxer != null) muxer.release();
+    }
+
+    @Test
+    public void segmentsHlsAsConfigured()
+    {
+        SessionConfig config = new SessionConfig.Builder(getOutputLocation("live.m3u8"))
+                .withHlsSegmenting(2000000, 3)
+                .build();
+        muxer = getTarget(config);
+
+        assertTrue(muxer instanceof HlsSegmenter);
+        assertEquals(2, ((HlsSegmenter) muxer).getPlaylist().getTargetDuration());
+        // Only the segmenter that was configured opened a segment
+        assertEquals(Arrays.asList("live0.ts"), Arrays.asList(config.getOutputDirectory().list()));
+    }
+
+    @Test
+    public void segmentsDashAsConfigured()
+    {
+        SessionConfig config = new SessionConfig.Builder(getOutputLocation("live.mpd"))
+                .withDashSegmenting(2000000, 3)
+                .build();
+        muxer = getTarget(config);
+
+        assertTrue(muxer instanceof DashSegmenter);
+        DashManifest manifest = ((DashSegmenter) muxer).getManifest();
+        manifest.setAvailabilityStartTime(0);
+        assertTrue(manifest.render().contains("timeShiftBufferDepth=\"PT6.000S\""));
+        assertTrue(manifest.render().contains("timescale=\"1000\" duration=\"2000\""));
+        assertEquals(Arrays.asList("live-init.mp4"), Arrays.asList(config.getOutputDirectory().list()));
+    }
+
+    @Test
+    public void rotatesMp4SegmentsWithoutATemporaryFile()
+    {
+        SessionConfig config = new SessionConfig.Builder(getOutputLocation("chunk.mp4"))
+                .withSegmentRotation(60000000, 0)
+                .build();
+        muxer = getTarget(config);
+
+        assertTrue(muxer instanceof RotatingMuxer);
+        // The segments are named after the output, which is never created itself
+        assertEquals(0, config.getOutputDirectory().list().length);
+    }
+
+    @Test
+    public void keepsInstantReplayInMemory()
+    {
+        SessionConfig config = new SessionConfig.Builder(getOutputLocation("replay.mp4"))
+                .withInstantReplay(10000000, 1024 * 1024)
+                .build();
+        muxer = getTarget(config);
+
+        assertTrue(muxer instanceof InstantReplayMuxer);
+        assertEquals(0, config.getOutputDirectory().list().length);
+    }
+
+    @Test
+    public void journalsOnlyMp4sWrittenByAndroidMuxer()
+    {
+        SessionConfig config = new SessionConfig.Builder(getOutputLocation("chunk.mp4"))
+                .withSampleJournal(true)
+                .build();
+        muxer = getTarget(config);
+        assertTrue(muxer instanceof AndroidMuxer);
+        assertNotNull(muxer.getSampleJournal());
+        assertTrue(SampleJournal.getJournalFile(muxer.getOutputPath()).exists());
+        muxer.release();
+
+        // Playable as they are written: no journal to leave behind
+        String[] outputs = {"fragmented.mp4", "live.ts", "chunk.flv"};
+        MediaMuxer.MediaFormat[] formats = {MediaMuxer.MediaFormat.FRAGMENTED_MPEG4,
+                MediaMuxer.MediaFormat.HLS, MediaMuxer.MediaFormat.FLV};
+        for (int i = 0; i < outputs.length; i++) {
+            config = new SessionConfig.Builder(getOutputLocation(outputs[i]), formats[i])
+                    .withSampleJournal(true)
+                    .build();
+            muxer = getTarget(config);
+            assertNull(outputs[i], muxer.getSampleJournal());
+            assertFalse(outputs[i], SampleJournal.getJournalFile(muxer.getOutputPath()).exists());
+            muxer.release();
+        }
+        muxer = null;
+    }
+
+    private String getOutputLocation(String name)
+    {
+        return new File(folder.getRoot(), name).getAbsolutePath();
+    }
+
+    private static MediaMuxer getTarget(SessionConfig config)
+    {
+        MediaMuxer muxer = config.getMuxer();
+        return muxer instanceof BufferedMuxer ? ((BufferedMuxer) muxer).getTarget() : muxer;
+    }
+}
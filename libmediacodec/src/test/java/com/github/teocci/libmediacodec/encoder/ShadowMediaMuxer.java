@@ -0,0 +1,224 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import com.github.teocci.libmediacodec.format.AvcUtils;
+import com.github.teocci.libmediacodec.format.BoxWriter;
+import com.github.teocci.libmediacodec.format.Mp4Boxes;
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.RealObject;
+import org.robolectric.annotation.Resetter;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.util.ReflectionHelpers;
+import org.robolectric.util.ReflectionHelpers.ClassParameter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stands in for the native part of android.media.MediaMuxer, which Robolectric leaves out.
+ * <p>
+ * The file is laid out the way the platform's MPEG4Writer does it: an ftyp, a free box
+ * reserved for the index, then an mdat with a 64-bit size that is only filled in on
+ * stop. Samples are held back per track and written in chunks of one track at a time,
+ * H.264 with length prefixes instead of start codes. Only stopping writes the moov box,
+ * which here is left empty, so a test that never stops the muxer gets the file a crash
+ * leaves behind, without the chunks that were still held back.
+ * <p>
+ * Registered for every test in robolectric.properties: a shadow configured per test
+ * class would need a sandbox of its own.
+ */
+@Implements(android.media.MediaMuxer.class)
+public class ShadowMediaMuxer
+{
+    public static final long CHUNK_DURATION_US = 500000;
+    public static final int RESERVED_INDEX_SIZE = 1024;
+
+    private static final Map<Long, Output> outputs = new HashMap<>();
+    private static final Map<String, Output> outputsByPath = new HashMap<>();
+    private static long nextHandle = 1;
+
+    @RealObject
+    private android.media.MediaMuxer realMuxer;
+
+    public void __constructor__(String path, int format) throws IOException
+    {
+        Shadow.invokeConstructor(android.media.MediaMuxer.class, realMuxer,
+                ClassParameter.from(String.class, path), ClassParameter.from(int.class, format));
+        long handle = ReflectionHelpers.getField(realMuxer, "mNativeObject");
+        Output output = outputs.get(handle);
+        output.open(path);
+        outputsByPath.put(path, output);
+    }
+
+    /**
+     * @return how often the muxer writing {@code path} was stopped
+     */
+    public static int getStopCount(String path)
+    {
+        Output output = outputsByPath.get(path);
+        return output != null ? output.stopCount : 0;
+    }
+
+    @Resetter
+    public static void reset()
+    {
+        for (Output output : outputs.values()) {
+            output.close();
+        }
+        outputs.clear();
+        outputsByPath.clear();
+    }
+
+    @Implementation
+    public static long nativeSetup(FileDescriptor fd, int format)
+    {
+        long handle = nextHandle++;
+        outputs.put(handle, new Output());
+        return handle;
+    }
+
+    @Implementation
+    public static int nativeAddTrack(long handle, String[] keys, Object[] values)
+    {
+        Output output = outputs.get(handle);
+        boolean isAvc = false;
+        for (int i = 0; i < keys.length; i++) {
+            isAvc |= "mime".equals(keys[i]) && TrackInfo.MIME_AVC.equals(values[i]);
+        }
+        output.tracks.add(new Chunk(isAvc));
+        return output.tracks.size() - 1;
+    }
+
+    @Implementation
+    public static void nativeStart(long handle) throws IOException
+    {
+        outputs.get(handle).start();
+    }
+
+    @Implementation
+    public static void nativeWriteSampleData(long handle, int trackIndex, ByteBuffer byteBuf, int offset, int size,
+                                             long presentationTimeUs, int flags) throws IOException
+    {
+        ByteBuffer sample = byteBuf.duplicate();
+        sample.limit(offset + size).position(offset);
+        outputs.get(handle).write(trackIndex, sample, presentationTimeUs);
+    }
+
+    @Implementation
+    public static void nativeStop(long handle) throws IOException
+    {
+        outputs.get(handle).stop();
+    }
+
+    @Implementation
+    public static void nativeRelease(long handle)
+    {
+        Output output = outputs.get(handle);
+        if (output != null) output.close();
+    }
+
+    private static class Chunk
+    {
+        final boolean isAvc;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long startUs = -1;
+
+        Chunk(boolean isAvc)
+        {
+            this.isAvc = isAvc;
+        }
+    }
+
+    private static class Output
+    {
+        final List<Chunk> tracks = new ArrayList<>();
+        RandomAccessFile file;
+        long mdatOffset;
+        int stopCount;
+
+        void open(String path) throws IOException
+        {
+            file = new RandomAccessFile(path, "rw");
+            file.setLength(0);
+            BoxWriter w = new BoxWriter(RESERVED_INDEX_SIZE + 64);
+            Mp4Boxes.writeFtyp(w, "isom", 0, "isom", "3gp4");
+            w.startBox("free").putZeros(RESERVED_INDEX_SIZE).endBox();
+            w.writeTo(file.getChannel());
+        }
+
+        void start() throws IOException
+        {
+            mdatOffset = file.length();
+            // MPEG4Writer's placeholder for the size
+            BoxWriter w = new BoxWriter(16);
+            w.put32(1).putFourCC("mdat").putFourCC("????").putFourCC("????");
+            file.seek(mdatOffset);
+            w.writeTo(file.getChannel());
+        }
+
+        void write(int trackIndex, ByteBuffer sample, long ptsUs) throws IOException
+        {
+            Chunk chunk = tracks.get(trackIndex);
+            if (chunk.startUs >= 0 && ptsUs - chunk.startUs >= CHUNK_DURATION_US) {
+                flush(chunk);
+            }
+            if (chunk.startUs < 0) {
+                chunk.startUs = ptsUs;
+            }
+            byte[] bytes;
+            if (chunk.isAvc) {
+                ByteBuffer avcc = ByteBuffer.allocate(sample.remaining() + 64);
+                int written = AvcUtils.annexBToAvcc(sample, avcc);
+                bytes = new byte[written];
+                System.arraycopy(avcc.array(), 0, bytes, 0, written);
+            } else {
+                bytes = new byte[sample.remaining()];
+                sample.get(bytes);
+            }
+            chunk.data.write(bytes);
+        }
+
+        void stop() throws IOException
+        {
+            stopCount++;
+            for (Chunk chunk : tracks) {
+                flush(chunk);
+            }
+            long end = file.length();
+            file.seek(mdatOffset + 8);
+            file.writeLong(end - mdatOffset);
+            BoxWriter w = new BoxWriter(16);
+            w.startBox("moov").endBox();
+            file.seek(end);
+            w.writeTo(file.getChannel());
+        }
+
+        void flush(Chunk chunk) throws IOException
+        {
+            file.seek(file.length());
+            file.write(chunk.data.toByteArray());
+            chunk.data.reset();
+            chunk.startUs = -1;
+        }
+
+        void close()
+        {
+            if (file == null) return;
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing left to write
+            }
+            file = null;
+        }
+    }
+}
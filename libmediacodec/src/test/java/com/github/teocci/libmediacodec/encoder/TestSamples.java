@@ -0,0 +1,35 @@
+package com.github.teocci.libmediacodec.encoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sample payloads for muxer tests, recognizable in the output byte for byte.
+ */
+public class TestSamples
+{
+    private TestSamples()
+    {
+    }
+
+    /**
+     * Distinct bytes per sample, without anything that looks like a start code.
+     */
+    public static void fill(byte[] sample, int offset, int seed)
+    {
+        for (int i = offset; i < sample.length; i++) {
+            sample[i] = (byte) (0x10 + (seed + i) % 0x60);
+        }
+    }
+
+    /**
+     * A single Annex-B NAL unit as a length prefixed one.
+     */
+    public static byte[] toAvcc(byte[] annexB)
+    {
+        int nalSize = annexB.length - 4;
+        ByteBuffer avcc = ByteBuffer.allocate(4 + nalSize);
+        avcc.putInt(nalSize);
+        avcc.put(annexB, 4, nalSize);
+        return avcc.array();
+    }
+}
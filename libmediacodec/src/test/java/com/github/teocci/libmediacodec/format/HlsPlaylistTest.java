@@ -0,0 +1,130 @@
+package com.github.teocci.libmediacodec.format;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HlsPlaylistTest
+{
+    private static final long SECOND_US = 1000000;
+
+    @Test
+    public void rendersAnEventPlaylist()
+    {
+        HlsPlaylist playlist = new HlsPlaylist(6 * SECOND_US, 0);
+        assertNull(playlist.addSegment("test0.ts", 6033333));
+        assertNull(playlist.addSegment("test1.ts", 6100000));
+        assertEquals("#EXTM3U\n"
+                + "#EXT-X-VERSION:3\n"
+                + "#EXT-X-TARGETDURATION:6\n"
+                + "#EXT-X-MEDIA-SEQUENCE:0\n"
+                + "#EXT-X-PLAYLIST-TYPE:EVENT\n"
+                + "#EXTINF:6.033,\n"
+                + "test0.ts\n"
+                + "#EXTINF:6.100,\n"
+                + "test1.ts\n", playlist.render());
+
+        playlist.end();
+        assertTrue(playlist.render().endsWith("test1.ts\n#EXT-X-ENDLIST\n"));
+    }
+
+    @Test
+    public void keepsTheTargetDurationItStartedWith()
+    {
+        HlsPlaylist playlist = new HlsPlaylist(5500000, 3);
+        assertEquals(6, playlist.getTargetDuration());
+        // An overlong segment is listed as it is, but may not change the target
+        playlist.addSegment("test0.ts", 10 * SECOND_US);
+        assertEquals(6, playlist.getTargetDuration());
+        assertTrue(playlist.render().contains("#EXT-X-TARGETDURATION:6\n"));
+    }
+
+    @Test
+    public void checksSegmentsAgainstTheTargetAsClientsRoundThem()
+    {
+        HlsPlaylist playlist = new HlsPlaylist(6 * SECOND_US, 0);
+        assertTrue(playlist.fitsTargetDuration(6 * SECOND_US));
+        assertTrue(playlist.fitsTargetDuration(6499999));
+        assertFalse(playlist.fitsTargetDuration(6500000));
+    }
+
+    @Test
+    public void slidesTheWindow()
+    {
+        HlsPlaylist playlist = new HlsPlaylist(2 * SECOND_US, 3);
+        for (int i = 0; i < 3; i++) {
+            assertNull(playlist.addSegment("test" + i + ".ts", 2 * SECOND_US));
+        }
+        assertEquals("test0.ts", playlist.addSegment("test3.ts", 2 * SECOND_US));
+        assertEquals("test1.ts", playlist.addSegment("test4.ts", 2 * SECOND_US));
+
+        String text = playlist.render();
+        assertEquals(3, playlist.getSegmentCount());
+        assertEquals(2, playlist.getMediaSequence());
+        assertTrue(text.contains("#EXT-X-MEDIA-SEQUENCE:2\n#EXTINF:2.000,\ntest2.ts\n"));
+        assertTrue(text.endsWith("test4.ts\n"));
+        assertFalse(text.contains("test1.ts"));
+        assertFalse(text.contains("PLAYLIST-TYPE"));
+    }
+
+    @Test
+    public void listsPartsOfTheRecentSegments()
+    {
+        HlsPlaylist playlist = new HlsPlaylist(2 * SECOND_US, 0, 500000);
+        for (int i = 0; i < 5; i++) {
+            addSegmentInParts(playlist, "test" + i + ".ts");
+        }
+        playlist.addPart("test5.ts", 0, 1000, 500000, true);
+        playlist.setPreloadHint("test5.ts", 1000);
+
+        String text = playlist.render();
+        assertTrue(text.contains("#EXT-X-VERSION:9\n#EXT-X-TARGETDURATION:2\n"));
+        assertTrue(text.contains("#EXT-X-PART-INF:PART-TARGET=0.500\n"));
+        // Three target durations of parts
+        assertFalse(text.contains("URI=\"test1.ts\""));
+        assertTrue(text.contains("#EXTINF:2.000,\ntest1.ts\n"));
+        assertTrue(text.contains("#EXT-X-PART:DURATION=0.500,URI=\"test2.ts\",BYTERANGE=\"1000@0\",INDEPENDENT=YES\n"));
+        assertTrue(text.contains("#EXT-X-PART:DURATION=0.500,URI=\"test4.ts\",BYTERANGE=\"1000@3000\"\n"));
+        assertTrue(text.endsWith("#EXTINF:2.000,\ntest4.ts\n"
+                + "#EXT-X-PART:DURATION=0.500,URI=\"test5.ts\",BYTERANGE=\"1000@0\",INDEPENDENT=YES\n"
+                + "#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"test5.ts\",BYTERANGE-START=1000\n"));
+    }
+
+    @Test
+    public void skipsOldSegmentsInDeltaUpdates()
+    {
+        HlsPlaylist playlist = new HlsPlaylist(2 * SECOND_US, 0, 500000);
+        for (int i = 0; i < 10; i++) {
+            addSegmentInParts(playlist, "test" + i + ".ts");
+        }
+
+        // Six target durations, 12 s, are kept
+        String delta = playlist.render(true);
+        assertTrue(delta.contains("#EXT-X-SKIP:SKIPPED-SEGMENTS=4\n#EXTINF:2.000,\ntest4.ts\n"));
+        assertFalse(delta.contains("test3.ts"));
+        assertTrue(playlist.render(false).contains("test0.ts"));
+    }
+
+    @Test
+    public void answersBlockingReloadsOnceThePartIsThere() throws InterruptedException
+    {
+        HlsPlaylist playlist = new HlsPlaylist(2 * SECOND_US, 0, 500000);
+        assertFalse(playlist.awaitPart(0, 0, 1));
+        playlist.addPart("test0.ts", 0, 1000, 500000, true);
+        assertTrue(playlist.awaitPart(0, 0, 1));
+        assertFalse(playlist.awaitPart(0, -1, 1));
+        playlist.addSegment("test0.ts", 500000);
+        assertTrue(playlist.awaitPart(0, -1, 1));
+    }
+
+    private static void addSegmentInParts(HlsPlaylist playlist, String uri)
+    {
+        for (int part = 0; part < 4; part++) {
+            playlist.addPart(uri, part * 1000, 1000, 500000, part == 0);
+        }
+        playlist.addSegment(uri, 2 * SECOND_US);
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.teocci.libmediacodec.format;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SampleTableTest
+{
+    @Test
+    public void appendsSamplesAndChunks()
+    {
+        SampleTable table = new SampleTable();
+        addChunk(table, 1000, 4, 3000, 100);
+        SampleTable other = new SampleTable();
+        // Half the timescale, so half the delta
+        addChunk(other, 50, 3, 1500, 200);
+
+        table.append(other, 10000, null, 45000, 90000);
+        assertEquals(7, table.getSampleCount());
+        assertEquals(2, table.getChunkCount());
+        assertEquals(7 * 3000, table.getDuration());
+
+        ByteBuffer stbl = write(table);
+        assertArrayEquals(new int[]{7, 3000}, readEntries(stbl, "stts", 2));
+        assertArrayEquals(new int[]{100, 101, 102, 103, 200, 201, 202}, readSizes(stbl));
+        assertArrayEquals(new int[]{1, 4, 1, 2, 3, 1}, readEntries(stbl, "stsc", 3));
+        assertArrayEquals(new int[]{1000, 10050}, readEntries(stbl, "stco", 1));
+        assertNull(Mp4BoxReader.findBox(stbl, "stss"));
+    }
+
+    @Test
+    public void renumbersSyncSamples()
+    {
+        SampleTable table = new SampleTable();
+        addChunk(table, 0, 5, 3000, 100, 1, 4);
+        SampleTable other = new SampleTable();
+        addChunk(other, 0, 4, 3000, 100, 1, 3);
+        SampleTable allSync = new SampleTable();
+        addChunk(allSync, 0, 2, 3000, 100);
+
+        table.append(other, 0, null, 90000, 90000);
+        table.append(allSync, 0, null, 90000, 90000);
+        assertArrayEquals(new int[]{1, 4, 6, 8, 10, 11}, readEntries(write(table), "stss", 1));
+
+        // A table that had no stss gets one listing its samples first
+        allSync = new SampleTable();
+        addChunk(allSync, 0, 3, 3000, 100);
+        allSync.append(other, 0, null, 90000, 90000);
+        assertArrayEquals(new int[]{1, 2, 3, 4, 6}, readEntries(write(allSync), "stss", 1));
+    }
+
+    @Test
+    public void mapsSampleDescriptions()
+    {
+        SampleTable table = new SampleTable();
+        addChunk(table, 0, 2, 3000, 100);
+        SampleTable other = new SampleTable();
+        addChunk(other, 100, 2, 3000, 100);
+        other.addSample(100, 3000, true, 0);
+        other.addChunk(200, 1, 2);
+
+        table.append(other, 1000, new int[]{1, 3}, 90000, 90000);
+        assertArrayEquals(new int[]{1, 2, 1, 3, 1, 3}, readEntries(write(table), "stsc", 3));
+    }
+
+    @Test
+    public void promotesStcoToCo64()
+    {
+        SampleTable table = new SampleTable();
+        addChunk(table, 100, 2, 3000, 100);
+        addChunk(table, 300, 2, 3000, 100);
+        assertNotNull(Mp4BoxReader.findBox(write(table), "stco"));
+
+        SampleTable other = new SampleTable();
+        addChunk(other, 100, 2, 3000, 100);
+        table.append(other, 0x100000000L, null, 90000, 90000);
+
+        ByteBuffer stbl = write(table);
+        assertNull(Mp4BoxReader.findBox(stbl, "stco"));
+        ByteBuffer co64 = Mp4BoxReader.findBox(stbl, "co64");
+        assertEquals(3, co64.getInt(4));
+        assertEquals(100, co64.getLong(8));
+        assertEquals(300, co64.getLong(16));
+        assertEquals(0x100000064L, co64.getLong(24));
+
+        // And reads them back
+        SampleTable parsed = SampleTable.parse(stbl);
+        assertEquals(3, parsed.getChunkCount());
+        assertEquals(toBytes(stbl), toBytes(write(parsed)));
+    }
+
+    @Test
+    public void parsesWhatItWrites()
+    {
+        SampleTable table = new SampleTable();
+        addChunk(table, 48, 3, 3000, 500, 1);
+        table.addSample(70, 3000, false, 6000);
+        table.addSample(60, 1500, true, 0);
+        table.addChunk(5000, 2, 1);
+
+        ByteBuffer stbl = write(table);
+        SampleTable parsed = SampleTable.parse(stbl);
+        assertEquals(5, parsed.getSampleCount());
+        assertEquals(2, parsed.getChunkCount());
+        assertEquals(4 * 3000 + 1500, parsed.getDuration());
+        assertEquals(toBytes(stbl), toBytes(write(parsed)));
+    }
+
+    /**
+     * Adds a chunk of {@code samples} samples, sized from {@code firstSize} up.
+     *
+     * @param syncSamples 1-based within the chunk; none for all sync samples
+     */
+    private static void addChunk(SampleTable table, long offset, int samples, int delta, int firstSize,
+                                 int... syncSamples)
+    {
+        for (int i = 0; i < samples; i++) {
+            boolean isSync = syncSamples.length == 0;
+            for (int sample : syncSamples) {
+                isSync |= sample == i + 1;
+            }
+            table.addSample(firstSize + i, delta, isSync, 0);
+        }
+        table.addChunk(offset, samples, 1);
+    }
+
+    private static ByteBuffer write(SampleTable table)
+    {
+        BoxWriter w = new BoxWriter(4096);
+        table.write(w);
+        return w.asByteBuffer();
+    }
+
+    /**
+     * @return the entries of a full box that has an entry count, flattened
+     */
+    private static int[] readEntries(ByteBuffer stbl, String type, int fields)
+    {
+        ByteBuffer box = Mp4BoxReader.findBox(stbl, type);
+        int[] entries = new int[box.getInt(4) * fields];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = box.getInt(8 + i * 4);
+        }
+        return entries;
+    }
+
+    private static int[] readSizes(ByteBuffer stbl)
+    {
+        ByteBuffer stsz = Mp4BoxReader.findBox(stbl, "stsz");
+        int[] sizes = new int[stsz.getInt(8)];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = stsz.getInt(12 + i * 4);
+        }
+        return sizes;
+    }
+
+    private static ByteBuffer toBytes(ByteBuffer buffer)
+    {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.teocci.libmediacodec.format;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.github.teocci.libmediacodec.format.SequentialFileWriter.BLOCK_SIZE;
+import static com.github.teocci.libmediacodec.format.SequentialFileWriter.DEFAULT_BATCH_SIZE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class SequentialFileWriterTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private SequentialFileWriter writer;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = folder.newFile("out");
+        writer = SequentialFileWriter.open(file);
+        // The file length then shows where the writes ended
+        writer.setPreallocationSize(0);
+        writer.setSyncInterval(0, 0);
+        data = new byte[3 * DEFAULT_BATCH_SIZE];
+        new Random(42).nextBytes(data);
+    }
+
+    @Test
+    public void writesWholeBlocksUntilClosed() throws IOException
+    {
+        int length = DEFAULT_BATCH_SIZE + 1000;
+        write(0, length);
+        assertEquals(DEFAULT_BATCH_SIZE, file.length());
+        assertEquals(length, writer.position());
+
+        writer.close();
+        assertArrayEquals(Arrays.copyOf(data, length), readFile());
+        assertEquals(length, writer.getStats().getBytesWritten());
+    }
+
+    @Test
+    public void staysAlignedAfterAFlush() throws IOException
+    {
+        write(0, 1000);
+        writer.flush();
+        assertArrayEquals(Arrays.copyOf(data, 1000), readFile());
+
+        // Fills the batch, which still starts with the flushed partial block
+        write(1000, DEFAULT_BATCH_SIZE);
+        assertEquals(DEFAULT_BATCH_SIZE, file.length());
+        assertEquals(0, file.length() % BLOCK_SIZE);
+
+        int end = 1000 + DEFAULT_BATCH_SIZE;
+        for (int flushes = 0; flushes < 5; flushes++) {
+            write(end, 3000);
+            end += 3000;
+            writer.flush();
+            assertEquals(end, file.length());
+        }
+        write(end, DEFAULT_BATCH_SIZE);
+        end += DEFAULT_BATCH_SIZE;
+        assertEquals(0, file.length() % BLOCK_SIZE);
+
+        writer.close();
+        assertArrayEquals(Arrays.copyOf(data, end), readFile());
+        // Rewritten partial blocks count once
+        assertEquals(end, writer.getStats().getBytesWritten());
+    }
+
+    @Test
+    public void flushWithoutNewDataWritesNothing() throws IOException
+    {
+        write(0, 1000);
+        writer.flush();
+        long writes = writer.getStats().getWriteLatency().getCount();
+        writer.flush();
+        writer.close();
+        assertEquals(writes, writer.getStats().getWriteLatency().getCount());
+        assertEquals(1000, file.length());
+    }
+
+    private void write(int offset, int length) throws IOException
+    {
+        // In pieces of varying size, as a muxer writes
+        int end = offset + length;
+        int piece = 1;
+        while (offset < end) {
+            int size = Math.min(piece, end - offset);
+            writer.write(ByteBuffer.wrap(data, offset, size));
+            offset += size;
+            piece = piece * 7 % 5003 + 1;
+        }
+    }
+
+    private byte[] readFile() throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+}
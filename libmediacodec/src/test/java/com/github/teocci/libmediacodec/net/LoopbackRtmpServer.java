@@ -0,0 +1,388 @@
+package com.github.teocci.libmediacodec.net;
+
+import com.github.teocci.libmediacodec.format.Amf0;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts one RTMP publisher on the loopback interface and records what it sends.
+ * <p>
+ * It checks the handshake, answers connect, createStream and publish, pings the client
+ * once publishing starts, and keeps every audio, video and data message. {@link #stall()}
+ * stops reading from the socket, as a congested network would, until {@link #resume()}.
+ */
+public class LoopbackRtmpServer implements Closeable
+{
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int CHUNK_SIZE = 128;
+    private static final int PING_TIMESTAMP = 0x12345678;
+
+    public static class Message
+    {
+        public final int type;
+        public final int streamId;
+        public final long timestamp;
+        public final byte[] payload;
+
+        Message(int type, int streamId, long timestamp, byte[] payload)
+        {
+            this.type = type;
+            this.streamId = streamId;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final Thread thread;
+    private final List<Message> media = Collections.synchronizedList(new ArrayList<Message>());
+    private final List<List<Object>> commands = Collections.synchronizedList(new ArrayList<List<Object>>());
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final Object stallLock = new Object();
+    private boolean isStalled;
+
+    private volatile boolean isHandshakeValid;
+    private volatile boolean isPongReceived;
+    private volatile Exception failure;
+
+    private Socket socket;
+    private OutputStream out;
+    private final Map<Integer, ChunkStream> chunkStreams = new HashMap<>();
+    private int incomingChunkSize = CHUNK_SIZE;
+
+    /**
+     * @param receiveBufferSize socket receive buffer, small so a stall backs up into the client quickly
+     */
+    public LoopbackRtmpServer(int receiveBufferSize) throws IOException
+    {
+        serverSocket = new ServerSocket();
+        serverSocket.setReceiveBufferSize(receiveBufferSize);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                serve();
+            }
+        }, "LoopbackRtmpServer");
+        thread.start();
+    }
+
+    public String getUrl(String app, String streamName)
+    {
+        return "rtmp://127.0.0.1:" + serverSocket.getLocalPort() + "/" + app + "/" + streamName;
+    }
+
+    public void stall()
+    {
+        synchronized (stallLock) {
+            isStalled = true;
+        }
+    }
+
+    public void resume()
+    {
+        synchronized (stallLock) {
+            isStalled = false;
+            stallLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the client to close the connection.
+     *
+     * @throws IOException if the server failed, e.g. on a malformed chunk
+     */
+    public boolean awaitClose(long timeoutMs) throws IOException, InterruptedException
+    {
+        boolean isClosed = closed.await(timeoutMs, TimeUnit.MILLISECONDS);
+        if (failure != null) throw new IOException("Loopback server failed", failure);
+        return isClosed;
+    }
+
+    public boolean isHandshakeValid()
+    {
+        return isHandshakeValid;
+    }
+
+    public boolean isPongReceived()
+    {
+        return isPongReceived;
+    }
+
+    /**
+     * @return the commands received, each as its name, transaction id and arguments
+     */
+    public List<List<Object>> getCommands()
+    {
+        synchronized (commands) {
+            return new ArrayList<>(commands);
+        }
+    }
+
+    public List<String> getCommandNames()
+    {
+        List<String> names = new ArrayList<>();
+        for (List<Object> command : getCommands()) {
+            names.add(String.valueOf(command.get(0)));
+        }
+        return names;
+    }
+
+    /**
+     * @return the audio, video and data messages, in the order they were received
+     */
+    public List<Message> getMedia()
+    {
+        synchronized (media) {
+            return new ArrayList<>(media);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        resume();
+        serverSocket.close();
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    private void serve()
+    {
+        try {
+            socket = serverSocket.accept();
+            out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            handshake(in);
+            while (true) {
+                awaitResume();
+                Message message = readChunk(in);
+                if (message != null) {
+                    handleMessage(message);
+                }
+            }
+        } catch (EOFException e) {
+            // The client closed the connection
+        } catch (Exception e) {
+            if (!serverSocket.isClosed()) {
+                failure = e;
+            }
+        } finally {
+            closed.countDown();
+        }
+    }
+
+    private void handshake(DataInputStream in) throws IOException
+    {
+        byte[] c0c1 = new byte[1 + HANDSHAKE_SIZE];
+        in.readFully(c0c1);
+        byte[] s1 = new byte[HANDSHAKE_SIZE];
+        for (int i = 8; i < s1.length; i++) {
+            s1[i] = (byte) (i * 31);
+        }
+        out.write(3);
+        out.write(s1);
+        // S2 echoes C1
+        out.write(c0c1, 1, HANDSHAKE_SIZE);
+        out.flush();
+        byte[] c2 = new byte[HANDSHAKE_SIZE];
+        in.readFully(c2);
+        isHandshakeValid = c0c1[0] == 3 && Arrays.equals(c2, s1);
+    }
+
+    private void awaitResume() throws InterruptedException
+    {
+        synchronized (stallLock) {
+            while (isStalled) {
+                stallLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Reads one chunk.
+     *
+     * @return the message the chunk completed, or null
+     */
+    private Message readChunk(DataInputStream in) throws IOException
+    {
+        int first = in.readUnsignedByte();
+        int format = first >> 6;
+        int chunkStreamId = first & 0x3f;
+        if (chunkStreamId == 0) {
+            chunkStreamId = 64 + in.readUnsignedByte();
+        } else if (chunkStreamId == 1) {
+            chunkStreamId = 64 + in.readUnsignedByte() + in.readUnsignedByte() * 256;
+        }
+        ChunkStream stream = chunkStreams.get(chunkStreamId);
+        if (stream == null) {
+            if (format != 0) throw new IOException("Chunk stream " + chunkStreamId + " starts with format " + format);
+            stream = new ChunkStream();
+            chunkStreams.put(chunkStreamId, stream);
+        }
+        if (format <= 2) {
+            stream.timestampField = readInt24(in);
+        }
+        if (format <= 1) {
+            stream.length = readInt24(in);
+            stream.type = in.readUnsignedByte();
+        }
+        if (format == 0) {
+            stream.streamId = Integer.reverseBytes(in.readInt());
+        }
+        long timestamp = stream.timestampField;
+        if (stream.timestampField == 0xffffff) {
+            timestamp = in.readInt() & 0xffffffffL;
+        }
+        if (stream.payload == null) {
+            stream.timestamp = format == 0 ? timestamp : stream.timestamp + timestamp;
+            stream.payload = new byte[stream.length];
+            stream.received = 0;
+        }
+        int size = Math.min(incomingChunkSize, stream.length - stream.received);
+        in.readFully(stream.payload, stream.received, size);
+        stream.received += size;
+        if (stream.received < stream.length) return null;
+
+        Message message = new Message(stream.type, stream.streamId, stream.timestamp, stream.payload);
+        stream.payload = null;
+        return message;
+    }
+
+    private void handleMessage(Message message) throws IOException
+    {
+        ByteBuffer payload = ByteBuffer.wrap(message.payload);
+        switch (message.type) {
+            case RtmpConnection.MSG_SET_CHUNK_SIZE:
+                incomingChunkSize = payload.getInt();
+                break;
+            case RtmpConnection.MSG_USER_CONTROL:
+                if (payload.getShort() == 7 && payload.getInt() == PING_TIMESTAMP) {
+                    isPongReceived = true;
+                }
+                break;
+            case RtmpConnection.MSG_COMMAND_AMF0:
+                List<Object> command = new ArrayList<>();
+                while (payload.hasRemaining()) {
+                    command.add(Amf0.readValue(payload));
+                }
+                commands.add(command);
+                answer(command);
+                break;
+            case RtmpConnection.MSG_AUDIO:
+            case RtmpConnection.MSG_VIDEO:
+            case RtmpConnection.MSG_DATA_AMF0:
+                media.add(message);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void answer(List<Object> command) throws IOException
+    {
+        String name = (String) command.get(0);
+        double transaction = (Double) command.get(1);
+        if ("connect".equals(name)) {
+            ByteBuffer windowAckSize = ByteBuffer.allocate(4);
+            windowAckSize.putInt(2500000);
+            send(RtmpConnection.CHUNK_STREAM_CONTROL, RtmpConnection.MSG_WINDOW_ACK_SIZE, 0, windowAckSize.array());
+            Map<String, Object> properties = new LinkedHashMap<>();
+            properties.put("fmsVer", "FMS/3,0,1,123");
+            sendCommand(0, "_result", transaction, properties, status("NetConnection.Connect.Success"));
+        } else if ("createStream".equals(name)) {
+            sendCommand(0, "_result", transaction, null, 1.0);
+        } else if ("publish".equals(name)) {
+            sendCommand(1, "onStatus", 0, null, status("NetStream.Publish.Start"));
+            ByteBuffer ping = ByteBuffer.allocate(6);
+            ping.putShort((short) 6);
+            ping.putInt(PING_TIMESTAMP);
+            send(RtmpConnection.CHUNK_STREAM_CONTROL, RtmpConnection.MSG_USER_CONTROL, 0, ping.array());
+        }
+    }
+
+    private static Map<String, Object> status(String code)
+    {
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("level", "status");
+        info.put("code", code);
+        return info;
+    }
+
+    private void sendCommand(int streamId, String name, double transaction, Object... arguments) throws IOException
+    {
+        ByteBuffer payload = ByteBuffer.allocate(1024);
+        Amf0.putString(payload, name);
+        Amf0.putNumber(payload, transaction);
+        for (Object argument : arguments) {
+            Amf0.putValue(payload, argument);
+        }
+        payload.flip();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        send(RtmpConnection.CHUNK_STREAM_COMMAND, RtmpConnection.MSG_COMMAND_AMF0, streamId, bytes);
+    }
+
+    /**
+     * Sends a message in chunks of the default size, a type 0 header followed by type 3 ones.
+     */
+    private void send(int chunkStreamId, int type, int streamId, byte[] payload) throws IOException
+    {
+        ByteBuffer chunks = ByteBuffer.allocate(12 + payload.length + payload.length / CHUNK_SIZE);
+        chunks.put((byte) chunkStreamId);
+        chunks.put((byte) 0).put((byte) 0).put((byte) 0);
+        chunks.put((byte) (payload.length >> 16)).put((byte) (payload.length >> 8)).put((byte) payload.length);
+        chunks.put((byte) type);
+        chunks.putInt(Integer.reverseBytes(streamId));
+        for (int offset = 0; offset < payload.length; offset += CHUNK_SIZE) {
+            if (offset > 0) chunks.put((byte) (0xc0 | chunkStreamId));
+            chunks.put(payload, offset, Math.min(CHUNK_SIZE, payload.length - offset));
+        }
+        out.write(chunks.array(), 0, chunks.position());
+        out.flush();
+    }
+
+    private static int readInt24(InputStream in) throws IOException
+    {
+        int value = 0;
+        for (int i = 0; i < 3; i++) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private static class ChunkStream
+    {
+        long timestampField;
+        long timestamp;
+        int length;
+        int type;
+        int streamId;
+        byte[] payload;
+        int received;
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.teocci.libmediacodec.utils;
+
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Handing recording chunks to the stitcher in the orders a session can produce them.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IncrementalStitcherTest
+{
+    // Well below the time finish() waits for an announced chunk
+    private static final long PROMPT_MS = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TestMp4Writer writer = new TestMp4Writer();
+    private File workFile;
+    private File output;
+    private IncrementalStitcher stitcher;
+    private ExecutorService caller;
+
+    @Before
+    public void setUp()
+    {
+        workFile = new File(folder.getRoot(), "work/stitching.mp4");
+        output = new File(folder.getRoot(), "session.mp4");
+        stitcher = new IncrementalStitcher(workFile);
+        caller = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown()
+    {
+        stitcher.release();
+        caller.shutdownNow();
+    }
+
+    @Test
+    public void stitchesChunksInTheOrderTheyFinish() throws IOException
+    {
+        stitcher.expectChunk();
+        stitcher.expectChunk();
+        File first = writeChunk("chunk0.mp4", 10);
+        File second = writeChunk("chunk1.mp4", 6);
+
+        // The second muxer finished first
+        stitcher.chunkFinished(second);
+        stitcher.chunkFinished(first);
+        assertEquals(output, finishPromptly());
+
+        ParsedMp4 mp4 = ParsedMp4.read(output);
+        ParsedMp4.Track video = mp4.getTrack(TrackInfo.HANDLER_VIDEO);
+        assertEquals(16, video.getSampleCount());
+        assertArrayEquals(writer.videoSamples.get(10), mp4.readSample(video, 0));
+        assertFalse(first.exists());
+        assertFalse(second.exists());
+        assertFalse(workFile.exists());
+    }
+
+    @Test
+    public void acceptsAChunkBeforeItWasAnnounced() throws IOException
+    {
+        stitcher.chunkFinished(writeChunk("chunk0.mp4", 10));
+        stitcher.expectChunk();
+
+        assertEquals(output, finishPromptly());
+        assertEquals(10, getVideoSampleCount(output));
+    }
+
+    @Test
+    public void skipsRecordingsWithoutAFile() throws IOException
+    {
+        stitcher.expectChunk();
+        stitcher.expectChunk();
+        stitcher.chunkFinished(null);
+        stitcher.chunkFinished(writeChunk("chunk0.mp4", 10));
+        assertEquals(output, finishPromptly());
+        assertEquals(10, getVideoSampleCount(output));
+
+        // A session of nothing but empty recordings has no output
+        File empty = new File(folder.getRoot(), "empty.mp4");
+        stitcher.expectChunk();
+        stitcher.chunkFinished(null);
+        assertNull(stitcher.finish(empty));
+        assertFalse(empty.exists());
+    }
+
+    @Test
+    public void finishWaitsForTheLastChunk() throws Exception
+    {
+        stitcher.expectChunk();
+        stitcher.expectChunk();
+        stitcher.chunkFinished(writeChunk("chunk0.mp4", 10));
+        File last = writeChunk("chunk1.mp4", 6);
+
+        Future<File> finished = caller.submit(new Callable<File>()
+        {
+            @Override
+            public File call() throws Exception
+            {
+                return stitcher.finish(output);
+            }
+        });
+        Thread.sleep(200);
+        assertFalse("Finished without the last chunk", finished.isDone());
+
+        stitcher.chunkFinished(last);
+        assertEquals(output, finished.get(PROMPT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(16, getVideoSampleCount(output));
+    }
+
+    @Test
+    public void cancelDiscardsTheSessionAndItsPendingChunks() throws IOException
+    {
+        stitcher.expectChunk();
+        stitcher.expectChunk();
+        stitcher.chunkFinished(writeChunk("chunk0.mp4", 10));
+        stitcher.cancel();
+        // Still recording when the session was cancelled
+        File late = writeChunk("chunk1.mp4", 6);
+        stitcher.chunkFinished(late);
+        assertFalse(late.exists());
+        assertNull(stitcher.finish(output));
+        assertFalse(workFile.exists());
+
+        // The next session starts from scratch
+        stitcher.expectChunk();
+        stitcher.chunkFinished(writeChunk("chunk2.mp4", 4));
+        assertEquals(output, finishPromptly());
+        assertEquals(4, getVideoSampleCount(output));
+    }
+
+    private File writeChunk(String name, int videoFrames) throws IOException
+    {
+        return writer.write(folder.newFile(name), videoFrames, 3000, 5, videoFrames / 2, 360, false);
+    }
+
+    private File finishPromptly() throws IOException
+    {
+        long start = System.currentTimeMillis();
+        File file = stitcher.finish(output);
+        assertTrue("Waited for a chunk that had arrived", System.currentTimeMillis() - start < PROMPT_MS);
+        return file;
+    }
+
+    private static int getVideoSampleCount(File file) throws IOException
+    {
+        return ParsedMp4.read(file).getTrack(TrackInfo.HANDLER_VIDEO).getSampleCount();
+    }
+}
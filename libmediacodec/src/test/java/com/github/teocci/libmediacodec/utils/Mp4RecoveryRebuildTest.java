@@ -0,0 +1,215 @@
+package com.github.teocci.libmediacodec.utils;
+
+import android.media.MediaCodec;
+
+import com.github.teocci.libmediacodec.encoder.AndroidMuxer;
+import com.github.teocci.libmediacodec.encoder.FakeEncoderCodec;
+import com.github.teocci.libmediacodec.encoder.MediaMuxer;
+import com.github.teocci.libmediacodec.format.Mp4BoxReader.BoxHeader;
+import com.github.teocci.libmediacodec.format.SampleJournal;
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.teocci.libmediacodec.encoder.SessionConfig.FRAME_RATE;
+import static com.github.teocci.libmediacodec.encoder.TestSamples.fill;
+import static com.github.teocci.libmediacodec.encoder.TestSamples.toAvcc;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rebuilding the moov box of chunks android.media.MediaMuxer never finalized, written
+ * through {@link AndroidMuxer} and left behind by {@link com.github.teocci.libmediacodec.encoder.ShadowMediaMuxer}
+ * the way a crash leaves them.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class Mp4RecoveryRebuildTest
+{
+    // Frame durations that are whole ticks of both timescales
+    private static final int VIDEO_FRAME_RATE = 25;
+    private static final long VIDEO_FRAME_US = 1000000L / VIDEO_FRAME_RATE;
+    private static final int AUDIO_SAMPLE_RATE = 16000;
+    private static final long AUDIO_FRAME_US = 1024 * 1000000L / AUDIO_SAMPLE_RATE;
+    private static final int KEYFRAME_INTERVAL = 25;
+    private static final long DURATION_US = 3000000;
+    // MediaMuxer takes the first timestamp as the start, so it can't be 0
+    private static final long START_US = 1000000;
+
+    private static final byte NAL_IDR = 0x65;
+    private static final byte NAL_SLICE = 0x41;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // As stored in the file, H.264 with length prefixes
+    private final List<byte[]> videoSamples = new ArrayList<>();
+    private final List<byte[]> audioSamples = new ArrayList<>();
+
+    @Test
+    public void rebuildsTheIndexFromTheJournal() throws IOException
+    {
+        File crashed = new File(folder.getRoot(), "crashed.mp4");
+        writeUntilCrash(crashed);
+        // The same chunk cut off inside its last sample
+        File truncated = new File(folder.getRoot(), "truncated.mp4");
+        copy(crashed, truncated);
+        copy(SampleJournal.getJournalFile(crashed.getPath()), SampleJournal.getJournalFile(truncated.getPath()));
+        truncate(truncated, 10);
+
+        int samples = Mp4Recovery.recover(crashed, null);
+        ParsedMp4 mp4 = ParsedMp4.read(crashed);
+        assertRecovered(mp4, samples);
+        assertFalse(SampleJournal.getJournalFile(crashed.getPath()).exists());
+        assertFalse(Mp4Recovery.needsRecovery(crashed));
+
+        assertEquals(samples - 1, Mp4Recovery.recover(truncated, null));
+        ParsedMp4 cut = ParsedMp4.read(truncated);
+        assertRecovered(cut, samples - 1);
+        // The last chunk was video, and its remains aren't taken for AAC
+        assertEquals(mp4.getTrack(TrackInfo.HANDLER_VIDEO).getSampleCount() - 1,
+                cut.getTrack(TrackInfo.HANDLER_VIDEO).getSampleCount());
+        assertFalse(SampleJournal.getJournalFile(truncated.getPath()).exists());
+    }
+
+    @Test
+    public void rebuildsTheVideoFromAReference() throws IOException
+    {
+        File crashed = new File(folder.getRoot(), "crashed.mp4");
+        writeUntilCrash(crashed);
+        File unjournaled = new File(folder.getRoot(), "unjournaled.mp4");
+        copy(crashed, unjournaled);
+        // Recovered from its journal, the same chunk serves as the reference and the expected index
+        Mp4Recovery.recover(crashed, null);
+        ParsedMp4.Track expected = ParsedMp4.read(crashed).getTrack(TrackInfo.HANDLER_VIDEO);
+
+        int samples = Mp4Recovery.recover(unjournaled, crashed);
+        ParsedMp4 mp4 = ParsedMp4.read(unjournaled);
+        assertEquals(expected.getSampleCount(), samples);
+        assertEquals("AAC can't be found without a journal", 1, mp4.tracks.size());
+        ParsedMp4.Track video = mp4.getTrack(TrackInfo.HANDLER_VIDEO);
+        assertEquals("avc1", video.sampleEntryType);
+        assertArrayEquals(expected.sizes, video.sizes);
+        assertArrayEquals(expected.chunkOffsets, video.chunkOffsets);
+        assertArrayEquals(expected.samplesPerChunk, video.samplesPerChunk);
+        assertArrayEquals(expected.syncSamples, video.syncSamples);
+        // Timed at the default frame rate, rounded to whole ticks
+        for (int delta : video.deltas) {
+            assertEquals(TrackInfo.VIDEO_TIMESCALE / FRAME_RATE, delta, 1);
+        }
+        for (int i = 0; i < samples; i++) {
+            assertArrayEquals("Video sample " + i, videoSamples.get(i), mp4.readSample(video, i));
+        }
+    }
+
+    /**
+     * Checks the rebuilt index against the samples written: every sample in order at the
+     * offset the chunks point to, with its timestamps and sync flag, and nothing else in
+     * the mdat.
+     */
+    private void assertRecovered(ParsedMp4 mp4, int samples) throws IOException
+    {
+        assertEquals(2, mp4.tracks.size());
+        ParsedMp4.Track video = mp4.getTrack(TrackInfo.HANDLER_VIDEO);
+        ParsedMp4.Track audio = mp4.getTrack(TrackInfo.HANDLER_SOUND);
+        assertEquals(samples, video.getSampleCount() + audio.getSampleCount());
+        assertTrue("Only part of the samples reached the file", video.getSampleCount() < videoSamples.size());
+        assertTrue("Several chunks per track", video.chunkOffsets.length > 1 && audio.chunkOffsets.length > 1);
+
+        assertEquals("avc1", video.sampleEntryType);
+        assertEquals(TrackInfo.VIDEO_TIMESCALE, video.timescale);
+        for (int i = 0; i < video.getSampleCount(); i++) {
+            assertArrayEquals("Video sample " + i, videoSamples.get(i), mp4.readSample(video, i));
+            assertEquals(TrackInfo.VIDEO_TIMESCALE / VIDEO_FRAME_RATE, video.deltas[i]);
+            assertEquals(i % KEYFRAME_INTERVAL == 0, video.isSync(i));
+        }
+
+        assertEquals("mp4a", audio.sampleEntryType);
+        assertEquals(AUDIO_SAMPLE_RATE, audio.timescale);
+        assertNull(audio.syncSamples);
+        for (int i = 0; i < audio.getSampleCount(); i++) {
+            assertArrayEquals("Audio sample " + i, audioSamples.get(i), mp4.readSample(audio, i));
+            assertEquals(1024, audio.deltas[i]);
+        }
+
+        long mediaSize = 0;
+        for (ParsedMp4.Track track : mp4.tracks) {
+            for (int size : track.sizes) {
+                mediaSize += size;
+            }
+        }
+        BoxHeader mdat = mp4.getBox("mdat");
+        assertEquals(mediaSize, mdat.getEnd() - mdat.getPayloadOffset());
+    }
+
+    /**
+     * Records {@link #DURATION_US} of journaled video and audio and leaves the muxer running,
+     * so the file has no moov box and the chunks the muxer still held back never reach it.
+     */
+    private void writeUntilCrash(File file) throws IOException
+    {
+        AndroidMuxer muxer = AndroidMuxer.create(file.getPath(), MediaMuxer.MediaFormat.MPEG4);
+        muxer.setSampleJournal(SampleJournal.create(file.getPath(), 0));
+        muxer.setExpectedNumTracks(2);
+        int videoTrack = muxer.addTrack(FakeEncoderCodec.createVideo(640, 360, VIDEO_FRAME_RATE, 1000000, KEYFRAME_INTERVAL).getOutputFormat());
+        int audioTrack = muxer.addTrack(FakeEncoderCodec.createAudio(AUDIO_SAMPLE_RATE, 1, 64000).getOutputFormat());
+        assertTrue(muxer.isStarted());
+
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int videoFrame = 0;
+        int audioFrame = 0;
+        while (videoFrame * VIDEO_FRAME_US < DURATION_US) {
+            boolean isKeyframe = videoFrame % KEYFRAME_INTERVAL == 0;
+            byte[] sample = new byte[(isKeyframe ? 3000 : 1000) + videoFrame % 7 * 10];
+            sample[3] = 1;
+            sample[4] = isKeyframe ? NAL_IDR : NAL_SLICE;
+            // A picture's first slice starts at macroblock 0
+            sample[5] = (byte) 0x88;
+            fill(sample, 6, videoFrame);
+            videoSamples.add(toAvcc(sample));
+            info.set(0, sample.length, START_US + videoFrame * VIDEO_FRAME_US,
+                    isKeyframe ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(null, videoTrack, -1, ByteBuffer.wrap(sample), info);
+            videoFrame++;
+
+            while (audioFrame * AUDIO_FRAME_US < videoFrame * VIDEO_FRAME_US) {
+                sample = new byte[200 + audioFrame % 5 * 10];
+                fill(sample, 0, 1000 + audioFrame);
+                audioSamples.add(sample);
+                info.set(0, sample.length, START_US + audioFrame * AUDIO_FRAME_US, 0);
+                muxer.writeSampleData(null, audioTrack, -1, ByteBuffer.wrap(sample), info);
+                audioFrame++;
+            }
+        }
+        assertTrue(Mp4Recovery.needsRecovery(file));
+    }
+
+    private static void copy(File source, File target) throws IOException
+    {
+        Files.copy(source.toPath(), target.toPath());
+    }
+
+    private static void truncate(File file, int bytes) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.teocci.libmediacodec.utils;
+
+import com.github.teocci.libmediacodec.format.BoxWriter;
+import com.github.teocci.libmediacodec.format.Mp4Boxes;
+import com.github.teocci.libmediacodec.format.SampleJournal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Trimming of fragmented MP4s a crash left with the writer's preallocated zeros.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class Mp4RecoveryTest
+{
+    private static final int PREALLOCATED = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private long fragmentsEnd;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = folder.newFile("chunk.mp4");
+        BoxWriter w = new BoxWriter(64 * 1024);
+        Mp4Boxes.writeFtyp(w, "iso5", 512, "iso5", "iso6", "mp41");
+        w.startBox("moov").startBox("mvex").putBytes(filler(32)).endBox().endBox();
+        for (int i = 0; i < 3; i++) {
+            w.startBox("moof").putBytes(filler(100)).endBox();
+            w.startBox("mdat").putBytes(filler(10000)).endBox();
+        }
+        fragmentsEnd = w.position();
+        write(w, 0);
+    }
+
+    @Test
+    public void cutsOffThePreallocatedZeros() throws IOException
+    {
+        setLength(fragmentsEnd + PREALLOCATED);
+
+        assertEquals(PREALLOCATED, Mp4Recovery.trimFragments(file));
+        assertEquals(fragmentsEnd, file.length());
+    }
+
+    @Test
+    public void cutsOffAFragmentThatWasNotWrittenCompletely() throws IOException
+    {
+        // The moof and the start of the mdat made it to the file, the rest is zeros
+        BoxWriter w = new BoxWriter(64 * 1024);
+        w.startBox("moof").putBytes(filler(100)).endBox();
+        w.put32(8 + 50000).putFourCC("mdat").putBytes(filler(5000));
+        write(w, fragmentsEnd);
+        setLength(fragmentsEnd + PREALLOCATED);
+
+        Mp4Recovery.trimFragments(file);
+        assertEquals(fragmentsEnd, file.length());
+    }
+
+    @Test
+    public void cutsOffAMoofWithoutItsMdat() throws IOException
+    {
+        BoxWriter w = new BoxWriter(1024);
+        w.startBox("moof").putBytes(filler(100)).endBox();
+        write(w, fragmentsEnd);
+        setLength(fragmentsEnd + PREALLOCATED);
+
+        Mp4Recovery.trimFragments(file);
+        assertEquals(fragmentsEnd, file.length());
+    }
+
+    @Test
+    public void leavesACompleteFileAlone() throws IOException
+    {
+        assertEquals(0, Mp4Recovery.trimFragments(file));
+        assertEquals(fragmentsEnd, file.length());
+    }
+
+    @Test
+    public void sweepTrimsFragmentedFilesInPlace() throws IOException
+    {
+        setLength(fragmentsEnd + PREALLOCATED);
+
+        assertTrue(Mp4Recovery.isFragmented(file));
+        assertTrue(Mp4Recovery.sweep(folder.getRoot(), null).isEmpty());
+        assertEquals(fragmentsEnd, file.length());
+    }
+
+    @Test
+    public void sweepLeavesNonFragmentedFilesAlone() throws IOException
+    {
+        // A complete progressive MP4 that happens to end in zeros
+        BoxWriter w = new BoxWriter(64 * 1024);
+        Mp4Boxes.writeFtyp(w, "isom", 512, "isom", "mp41");
+        w.startBox("mdat").putBytes(filler(10000)).endBox();
+        w.startBox("moov").startBox("mvhd").putBytes(filler(100)).endBox()
+                .startBox("trak").putBytes(filler(200)).endBox().endBox();
+        w.startBox("free").putZeros(1000).endBox();
+        int end = w.position();
+        write(w, 0);
+        setLength(end + PREALLOCATED);
+
+        assertFalse(Mp4Recovery.isFragmented(file));
+        assertTrue(Mp4Recovery.sweep(folder.getRoot(), null).isEmpty());
+        assertEquals(end + PREALLOCATED, file.length());
+    }
+
+    @Test
+    public void sweepSkipsTheActiveRecording() throws IOException
+    {
+        // Just created by the next session: nothing written yet, the journal mapped
+        File active = folder.newFile("active.mp4");
+        File activeJournal = folder.newFile("active.mp4" + SampleJournal.FILE_SUFFIX);
+        File orphanedJournal = folder.newFile("gone.mp4" + SampleJournal.FILE_SUFFIX);
+
+        assertTrue(Mp4Recovery.sweep(folder.getRoot(), null, active).isEmpty());
+        assertTrue(active.exists());
+        assertTrue(activeJournal.exists());
+        assertFalse(orphanedJournal.exists());
+    }
+
+    private static byte[] filler(int size)
+    {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i % 251 + 1);
+        }
+        return bytes;
+    }
+
+    private void write(BoxWriter w, long position) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer bytes = w.asByteBuffer();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes, position + bytes.position());
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void setLength(long length) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
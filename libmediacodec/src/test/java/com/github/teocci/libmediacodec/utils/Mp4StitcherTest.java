@@ -0,0 +1,86 @@
+package com.github.teocci.libmediacodec.utils;
+
+import com.github.teocci.libmediacodec.format.Mp4BoxReader.BoxHeader;
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Stitching progressive MP4s written by {@link TestMp4Writer}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class Mp4StitcherTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Writes the inputs in stitching order
+    private final TestMp4Writer writer = new TestMp4Writer();
+
+    @Test
+    public void stitchesSamplesAndMediaData() throws IOException
+    {
+        List<File> inputs = Arrays.asList(
+                writer.write(folder.newFile("chunk0.mp4"), 12, 3000, 5, 9, 640, false),
+                writer.write(folder.newFile("chunk1.mp4"), 7, 3600, 10, 5, 640, true),
+                // Keyframes only, a new resolution and no audio
+                writer.write(folder.newFile("chunk2.mp4"), 4, 3000, 1, 0, 480, false));
+        File output = new File(folder.getRoot(), "stitched.mp4");
+        Mp4Stitcher.stitch(output, inputs);
+
+        ParsedMp4 mp4 = ParsedMp4.read(output);
+        assertEquals(Arrays.asList("ftyp", "mdat", "moov"), mp4.getBoxTypes());
+        BoxHeader mdat = mp4.getBox("mdat");
+        assertEquals(16, mdat.headerSize);
+        assertEquals(writer.mediaSize, mdat.getEnd() - mdat.getPayloadOffset());
+        assertEquals(2, mp4.tracks.size());
+
+        ParsedMp4.Track video = mp4.getTrack(TrackInfo.HANDLER_VIDEO);
+        assertEquals(12 + 7 + 4, video.getSampleCount());
+        assertEquals(12 * 3000 + 7 * 3600 + 4 * 3000, video.getDuration());
+        assertArrayEquals(new int[]{1, 6, 11, 13, 20, 21, 22, 23}, video.syncSamples);
+        assertEquals(2, video.sampleEntryCount);
+        assertArrayEquals(new int[]{1, 1, 1, 1, 1, 2}, video.descriptionIndices);
+        assertFalse(video.isCo64);
+        assertEquals(mdat.getPayloadOffset(), video.chunkOffsets[0]);
+        for (int i = 0; i < video.getSampleCount(); i++) {
+            assertArrayEquals("Video sample " + i, writer.videoSamples.get(i), mp4.readSample(video, i));
+        }
+
+        ParsedMp4.Track audio = mp4.getTrack(TrackInfo.HANDLER_SOUND);
+        assertEquals(9 + 5, audio.getSampleCount());
+        assertEquals((9 + 5) * 1024, audio.getDuration());
+        assertNull(audio.syncSamples);
+        assertEquals(1, audio.sampleEntryCount);
+        for (int i = 0; i < audio.getSampleCount(); i++) {
+            assertArrayEquals("Audio sample " + i, writer.audioSamples.get(i), mp4.readSample(audio, i));
+        }
+    }
+
+    @Test
+    public void deletesTheOutputOfAFailedStitch() throws IOException
+    {
+        File broken = folder.newFile("broken.mp4");
+        File output = new File(folder.getRoot(), "stitched.mp4");
+        try {
+            Mp4Stitcher.stitch(output, Arrays.asList(writer.write(folder.newFile("chunk0.mp4"), 5, 3000, 5, 4, 640, false), broken));
+            throw new AssertionError("Stitched an input without a moov box");
+        } catch (IOException e) {
+            assertFalse(output.exists());
+        }
+    }
+}
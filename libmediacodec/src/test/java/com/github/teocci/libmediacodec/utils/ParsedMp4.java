@@ -0,0 +1,214 @@
+package com.github.teocci.libmediacodec.utils;
+
+import com.github.teocci.libmediacodec.format.Mp4BoxReader;
+import com.github.teocci.libmediacodec.format.Mp4BoxReader.BoxHeader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * The top-level boxes and the sample tables of a progressive MP4, expanded per sample
+ * and per chunk so tests can compare them entry by entry.
+ */
+public class ParsedMp4
+{
+    public final File file;
+    public final List<BoxHeader> boxes;
+    public final List<Track> tracks = new ArrayList<>();
+
+    private ParsedMp4(File file, List<BoxHeader> boxes)
+    {
+        this.file = file;
+        this.boxes = boxes;
+    }
+
+    public static ParsedMp4 read(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ParsedMp4 mp4 = new ParsedMp4(file, Mp4BoxReader.readTopLevelBoxes(channel));
+            BoxHeader moov = mp4.getBox("moov");
+            assertNotNull("No moov box in " + file, moov);
+            for (ByteBuffer trak : Mp4BoxReader.findBoxes(Mp4BoxReader.readPayload(channel, moov), "trak")) {
+                mp4.tracks.add(new Track(trak));
+            }
+            return mp4;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the first top-level box of {@code type}, or null
+     */
+    public BoxHeader getBox(String type)
+    {
+        for (BoxHeader box : boxes) {
+            if (box.type.equals(type)) return box;
+        }
+        return null;
+    }
+
+    public List<String> getBoxTypes()
+    {
+        List<String> types = new ArrayList<>();
+        for (BoxHeader box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+
+    public Track getTrack(String handlerType)
+    {
+        for (Track track : tracks) {
+            if (track.handlerType.equals(handlerType)) return track;
+        }
+        return null;
+    }
+
+    /**
+     * @return the bytes of sample {@code index} of {@code track}, read from where its chunk points
+     */
+    public byte[] readSample(Track track, int index) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] sample = new byte[track.sizes[index]];
+            raf.seek(track.getSampleOffsets()[index]);
+            raf.readFully(sample);
+            return sample;
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static class Track
+    {
+        public final String handlerType;
+        public final int timescale;
+        public final String sampleEntryType;
+        public final int sampleEntryCount;
+        public final int[] sizes;
+        public final int[] deltas;
+        // 1-based sample numbers, or null if every sample is a sync sample
+        public final int[] syncSamples;
+        public final long[] chunkOffsets;
+        public final boolean isCo64;
+        public final int[] samplesPerChunk;
+        public final int[] descriptionIndices;
+
+        Track(ByteBuffer trak)
+        {
+            ByteBuffer mdia = Mp4BoxReader.findBox(trak, "mdia");
+            ByteBuffer mdhd = Mp4BoxReader.findBox(mdia, "mdhd");
+            timescale = mdhd.getInt(mdhd.get(0) == 1 ? 20 : 12);
+            ByteBuffer hdlr = Mp4BoxReader.findBox(mdia, "hdlr");
+            hdlr.position(8);
+            handlerType = Mp4BoxReader.readFourCC(hdlr);
+            ByteBuffer stbl = Mp4BoxReader.findBox(Mp4BoxReader.findBox(mdia, "minf"), "stbl");
+
+            ByteBuffer stsd = Mp4BoxReader.findBox(stbl, "stsd");
+            sampleEntryCount = stsd.getInt(4);
+            stsd.position(12);
+            sampleEntryType = Mp4BoxReader.readFourCC(stsd);
+
+            ByteBuffer stsz = Mp4BoxReader.findBox(stbl, "stsz");
+            int constantSize = stsz.getInt(4);
+            sizes = new int[stsz.getInt(8)];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = constantSize != 0 ? constantSize : stsz.getInt(12 + i * 4);
+            }
+
+            ByteBuffer stts = Mp4BoxReader.findBox(stbl, "stts");
+            deltas = new int[sizes.length];
+            int sample = 0;
+            for (int i = 0; i < stts.getInt(4); i++) {
+                int count = stts.getInt(8 + i * 8);
+                int delta = stts.getInt(12 + i * 8);
+                for (int j = 0; j < count; j++) {
+                    deltas[sample++] = delta;
+                }
+            }
+
+            ByteBuffer stss = Mp4BoxReader.findBox(stbl, "stss");
+            if (stss != null) {
+                syncSamples = new int[stss.getInt(4)];
+                for (int i = 0; i < syncSamples.length; i++) {
+                    syncSamples[i] = stss.getInt(8 + i * 4);
+                }
+            } else {
+                syncSamples = null;
+            }
+
+            ByteBuffer stco = Mp4BoxReader.findBox(stbl, "stco");
+            ByteBuffer co64 = Mp4BoxReader.findBox(stbl, "co64");
+            isCo64 = co64 != null;
+            ByteBuffer offsets = isCo64 ? co64 : stco;
+            chunkOffsets = new long[offsets.getInt(4)];
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                chunkOffsets[i] = isCo64 ? offsets.getLong(8 + i * 8) : offsets.getInt(8 + i * 4) & 0xffffffffL;
+            }
+
+            ByteBuffer stsc = Mp4BoxReader.findBox(stbl, "stsc");
+            int entries = stsc.getInt(4);
+            samplesPerChunk = new int[chunkOffsets.length];
+            descriptionIndices = new int[chunkOffsets.length];
+            for (int i = 0; i < entries; i++) {
+                int firstChunk = stsc.getInt(8 + i * 12);
+                int lastChunk = i + 1 < entries ? stsc.getInt(8 + (i + 1) * 12) - 1 : chunkOffsets.length;
+                for (int chunk = firstChunk; chunk <= lastChunk; chunk++) {
+                    samplesPerChunk[chunk - 1] = stsc.getInt(12 + i * 12);
+                    descriptionIndices[chunk - 1] = stsc.getInt(16 + i * 12);
+                }
+            }
+        }
+
+        public int getSampleCount()
+        {
+            return sizes.length;
+        }
+
+        public long getDuration()
+        {
+            long duration = 0;
+            for (int delta : deltas) {
+                duration += delta;
+            }
+            return duration;
+        }
+
+        public boolean isSync(int index)
+        {
+            if (syncSamples == null) return true;
+            for (int sampleNumber : syncSamples) {
+                if (sampleNumber == index + 1) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the file offset of every sample, from the chunk offsets and sample sizes
+         */
+        public long[] getSampleOffsets()
+        {
+            long[] offsets = new long[sizes.length];
+            int sample = 0;
+            for (int chunk = 0; chunk < chunkOffsets.length; chunk++) {
+                long offset = chunkOffsets[chunk];
+                for (int i = 0; i < samplesPerChunk[chunk]; i++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample++];
+                }
+            }
+            return offsets;
+        }
+    }
+}
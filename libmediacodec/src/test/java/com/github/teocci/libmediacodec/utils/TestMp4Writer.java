@@ -0,0 +1,135 @@
+package com.github.teocci.libmediacodec.utils;
+
+import com.github.teocci.libmediacodec.format.BoxWriter;
+import com.github.teocci.libmediacodec.format.Mp4Boxes;
+import com.github.teocci.libmediacodec.format.SampleTable;
+import com.github.teocci.libmediacodec.format.TrackInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.teocci.libmediacodec.encoder.TestSamples.fill;
+
+/**
+ * Writes small progressive MP4s with H.264 and AAC chunks interleaved the way
+ * android.media.MediaMuxer lays them out, and keeps the samples of all of them in the
+ * order they were written.
+ */
+class TestMp4Writer
+{
+    public static final int AUDIO_SAMPLE_RATE = 16000;
+    public static final int VIDEO_CHUNK_SAMPLES = 5;
+    public static final int AUDIO_CHUNK_SAMPLES = 4;
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    public final List<byte[]> videoSamples = new ArrayList<>();
+    public final List<byte[]> audioSamples = new ArrayList<>();
+    // Size of the mdat payloads written
+    public long mediaSize;
+
+    private int sampleNumber;
+
+    /**
+     * Writes an MP4 of distinct samples, video in chunks of {@link #VIDEO_CHUNK_SAMPLES}
+     * alternating with audio in chunks of {@link #AUDIO_CHUNK_SAMPLES}.
+     *
+     * @param audioFrames AAC frames, or 0 for a file with only an H.264 track
+     * @param moovFirst   index before the media data, as written for progressive download
+     */
+    public File write(File file, int videoFrames, int videoDelta, int keyframeInterval,
+                      int audioFrames, int height, boolean moovFirst) throws IOException
+    {
+        ByteArrayOutputStream media = new ByteArrayOutputStream();
+        SampleTable video = new SampleTable();
+        SampleTable audio = new SampleTable();
+        int videoFrame = 0;
+        int audioFrame = 0;
+        while (videoFrame < videoFrames || audioFrame < audioFrames) {
+            int samples = Math.min(VIDEO_CHUNK_SAMPLES, videoFrames - videoFrame);
+            if (samples > 0) {
+                video.addChunk(media.size(), samples, 1);
+            }
+            for (int i = 0; i < samples; i++, videoFrame++) {
+                byte[] sample = createSample(300 + videoFrame % 7 * 10);
+                videoSamples.add(sample);
+                media.write(sample);
+                video.addSample(sample.length, videoDelta, videoFrame % keyframeInterval == 0, 0);
+            }
+            samples = Math.min(AUDIO_CHUNK_SAMPLES, audioFrames - audioFrame);
+            if (samples > 0) {
+                audio.addChunk(media.size(), samples, 1);
+            }
+            for (int i = 0; i < samples; i++, audioFrame++) {
+                byte[] sample = createSample(100 + audioFrame % 5 * 10);
+                audioSamples.add(sample);
+                media.write(sample);
+                audio.addSample(sample.length, 1024, true, 0);
+            }
+        }
+        mediaSize += media.size();
+
+        TrackInfo videoInfo = TrackInfo.createAvc(1, height * 16 / 9, height, SPS, PPS);
+        TrackInfo audioInfo = audioFrames > 0 ? TrackInfo.createAac(2, AUDIO_SAMPLE_RATE, 1, null) : null;
+        BoxWriter w = new BoxWriter(64 * 1024);
+        Mp4Boxes.writeFtyp(w, "isom", 512, "isom", "iso2", "avc1", "mp41");
+        long mediaStart = w.position() + 8;
+        if (moovFirst) {
+            mediaStart += writeMoov(new BoxWriter(64 * 1024), videoInfo, video, audioInfo, audio, 0);
+            writeMoov(w, videoInfo, video, audioInfo, audio, mediaStart);
+        }
+        w.put32(8 + media.size()).putFourCC("mdat").putBytes(media.toByteArray());
+        if (!moovFirst) {
+            writeMoov(w, videoInfo, video, audioInfo, audio, mediaStart);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            w.writeTo(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return the size of the moov box, with chunk offsets moved to {@code mediaStart}
+     */
+    private static int writeMoov(BoxWriter w, TrackInfo videoInfo, SampleTable video,
+                                 TrackInfo audioInfo, SampleTable audio, long mediaStart)
+    {
+        int start = w.position();
+        w.startBox("moov");
+        Mp4Boxes.writeMvhd(w, video.getDuration() * Mp4Boxes.MOVIE_TIMESCALE / videoInfo.getTimescale(),
+                audioInfo != null ? 3 : 2);
+        writeTrak(w, videoInfo, video, mediaStart);
+        if (audioInfo != null) {
+            writeTrak(w, audioInfo, audio, mediaStart);
+        }
+        w.endBox();
+        return w.position() - start;
+    }
+
+    private static void writeTrak(BoxWriter w, TrackInfo info, SampleTable samples, long mediaStart)
+    {
+        SampleTable moved = new SampleTable();
+        moved.append(samples, mediaStart, null, info.getTimescale(), info.getTimescale());
+        Mp4Boxes.writeTrak(w, info, moved, moved.getDuration(),
+                moved.getDuration() * Mp4Boxes.MOVIE_TIMESCALE / info.getTimescale());
+    }
+
+    private byte[] createSample(int size)
+    {
+        byte[] sample = new byte[size];
+        sample[0] = (byte) (sampleNumber >> 8);
+        sample[1] = (byte) sampleNumber;
+        fill(sample, 2, sampleNumber);
+        sampleNumber++;
+        return sample;
+    }
+}